@@ -0,0 +1,19 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.MirrorOptions;
+
+/**
+ * Setup shared by the benchmarks.
+ */
+public class Benchmarks {
+
+    public static MirrorContext newContext(int maxThreads) {
+        final MirrorOptions options = new MirrorOptions();
+        options.setSource(InMemoryS3.SOURCE_BUCKET);
+        options.setDestination(InMemoryS3.DEST_BUCKET);
+        options.setMaxThreads(maxThreads);
+        options.initDerivedFields();
+        return new MirrorContext(options, null);
+    }
+}
@@ -0,0 +1,56 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.JobDispatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JobDispatcher on platform threads against virtual threads (--virtual-threads), with jobs that block for a fixed
+ * time like a request waiting on S3: the time to run a burst of JOBS_PER_THREAD jobs per thread. Ideally that is
+ * JOBS_PER_THREAD times the latency, whatever the concurrency; run with -prof gc to compare the memory each mode
+ * uses. Virtual threads need Java 21 or later, and fall back to platform threads before that.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExecutionModeBenchmark {
+
+    public static final int JOBS_PER_THREAD = 4;
+
+    @Param({"200", "2000"})
+    public int concurrency;
+
+    @Param({"50"})
+    public long latencyMillis;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    private JobDispatcher dispatcher;
+    private JobDispatcher.JobGroup group;
+    private Runnable job;
+
+    @Setup
+    public void setup() {
+        dispatcher = new JobDispatcher(concurrency, concurrency, virtualThreads);
+        group = new JobDispatcher.JobGroup();
+        job = new Runnable() {
+            @Override public void run() {
+                try { Thread.sleep(latencyMillis); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() { dispatcher.shutdown(); }
+
+    @Benchmark
+    public void blockingBurst() throws InterruptedException {
+        for (int i=0; i<concurrency * JOBS_PER_THREAD; i++) dispatcher.submit(job, group);
+        group.awaitCompletion();
+    }
+}
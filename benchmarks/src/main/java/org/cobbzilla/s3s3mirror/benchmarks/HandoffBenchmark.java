@@ -0,0 +1,47 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.JobDispatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handoff latency of the JobDispatcher: the time from submitting a job until it has run on a worker and the
+ * submitting thread has seen it finish. This is the overhead added to every key, on top of its S3 requests.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandoffBenchmark {
+
+    @Param({"8", "128"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    private JobDispatcher dispatcher;
+    private JobDispatcher.JobGroup group;
+
+    @Setup
+    public void setup() {
+        dispatcher = new JobDispatcher(threads, 1000, virtualThreads);
+        group = new JobDispatcher.JobGroup();
+    }
+
+    @TearDown
+    public void tearDown() { dispatcher.shutdown(); }
+
+    @Benchmark
+    public void submitAndWait() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        dispatcher.submit(new Runnable() {
+            @Override public void run() { ran.countDown(); }
+        }, group);
+        ran.await();
+    }
+}
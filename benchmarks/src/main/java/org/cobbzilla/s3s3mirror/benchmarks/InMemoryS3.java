@@ -0,0 +1,175 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.cobbzilla.s3s3mirror.KeyRecord;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for S3 with a source bucket of generated keys and a destination bucket held in memory. Each request
+ * waits for the configured latency (without using CPU) before it answers, like a round trip to S3 would.
+ *
+ * Only the requests made by the copy pipeline are implemented: listing, HEAD, ACL reads and copies.
+ */
+public class InMemoryS3 extends AmazonS3Client {
+
+    public static final String SOURCE_BUCKET = "source-bucket";
+    public static final String DEST_BUCKET = "dest-bucket";
+    public static final long OBJECT_SIZE = 1024;
+
+    private static final String ETAG = "0123456789abcdef0123456789abcdef";
+    private static final AccessControlList ACL = new AccessControlList();
+
+    private final String[] keys;
+    private final S3ObjectSummary[] summaries;
+    private final KeyRecord[] records;
+    private final Date lastModified = new Date(System.currentTimeMillis() - 60000);
+    private final Map<String, ObjectMetadata> destination = new ConcurrentHashMap<String, ObjectMetadata>();
+
+    private volatile long latencyNanos;
+    private volatile boolean storeCopies = true;
+
+    public InMemoryS3(int keyCount, long latencyMicros) {
+        super(new BasicAWSCredentials("benchmark", "benchmark"));
+        this.latencyNanos = latencyMicros * 1000;
+        keys = new String[keyCount];
+        summaries = new S3ObjectSummary[keyCount];
+        records = new KeyRecord[keyCount];
+        for (int i=0; i<keyCount; i++) keys[i] = String.format("data/%08d/object.bin", i);
+        Arrays.sort(keys);
+        for (int i=0; i<keyCount; i++) {
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(SOURCE_BUCKET);
+            summary.setKey(keys[i]);
+            summary.setSize(OBJECT_SIZE);
+            summary.setETag(ETAG);
+            summary.setLastModified(lastModified);
+            summaries[i] = summary;
+            records[i] = KeyRecord.of(summary);
+        }
+    }
+
+    public int getKeyCount() { return keys.length; }
+
+    public KeyRecord getRecord(int i) { return records[i]; }
+
+    public void setLatencyMicros(long latencyMicros) { this.latencyNanos = latencyMicros * 1000; }
+
+    /**
+     * @param storeCopies if false, copies succeed but the destination does not change, so the same keys can be
+     *                    copied again and again
+     */
+    public void setStoreCopies(boolean storeCopies) { this.storeCopies = storeCopies; }
+
+    public void clearDestination() { destination.clear(); }
+
+    /**
+     * Puts every source key in the destination, so that a mirror finds nothing to copy.
+     */
+    public void fillDestination() {
+        for (String key : keys) destination.put(key, newMetadata());
+    }
+
+    public int getDestinationSize() { return destination.size(); }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) LockSupport.parkNanos(latencyNanos);
+    }
+
+    private ObjectMetadata newMetadata() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(OBJECT_SIZE);
+        metadata.setHeader("ETag", ETAG);
+        metadata.setLastModified(lastModified);
+        return metadata;
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        roundTrip();
+        final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        final int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+
+        int start;
+        if (request.getMarker() == null) {
+            start = Arrays.binarySearch(keys, prefix);
+            if (start < 0) start = -(start + 1);
+        } else {
+            start = Arrays.binarySearch(keys, request.getMarker());
+            start = start < 0 ? -(start + 1) : start + 1;
+        }
+
+        final ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setMarker(request.getMarker());
+        listing.setMaxKeys(maxKeys);
+        final List<S3ObjectSummary> page = listing.getObjectSummaries();
+        int i = start;
+        for (; i < keys.length && page.size() < maxKeys && keys[i].startsWith(prefix); i++) page.add(summaries[i]);
+        final boolean truncated = i < keys.length && keys[i].startsWith(prefix);
+        listing.setTruncated(truncated);
+        if (truncated) listing.setNextMarker(keys[i - 1]);
+        return listing;
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        if (!previous.isTruncated()) {
+            final ObjectListing empty = new ObjectListing();
+            empty.setBucketName(previous.getBucketName());
+            empty.setPrefix(previous.getPrefix());
+            empty.setTruncated(false);
+            return empty;
+        }
+        return listObjects(new ListObjectsRequest(previous.getBucketName(), previous.getPrefix(), previous.getNextMarker(), previous.getDelimiter(), previous.getMaxKeys()));
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        roundTrip();
+        if (request.getBucketName().equals(DEST_BUCKET)) {
+            final ObjectMetadata metadata = destination.get(request.getKey());
+            if (metadata == null) throw notFound(request.getKey());
+            return metadata;
+        }
+        if (Arrays.binarySearch(keys, request.getKey()) < 0) throw notFound(request.getKey());
+        return newMetadata();
+    }
+
+    private AmazonS3Exception notFound(String key) {
+        final AmazonS3Exception e = new AmazonS3Exception("Not Found: "+key);
+        e.setStatusCode(404);
+        e.setErrorCode("NoSuchKey");
+        return e;
+    }
+
+    @Override
+    public AccessControlList getObjectAcl(String bucketName, String key) {
+        roundTrip();
+        return ACL;
+    }
+
+    @Override
+    public AccessControlList getObjectAcl(GetObjectAclRequest request) {
+        roundTrip();
+        return ACL;
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        roundTrip();
+        if (storeCopies) destination.put(request.getDestinationKey(), newMetadata());
+        final CopyObjectResult result = new CopyObjectResult();
+        result.setETag(ETAG);
+        result.setLastModifiedDate(new Date());
+        return result;
+    }
+}
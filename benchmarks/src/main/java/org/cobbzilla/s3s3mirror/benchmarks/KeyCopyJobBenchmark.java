@@ -0,0 +1,56 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.KeyCopyJob;
+import org.cobbzilla.s3s3mirror.KeyRecord;
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicyFactory;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategyFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU time and allocation of one KeyCopyJob, run on the benchmark thread against an S3 stand-in that answers
+ * at once. Run with -prof gc to see the allocation per key (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KeyCopyJobBenchmark {
+
+    public static final int KEYS = 10000;
+
+    // if true, the destination already has every key and the job only compares; otherwise it copies
+    @Param({"false", "true"})
+    public boolean upToDate;
+
+    private InMemoryS3 s3;
+    private MirrorContext context;
+    private ComparisonStrategy comparisonStrategy;
+    private AclPolicy aclPolicy;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        s3 = new InMemoryS3(KEYS, 0);
+        s3.setStoreCopies(false);
+        if (upToDate) s3.fillDestination();
+        context = Benchmarks.newContext(1);
+        comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions());
+        aclPolicy = AclPolicyFactory.getPolicy(context);
+    }
+
+    @Benchmark
+    public KeyCopyJob runJob() {
+        final KeyRecord record = s3.getRecord(next);
+        next = (next + 1) % KEYS;
+        final KeyCopyJob job = new KeyCopyJob(s3, context, record, comparisonStrategy, aclPolicy);
+        job.run();
+        return job;
+    }
+}
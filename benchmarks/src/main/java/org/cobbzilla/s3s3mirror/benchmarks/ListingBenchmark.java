@@ -0,0 +1,56 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.KeyBatch;
+import org.cobbzilla.s3s3mirror.KeyLister;
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.MirrorMaster;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys per second through a KeyLister: listing pages from S3 and handing them to the thread that submits jobs.
+ * Run with -prof gc to see the allocation per key (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListingBenchmark {
+
+    public static final int KEYS = 100000;
+
+    // time S3 takes to answer a list request
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    private InMemoryS3 s3;
+    private MirrorContext context;
+
+    @Setup
+    public void setup() {
+        s3 = new InMemoryS3(KEYS, latencyMicros);
+        context = Benchmarks.newContext(100);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public int listAllKeys(Blackhole blackhole) throws InterruptedException {
+        final KeyLister lister = new KeyLister(s3, context, MirrorMaster.getMaxQueueCapacity(context.getOptions()), InMemoryS3.SOURCE_BUCKET, null);
+        final Thread thread = new Thread(lister, "ListingBenchmark-lister");
+        thread.start();
+        int count = 0;
+        KeyBatch batch;
+        while (!(batch = lister.getNextBatch()).isEmpty()) {
+            for (int i=0; i<batch.size(); i++) blackhole.consume(batch.get(i));
+            count += batch.size();
+            lister.recycle(batch);
+        }
+        thread.join();
+        if (count != KEYS) throw new IllegalStateException("listed "+count+" keys, expected "+KEYS);
+        return count;
+    }
+}
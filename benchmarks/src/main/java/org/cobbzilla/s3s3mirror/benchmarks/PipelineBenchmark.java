@@ -0,0 +1,72 @@
+package org.cobbzilla.s3s3mirror.benchmarks;
+
+import org.cobbzilla.s3s3mirror.CopyMaster;
+import org.cobbzilla.s3s3mirror.JobDispatcher;
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.MirrorMaster;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys per second through the whole copy pipeline: a CopyMaster listing the source, the JobDispatcher running a
+ * KeyCopyJob for every key, and each job checking the destination and copying (or finding the key up to date).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PipelineBenchmark {
+
+    public static final int KEYS = 20000;
+
+    @Param({"16", "128"})
+    public int threads;
+
+    // time S3 takes to answer each request
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    // if true, every key is already in the destination and nothing is copied
+    @Param({"false", "true"})
+    public boolean upToDate;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    private InMemoryS3 s3;
+
+    @Setup
+    public void setup() {
+        s3 = new InMemoryS3(KEYS, latencyMicros);
+        s3.setStoreCopies(false);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetDestination() {
+        if (upToDate) {
+            if (s3.getDestinationSize() != KEYS) s3.fillDestination();
+        } else {
+            s3.clearDestination();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public long mirror() throws InterruptedException {
+        final MirrorContext context = Benchmarks.newContext(threads);
+        final JobDispatcher dispatcher = new JobDispatcher(threads, MirrorMaster.getMaxQueueCapacity(context.getOptions()), virtualThreads);
+        try {
+            final CopyMaster master = new CopyMaster(s3, context, dispatcher);
+            master.start();
+            master.join();
+        } finally {
+            dispatcher.shutdown();
+        }
+        final long copied = context.getStats().objectsCopied.get();
+        if (copied != (upToDate ? 0 : KEYS)) throw new IllegalStateException("copied "+copied+" of "+KEYS+" keys (upToDate="+upToDate+")");
+        return copied;
+    }
+}
@@ -0,0 +1,146 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Copies a key server-side like KeyCopyJob, but as a chain of futures (--async) rather than on a worker thread that
+ * waits for each request in turn: the destination's metadata, then the source's metadata and ACL (asked for at the
+ * same time), then the copy. Between requests the key holds no thread, so the number of keys in flight is limited
+ * only by the dispatcher's permits.
+ */
+@Slf4j
+public class AsyncKeyCopyJob extends KeyCopyJob implements JobDispatcher.AsyncJob {
+
+    private final AsyncRequests requests;
+
+    public AsyncKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy,
+                           AclPolicy aclPolicy, AsyncRequests requests) {
+        super(client, context, record, comparisonStrategy, aclPolicy);
+        this.requests = requests;
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    public CompletableFuture<?> start() {
+        final MirrorOptions options = context.getOptions();
+        final String key = record.getKey();
+        keydest = getKeyDest(key);
+        return shouldTransferAsync(key).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+            @Override public CompletionStage<Void> apply(Boolean transfer) {
+                if (!transfer) return CompletableFuture.completedFuture(null);
+                if (options.isDryRun()) {
+                    log.info("Would have copied " + key + " to destination: " + keydest);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return copy();
+            }
+        }).handle(new BiFunction<Void, Throwable, Void>() {
+            @Override public Void apply(Void result, Throwable error) {
+                if (error != null) {
+                    log.error("error copying key: " + key + ": " + unwrap(error));
+                    failed();
+                }
+                if (options.isVerbose()) log.info("done with " + key);
+                return null;
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> shouldTransferAsync(String key) {
+        final Boolean decided = shouldTransferWithoutDestination(key);
+        if (decided != null) return CompletableFuture.completedFuture(decided);
+
+        final MirrorOptions options = context.getOptions();
+        final AmazonS3Client destinationClient = context.getDestinationClient(client);
+        return requests.call("getObjectMetadata(" + keydest + ")", new Retrier.Call<ObjectMetadata>() {
+            @Override public ObjectMetadata call() {
+                context.getStats().s3getCount.incrementAndGet();
+                return destinationClient.getObjectMetadata(options.getDestinationBucket(), keydest);
+            }
+        }).handle(new BiFunction<ObjectMetadata, Throwable, Boolean>() {
+            @Override public Boolean apply(ObjectMetadata metadata, Throwable error) {
+                if (error == null) return shouldTransfer(metadata);
+                final Throwable cause = unwrap(error);
+                if (cause instanceof AmazonS3Exception && ((AmazonS3Exception) cause).getStatusCode() == 404) return shouldTransfer((ObjectMetadata) null);
+                log.warn("Error getting metadata for " + options.getDestinationBucket() + "/" + keydest + " (not copying): " + cause);
+                failed();
+                return false;
+            }
+        });
+    }
+
+    private CompletableFuture<Void> copy() {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final String key = record.getKey();
+
+        final CompletableFuture<ObjectMetadata> sourceMetadata = requests.call("getObjectMetadata(" + key + ")", new Retrier.Call<ObjectMetadata>() {
+            @Override public ObjectMetadata call() {
+                stats.s3getCount.incrementAndGet();
+                return client.getObjectMetadata(options.getSourceBucket(), key);
+            }
+        });
+        final CompletableFuture<AccessControlList> sourceAcl = !aclPolicy.needsSourceAcl()
+                ? CompletableFuture.<AccessControlList>completedFuture(null)
+                : requests.call("getObjectAcl(" + key + ")", new Retrier.Call<AccessControlList>() {
+                    @Override public AccessControlList call() {
+                        stats.s3getCount.incrementAndGet();
+                        return client.getObjectAcl(options.getSourceBucket(), key);
+                    }
+                }).exceptionally(new Function<Throwable, AccessControlList>() {
+                    @Override public AccessControlList apply(Throwable error) {
+                        // as in KeyJob: most likely an object we do not own, which is copied without its ACL
+                        log.warn("Unable to obtain object ACL, copying item without ACL data: " + unwrap(error));
+                        return new AccessControlList();
+                    }
+                });
+
+        return sourceMetadata.thenCombine(sourceAcl, new BiFunction<ObjectMetadata, AccessControlList, CopyObjectRequest>() {
+            @Override public CopyObjectRequest apply(ObjectMetadata metadata, AccessControlList acl) {
+                if (options.isVerbose()) log.info("copying: " + key + " to: " + keydest);
+                return newCopyRequest(metadata, aclPolicy.getDestinationAcl(acl));
+            }
+        }).thenCompose(new Function<CopyObjectRequest, CompletionStage<Void>>() {
+            @Override public CompletionStage<Void> apply(final CopyObjectRequest request) {
+                return requests.call("copying " + key + " to: " + keydest, new Retrier.Call<CopyObjectResult>() {
+                    @Override public CopyObjectResult call() {
+                        stats.s3copyCount.incrementAndGet();
+                        return client.copyObject(request);
+                    }
+                }).handle(new BiFunction<CopyObjectResult, Throwable, Void>() {
+                    @Override public Void apply(CopyObjectResult result, Throwable error) {
+                        if (error == null) {
+                            copied(result, request.getNewObjectMetadata());
+                            stats.objectsCopied.incrementAndGet();
+                        } else {
+                            log.error("error copying " + key + " to: " + keydest + ": " + unwrap(error));
+                            stats.copyErrors.incrementAndGet();
+                            failed();
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,49 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs S3 requests for the async engine (--async), each one handed back as a CompletableFuture. Requests run on a
+ * pool of one thread per connection (a thread more could only wait for a connection), or on a virtual thread each
+ * with --virtual-threads. Retries are scheduled on a timer instead of sleeping, so a key that is waiting for S3,
+ * or for its next try, holds no thread at all.
+ */
+@Slf4j
+public class AsyncRequests {
+
+    private final Retrier retrier;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    public AsyncRequests(Retrier retrier, int threads, boolean virtualThreads) {
+        this.retrier = retrier;
+        final ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor("AsyncRequest") : null;
+        if (virtualThreads && virtualExecutor == null) log.warn("virtual threads are not available on this JVM (Java 21+ required), using a thread pool");
+        this.executor = virtualExecutor != null ? virtualExecutor : Executors.newFixedThreadPool(threads, daemonThreads("AsyncRequest"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("AsyncRequest-retries"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return a future completed with the result of the call, or with its error once retries are exhausted
+     */
+    public <T> CompletableFuture<T> call(String description, Retrier.Call<T> call) {
+        return retrier.callAsync(description, call, executor, scheduler);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        scheduler.shutdown();
+    }
+}
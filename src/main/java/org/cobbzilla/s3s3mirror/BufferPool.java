@@ -0,0 +1,144 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+
+/**
+ * Memory for the bytes of streaming copies, which are read from the source into a Lease and uploaded from it.
+ *
+ * The memory is split into fixed-size slabs that are allocated as needed and then reused, never freed. A lease
+ * takes all the slabs it needs at once, waiting until enough are free, so the bytes in flight never exceed the
+ * budget however many parts are being copied, and two half-filled leases can never wait on each other.
+ *
+ * The slabs are heap buffers: the SDK reads responses and sends uploads through InputStreams, so a response is read
+ * straight into a slab's array and an upload reads straight out of it, where a direct buffer would need another
+ * copy through a byte[] each way.
+ */
+public class BufferPool {
+
+    public static final int SLAB_SIZE = (int) MB;
+
+    @Getter private final long budget;
+    private final int slabCount;
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param budget the most bytes that may be leased at once (rounded down to whole slabs, at least one)
+     */
+    public BufferPool(long budget) {
+        this.slabCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / SLAB_SIZE));
+        this.budget = (long) slabCount * SLAB_SIZE;
+        this.available = new Semaphore(slabCount, true);
+    }
+
+    public long getBytesLeased() { return (long) (slabCount - available.availablePermits()) * SLAB_SIZE; }
+
+    /**
+     * Waits until the bytes can be had within the budget.
+     * @throws IllegalArgumentException if more bytes are asked for than the whole budget
+     */
+    public Lease lease(long bytes) throws InterruptedException {
+        final int slabs = (int) ((bytes + SLAB_SIZE - 1) / SLAB_SIZE);
+        if (bytes > budget) throw new IllegalArgumentException("cannot buffer "+bytes+" bytes, the budget is "+budget);
+        available.acquire(slabs);
+        final ByteBuffer[] leased = new ByteBuffer[slabs];
+        for (int i=0; i<slabs; i++) {
+            final ByteBuffer slab = free.poll();
+            leased[i] = slab != null ? slab : ByteBuffer.allocate(SLAB_SIZE);
+        }
+        return new Lease(leased, bytes);
+    }
+
+    /**
+     * Bytes leased from the pool, in slabs. Not thread-safe: a lease is filled and read by one thread at a time.
+     */
+    public class Lease {
+
+        private ByteBuffer[] slabs;
+        @Getter private final long length;
+
+        private Lease(ByteBuffer[] slabs, long length) {
+            this.slabs = slabs;
+            this.length = length;
+        }
+
+        /**
+         * Reads exactly getLength() bytes from the stream into the lease, replacing whatever it held.
+         * @throws EOFException if the stream ends first
+         */
+        public void readFrom(InputStream in) throws IOException {
+            long remaining = length;
+            for (ByteBuffer slab : slabs) {
+                final int len = (int) Math.min(SLAB_SIZE, remaining);
+                int pos = 0;
+                while (pos < len) {
+                    final int n = in.read(slab.array(), pos, len - pos);
+                    if (n == -1) throw new EOFException("stream ended "+(remaining - pos)+" bytes short");
+                    pos += n;
+                }
+                remaining -= len;
+            }
+        }
+
+        /**
+         * @return a stream of the leased bytes, which supports mark and reset so the SDK can retry an upload from it
+         */
+        public InputStream newInputStream() { return new LeaseInputStream(); }
+
+        /**
+         * Returns the slabs to the pool. The lease must not be used after this.
+         */
+        public void release() {
+            if (slabs == null) return;
+            for (ByteBuffer slab : slabs) free.offer(slab);
+            available.release(slabs.length);
+            slabs = null;
+        }
+
+        private class LeaseInputStream extends InputStream {
+
+            private long pos = 0;
+            private long mark = 0;
+
+            @Override public int read() {
+                if (pos >= length) return -1;
+                final int b = slabs[(int) (pos / SLAB_SIZE)].array()[(int) (pos % SLAB_SIZE)] & 0xff;
+                pos++;
+                return b;
+            }
+
+            @Override public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (pos >= length) return -1;
+                final int offset = (int) (pos % SLAB_SIZE);
+                final int n = (int) Math.min(len, Math.min(SLAB_SIZE - offset, length - pos));
+                System.arraycopy(slabs[(int) (pos / SLAB_SIZE)].array(), offset, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override public long skip(long n) {
+                final long skipped = Math.max(0, Math.min(n, length - pos));
+                pos += skipped;
+                return skipped;
+            }
+
+            @Override public int available() { return (int) Math.min(Integer.MAX_VALUE, length - pos); }
+
+            @Override public boolean markSupported() { return true; }
+
+            @Override public void mark(int readLimit) { mark = pos; }
+
+            @Override public void reset() { pos = mark; }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the progress of a mirror run, so that a run that dies can be resumed close to where it stopped.
+ *
+ * Progress is tracked per Stream (one for each KeyMaster). Keys are handed to a stream in listing order as their
+ * jobs are submitted; the stream's watermark is the last key before which every job has finished or failed. A failed
+ * key is recorded as failed rather than holding the watermark back. A resumed run retries the failed keys behind the
+ * watermark, restarts listing after it, and skips the keys past it that were recorded as done.
+ *
+ * Finished and failed keys, and watermarks that have moved, are appended to the journal and written out by a
+ * background thread, which syncs the file once per FLUSH_INTERVAL for everything written since the last sync, rather
+ * than once per key. Every CHECKPOINT_INTERVAL the journal is replaced by a compact checkpoint: each stream's
+ * watermark and listing marker, the keys done past the watermark, and the keys still failed. A record cut short by a
+ * crash is ignored when the journal is read back.
+ */
+@Slf4j
+public class CheckpointJournal {
+
+    public static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    public static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    // record types: a checkpoint or watermark is followed by the stream, watermark and listing marker; done and
+    // failed by the stream and key. A checkpoint starts a stream's state over, a watermark just moves it forward.
+    private static final byte CHECKPOINT = 'C';
+    private static final byte WATERMARK = 'W';
+    private static final byte DONE = 'D';
+    private static final byte FAILED = 'F';
+    private static final String NONE = "";
+
+    private final File file;
+    private final Map<String, Stream> streams = new LinkedHashMap<String, Stream>();
+
+    private FileChannel channel;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final Object writeLock = new Object();
+    private Thread flusher;
+    private volatile boolean closed = false;
+
+    @Getter private final Thread shutdownHook = new Thread() {
+        @Override public void run() { close(); }
+    };
+
+    /**
+     * @param file the journal file
+     * @param resume if true, read the progress recorded in the file (if any); otherwise start over
+     */
+    public CheckpointJournal(File file, boolean resume) throws IOException {
+        this.file = file;
+        if (resume && file.exists()) {
+            read();
+        } else if (resume) {
+            log.warn("no checkpoint found in "+file+", starting from the beginning");
+        }
+        writeCheckpoint();
+    }
+
+    public synchronized Stream getStream(String name) {
+        Stream stream = streams.get(name);
+        if (stream == null) {
+            stream = new Stream(name);
+            streams.put(name, stream);
+        }
+        return stream;
+    }
+
+    public void start() {
+        flusher = new Thread(new Runnable() {
+            @Override public void run() { flushLoop(); }
+        }, "CheckpointJournal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void flushLoop() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                // closing
+                break;
+            }
+            try {
+                if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    writeCheckpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                } else {
+                    flush();
+                }
+            } catch (Exception e) {
+                log.error("error writing checkpoint journal "+file+": "+e, e);
+            }
+        }
+    }
+
+    /**
+     * Writes out and syncs the finished keys appended since the last flush.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            final byte[] bytes;
+            synchronized (this) {
+                final DataOutputStream out = new DataOutputStream(pending);
+                for (Stream stream : streams.values()) stream.writeWatermark(out);
+                if (pending.size() == 0) return;
+                bytes = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Replaces the journal with a checkpoint of where every stream stands.
+     */
+    public void writeCheckpoint() throws IOException {
+        synchronized (writeLock) {
+            final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(snapshot);
+            synchronized (this) {
+                for (Stream stream : streams.values()) stream.writeCheckpoint(out);
+                // everything pending is covered by the checkpoint
+                pending = new ByteArrayOutputStream();
+            }
+            out.flush();
+
+            final File temp = new File(file.getAbsolutePath()+".tmp");
+            final FileChannel tempChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            final ByteBuffer buffer = ByteBuffer.wrap(snapshot.toByteArray());
+            while (buffer.hasRemaining()) tempChannel.write(buffer);
+            tempChannel.force(false);
+            tempChannel.close();
+
+            if (channel != null) channel.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private synchronized void append(byte type, String stream, String key) {
+        if (closed) return;
+        final DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeByte(type);
+            out.writeUTF(stream);
+            out.writeUTF(key);
+        } catch (IOException e) {
+            throw new IllegalStateException("error appending to checkpoint journal: "+e, e);
+        }
+    }
+
+    /**
+     * Writes a final checkpoint and stops writing. Called on shutdown, so that an interrupted run can be resumed.
+     */
+    public void close() {
+        if (closed) return;
+        try {
+            writeCheckpoint();
+        } catch (Exception e) {
+            log.error("error writing final checkpoint to "+file+": "+e, e);
+        }
+        stop();
+    }
+
+    /**
+     * Called when the run has finished: there is nothing to resume, so the journal is deleted.
+     */
+    public void complete() {
+        if (closed) return;
+        stop();
+        if (!file.delete()) log.warn("error deleting checkpoint journal "+file);
+    }
+
+    private void stop() {
+        closed = true;
+        if (flusher != null) flusher.interrupt();
+        synchronized (writeLock) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                log.warn("error closing checkpoint journal "+file+": "+e);
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long records = 0;
+        try {
+            while (true) {
+                final byte type = in.readByte();
+                final Stream stream = getStream(in.readUTF());
+                if (type == CHECKPOINT || type == WATERMARK) {
+                    final String watermark = in.readUTF();
+                    final String listingMarker = in.readUTF();
+                    stream.resumeFrom(watermark.equals(NONE) ? null : watermark, listingMarker.equals(NONE) ? null : listingMarker, type == CHECKPOINT);
+                } else if (type == DONE) {
+                    stream.resumeDone(in.readUTF());
+                } else if (type == FAILED) {
+                    stream.resumeFailed(in.readUTF());
+                } else {
+                    throw new IOException("corrupt checkpoint journal "+file+" (record type "+type+" after "+records+" records)");
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // the end of the journal, possibly in the middle of a record that was being written when we died
+        } finally {
+            in.close();
+        }
+        for (Stream stream : streams.values()) {
+            log.info("resuming "+stream.getName()+" after "+stream.getWatermark()+" (listing had reached "+stream.getListingMarker()+", "+stream.doneAhead.size()+" keys past that already done, "+stream.failed.size()+" failed keys to retry)");
+        }
+    }
+
+    /**
+     * One key in flight: submitted, and maybe finished, but not yet behind the watermark. A retry of a key that failed
+     * in a previous run is already behind the watermark, so it is not in flight at all.
+     */
+    public static class Entry {
+        private final String key;
+        private final boolean retry;
+        private boolean done = false;
+        Entry(String key, boolean retry) { this.key = key; this.retry = retry; }
+    }
+
+    public class Stream {
+
+        @Getter private final String name;
+
+        // the key we resumed after, or null to start from the beginning
+        @Getter private String resumeMarker;
+        // every key up to and including this one is done
+        @Getter private String watermark;
+        // the last key listed, for information only
+        @Getter @Setter private volatile String listingMarker;
+        // the watermark as of the last record written
+        private String writtenWatermark;
+
+        private final ArrayDeque<Entry> inFlight = new ArrayDeque<Entry>();
+        // keys past the watermark that a previous run finished
+        private final TreeSet<String> doneAhead = new TreeSet<String>(KeyComparator.INSTANCE);
+        // keys that failed and have not been done since, in this run or a previous one
+        private final TreeSet<String> failed = new TreeSet<String>(KeyComparator.INSTANCE);
+
+        Stream(String name) { this.name = name; }
+
+        private synchronized void resumeFrom(String watermark, String listingMarker, boolean checkpoint) {
+            this.resumeMarker = watermark;
+            this.watermark = watermark;
+            this.writtenWatermark = watermark;
+            this.listingMarker = listingMarker;
+            if (checkpoint) {
+                doneAhead.clear();
+                failed.clear();
+            } else if (watermark != null) {
+                doneAhead.headSet(watermark, true).clear();
+            }
+        }
+
+        private synchronized void resumeDone(String key) {
+            failed.remove(key);
+            if (watermark == null || KeyComparator.INSTANCE.compare(key, watermark) > 0) doneAhead.add(key);
+        }
+
+        private synchronized void resumeFailed(String key) {
+            doneAhead.remove(key);
+            failed.add(key);
+        }
+
+        /**
+         * @return the keys a previous run failed that listing will not reach again, because they are at or before
+         * the key it resumes after. Failed keys past that are listed, and retried, like any other key.
+         */
+        public synchronized List<String> getRetryKeys() {
+            if (resumeMarker == null) return Collections.emptyList();
+            return new ArrayList<String>(failed.headSet(resumeMarker, true));
+        }
+
+        /**
+         * @return true if a previous run already finished this key
+         */
+        public synchronized boolean isDone(String key) { return doneAhead.contains(key); }
+
+        /**
+         * Must be called in listing order, before the key's job is submitted.
+         */
+        public synchronized Entry started(String key) {
+            final Entry entry = new Entry(key, false);
+            inFlight.add(entry);
+            return entry;
+        }
+
+        /**
+         * For a key from getRetryKeys, before its job is submitted again. Can be called in any order.
+         */
+        public Entry retrying(String key) { return new Entry(key, true); }
+
+        public void finished(Entry entry) {
+            synchronized (this) {
+                settle(entry);
+                failed.remove(entry.key);
+            }
+            append(DONE, name, entry.key);
+        }
+
+        /**
+         * Moves the watermark past a key whose job failed, remembering it so that a resumed run retries it.
+         */
+        public void failed(Entry entry) {
+            synchronized (this) {
+                settle(entry);
+                failed.add(entry.key);
+            }
+            append(FAILED, name, entry.key);
+        }
+
+        /**
+         * Moves the watermark past a key that a previous run finished.
+         */
+        public void skipped(String key) {
+            final Entry entry = started(key);
+            synchronized (this) { settle(entry); }
+        }
+
+        private void settle(Entry entry) {
+            entry.done = true;
+            if (entry.retry) return;
+            while (!inFlight.isEmpty() && inFlight.peekFirst().done) watermark = inFlight.pollFirst().key;
+        }
+
+        private synchronized void writeWatermark(DataOutputStream out) throws IOException {
+            if (watermark == null || watermark.equals(writtenWatermark)) return;
+            writeState(out, WATERMARK);
+        }
+
+        private void writeState(DataOutputStream out, byte type) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(name);
+            out.writeUTF(watermark == null ? NONE : watermark);
+            out.writeUTF(listingMarker == null ? NONE : listingMarker);
+            writtenWatermark = watermark;
+        }
+
+        private synchronized void writeCheckpoint(DataOutputStream out) throws IOException {
+            writeState(out, CHECKPOINT);
+
+            final SortedSet<String> done = new TreeSet<String>(KeyComparator.INSTANCE);
+            if (watermark != null) doneAhead.headSet(watermark, true).clear();
+            done.addAll(doneAhead);
+            for (Entry entry : inFlight) if (entry.done && !failed.contains(entry.key)) done.add(entry.key);
+            for (String key : done) {
+                out.writeByte(DONE);
+                out.writeUTF(name);
+                out.writeUTF(key);
+            }
+            for (String key : failed) {
+                out.writeByte(FAILED);
+                out.writeUTF(name);
+                out.writeUTF(key);
+            }
+        }
+    }
+}
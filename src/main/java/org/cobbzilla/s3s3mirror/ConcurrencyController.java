@@ -0,0 +1,159 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many S3 requests are in flight, and finds the limit S3 is happy with as we go (AIMD, like TCP
+ * congestion control): every successful request raises the limit a little, and being throttled (503 SlowDown)
+ * cuts it by DECREASE_FACTOR. The limit starts low and doubles every round trip until the first throttle, then
+ * grows by about one per round trip. It never goes above the ceiling (--max-threads), and it stops growing while
+ * latency is well above its recent average, which usually means throttling is on the way.
+ *
+ * Installed as a request handler on the S3 client, so every request goes through it: a permit is taken before
+ * the request executes (the calling thread waits if the limit is reached) and given back when it completes.
+ * The SDK calls handlers on the calling thread, which lets us track the permit and attempt start per thread.
+ */
+@Slf4j
+public class ConcurrencyController extends RequestHandler2 {
+
+    public static final int INITIAL_LIMIT = 8;
+    public static final double DECREASE_FACTOR = 0.5;
+
+    // latency this many times its long-term average counts as congestion, and the limit stops growing
+    public static final double LATENCY_TOLERANCE = 2.0;
+
+    // throttles from requests sent before the last cut don't cut again until this long (or the typical latency) later
+    private static final long MIN_DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final double SHORT_LATENCY_WEIGHT = 0.1;
+    private static final double LONG_LATENCY_WEIGHT = 0.01;
+
+    private final int maxLimit;
+    private final MirrorStats stats;
+
+    private double limit;
+    private boolean slowStart = true;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private long lastDecrease = 0;
+    private double shortLatency = 0;
+    private double longLatency = 0;
+
+    private final ThreadLocal<Boolean> holdingPermit = new ThreadLocal<Boolean>();
+    private final ThreadLocal<Long> attemptStart = new ThreadLocal<Long>();
+
+    public ConcurrencyController(int maxLimit, MirrorStats stats) {
+        this.maxLimit = maxLimit;
+        this.stats = stats;
+        this.limit = Math.min(maxLimit, INITIAL_LIMIT);
+    }
+
+    public synchronized int getLimit() { return (int) limit; }
+
+    public synchronized int getInFlight() { return inFlight; }
+
+    public synchronized void acquire() throws InterruptedException {
+        waiting++;
+        try {
+            while (inFlight >= (int) limit) wait();
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized void onSuccess(long latencyNanos) {
+        if (longLatency == 0) {
+            shortLatency = longLatency = latencyNanos;
+        } else {
+            shortLatency += SHORT_LATENCY_WEIGHT * (latencyNanos - shortLatency);
+            longLatency += LONG_LATENCY_WEIGHT * (latencyNanos - longLatency);
+        }
+
+        // only grow when the limit is what holds us back, and S3 is not slowing down
+        if (waiting == 0 && inFlight < (int) limit) return;
+        if (shortLatency > LATENCY_TOLERANCE * longLatency) return;
+
+        final int before = (int) limit;
+        limit = Math.min(maxLimit, slowStart ? limit + 1 : limit + 1 / limit);
+        if ((int) limit > before) notifyAll();
+    }
+
+    public synchronized void onThrottle() {
+        stats.s3throttleCount.incrementAndGet();
+        final long now = System.nanoTime();
+        if (lastDecrease != 0 && now - lastDecrease < Math.max(MIN_DECREASE_INTERVAL, (long) shortLatency)) return;
+
+        slowStart = false;
+        lastDecrease = now;
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        log.info("throttled by S3, concurrency limit now "+(int) limit+" ("+inFlight+" requests in flight)");
+    }
+
+    static boolean isThrottle(Exception e) {
+        if (e instanceof AmazonServiceException && ((AmazonServiceException) e).getStatusCode() == 503) return true;
+        return e instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) e);
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        // a permit still held means an earlier request on this thread failed before it was sent, reuse it
+        if (holdingPermit.get() == null) {
+            try {
+                acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("interrupted waiting to send request");
+            }
+            holdingPermit.set(Boolean.TRUE);
+        }
+        return request;
+    }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) { attemptStart.set(System.nanoTime()); }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        final Long start = attemptStart.get();
+        final long latency = start == null ? 0 : System.nanoTime() - start;
+        final Exception e = context.getException();
+        if (e == null) {
+            onSuccess(latency);
+        } else if (isThrottle(e)) {
+            onThrottle();
+        } else if (e instanceof AmazonServiceException && ((AmazonServiceException) e).getStatusCode() < 500) {
+            // an answer like 404 still tells us S3 is keeping up
+            onSuccess(latency);
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) { releaseHeldPermit(); }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) { releaseHeldPermit(); }
+
+    private void releaseHeldPermit() {
+        if (holdingPermit.get() == null) return;
+        holdingPermit.remove();
+        release();
+    }
+}
@@ -1,29 +1,84 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicyFactory;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategyFactory;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.SizeOnlyComparisonStrategy;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
 
 public class CopyMaster extends KeyMaster {
-    private final ComparisonStrategy comparisonStrategy;
+    protected final ComparisonStrategy comparisonStrategy;
+    protected final AclPolicy aclPolicy;
+    private final PartCopyScheduler partScheduler;
+    // null unless the mirror streams its copies (see StreamingKeyCopyJob)
+    private final BufferPool buffers;
+    // null unless --async was given
+    private final AsyncRequests asyncRequests;
 
-    public CopyMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
+    public CopyMaster(AmazonS3Client client, MirrorContext context, JobDispatcher dispatcher) {
+        super(client, context, dispatcher);
         comparisonStrategy = ComparisonStrategyFactory.getStrategy(context.getOptions());
+        aclPolicy = AclPolicyFactory.getPolicy(context);
+        partScheduler = new PartCopyScheduler(context.getOptions().getMaxPartsInFlight(), context.getOptions().isVirtualThreads());
+        if (context.getOptions().isStream()) {
+            final BufferPool pool = new BufferPool(context.getOptions().getStreamMemory() * MB);
+            context.getStats().addGauge("stream_bytes_buffered", new MirrorStats.Gauge() {
+                @Override public long getValue() { return pool.getBytesLeased(); }
+            });
+            buffers = pool;
+        } else {
+            buffers = null;
+        }
+        asyncRequests = context.getOptions().isAsync()
+                ? new AsyncRequests(context.getRetrier(), context.getOptions().getMaxConnections(), context.getOptions().isVirtualThreads())
+                : null;
     }
 
     protected String getPrefix(MirrorOptions options) { return options.getPrefix(); }
     protected String getBucket(MirrorOptions options) { return options.getSourceBucket(); }
 
-    protected KeyCopyJob getTask(S3ObjectSummary summary) {
-        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
-            return new MultipartKeyCopyJob(client, context, summary, notifyLock, new SizeOnlyComparisonStrategy());
+    /**
+     * @return true if a copy of the key will have the same ETag as the source, so that the comparison strategy can
+     * use it; otherwise only the size can tell whether the destination is up to date
+     */
+    protected boolean keepsETag(KeyRecord record) {
+        if (buffers != null) return UploadKeyCopyJob.keepsETag(record, context.getOptions().getUploadPartSize());
+        return record.getSize() <= MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE;
+    }
+
+    @Override
+    protected KeyLister startLister(String bucket, String prefix, int fetchSize) {
+        final MirrorOptions options = context.getOptions();
+        if (!options.hasSourceDirectory()) return super.startLister(bucket, prefix, fetchSize);
+        return startLister(new FileKeyLister(context, MirrorMaster.getMaxQueueCapacity(options),
+                options.getSourceDirectory(), prefix, options.getListThreads()));
+    }
+
+    protected KeyCopyJob getTask(KeyRecord record) {
+        if (context.getOptions().hasDestinationDirectory()) {
+            return new DownloadKeyCopyJob(client, context, record, comparisonStrategy, aclPolicy, partScheduler);
+        }
+        if (context.getOptions().hasSourceDirectory()) {
+            return new FileKeyCopyJob(client, context, record, comparisonStrategy, aclPolicy, partScheduler);
         }
-        return new KeyCopyJob(client, context, summary, notifyLock, comparisonStrategy);
+        if (buffers != null) {
+            return new StreamingKeyCopyJob(client, context, record, comparisonStrategy, aclPolicy, buffers, partScheduler);
+        }
+        if (record.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+            return new MultipartKeyCopyJob(client, context, record, new SizeOnlyComparisonStrategy(), aclPolicy, partScheduler);
+        }
+        if (asyncRequests != null) {
+            return new AsyncKeyCopyJob(client, context, record, comparisonStrategy, aclPolicy, asyncRequests);
+        }
+        return new KeyCopyJob(client, context, record, comparisonStrategy, aclPolicy);
+    }
+
+    @Override
+    protected void jobsFinished() {
+        partScheduler.shutdown();
+        if (asyncRequests != null) asyncRequests.shutdown();
     }
 }
@@ -0,0 +1,71 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.exception.HttpRequestTimeoutException;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gives every copy and copy-part request a deadline (--copy-deadline). An attempt still running at its deadline is
+ * aborted by the SDK's request timer and fails with a retryable error, so the Retrier sends it again, and a copy
+ * stalled on a bad connection does not hold up the end of the run.
+ *
+ * Big copies can take a while without being stuck, so the deadline is raised to STALL_FACTOR times the p99 latency
+ * of copies of the same size class (or of copy-parts), once MIN_SAMPLES of them have been timed.
+ */
+@Slf4j
+public class CopyWatchdog extends RequestHandler2 {
+
+    public static final int STALL_FACTOR = 4;
+    public static final int MIN_SAMPLES = 20;
+
+    private final long deadlineMillis;
+    private final MirrorStats stats;
+
+    public CopyWatchdog(long deadlineMillis, MirrorStats stats) {
+        this.deadlineMillis = deadlineMillis;
+        this.stats = stats;
+    }
+
+    /**
+     * @return the deadline (in milliseconds) for one attempt of the request
+     */
+    public long getDeadlineMillis(AmazonWebServiceRequest request) {
+        final LatencyHistogram latency;
+        if (request instanceof CopyPartRequest) {
+            latency = stats.getLatency(S3Operation.COPY_PART);
+        } else {
+            final ObjectMetadata metadata = ((CopyObjectRequest) request).getNewObjectMetadata();
+            latency = stats.getCopyLatency(metadata == null ? 0 : metadata.getContentLength());
+        }
+        if (latency.getCount() < MIN_SAMPLES) return deadlineMillis;
+        return Math.max(deadlineMillis, STALL_FACTOR * latency.getValueAtQuantile(0.99) / 1000);
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        if (request instanceof CopyObjectRequest || request instanceof CopyPartRequest) {
+            request.setSdkRequestTimeout((int) Math.min(Integer.MAX_VALUE, getDeadlineMillis(request)));
+        }
+        return request;
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        if (!isStall(context.getException())) return;
+        stats.s3stalledRequests.incrementAndGet();
+        log.warn(S3Operation.forRequest(context.getRequest().getOriginalRequest()).getLabel()+" of "+
+                context.getRequest().getResourcePath()+" stalled past its deadline, aborting it");
+    }
+
+    private static boolean isStall(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof HttpRequestTimeoutException) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Collects keys to delete from the destination bucket and deletes them with multi-object delete requests,
+ * up to MAX_BATCH_SIZE keys per request. The job that fills a batch sends it; flush() sends whatever is left.
+ * If some keys in a batch fail, only those keys are retried.
+ */
+@Slf4j
+public class DeleteBatcher {
+
+    // the most keys S3 will accept in a single multi-object delete request
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final AmazonS3Client client;
+    private final MirrorContext context;
+
+    private List<String> pending = new ArrayList<String>(MAX_BATCH_SIZE);
+    // run once the pending batch has been sent
+    private List<Runnable> pendingCallbacks = new ArrayList<Runnable>();
+    // batches taken from pending that have not finished sending
+    private int sending = 0;
+    // keys given up on, so they are not recorded as done
+    private final Set<String> failedKeys = Collections.synchronizedSet(new HashSet<String>());
+
+    public DeleteBatcher(AmazonS3Client client, MirrorContext context) {
+        this.client = client;
+        this.context = context;
+    }
+
+    public void add(String key) {
+        List<String> batch = null;
+        List<Runnable> callbacks = null;
+        synchronized (this) {
+            pending.add(key);
+            if (pending.size() >= MAX_BATCH_SIZE) {
+                batch = pending;
+                callbacks = pendingCallbacks;
+                pending = new ArrayList<String>(MAX_BATCH_SIZE);
+                pendingCallbacks = new ArrayList<Runnable>();
+                sending++;
+            }
+        }
+        if (batch != null) {
+            deleteBatch(batch);
+            sent(callbacks);
+        }
+    }
+
+    public void flush() {
+        final List<String> batch;
+        final List<Runnable> callbacks;
+        synchronized (this) {
+            // nothing new to send, the batch going out now will run the callbacks
+            if (pending.isEmpty() && sending > 0) return;
+            batch = pending;
+            callbacks = pendingCallbacks;
+            pending = new ArrayList<String>(MAX_BATCH_SIZE);
+            pendingCallbacks = new ArrayList<Runnable>();
+            sending++;
+        }
+        if (!batch.isEmpty()) deleteBatch(batch);
+        sent(callbacks);
+    }
+
+    /**
+     * @return true if the key was sent and could not be deleted
+     */
+    public boolean isFailed(String key) { return failedKeys.contains(key); }
+
+    /**
+     * Runs the callback once every key added so far has been sent. It may run later than that: it waits for the
+     * batch being filled now, even when the keys it cares about went out in an earlier batch.
+     */
+    public void whenSent(Runnable callback) {
+        synchronized (this) {
+            if (!pending.isEmpty() || sending > 0) {
+                pendingCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    private void sent(List<Runnable> callbacks) {
+        List<Runnable> ready = callbacks;
+        synchronized (this) {
+            sending--;
+            // if nothing is left to send, callbacks that were waiting on this batch are done too
+            if (sending == 0 && pending.isEmpty() && !pendingCallbacks.isEmpty()) {
+                ready = new ArrayList<Runnable>(callbacks);
+                ready.addAll(pendingCallbacks);
+                pendingCallbacks = new ArrayList<Runnable>();
+            }
+        }
+        for (Runnable callback : ready) callback.run();
+    }
+
+    private void deleteBatch(List<String> keys) {
+        final MirrorStats stats = context.getStats();
+        final BatchDelete delete = new BatchDelete(keys);
+        try {
+            context.getRetrier().call("deleting batch of "+keys.size()+" keys", delete);
+        } catch (Exception e) {
+            log.error("error deleting batch of "+keys.size()+" keys ("+delete.remaining.size()+" not deleted): "+e);
+        }
+        final List<String> remaining = delete.remaining;
+        stats.deleteBatches.incrementAndGet();
+        stats.deleteBatchKeys.addAndGet(keys.size());
+
+        final DestinationIndex index = context.getIndex();
+        if (index != null) {
+            final Set<String> notDeleted = new HashSet<String>(remaining);
+            for (String key : keys) if (!notDeleted.contains(key)) index.remove(key);
+        }
+        if (!remaining.isEmpty()) {
+            stats.deleteErrors.addAndGet(remaining.size());
+            failedKeys.addAll(remaining);
+            for (String key : remaining) log.error("giving up deleting key: "+key);
+        }
+    }
+
+    /**
+     * Deletes the keys not deleted yet. When only some keys fail, the next try only sends those.
+     */
+    private class BatchDelete implements Retrier.Call<Void> {
+
+        private List<String> remaining;
+
+        BatchDelete(List<String> keys) { this.remaining = keys; }
+
+        @Override
+        public Void call() {
+            final MirrorOptions options = context.getOptions();
+            final MirrorStats stats = context.getStats();
+            final boolean verbose = options.isVerbose();
+            if (verbose) log.info("deleting batch of "+remaining.size()+" keys");
+            final DeleteObjectsRequest request = new DeleteObjectsRequest(options.getDestinationBucket())
+                    .withKeys(remaining.toArray(new String[remaining.size()]))
+                    .withQuiet(true);
+            try {
+                stats.s3deleteCount.incrementAndGet();
+                client.deleteObjects(request);
+                stats.objectsDeleted.addAndGet(remaining.size());
+                if (verbose) log.info("successfully deleted batch of "+remaining.size()+" keys");
+                remaining = Collections.emptyList();
+                return null;
+
+            } catch (MultiObjectDeleteException e) {
+                final List<String> failed = new ArrayList<String>(e.getErrors().size());
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    failed.add(error.getKey());
+                    if (verbose) log.warn("error deleting "+error.getKey()+": "+error.getCode()+" "+error.getMessage());
+                }
+                stats.objectsDeleted.addAndGet(remaining.size() - failed.size());
+                log.error("batch delete failed for "+failed.size()+" of "+remaining.size()+" keys");
+                remaining = failed;
+                throw e;
+            }
+        }
+    }
+
+}
@@ -1,17 +1,19 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 
 public class DeleteMaster extends KeyMaster {
 
-    public DeleteMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
+    private final DeleteBatcher batcher;
+
+    public DeleteMaster(AmazonS3Client client, MirrorContext context, JobDispatcher dispatcher) {
+        super(client, context, dispatcher);
+        batcher = new DeleteBatcher(context.getDestinationClient(client), context);
     }
 
+    @Override
+    protected AmazonS3Client getListingClient() { return context.getDestinationClient(client); }
+
     protected String getPrefix(MirrorOptions options) {
         return options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
     }
@@ -19,7 +21,26 @@ public class DeleteMaster extends KeyMaster {
     protected String getBucket(MirrorOptions options) { return options.getDestinationBucket(); }
 
     @Override
-    protected KeyJob getTask(S3ObjectSummary summary) {
-        return new KeyDeleteJob(client, context, summary, notifyLock);
+    protected KeyLister startLister(String bucket, String prefix, int fetchSize) {
+        final MirrorOptions options = context.getOptions();
+        if (!options.hasDestinationDirectory()) return super.startLister(bucket, prefix, fetchSize);
+        return startLister(new FileKeyLister(context, MirrorMaster.getMaxQueueCapacity(options),
+                options.getDestinationDirectory(), prefix, options.getListThreads()));
+    }
+
+    @Override
+    protected KeyJob getTask(KeyRecord record) {
+        return new KeyDeleteJob(client, context, record, batcher);
+    }
+
+    // a key is not really done until the batch it was added to has been sent, and has failed if the batch failed
+    @Override
+    protected void whenDone(final KeyJob job, final Runnable markDone, final Runnable markFailed) {
+        batcher.whenSent(new Runnable() {
+            @Override public void run() { (batcher.isFailed(job.getKey()) ? markFailed : markDone).run(); }
+        });
     }
+
+    @Override
+    protected void jobsFinished() { batcher.flush(); }
 }
@@ -0,0 +1,456 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * What we know about the objects in the destination bucket: the key, size, ETag and last-modified date of every
+ * object the mirror has written or found to be up to date. A later run can compare source objects against it
+ * instead of asking S3 about every destination key.
+ *
+ * The index is a file of records sorted by key, memory-mapped (in windows, so it can grow past 2GB) and searched in
+ * place, so it is never loaded into the heap. Changes made during a run are kept in memory until there are
+ * SPILL_THRESHOLD of them, then written out sorted to a run file next to the index, which is searched the same way.
+ * save() merges the index and the runs, as streams, into a new file.
+ *
+ * File layout: MAGIC, the records, a table with the offset of each record, then the table's offset and the
+ * record count. Each record is: key length (int), key (UTF-8), size (long), last-modified millis (long),
+ * ETag length (short) and ETag (UTF-8). In a run, a key removed during the run is recorded with a size of -1.
+ */
+@Slf4j
+public class DestinationIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = "S3S3IDX1".getBytes(UTF8);
+    private static final int TRAILER_SIZE = 8 + 4;
+
+    // S3 keys are at most 1024 bytes, and ETags are much shorter than that
+    private static final int MAX_KEY_SIZE = 1024;
+    private static final int MAX_ETAG_SIZE = 1024;
+    private static final int MAX_RECORD_SIZE = 4 + MAX_KEY_SIZE + 8 + 8 + 2 + MAX_ETAG_SIZE;
+
+    public static final long WINDOW_SIZE = 1L << 30;
+    public static final int SPILL_THRESHOLD = 500000;
+
+    // the size of a key that was removed during this run
+    private static final long REMOVED = -1;
+
+    private final File file;
+    private final long windowSize;
+    private final int spillThreshold;
+
+    // null if the index file does not exist yet
+    private IndexFile data;
+
+    // changes made since the last spill; swapped for an empty map (under the write lock) when it is spilled
+    private volatile Map<String, KeyRecord> changes = new ConcurrentHashMap<String, KeyRecord>();
+    // the changes being written out to a run, until the run is in runs
+    private volatile Map<String, KeyRecord> spilling;
+    private final List<IndexFile> runs = new CopyOnWriteArrayList<IndexFile>();
+    private final ReadWriteLock changeLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean spillInProgress = new AtomicBoolean(false);
+
+    @Getter private final AtomicLong hits = new AtomicLong(0);
+    @Getter private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Opens the index in the given file, or starts an empty one if the file does not exist yet.
+     */
+    public DestinationIndex(File file) throws IOException { this(file, WINDOW_SIZE, SPILL_THRESHOLD); }
+
+    DestinationIndex(File file, long windowSize, int spillThreshold) throws IOException {
+        this.file = file;
+        this.windowSize = windowSize;
+        this.spillThreshold = spillThreshold;
+        data = !file.exists() || file.length() == 0 ? null : new IndexFile(file, windowSize);
+    }
+
+    /**
+     * @return the number of entries stored in the index file (not including changes made since it was opened)
+     */
+    public int getFileEntries() { return data == null ? 0 : data.entries; }
+
+    /**
+     * @return what the index knows about the key, or null if it knows nothing
+     */
+    public KeyRecord get(String key) {
+        KeyRecord entry = changes.get(key);
+        final Map<String, KeyRecord> spilled = spilling;
+        if (entry == null && spilled != null) entry = spilled.get(key);
+        if (entry == null) {
+            final byte[] keyBytes = key.getBytes(UTF8);
+            // the newest run has the latest change
+            for (int i=runs.size()-1; entry == null && i>=0; i--) entry = runs.get(i).get(keyBytes);
+            if (entry == null && data != null) entry = data.get(keyBytes);
+        }
+        if (entry == null || entry.getSize() == REMOVED) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    public void put(String key, long size, String etag, Date lastModified) {
+        change(key, new KeyRecord(key, size, lastModified, etag));
+    }
+
+    public void put(String key, ObjectMetadata metadata) {
+        put(key, metadata.getContentLength(), metadata.getETag(), metadata.getLastModified());
+    }
+
+    public void put(KeyRecord record) { change(record.getKey(), record); }
+
+    public void remove(String key) { change(key, new KeyRecord(key.getBytes(UTF8), REMOVED, 0, null, null)); }
+
+    private void change(String key, KeyRecord record) {
+        changeLock.readLock().lock();
+        try {
+            changes.put(key, record);
+        } finally {
+            changeLock.readLock().unlock();
+        }
+        if (changes.size() >= spillThreshold && spillInProgress.compareAndSet(false, true)) {
+            try {
+                spill();
+            } finally {
+                spillInProgress.set(false);
+            }
+        }
+    }
+
+    public int getChangeCount() {
+        int count = changes.size();
+        for (IndexFile run : runs) count += run.entries;
+        return count;
+    }
+
+    /**
+     * Writes the changes made since the last spill to a new run, so they no longer take up the heap.
+     */
+    private void spill() {
+        final Map<String, KeyRecord> spilled;
+        changeLock.writeLock().lock();
+        try {
+            if (changes.isEmpty()) return;
+            spilled = changes;
+            spilling = spilled;
+            changes = new ConcurrentHashMap<String, KeyRecord>();
+        } finally {
+            changeLock.writeLock().unlock();
+        }
+        File run = null;
+        try {
+            final List<KeyRecord> sorted = new ArrayList<KeyRecord>(spilled.values());
+            Collections.sort(sorted, KEY_ORDER);
+            run = File.createTempFile(file.getName()+"-", ".run", file.getAbsoluteFile().getParentFile());
+            run.deleteOnExit();
+            write(run, sorted.iterator());
+            runs.add(new IndexFile(run, windowSize));
+            if (log.isDebugEnabled()) log.debug("spilled "+sorted.size()+" index changes to "+run);
+        } catch (IOException e) {
+            log.error("Error spilling index changes to "+run+", keeping them in memory: "+e, e);
+            if (run != null) run.delete();
+            for (Map.Entry<String, KeyRecord> change : spilled.entrySet()) {
+                // anything changed since is newer
+                changes.putIfAbsent(change.getKey(), change.getValue());
+            }
+        } finally {
+            spilling = null;
+        }
+    }
+
+    /**
+     * @return the entries stored in the index file (not including changes made since it was opened) whose keys
+     * start with the prefix, in key order
+     */
+    public Iterator<KeyRecord> fileEntries(final String prefix) {
+        final IndexFile index = data;
+        final byte[] prefixBytes = prefix == null ? new byte[0] : prefix.getBytes(UTF8);
+        final int start = index == null ? 0 : index.find(prefixBytes);
+        return new Iterator<KeyRecord>() {
+            private int i = start >= 0 ? start : -(start + 1);
+            private KeyRecord next = advance();
+
+            private KeyRecord advance() {
+                if (index == null || i >= index.entries) return null;
+                final KeyRecord entry = index.read(i++);
+                return entry.keyStartsWith(prefixBytes) ? entry : null;
+            }
+
+            @Override public boolean hasNext() { return next != null; }
+
+            @Override public KeyRecord next() {
+                if (next == null) throw new NoSuchElementException();
+                final KeyRecord entry = next;
+                next = advance();
+                return entry;
+            }
+
+            @Override public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    /**
+     * Writes the index with this run's changes merged in to a new file, then replaces the old one with it.
+     * Called once nothing else is changing the index.
+     */
+    public void save() throws IOException {
+        spill();
+        if (!changes.isEmpty()) throw new IOException("could not write index changes to disk");
+
+        // the index file and every run, oldest first; for a key in more than one, the newest wins
+        final List<IndexFile> sources = new ArrayList<IndexFile>();
+        if (data != null) sources.add(data);
+        sources.addAll(runs);
+        final int changed = getChangeCount();
+
+        final File temp = new File(file.getAbsolutePath()+".tmp");
+        final int entries = write(temp, new MergeIterator(sources));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        data = new IndexFile(file, windowSize);
+        for (IndexFile run : runs) {
+            if (!run.file.delete()) log.warn("error deleting index run "+run.file);
+        }
+        runs.clear();
+        log.info("saved index with "+entries+" entries ("+changed+" changed) to "+file);
+    }
+
+    /**
+     * Writes records, in key order, to an index file or run.
+     * @return the number of records written
+     */
+    private static int write(File target, Iterator<KeyRecord> records) throws IOException {
+        // offsets go to a file of their own until the records are written, rather than piling up in the heap
+        final File offsetsFile = new File(target.getAbsolutePath()+".offsets");
+        final DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+        final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        final DataOutputStream out = new DataOutputStream(counter);
+        int count = 0;
+        try {
+            out.write(MAGIC);
+            while (records.hasNext()) {
+                offsets.writeLong(writeEntry(out, counter, records.next()));
+                count++;
+            }
+            offsets.close();
+
+            final long table = counter.getCount();
+            Files.copy(offsetsFile.toPath(), out);
+            out.writeLong(table);
+            out.writeInt(count);
+        } finally {
+            offsets.close();
+            out.close();
+            offsetsFile.delete();
+        }
+        return count;
+    }
+
+    private static long writeEntry(DataOutputStream out, CountingOutputStream counter, KeyRecord entry) throws IOException {
+        final long offset = counter.getCount();
+        final byte[] key = entry.getKeyBytes();
+        final byte[] etag = entry.getETag() == null ? new byte[0] : entry.getETag().getBytes(UTF8);
+        if (key.length > MAX_KEY_SIZE || etag.length > MAX_ETAG_SIZE) {
+            throw new IOException("key or ETag too long for the index: "+entry.getKey());
+        }
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getLastModified());
+        out.writeShort(etag.length);
+        out.write(etag);
+        return offset;
+    }
+
+    private static final Comparator<KeyRecord> KEY_ORDER = new Comparator<KeyRecord>() {
+        @Override public int compare(KeyRecord a, KeyRecord b) { return a.compareKey(0, b, 0); }
+    };
+
+    /**
+     * An index file or run, mapped in windows of windowSize bytes. Each window also maps the MAX_RECORD_SIZE bytes
+     * after it, so that a record or offset that starts in a window can be read from that window alone.
+     */
+    private static class IndexFile {
+
+        private final File file;
+        private final long windowSize;
+        private final MappedByteBuffer[] windows;
+        private final long tableOffset;
+        private final int entries;
+
+        IndexFile(File file, long windowSize) throws IOException {
+            this.file = file;
+            this.windowSize = windowSize;
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final long length;
+            try {
+                length = raf.length();
+                if (length < MAGIC.length + TRAILER_SIZE) throw new IOException("not an index file: "+file);
+                windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+                for (int w=0; w<windows.length; w++) {
+                    final long start = w * windowSize;
+                    windows[w] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, windowSize + MAX_RECORD_SIZE));
+                }
+            } finally {
+                raf.close();
+            }
+            final byte[] magic = new byte[MAGIC.length];
+            windows[0].duplicate().get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not an index file: "+file);
+            tableOffset = window(length - TRAILER_SIZE).getLong(offset(length - TRAILER_SIZE));
+            entries = window(length - TRAILER_SIZE + 8).getInt(offset(length - TRAILER_SIZE + 8));
+        }
+
+        private MappedByteBuffer window(long pos) { return windows[(int) (pos / windowSize)]; }
+
+        private int offset(long pos) { return (int) (pos % windowSize); }
+
+        private long position(int i) {
+            final long pos = tableOffset + 8L * i;
+            return window(pos).getLong(offset(pos));
+        }
+
+        KeyRecord get(byte[] key) {
+            final int i = find(key);
+            return i >= 0 ? read(i) : null;
+        }
+
+        KeyRecord read(int i) {
+            final long pos = position(i);
+            // duplicate so that concurrent readers each have their own position
+            final ByteBuffer buf = window(pos).duplicate();
+            buf.position(offset(pos));
+            final byte[] key = new byte[buf.getInt()];
+            buf.get(key);
+            final long size = buf.getLong();
+            final long lastModified = buf.getLong();
+            final byte[] etag = new byte[buf.getShort()];
+            buf.get(etag);
+            return new KeyRecord(key, size, lastModified, etag.length == 0 ? null : new String(etag, UTF8), null);
+        }
+
+        /**
+         * Binary search of the file, comparing UTF-8 bytes (which orders keys the same way as KeyComparator).
+         * @return the position of the key, or (-(insertion point) - 1) if it is not in the file
+         */
+        int find(byte[] key) {
+            int lo = 0;
+            int hi = entries - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int cmp = compareKeyAt(mid, key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        private int compareKeyAt(int i, byte[] key) {
+            final long pos = position(i);
+            final MappedByteBuffer window = window(pos);
+            final int start = offset(pos);
+            final int len = window.getInt(start);
+            final int n = Math.min(len, key.length);
+            for (int j=0; j<n; j++) {
+                final int a = window.get(start + 4 + j) & 0xff;
+                final int b = key[j] & 0xff;
+                if (a != b) return a - b;
+            }
+            return len - key.length;
+        }
+    }
+
+    /**
+     * Reads several index files at once in key order, giving the entry from the newest file for a key that is in
+     * more than one, and leaving out keys removed in a run.
+     */
+    private static class MergeIterator implements Iterator<KeyRecord> {
+
+        private static class Cursor {
+            final IndexFile source;
+            // the source's place in the list: higher is newer
+            final int age;
+            int i = 0;
+            KeyRecord entry;
+            Cursor(IndexFile source, int age) { this.source = source; this.age = age; }
+            boolean advance() {
+                if (i >= source.entries) return false;
+                entry = source.read(i++);
+                return true;
+            }
+        }
+
+        private final PriorityQueue<Cursor> cursors;
+        private KeyRecord next;
+
+        MergeIterator(List<IndexFile> sources) {
+            cursors = new PriorityQueue<Cursor>(Math.max(1, sources.size()), new Comparator<Cursor>() {
+                @Override public int compare(Cursor a, Cursor b) {
+                    final int cmp = KEY_ORDER.compare(a.entry, b.entry);
+                    return cmp != 0 ? cmp : b.age - a.age;
+                }
+            });
+            for (int i=0; i<sources.size(); i++) {
+                final Cursor cursor = new Cursor(sources.get(i), i);
+                if (cursor.advance()) cursors.add(cursor);
+            }
+            next = advance();
+        }
+
+        private KeyRecord advance() {
+            while (!cursors.isEmpty()) {
+                final Cursor newest = cursors.poll();
+                final KeyRecord entry = newest.entry;
+                if (newest.advance()) cursors.add(newest);
+                // older entries for the same key are replaced by this one
+                while (!cursors.isEmpty() && KEY_ORDER.compare(cursors.peek().entry, entry) == 0) {
+                    final Cursor older = cursors.poll();
+                    if (older.advance()) cursors.add(older);
+                }
+                if (entry.getSize() != REMOVED) return entry;
+            }
+            return null;
+        }
+
+        @Override public boolean hasNext() { return next != null; }
+
+        @Override public KeyRecord next() {
+            if (next == null) throw new NoSuchElementException();
+            final KeyRecord entry = next;
+            next = advance();
+            return entry;
+        }
+
+        @Override public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        @Getter private long count = 0;
+        CountingOutputStream(OutputStream out) { super(out); }
+        @Override public void write(int b) throws IOException { out.write(b); count++; }
+        @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); count += len; }
+    }
+}
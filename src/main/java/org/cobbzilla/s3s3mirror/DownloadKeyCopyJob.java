@@ -0,0 +1,255 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.KB;
+
+/**
+ * Downloads a key into a local destination directory (file://), at the path the key names below it.
+ *
+ * Objects up to the part size are read with one GET on the job's own thread. Larger objects are read with ranged
+ * GETs, one per part, run on the PartCopyScheduler; the file is given its full length first and each part is written
+ * at its own offset as it arrives, so parts never wait for each other.
+ *
+ * The download goes to a hidden temporary file next to the destination, which is given the object's last-modified
+ * time and then renamed over it. A file at the key's path is therefore always complete, and an interrupted restore
+ * picks up where it left off when it is run again: files whose size and modification time match are skipped.
+ */
+@Slf4j
+public class DownloadKeyCopyJob extends KeyCopyJob {
+
+    public static final String TEMP_SUFFIX = ".s3s3mirror-download";
+
+    private static final int WRITE_BUFFER_SIZE = (int) (64 * KB);
+
+    private final PartCopyScheduler partScheduler;
+
+    // open while the object is being written
+    private volatile FileChannel channel;
+
+    public DownloadKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy,
+                              AclPolicy aclPolicy, PartCopyScheduler partScheduler) {
+        super(client, context, record, comparisonStrategy, aclPolicy);
+        this.partScheduler = partScheduler;
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    /**
+     * @return true if the file is a download in progress (or one that was interrupted), not a restored key
+     */
+    public static boolean isTempFile(String path) {
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    private File getFile() throws IOException {
+        final File root = context.getOptions().getDestinationDirectory();
+        final File file = new File(root, keydest);
+        // a key like "../../etc/passwd" must not be written outside the destination directory
+        if (!file.toPath().toAbsolutePath().normalize().startsWith(root.toPath().toAbsolutePath().normalize())) {
+            throw new IOException("key would be written outside of " + root + ": " + keydest);
+        }
+        return file;
+    }
+
+    // the local file's size and modification time are compared, whatever the size of the object
+    @Override
+    protected boolean isLargeObject() { return false; }
+
+    @Override
+    protected ObjectMetadata getDestinationMetadata() throws IOException {
+        final File file = getFile();
+        if (!file.exists()) return null;
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(file.isDirectory() ? 0 : file.length());
+        metadata.setLastModified(new Date(file.lastModified()));
+        return metadata;
+    }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final String key = record.getKey();
+        final long size = sourceMetadata.getContentLength();
+        final long partSize = UploadKeyCopyJob.getPartSize(size, options.getUploadPartSize());
+        File temp = null;
+        try {
+            final File file = getFile();
+            // a zero-byte "folder" placeholder becomes a directory
+            if (keydest.endsWith("/")) {
+                if (!file.isDirectory() && !file.mkdirs()) throw new IOException("cannot create directory " + file);
+                return true;
+            }
+            final File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) throw new IOException("cannot create directory " + dir);
+            if (options.isVerbose()) log.info("downloading: " + key + " to: " + file);
+
+            temp = new File(dir, "." + file.getName() + TEMP_SUFFIX);
+            final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                // the full length up front (sparse, where the filesystem allows), so parts can be written in any order
+                out.setLength(size);
+                channel = out.getChannel();
+                if (size <= partSize) {
+                    if (size > 0) read(0, size, sourceMetadata.getETag());
+                } else if (!readInParts(sourceMetadata, partSize)) {
+                    return false;
+                }
+            } finally {
+                out.close();
+            }
+
+            // the listed time, which is what the next run compares the file's with
+            final long lastModified = record.getLastModified() != 0 ? record.getLastModified()
+                    : sourceMetadata.getLastModified() != null ? sourceMetadata.getLastModified().getTime() : 0;
+            if (lastModified != 0 && !temp.setLastModified(lastModified)) {
+                log.warn("could not set the modification time of " + temp);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            context.getStats().bytesCopied.addAndGet(size);
+            if (options.isVerbose()) log.info("successfully downloaded: " + key + " to: " + file);
+            return true;
+
+        } catch (Exception e) {
+            log.error("error downloading " + key + " to: " + keydest + ": " + e);
+            return false;
+
+        } finally {
+            if (temp != null && temp.exists() && !temp.delete()) log.warn("could not delete " + temp);
+        }
+    }
+
+    /**
+     * @return true if every part was read and written, false if one failed (and the rest were stopped)
+     */
+    private boolean readInParts(final ObjectMetadata sourceMetadata, long partSize) throws InterruptedException {
+        final long objectSize = sourceMetadata.getContentLength();
+        final boolean verbose = context.getOptions().isVerbose();
+        if (verbose) log.info("downloading " + record.getKey() + " in parts of " + partSize + " bytes");
+
+        final List<PartRead> reads = new ArrayList<PartRead>();
+        final List<Future<Void>> parts = new ArrayList<Future<Void>>();
+        for (long bytePosition = 0; bytePosition < objectSize; bytePosition += partSize) {
+            final long firstByte = bytePosition;
+            final long length = Math.min(partSize, objectSize - bytePosition);
+            final PartRead read = new PartRead() {
+                @Override void read() throws Exception {
+                    final String infoMessage = "downloading " + record.getKey() + ": " + firstByte + " to " + (firstByte + length - 1);
+                    if (verbose) log.info(infoMessage);
+                    DownloadKeyCopyJob.this.read(firstByte, length, sourceMetadata.getETag());
+                    if (verbose) log.info("completed " + infoMessage);
+                }
+            };
+            reads.add(read);
+            parts.add(partScheduler.submit(read));
+        }
+        try {
+            for (Future<Void> part : parts) part.get();
+            return true;
+        } catch (ExecutionException e) {
+            log.error("error downloading parts of " + record.getKey() + ": " + e.getCause());
+            // the caller deletes the file and closes its channel, so no part may still be writing to it
+            for (PartRead read : reads) read.claim();
+            for (Future<Void> part : parts) part.cancel(true);
+            for (PartRead read : reads) read.awaitDone();
+            return false;
+        }
+    }
+
+    /**
+     * A part that either runs or is stopped before it starts, but not both, so that a failed download can wait for
+     * exactly the parts that are running. Future.get on a cancelled part returns at once, even while it is running.
+     */
+    private static abstract class PartRead implements Callable<Void> {
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        abstract void read() throws Exception;
+
+        @Override public Void call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) return null;
+            try {
+                read();
+                return null;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /** Stops the part from starting, if it has not already. */
+        void claim() {
+            if (claimed.compareAndSet(false, true)) done.countDown();
+        }
+
+        void awaitDone() throws InterruptedException { done.await(); }
+    }
+
+    /**
+     * Reads a range of the source object and writes it at the same offset of the file, with retries.
+     * @param sourceETag the ETag the object had when the copy started, so that all of its parts come from the same version
+     */
+    private void read(final long firstByte, final long length, String sourceETag) throws Exception {
+        final String key = record.getKey();
+        final FileChannel out = channel;
+        final GetObjectRequest request = new GetObjectRequest(context.getOptions().getSourceBucket(), key)
+                .withRange(firstByte, firstByte + length - 1);
+        if (sourceETag != null) request.setMatchingETagConstraints(Collections.singletonList(sourceETag));
+        context.getRetrier().call("reading " + key + " from byte " + firstByte, new Retrier.Call<Void>() {
+            @Override public Void call() throws Exception {
+                context.getStats().s3getCount.incrementAndGet();
+                final S3Object object = client.getObject(request);
+                // the SDK returns null when the ETag constraint is not met
+                if (object == null) throw new IllegalStateException(key + " changed while it was being copied");
+                try {
+                    // a retry writes the whole range again, over whatever the failed try wrote
+                    write(object.getObjectContent(), out, firstByte, length);
+                } finally {
+                    object.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    // positional writes, so the parts of a file can be written from several threads at once
+    private static void write(InputStream in, FileChannel out, long position, long length) throws IOException {
+        final byte[] bytes = new byte[WRITE_BUFFER_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long written = 0;
+        while (written < length) {
+            final int n = in.read(bytes, 0, (int) Math.min(bytes.length, length - written));
+            if (n == -1) throw new IOException("object ended after " + written + " of " + length + " bytes");
+            buffer.clear();
+            buffer.limit(n);
+            while (buffer.hasRemaining()) written += out.write(buffer, position + written);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+
+/**
+ * A Bloom filter of the keys in the destination (--existence-filter), built from a listing before the run starts.
+ * A key the filter has never seen is certainly not in the destination, so it can be copied without a HEAD request;
+ * a key the filter might have seen is checked as usual.
+ *
+ * The filter is sized for the number of keys listed and the false positive rate asked for, at about
+ * 1.44 * log2(1 / rate) bits per key: 1.2GB per billion keys at 1%, 600MB at 10%. To size it exactly with a single
+ * listing, a 64-bit hash of each key is spooled to a temporary file while listing, and the filter is filled from it
+ * once the count is known.
+ */
+@Slf4j
+public class ExistenceFilter {
+
+    private final long[] bits;
+    private final long numBits;
+    private final int hashes;
+    @Getter private final long keys;
+
+    /**
+     * @param keys how many keys the filter will hold
+     * @param falsePositiveRate the chance that a key not in the filter is reported as possibly in it
+     */
+    public ExistenceFilter(long keys, double falsePositiveRate) {
+        final double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        final long words = Math.max(1, (long) Math.ceil(Math.max(1, keys) * bitsPerKey / 64));
+        if (words > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("too many keys ("+keys+") for an existence filter at "+falsePositiveRate);
+        this.bits = new long[(int) words];
+        this.numBits = words * 64;
+        this.hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+        this.keys = keys;
+    }
+
+    public long getSizeBytes() { return bits.length * 8L; }
+
+    /**
+     * @return a 64-bit hash of the key, from which all of its bit positions are derived
+     */
+    static long hash(String key) {
+        // FNV-1a over the key's chars, then a final mix (from MurmurHash3) so every bit depends on every char
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // the i-th bit position of a key is h1 + i * h2 (Kirsch and Mitzenmacher), which is as good as i independent hashes
+    private long position(long h1, long h2, int i) {
+        return ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+    }
+
+    void add(long hash) {
+        final long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i=0; i<hashes; i++) {
+            final long bit = position(hash, h2, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public void add(String key) { add(hash(key)); }
+
+    /**
+     * @return false if the key is certainly not in the filter, true if it may be
+     */
+    public boolean mightContain(String key) {
+        final long hash = hash(key);
+        final long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i=0; i<hashes; i++) {
+            final long bit = position(hash, h2, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collects the hashes of keys whose number is not known in advance, then builds a filter sized for them.
+     */
+    public static class Builder implements Closeable {
+
+        private final double falsePositiveRate;
+        private final File spool;
+        private final DataOutputStream out;
+        private long count = 0;
+
+        public Builder(double falsePositiveRate) throws IOException {
+            this.falsePositiveRate = falsePositiveRate;
+            this.spool = File.createTempFile("s3s3mirror-filter-", ".hashes");
+            this.spool.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 1 << 16));
+        }
+
+        public void add(String key) throws IOException {
+            out.writeLong(hash(key));
+            count++;
+        }
+
+        public ExistenceFilter build() throws IOException {
+            out.close();
+            final ExistenceFilter filter = new ExistenceFilter(count, falsePositiveRate);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool), 1 << 16));
+            try {
+                for (long i=0; i<count; i++) filter.add(in.readLong());
+            } finally {
+                in.close();
+            }
+            return filter;
+        }
+
+        @Override public void close() {
+            try { out.close(); } catch (IOException ignored) {}
+            if (!spool.delete()) log.warn("could not delete "+spool);
+        }
+    }
+
+    /**
+     * Lists the destination and builds a filter of its keys.
+     * @return the filter, or null if the destination could not be listed
+     */
+    public static ExistenceFilter fromListing(AmazonS3Client client, MirrorContext context) throws IOException, InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final String prefix = options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
+        log.info("listing "+options.getDestinationBucket()+(prefix == null ? "" : "/"+prefix)+" to build an existence filter");
+
+        // only the destination keys this run can ask about are needed: with --shard, those of the shard
+        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+        final String bucket = options.getDestinationBucket();
+        final KeyLister lister;
+        if (options.hasShard()) {
+            lister = new HashShardKeyLister(client, context, maxQueueCapacity, bucket, prefix, options.getShardIndex(), options.getShardCount());
+        } else if (options.getListThreads() > 1) {
+            lister = new ShardedKeyLister(client, context, maxQueueCapacity, bucket, prefix, options.getListThreads());
+        } else {
+            lister = new KeyLister(client, context, maxQueueCapacity, bucket, prefix, KeyLister.LIST_PAGE_SIZE);
+        }
+        final Thread listerThread = new Thread(lister, "ExistenceFilter-lister");
+        listerThread.setDaemon(true);
+        listerThread.start();
+
+        final Builder builder = new Builder(options.getExistenceFilter());
+        try {
+            KeyBatch batch;
+            while (!(batch = lister.getNextBatch()).isEmpty()) {
+                for (int i=0; i<batch.size(); i++) builder.add(batch.get(i).getKey());
+                lister.recycle(batch);
+            }
+            if (lister.isFailed()) return null;
+            final ExistenceFilter filter = builder.build();
+            log.info("existence filter of "+filter.getKeys()+" keys uses "+(filter.getSizeBytes() / MirrorConstants.MB)+"MB");
+            return filter;
+
+        } finally {
+            listerThread.interrupt();
+            builder.close();
+        }
+    }
+}
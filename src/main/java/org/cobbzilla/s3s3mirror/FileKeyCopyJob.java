@@ -0,0 +1,186 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.util.BinaryUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.EtagComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * Uploads a file from a local source directory (file://). Files up to the part size go up in a single PUT; larger
+ * ones as a multipart upload whose parts are read through memory-mapped windows of the file (MappedFileInputStream).
+ *
+ * To compare a file with the destination by ETag, its ETag is worked out locally the way S3 will work it out for
+ * the upload: the MD5 of the file, or for a file uploaded in parts the MD5 of the parts' MD5s and the part count.
+ * With --md5-cache, ETags are remembered by path, size and modification time, so unchanged files are not read again.
+ */
+@Slf4j
+public class FileKeyCopyJob extends UploadKeyCopyJob {
+
+    // open while the parts of a multipart upload are being sent
+    private volatile FileChannel channel;
+
+    public FileKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy,
+                          AclPolicy aclPolicy, PartCopyScheduler partScheduler) {
+        super(client, context, record, comparisonStrategy, aclPolicy, partScheduler);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    private File getFile() { return new File(context.getOptions().getSourceDirectory(), record.getKey()); }
+
+    private long getPartSize(long size) { return getPartSize(size, context.getOptions().getUploadPartSize()); }
+
+    // the ETag is worked out for whichever way the file is uploaded, so it can always be compared
+    @Override
+    protected boolean isLargeObject() { return false; }
+
+    @Override
+    protected KeyRecord getComparisonRecord() {
+        if (!(comparisonStrategy instanceof EtagComparisonStrategy)) return record;
+        final File file = getFile();
+        final long partSize = getPartSize(record.getSize());
+        final Md5Cache cache = context.getMd5Cache();
+        String etag = cache == null ? null : cache.get(file, record.getSize(), record.getLastModified(), partSize);
+        if (etag == null) {
+            try {
+                etag = computeETag(file, record.getSize(), partSize);
+            } catch (IOException e) {
+                log.warn("Error reading "+file+" to compare it with the destination (will copy): "+e);
+                return record;
+            }
+            if (cache != null) cache.put(file, record.getSize(), record.getLastModified(), partSize, etag);
+        }
+        return new KeyRecord(record.getKey(), record.getSize(), new Date(record.getLastModified()), etag);
+    }
+
+    /**
+     * @return the ETag S3 gives the file when it is uploaded in parts of the given size: the MD5 of its bytes if it
+     * fits in one part, otherwise the MD5 of the parts' MD5s, then "-" and the number of parts
+     */
+    public static String computeETag(File file, long size, long partSize) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (size <= partSize) {
+                final MessageDigest md5 = md5();
+                MappedFileInputStream.digest(channel, 0, size, md5);
+                return BinaryUtils.toHex(md5.digest());
+            }
+            final MessageDigest md5s = md5();
+            int parts = 0;
+            for (long pos = 0; pos < size; pos += partSize) {
+                final MessageDigest part = md5();
+                MappedFileInputStream.digest(channel, pos, Math.min(partSize, size - pos), part);
+                md5s.update(part.digest());
+                parts++;
+            }
+            return BinaryUtils.toHex(md5s.digest()) + "-" + parts;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available: "+e, e);
+        }
+    }
+
+    /**
+     * @return the file's metadata as a source object's: its length, modification time and a content type guessed
+     * from its name
+     */
+    @Override
+    protected ObjectMetadata getObjectMetadata(String bucket, String key, MirrorOptions options) throws Exception {
+        final File file = getFile();
+        if (!file.isFile()) throw new FileNotFoundException(file.toString());
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(file.length());
+        metadata.setLastModified(new Date(file.lastModified()));
+        metadata.setContentType(Mimetypes.getInstance().getMimetype(file));
+        return metadata;
+    }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final File file = getFile();
+        final long size = sourceMetadata.getContentLength();
+        final long partSize = getPartSize(size);
+        if (options.isVerbose()) log.info("uploading: " + file + " to: " + keydest);
+        try {
+            final String etag;
+            if (size <= partSize) {
+                etag = upload(file, sourceMetadata, objectAcl);
+            } else {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    etag = uploadInParts(sourceMetadata, objectAcl, partSize);
+                } finally {
+                    channel.close();
+                }
+            }
+            if (etag == null) return false;
+            context.getStats().bytesCopied.addAndGet(size);
+            indexCopy(etag, new Date());
+
+            // S3's ETag is the one to compare with next time; keep it unless the file changed while it was uploaded
+            final Md5Cache cache = context.getMd5Cache();
+            final long lastModified = sourceMetadata.getLastModified().getTime();
+            if (cache != null && file.length() == size && file.lastModified() == lastModified) {
+                cache.put(file, size, lastModified, partSize, etag);
+            }
+            if (options.isVerbose()) log.info("successfully uploaded: " + file + " to: " + keydest);
+            return true;
+
+        } catch (Exception e) {
+            log.error("error uploading " + file + " to: " + keydest + ": " + e);
+            return false;
+        }
+    }
+
+    private String upload(final File file, final ObjectMetadata sourceMetadata, final AccessControlList objectAcl) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        return context.getRetrier().call("uploading " + file + " to: " + keydest, new Retrier.Call<String>() {
+            @Override public String call() {
+                final PutObjectRequest request = new PutObjectRequest(options.getDestinationBucket(), keydest, file)
+                        .withMetadata(getUploadMetadata(sourceMetadata, sourceMetadata.getContentLength()));
+                prepare(request, objectAcl);
+                context.getStats().s3copyCount.incrementAndGet();
+                return destinationClient.putObject(request).getETag();
+            }
+        });
+    }
+
+    @Override
+    protected PartETag uploadPart(String uploadId, int partNumber, final long firstByte, final long length, ObjectMetadata sourceMetadata) throws Exception {
+        final FileChannel fileChannel = channel;
+        final boolean verbose = context.getOptions().isVerbose();
+        final String infoMessage = "uploading part " + partNumber + " of " + record.getKey() + ": " + firstByte + " to " + (firstByte + length - 1);
+        if (verbose) log.info(infoMessage);
+        final PartETag etag = sendPart(uploadId, partNumber, length, new PartSource() {
+            @Override public InputStream newInputStream() { return new MappedFileInputStream(fileChannel, firstByte, length); }
+        });
+        if (verbose) log.info("completed " + infoMessage);
+        return etag;
+    }
+}
@@ -0,0 +1,131 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lists a local directory as keys: every regular file below it, keyed by its path relative to the directory with
+ * "/" between the names. Directories are walked by --list-threads threads at once, each directory's files going
+ * into batches of their own, so keys do not arrive in key order.
+ *
+ * Links to files are followed, links to directories are not (they could lead back up the tree).
+ */
+@Slf4j
+public class FileKeyLister extends KeyLister {
+
+    private final File root;
+    private final String prefix;
+    private final int listThreads;
+
+    // one party for run(), and one for each directory still to be walked
+    private final Phaser walking = new Phaser(1);
+    private ExecutorService walkers;
+
+    public FileKeyLister(MirrorContext context, int maxQueueCapacity, File root, String prefix, int listThreads) {
+        super(null, context, maxQueueCapacity, LIST_PAGE_SIZE);
+        this.root = root;
+        this.prefix = prefix == null ? "" : prefix;
+        this.listThreads = Math.max(1, listThreads);
+    }
+
+    @Override
+    public void run() {
+        log.info("walking "+root+" with "+listThreads+" threads...");
+        walkers = Executors.newFixedThreadPool(listThreads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "FileKeyLister-walker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            // start from the deepest directory the prefix names in full
+            final String start = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+            final File startDir = new File(root, start);
+            if (startDir.isDirectory()) walk(startDir, start);
+            walking.awaitAdvanceInterruptibly(walking.arrive());
+            if (!failed.get()) log.info("No more files found in source directory, exiting");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+            failed.set(true);
+
+        } catch (Exception e) {
+            log.error("Error walking "+root+", FileKeyLister thread now exiting: "+e);
+            failed.set(true);
+
+        } finally {
+            walkers.shutdownNow();
+            endListing();
+        }
+    }
+
+    private void walk(final File dir, final String keyPrefix) {
+        walking.register();
+        walkers.submit(new Runnable() {
+            @Override public void run() {
+                try {
+                    walkDirectory(dir, keyPrefix);
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                } catch (Exception e) {
+                    log.error("Error walking "+dir+": "+e);
+                    failed.set(true);
+                } finally {
+                    walking.arriveAndDeregister();
+                }
+            }
+        });
+    }
+
+    private void walkDirectory(File dir, String keyPrefix) throws InterruptedException, IOException {
+        final boolean verbose = context.getOptions().isVerbose();
+        final File[] children = dir.listFiles();
+        if (children == null) throw new IOException("cannot list directory "+dir);
+
+        KeyBatch batch = newBatch();
+        for (File child : children) {
+            final String key = keyPrefix + child.getName();
+            final BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(child.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // most likely a broken link, or a file deleted since the directory was listed
+                log.warn("Error reading attributes of "+child+" (skipping it): "+e);
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                final String dirKey = key + "/";
+                if (!dirKey.startsWith(prefix) && !prefix.startsWith(dirKey)) continue;
+                if (Files.isSymbolicLink(child.toPath())) {
+                    if (verbose) log.info("not following link to directory: "+child);
+                    continue;
+                }
+                walk(child, dirKey);
+
+            } else if (attributes.isRegularFile() && key.startsWith(prefix)) {
+                batch.add(key, attributes.size(), attributes.lastModifiedTime().toMillis(), null, null);
+                if (batch.size() >= LIST_PAGE_SIZE) {
+                    addBatch(batch);
+                    batch = newBatch();
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            recycle(batch);
+        } else {
+            // once queued, the batch may be read and recycled at any moment
+            final int size = batch.size();
+            addBatch(batch);
+            if (verbose) log.info("queued "+size+" files from "+dir+" (batches queued="+getQueuedBatches()+")");
+        }
+    }
+}
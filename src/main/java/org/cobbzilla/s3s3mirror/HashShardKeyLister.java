@@ -0,0 +1,133 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists only the keys of one shard (--shard), so that several processes can mirror a prefix between them without
+ * talking to each other.
+ *
+ * The prefix is listed with a delimiter, and each top-level "folder" belongs to the shard its name hashes to, as does
+ * each key that is not in a folder. A folder is only listed by the process whose shard it belongs to, so each process
+ * fetches its own part of the listing rather than all of it. A prefix with no folders is split key by key, which
+ * still means every process lists every key.
+ *
+ * Names are hashed without the prefix, so the destination (listed under --dest-prefix for deletes) is split the same
+ * way as the source. Keys come out in key order.
+ */
+@Slf4j
+public class HashShardKeyLister extends KeyLister {
+
+    private final String bucket;
+    private final String prefix;
+    private final int shard;
+    private final int shards;
+
+    /**
+     * @param shard the shard to list, from 0 to shards - 1
+     */
+    public HashShardKeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket,
+                              String prefix, int shard, int shards) {
+        super(client, context, maxQueueCapacity, LIST_PAGE_SIZE);
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * @param name a key or folder, without the prefix being mirrored
+     * @return the shard it belongs to, from 0 to shards - 1
+     */
+    public static int shardOf(String name, int shards) {
+        // String.hashCode is the same on every JVM; mix it so that similar names spread across shards
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shards;
+    }
+
+    private boolean isMine(String key) {
+        return shardOf(key.substring(prefix.length()), shards) == shard;
+    }
+
+    @Override
+    public void run() {
+        final boolean verbose = context.getOptions().isVerbose();
+        log.info("listing shard "+(shard+1)+" of "+shards+" of "+bucket+"/"+prefix);
+        try {
+            String marker = null;
+            ObjectListing listing;
+            do {
+                listing = s3listObjects(new ListObjectsRequest(bucket, prefix, marker, ShardedKeyLister.DELIMITER, LIST_PAGE_SIZE));
+                final List<S3ObjectSummary> objects = listing.getObjectSummaries();
+                final List<String> folders = listing.getCommonPrefixes();
+
+                // keys and folders each come back sorted; walk them together to keep the keys in order
+                List<S3ObjectSummary> mine = new ArrayList<S3ObjectSummary>();
+                int o = 0;
+                int f = 0;
+                while (o < objects.size() || f < folders.size()) {
+                    if (f == folders.size() || (o < objects.size() && KeyComparator.INSTANCE.compare(objects.get(o).getKey(), folders.get(f)) < 0)) {
+                        final S3ObjectSummary summary = objects.get(o++);
+                        if (isMine(summary.getKey())) mine.add(summary);
+                    } else {
+                        final String folder = folders.get(f++);
+                        if (!isMine(folder)) continue;
+                        addSummaries(mine);
+                        mine = new ArrayList<S3ObjectSummary>();
+                        listFolder(folder);
+                    }
+                }
+                addSummaries(mine);
+                if (verbose) log.info("listed "+objects.size()+" keys and "+folders.size()+" folders after "+marker+" (batches queued="+getQueuedBatches()+")");
+
+                marker = getNextMarker(listing);
+            } while (listing.isTruncated() && marker != null);
+            log.info("No more keys found in shard "+(shard+1)+" of "+shards+", exiting");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+            failed.set(true);
+
+        } catch (Exception e) {
+            log.error("Error in run loop, HashShardKeyLister now exiting: "+e);
+            failed.set(true);
+
+        } finally {
+            if (verbose) log.info("HashShardKeyLister run loop finished");
+            endListing();
+        }
+    }
+
+    private void listFolder(String folder) throws InterruptedException {
+        String marker = null;
+        ObjectListing listing;
+        do {
+            listing = s3listObjects(new ListObjectsRequest(bucket, folder, marker, null, LIST_PAGE_SIZE));
+            final List<S3ObjectSummary> page = listing.getObjectSummaries();
+            addSummaries(page);
+            marker = page.isEmpty() ? null : page.get(page.size()-1).getKey();
+        } while (listing.isTruncated() && marker != null);
+    }
+
+    private String getNextMarker(ObjectListing listing) {
+        if (listing.getNextMarker() != null) return listing.getNextMarker();
+        final List<S3ObjectSummary> objects = listing.getObjectSummaries();
+        final List<String> folders = listing.getCommonPrefixes();
+        final String lastKey = objects.isEmpty() ? null : objects.get(objects.size()-1).getKey();
+        final String lastFolder = folders.isEmpty() ? null : folders.get(folders.size()-1);
+        if (lastKey == null) return lastFolder;
+        if (lastFolder == null) return lastKey;
+        return KeyComparator.INSTANCE.compare(lastKey, lastFolder) > 0 ? lastKey : lastFolder;
+    }
+}
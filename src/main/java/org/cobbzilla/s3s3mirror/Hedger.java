@@ -0,0 +1,125 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges metadata requests (--hedge): if a request has not been answered by the time HEDGE_QUANTILE of requests of
+ * its kind have been, the same request is sent again, and whichever answer comes first is used. A request stuck on
+ * a bad connection then costs little more than a typical one, instead of holding up its key (and, at the end of a
+ * run, the whole run) for as long as the connection takes to time out.
+ *
+ * Requests are not hedged until MIN_SAMPLES of their kind have been timed, and hedges are limited to MAX_HEDGE_RATIO
+ * of all requests, so that when S3 is slow for everyone the hedges do not double the load. The losing request is
+ * interrupted, but the SDK may only notice once its response arrives.
+ */
+@Slf4j
+public class Hedger {
+
+    public static final double HEDGE_QUANTILE = 0.95;
+    public static final int MIN_SAMPLES = 50;
+    public static final double MAX_HEDGE_RATIO = 0.1;
+
+    // the hedge delay is worked out again at most this often (a quantile scans the whole histogram)
+    private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final MirrorStats stats;
+    private final ExecutorService executor;
+    private final AtomicLong calls = new AtomicLong(0);
+
+    private final long[] delayMicros = new long[S3Operation.values().length];
+    private final long[] refreshedAt = new long[S3Operation.values().length];
+
+    public Hedger(MirrorStats stats, boolean virtualThreads) {
+        this.stats = stats;
+        final ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor("Hedger") : null;
+        this.executor = virtualExecutor != null ? virtualExecutor : Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Hedger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return how long (in microseconds) to wait for a request of this kind before hedging it, or 0 to not hedge it
+     */
+    public synchronized long getHedgeDelayMicros(S3Operation operation) {
+        final int i = operation.ordinal();
+        final long now = System.nanoTime();
+        if (refreshedAt[i] == 0 || now - refreshedAt[i] > REFRESH_NANOS) {
+            final LatencyHistogram latency = stats.getLatency(operation);
+            delayMicros[i] = latency.getCount() < MIN_SAMPLES ? 0 : Math.max(1, latency.getValueAtQuantile(HEDGE_QUANTILE));
+            refreshedAt[i] = now;
+        }
+        return delayMicros[i];
+    }
+
+    private boolean takeHedge() {
+        return stats.s3hedgedRequests.get() < calls.get() * MAX_HEDGE_RATIO;
+    }
+
+    /**
+     * Makes the call, and makes it again if it has not returned within the hedge delay.
+     * @return the first successful answer; an error if the first request fails with an error that is an answer
+     * (like a 404), or if every request sent failed
+     */
+    public <T> T call(S3Operation operation, final Retrier.Call<T> call) throws Exception {
+        calls.incrementAndGet();
+        final long delay = getHedgeDelayMicros(operation);
+        if (delay == 0) return call.call();
+
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final Future<?> primary = executor.submit(attempt(call, result, outstanding, false));
+        Future<?> hedge = null;
+        try {
+            try {
+                return result.get(delay, TimeUnit.MICROSECONDS);
+            } catch (TimeoutException e) {
+                if (takeHedge()) {
+                    outstanding.incrementAndGet();
+                    stats.s3hedgedRequests.incrementAndGet();
+                    hedge = executor.submit(attempt(call, result, outstanding, true));
+                }
+                return result.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) hedge.cancel(true);
+        }
+    }
+
+    private <T> Runnable attempt(final Retrier.Call<T> call, final CompletableFuture<T> result,
+                                 final AtomicInteger outstanding, final boolean isHedge) {
+        return new Runnable() {
+            @Override public void run() {
+                try {
+                    final T value = call.call();
+                    // count the win before completing, which wakes the caller
+                    synchronized (result) {
+                        if (result.isDone()) return;
+                        if (isHedge) stats.s3hedgeWins.incrementAndGet();
+                        result.complete(value);
+                    }
+                } catch (Exception e) {
+                    // an answer like a 404 settles it; otherwise wait for the other request, if there is one
+                    if (Retrier.classify(e) == Retrier.ErrorClass.FATAL || outstanding.decrementAndGet() == 0) {
+                        synchronized (result) { result.completeExceptionally(e); }
+                    }
+                }
+            }
+        };
+    }
+
+    public void shutdown() { executor.shutdownNow(); }
+}
@@ -0,0 +1,90 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+
+/**
+ * Lists the destination and corrects the DestinationIndex wherever it disagrees: entries for objects that are gone
+ * are removed, and objects that are missing from the index or differ from it are (re-)recorded.
+ *
+ * The destination listing and the index file are both in key order, so they are merged in a single pass.
+ */
+@Slf4j
+public class IndexVerifier {
+
+    private final AmazonS3Client client;
+    private final MirrorContext context;
+    private final DestinationIndex index;
+
+    private long added = 0;
+    private long updated = 0;
+    private long removed = 0;
+
+    public IndexVerifier(AmazonS3Client client, MirrorContext context, DestinationIndex index) {
+        this.client = client;
+        this.context = context;
+        this.index = index;
+    }
+
+    /**
+     * @return true if the whole destination was listed and checked
+     */
+    public boolean verify() throws InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final String prefix = options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
+        log.info("verifying index against "+options.getDestinationBucket()+(prefix == null ? "" : "/"+prefix));
+
+        final KeyLister lister = new KeyLister(client, context, MirrorMaster.getMaxQueueCapacity(options), options.getDestinationBucket(), prefix, KeyLister.LIST_PAGE_SIZE);
+        final Thread listerThread = new Thread(lister, "IndexVerifier-lister");
+        listerThread.setDaemon(true);
+        listerThread.start();
+
+        final Iterator<KeyRecord> indexed = index.fileEntries(prefix);
+        KeyRecord entry = indexed.hasNext() ? indexed.next() : null;
+        KeyBatch batch;
+        try {
+            while (!(batch = lister.getNextBatch()).isEmpty()) {
+                for (int i=0; i<batch.size(); i++) {
+                    final KeyRecord actual = batch.get(i);
+                    int cmp = 0;
+                    while (entry != null && (cmp = entry.compareKey(0, actual, 0)) < 0) {
+                        index.remove(entry.getKey());
+                        removed++;
+                        entry = indexed.hasNext() ? indexed.next() : null;
+                    }
+                    if (entry != null && cmp == 0) {
+                        if (!sameObject(entry, actual)) {
+                            index.put(actual);
+                            updated++;
+                        }
+                        entry = indexed.hasNext() ? indexed.next() : null;
+                    } else {
+                        index.put(actual);
+                        added++;
+                    }
+                }
+                lister.recycle(batch);
+            }
+        } finally {
+            listerThread.interrupt();
+        }
+
+        if (lister.isFailed()) {
+            log.error("listing the destination failed, index only partially verified");
+            return false;
+        }
+        while (entry != null) {
+            index.remove(entry.getKey());
+            removed++;
+            entry = indexed.hasNext() ? indexed.next() : null;
+        }
+        log.info("index verified: "+added+" entries added, "+updated+" updated, "+removed+" removed");
+        return true;
+    }
+
+    static boolean sameObject(KeyRecord a, KeyRecord b) {
+        return a.getSize() == b.getSize() && a.sameETag(b) && a.getLastModified() == b.getLastModified();
+    }
+}
@@ -0,0 +1,247 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Hands jobs to the worker threads. Submitting blocks while the pipeline is full (maxQueuedJobs waiting plus one
+ * running on every worker), so producers are held back instead of having jobs rejected. Each job belongs to a
+ * JobGroup, which lets a KeyMaster wait for just its own jobs to finish.
+ *
+ * With virtual threads, every job gets its own thread as soon as it is submitted, and a semaphore with one permit
+ * per "worker" limits how many run at once. Jobs waiting for a permit are parked virtual threads, which cost little.
+ *
+ * With lanes (--lanes), jobs wait in the LaneScheduler instead, and each worker is a loop that takes the next job its
+ * lane scheduling allows, on a pool thread or a virtual thread alike.
+ *
+ * AsyncJobs (--async) do not run on the workers at all: submitting one takes an in-flight permit and starts it, and
+ * the permit is given back when the future it returns completes. Submitting blocks while all permits are taken.
+ */
+@Slf4j
+public class JobDispatcher {
+
+    @Getter private final int threads;
+    @Getter private final int maxQueuedJobs;
+    @Getter private final boolean virtual;
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    private final Semaphore running;
+    @Getter private final int maxInFlight;
+    private final Semaphore inFlight;
+    // null unless --lanes was given
+    @Getter private final LaneScheduler lanes;
+
+    /**
+     * A job that runs as a chain of asynchronous steps, instead of on a worker thread.
+     */
+    public interface AsyncJob {
+        /**
+         * Starts the job without waiting for any of it to be done.
+         * @return a future that completes when the job is done
+         */
+        CompletableFuture<?> start();
+    }
+
+    public JobDispatcher(int threads, int maxQueuedJobs) { this(threads, maxQueuedJobs, false); }
+
+    public JobDispatcher(int threads, int maxQueuedJobs, boolean virtualThreads) { this(threads, maxQueuedJobs, virtualThreads, threads); }
+
+    public JobDispatcher(int threads, int maxQueuedJobs, boolean virtualThreads, int maxInFlight) {
+        this(threads, maxQueuedJobs, virtualThreads, maxInFlight, null);
+    }
+
+    /**
+     * @param lanes the lanes to queue jobs in, or null to queue them all together
+     */
+    public JobDispatcher(int threads, int maxQueuedJobs, boolean virtualThreads, int maxInFlight, LaneScheduler lanes) {
+        this.threads = threads;
+        this.lanes = lanes;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxQueuedJobs = maxQueuedJobs;
+        // the semaphore bounds the queue, so the executor never has to reject anything
+        this.capacity = new Semaphore(threads + maxQueuedJobs);
+
+        final ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor("KeyJob") : null;
+        if (virtualThreads && virtualExecutor == null) log.warn("virtual threads are not available on this JVM (Java 21+ required), using a thread pool");
+        if (virtualExecutor != null) {
+            this.virtual = true;
+            this.executor = virtualExecutor;
+            this.running = new Semaphore(threads);
+        } else {
+            this.virtual = false;
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+            this.running = null;
+        }
+        if (lanes != null) {
+            for (int i=0; i<threads; i++) {
+                final int worker = i;
+                executor.execute(new Runnable() {
+                    @Override public void run() { runLane(worker); }
+                });
+            }
+        }
+    }
+
+    private void runLane(int worker) {
+        try {
+            LaneScheduler.Job next;
+            while ((next = lanes.take(worker)) != null) {
+                try {
+                    next.job.run();
+                } catch (RuntimeException e) {
+                    log.error("job failed: "+next.job+": "+e, e);
+                } finally {
+                    lanes.finished(next.lane);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("worker "+worker+" interrupted");
+        }
+    }
+
+    /**
+     * Submits a job to the small-copy lane (or the only queue, without lanes).
+     */
+    public void submit(final Runnable job, final JobGroup group) throws InterruptedException {
+        submit(job, LaneScheduler.Lane.SMALL, group);
+    }
+
+    /**
+     * Submits a job to the given lane, if there are lanes.
+     */
+    public void submit(final Runnable job, LaneScheduler.Lane lane, final JobGroup group) throws InterruptedException {
+        if (lanes == null) {
+            submitToPool(job, group);
+            return;
+        }
+        group.started();
+        try {
+            lanes.put(lane, new Runnable() {
+                @Override public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        group.finished();
+                    }
+                }
+                @Override public String toString() { return job.toString(); }
+            });
+        } catch (InterruptedException e) {
+            group.finished();
+            throw e;
+        } catch (RuntimeException e) {
+            group.finished();
+            throw e;
+        }
+    }
+
+    private void submitToPool(final Runnable job, final JobGroup group) throws InterruptedException {
+        capacity.acquire();
+        group.started();
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if (running == null) {
+                            job.run();
+                        } else {
+                            running.acquire();
+                            try {
+                                job.run();
+                            } finally {
+                                running.release();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        log.warn("interrupted before starting job: "+job);
+                    } finally {
+                        capacity.release();
+                        group.finished();
+                    }
+                }
+                @Override public String toString() { return job.toString(); }
+            });
+        } catch (RejectedExecutionException e) {
+            capacity.release();
+            group.finished();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts an async job once fewer than maxInFlight are running.
+     * @param whenFinished run when the job's future completes, however it completes
+     */
+    public void submit(final AsyncJob job, final JobGroup group, final Runnable whenFinished) throws InterruptedException {
+        inFlight.acquire();
+        group.started();
+        final CompletableFuture<?> future;
+        try {
+            future = job.start();
+        } catch (RuntimeException e) {
+            inFlight.release();
+            group.finished();
+            throw e;
+        }
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override public void accept(Object result, Throwable error) {
+                try {
+                    if (error != null) log.error("async job failed: "+job+": "+error);
+                    whenFinished.run();
+                } finally {
+                    inFlight.release();
+                    group.finished();
+                }
+            }
+        });
+    }
+
+    public int getInFlightCount() { return maxInFlight - inFlight.availablePermits(); }
+
+    public int getQueueSize() {
+        if (lanes != null) return lanes.getQueued();
+        if (running == null) return ((ThreadPoolExecutor) executor).getQueue().size();
+        return Math.max(0, getPending() - getActiveCount());
+    }
+
+    public int getActiveCount() {
+        if (lanes != null) return lanes.getRunning();
+        if (running == null) return ((ThreadPoolExecutor) executor).getActiveCount();
+        return threads - running.availablePermits();
+    }
+
+    // jobs submitted and not yet finished
+    private int getPending() { return threads + maxQueuedJobs - capacity.availablePermits(); }
+
+    /**
+     * Waits for jobs already submitted to finish, then stops the worker threads.
+     */
+    public void shutdown() {
+        if (lanes != null) lanes.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * Counts the jobs of one producer that have been submitted but have not finished yet.
+     */
+    public static class JobGroup {
+
+        private int outstanding = 0;
+
+        synchronized void started() { outstanding++; }
+
+        synchronized void finished() {
+            if (--outstanding == 0) notifyAll();
+        }
+
+        public synchronized int getOutstanding() { return outstanding; }
+
+        public synchronized void awaitCompletion() throws InterruptedException {
+            while (outstanding > 0) wait();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+
+import java.util.Arrays;
+
+/**
+ * A page of listed keys packed into flat arrays, which is how keys wait in a KeyLister's queue: all the keys' UTF-8
+ * bytes go back to back in one array and every other field has a primitive array of its own, so a batch is a dozen
+ * objects however many keys it holds. get() copies a key out into its own KeyRecord, so once a batch has been read
+ * it can be cleared and filled again (see KeyLister.recycle).
+ */
+public class KeyBatch {
+
+    private static final StorageClass[] STORAGE_CLASSES = StorageClass.values();
+
+    private int count = 0;
+    private byte[] keys;
+    private int keysLength = 0;
+    private int[] keyEnds;
+    private long[] sizes;
+    private long[] lastModified;
+    // two longs per key, the high half of the ETag first
+    private long[] etags;
+    private short[] etagParts;
+    // storage class ordinal + 1, or 0 for none
+    private byte[] storageClasses;
+    // only allocated if some ETag has to be kept as text
+    private String[] etagTexts = null;
+
+    public KeyBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        keys = new byte[capacity * 64];
+        keyEnds = new int[capacity];
+        sizes = new long[capacity];
+        lastModified = new long[capacity];
+        etags = new long[capacity * 2];
+        etagParts = new short[capacity];
+        storageClasses = new byte[capacity];
+    }
+
+    public int size() { return count; }
+
+    public boolean isEmpty() { return count == 0; }
+
+    public void add(S3ObjectSummary summary) {
+        add(summary.getKey(), summary.getSize(), summary.getLastModified() == null ? 0 : summary.getLastModified().getTime(),
+                summary.getETag(), KeyRecord.storageClass(summary.getStorageClass()));
+    }
+
+    /**
+     * @param lastModifiedMillis millis since the epoch, 0 if not known
+     * @param etag the ETag, or null if there is none
+     */
+    public void add(String keyName, long size, long lastModifiedMillis, String etag, StorageClass storageClass) {
+        if (count == sizes.length) grow();
+        final byte[] key = keyName.getBytes(KeyRecord.UTF8);
+        if (keysLength + key.length > keys.length) keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysLength + key.length));
+        System.arraycopy(key, 0, keys, keysLength, key.length);
+        keysLength += key.length;
+        keyEnds[count] = keysLength;
+
+        sizes[count] = size;
+        lastModified[count] = lastModifiedMillis;
+
+        final short parts = KeyRecord.etagParts(etag);
+        etagParts[count] = parts;
+        if (parts == KeyRecord.TEXT_ETAG) {
+            if (etagTexts == null) etagTexts = new String[sizes.length];
+            etagTexts[count] = etag;
+        } else {
+            etags[2 * count] = KeyRecord.etagHigh(etag);
+            etags[2 * count + 1] = KeyRecord.etagLow(etag);
+        }
+
+        storageClasses[count] = (byte) (storageClass == null ? 0 : storageClass.ordinal() + 1);
+        count++;
+    }
+
+    public KeyRecord get(int i) {
+        if (i >= count) throw new IndexOutOfBoundsException(i+" >= "+count);
+        final int start = i == 0 ? 0 : keyEnds[i - 1];
+        return new KeyRecord(Arrays.copyOfRange(keys, start, keyEnds[i]), sizes[i], lastModified[i],
+                etags[2 * i], etags[2 * i + 1], etagParts[i], etagTexts == null ? null : etagTexts[i],
+                storageClasses[i] == 0 ? null : STORAGE_CLASSES[storageClasses[i] - 1]);
+    }
+
+    public String getKey(int i) {
+        if (i >= count) throw new IndexOutOfBoundsException(i+" >= "+count);
+        final int start = i == 0 ? 0 : keyEnds[i - 1];
+        return new String(keys, start, keyEnds[i] - start, KeyRecord.UTF8);
+    }
+
+    /**
+     * Empties the batch, keeping its arrays to be filled again.
+     */
+    public void clear() {
+        if (etagTexts != null) Arrays.fill(etagTexts, 0, count, null);
+        count = 0;
+        keysLength = 0;
+    }
+
+    private void grow() {
+        final int capacity = sizes.length * 2;
+        keyEnds = Arrays.copyOf(keyEnds, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+        etags = Arrays.copyOf(etags, capacity * 2);
+        etagParts = Arrays.copyOf(etagParts, capacity);
+        storageClasses = Arrays.copyOf(storageClasses, capacity);
+        if (etagTexts != null) etagTexts = Arrays.copyOf(etagTexts, capacity);
+    }
+}
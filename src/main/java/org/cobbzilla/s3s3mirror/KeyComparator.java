@@ -0,0 +1,30 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.Comparator;
+
+/**
+ * Orders keys the way S3 lists them: by the bytes of their UTF-8 encoding, which is the same as code point order.
+ * String.compareTo compares UTF-16 chars, and disagrees with S3 when a surrogate pair is compared against a
+ * character between U+E000 and U+FFFF.
+ */
+public class KeyComparator implements Comparator<String> {
+
+    public static final KeyComparator INSTANCE = new KeyComparator();
+
+    @Override
+    public int compare(String a, String b) {
+        final int len = Math.min(a.length(), b.length());
+        for (int i=0; i<len; i++) {
+            final char ca = a.charAt(i);
+            final char cb = b.charAt(i);
+            if (ca != cb) {
+                // surrogates encode code points above U+FFFF, so they sort after every other char
+                final boolean sa = Character.isSurrogate(ca);
+                final boolean sb = Character.isSurrogate(cb);
+                if (sa != sb) return sa ? 1 : -1;
+                return ca - cb;
+            }
+        }
+        return a.length() - b.length();
+    }
+}
@@ -2,7 +2,10 @@ package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
 import org.slf4j.Logger;
 
@@ -14,19 +17,29 @@ import java.util.Date;
 @Slf4j
 public class KeyCopyJob extends KeyJob {
 
+    // copies of objects above this size go in the large lane (with --lanes)
+    public static final long LARGE_COPY_SIZE = 128 * MirrorConstants.MB;
+
+    // worked out when the job runs, so a queued job holds no more than its record
     protected String keydest;
     protected ComparisonStrategy comparisonStrategy;
+    protected final AclPolicy aclPolicy;
 
-    public KeyCopyJob(AmazonS3Client client, MirrorContext context, S3ObjectSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
-        super(client, context, summary, notifyLock);
+    /**
+     * When true, the caller has already compared this key against the destination (for example by listing the
+     * destination bucket) and determined that it needs copying, so we skip the metadata request on the destination.
+     */
+    @Getter @Setter private boolean destinationChecked = false;
 
-        keydest = summary.getKey();
-        final MirrorOptions options = context.getOptions();
-        if (options.hasDestPrefix()) {
-            keydest = keydest.substring(options.getPrefixLength());
-            keydest = options.getDestPrefix() + keydest;
-        }
+    public KeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy, AclPolicy aclPolicy) {
+        super(client, context, record);
         this.comparisonStrategy = comparisonStrategy;
+        this.aclPolicy = aclPolicy;
+    }
+
+    protected String getKeyDest(String key) {
+        final MirrorOptions options = context.getOptions();
+        return options.hasDestPrefix() ? options.getDestPrefix() + key.substring(options.getPrefixLength()) : key;
     }
 
     @Override public Logger getLog() { return log; }
@@ -34,11 +47,13 @@ public class KeyCopyJob extends KeyJob {
     @Override
     public void run() {
         final MirrorOptions options = context.getOptions();
-        final String key = summary.getKey();
+        final String key = record.getKey();
+        keydest = getKeyDest(key);
         try {
-            if (!shouldTransfer()) return;
+            if (!shouldTransfer(key)) return;
             final ObjectMetadata sourceMetadata = getObjectMetadata(options.getSourceBucket(), key, options);
-            final AccessControlList objectAcl = getAccessControlList(options, key);
+            final AccessControlList sourceAcl = aclPolicy.needsSourceAcl() ? getAccessControlList(options, key) : null;
+            final AccessControlList objectAcl = aclPolicy.getDestinationAcl(sourceAcl);
 
             if (options.isDryRun()) {
                 log.info("Would have copied " + key + " to destination: " + keydest);
@@ -47,101 +62,181 @@ public class KeyCopyJob extends KeyJob {
                     context.getStats().objectsCopied.incrementAndGet();
                 } else {
                     context.getStats().copyErrors.incrementAndGet();
+                    failed();
                 }
             }
         } catch (Exception e) {
             log.error("error copying key: " + key + ": " + e);
+            failed();
 
         } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
-            }
             if (options.isVerbose()) log.info("done with " + key);
         }
     }
 
     boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
-        String key = summary.getKey();
-        MirrorOptions options = context.getOptions();
-        boolean verbose = options.isVerbose();
-        int maxRetries= options.getMaxRetries();
-        MirrorStats stats = context.getStats();
-        for (int tries = 0; tries < maxRetries; tries++) {
-            if (verbose) log.info("copying (try #" + tries + "): " + key + " to: " + keydest);
-            final CopyObjectRequest request = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest);
-            
-            request.setStorageClass(StorageClass.valueOf(options.getStorageClass()));
-            
-            if (options.isEncrypt()) {
-				request.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
-			}
-
-            request.setNewObjectMetadata(sourceMetadata);
-            if (options.isCrossAccountCopy()) {
-                request.setAccessControlList(buildCrossAccountAcl(objectAcl));
-            } else {
-                request.setAccessControlList(objectAcl);
-            }
-            try {
-                stats.s3copyCount.incrementAndGet();
-                client.copyObject(request);
-                stats.bytesCopied.addAndGet(sourceMetadata.getContentLength());
-                if (verbose) log.info("successfully copied (on try #" + tries + "): " + key + " to: " + keydest);
-                return true;
-            } catch (AmazonS3Exception s3e) {
-                log.error("s3 exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + s3e);
-            } catch (Exception e) {
-                log.error("unexpected exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + e);
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                log.error("interrupted while waiting to retry key: " + key);
-                return false;
-            }
+        final String key = record.getKey();
+        final boolean verbose = context.getOptions().isVerbose();
+        final MirrorStats stats = context.getStats();
+        if (verbose) log.info("copying: " + key + " to: " + keydest);
+        final CopyObjectRequest request = newCopyRequest(sourceMetadata, objectAcl);
+        try {
+            final CopyObjectResult result = context.getRetrier().call("copying " + key + " to: " + keydest, new Retrier.Call<CopyObjectResult>() {
+                @Override public CopyObjectResult call() {
+                    stats.s3copyCount.incrementAndGet();
+                    return client.copyObject(request);
+                }
+            });
+            copied(result, sourceMetadata);
+            return true;
+
+        } catch (Exception e) {
+            log.error("error copying " + key + " to: " + keydest + ": " + e);
+            return false;
+        }
+    }
+
+    protected CopyObjectRequest newCopyRequest(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final CopyObjectRequest request = new CopyObjectRequest(options.getSourceBucket(), record.getKey(), options.getDestinationBucket(), keydest);
+
+        request.setStorageClass(StorageClass.valueOf(options.getStorageClass()));
+
+        if (options.isEncrypt()) {
+            request.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
+        }
+
+        request.setNewObjectMetadata(sourceMetadata);
+        if (objectAcl != null) {
+            request.setAccessControlList(objectAcl);
+        } else if (aclPolicy.getCannedAcl() != null) {
+            request.setCannedAccessControlList(aclPolicy.getCannedAcl());
+        }
+        return request;
+    }
+
+    protected void copied(CopyObjectResult result, ObjectMetadata sourceMetadata) {
+        context.getStats().bytesCopied.addAndGet(sourceMetadata.getContentLength());
+        indexCopy(result.getETag(), result.getLastModifiedDate());
+        if (context.getOptions().isVerbose()) log.info("successfully copied: " + record.getKey() + " to: " + keydest);
+    }
+
+    private boolean shouldTransfer(String key) {
+        final Boolean decided = shouldTransferWithoutDestination(key);
+        if (decided != null) return decided;
+
+        final ObjectMetadata metadata;
+        try {
+            metadata = getDestinationMetadata();
+        } catch (Exception e) {
+            log.warn("Error getting metadata for " + context.getOptions().getDestinationBucket() + "/" + keydest + " (not copying): " + e);
+            failed();
+            return false;
         }
-        return false;
+        return shouldTransfer(metadata);
     }
 
-    private boolean shouldTransfer() {
+    /**
+     * @return whether to copy the key, if that can be decided without asking the destination (by the key's age, from
+     * the index, or because the existence filter has never seen it); otherwise null
+     */
+    protected Boolean shouldTransferWithoutDestination(String key) {
         final MirrorOptions options = context.getOptions();
-        final String key = summary.getKey();
         final boolean verbose = options.isVerbose();
 
         if (options.hasCtime()) {
-            final Date lastModified = summary.getLastModified();
-            if (lastModified == null) {
+            final long lastModified = record.getLastModified();
+            if (lastModified == 0) {
                 if (verbose) log.info("No Last-Modified header for key: " + key);
 
             } else {
-                if (lastModified.getTime() < options.getMaxAge()) {
-                    if (verbose) log.info("key "+key+" (lastmod="+lastModified+") is older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+"), not copying");
+                if (lastModified < options.getMaxAge()) {
+                    if (verbose) log.info("key "+key+" (lastmod="+new Date(lastModified)+") is older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+"), not copying");
                     return false;
                 }
             }
         }
-        final ObjectMetadata metadata;
-        try {
-            metadata = getObjectMetadata(options.getDestinationBucket(), keydest, options);
-        } catch (AmazonS3Exception e) {
-            if (e.getStatusCode() == 404) {
-                if (verbose) log.info("Key not found in destination bucket (will copy): "+ keydest);
-                return true;
-            } else {
-                log.warn("Error getting metadata for " + options.getDestinationBucket() + "/" + keydest + " (not copying): " + e);
-                return false;
+        if (destinationChecked) return true;
+
+        final DestinationIndex index = context.getIndex();
+        if (index != null) {
+            final KeyRecord indexed = index.get(keydest);
+            if (indexed != null) {
+                final boolean objectChanged = isLargeObject()
+                        ? indexed.getSize() != record.getSize()
+                        : comparisonStrategy.sourceDifferent(getComparisonRecord(), indexed);
+                if (verbose) log.info("Destination index says "+keydest+(objectChanged ? " has changed (will copy)" : " is unchanged, not copying"));
+                return objectChanged;
             }
-        } catch (Exception e) {
-            log.warn("Error getting metadata for " + options.getDestinationBucket() + "/" + keydest + " (not copying): " + e);
-            return false;
         }
 
-        if (summary.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
-            return metadata.getContentLength() != summary.getSize();
+        final ExistenceFilter filter = context.getExistenceFilter();
+        if (filter != null && !filter.mightContain(keydest)) {
+            if (verbose) log.info("Existence filter says "+keydest+" is not in the destination (will copy)");
+            context.getStats().headsSkipped.incrementAndGet();
+            return true;
         }
-        final boolean objectChanged = comparisonStrategy.sourceDifferent(summary, metadata);
-        if (verbose && !objectChanged) log.info("Destination file is same as source, not copying: "+ key);
+        return null;
+    }
 
+    /**
+     * @param metadata the destination's metadata for the key, or null if the destination does not have it
+     * @return true if the key should be copied
+     */
+    protected boolean shouldTransfer(ObjectMetadata metadata) {
+        final boolean verbose = context.getOptions().isVerbose();
+        if (metadata == null) {
+            if (verbose) log.info("Key not found in destination (will copy): "+ keydest);
+            return true;
+        }
+
+        final boolean objectChanged = isLargeObject()
+                ? metadata.getContentLength() != record.getSize()
+                : comparisonStrategy.sourceDifferent(getComparisonRecord(), metadata);
+        if (!objectChanged) {
+            if (verbose) log.info("Destination file is same as source, not copying: "+ record.getKey());
+            final DestinationIndex index = context.getIndex();
+            if (index != null) index.put(keydest, metadata);
+        }
         return objectChanged;
     }
+
+    /**
+     * @return the destination's metadata for the key, or null if the destination does not have it
+     */
+    protected ObjectMetadata getDestinationMetadata() throws Exception {
+        final MirrorOptions options = context.getOptions();
+        try {
+            return getObjectMetadata(context.getDestinationClient(client), options.getDestinationBucket(), keydest);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) return null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return what to compare with the destination, only asked for once the destination turns out to have the key.
+     * The listed record, unless a subclass has to work something out first (like the ETag of a local file).
+     */
+    protected KeyRecord getComparisonRecord() { return record; }
+
+    /**
+     * Copies that are sent in parts, or are big enough to keep a worker busy for a while, go in the large lane.
+     */
+    @Override public LaneScheduler.Lane getLane() {
+        return isLargeObject() || record.getSize() > LARGE_COPY_SIZE ? LaneScheduler.Lane.LARGE : LaneScheduler.Lane.SMALL;
+    }
+
+    /**
+     * @return true if the copy will not have the source's ETag, so only the size tells whether it is up to date
+     */
+    protected boolean isLargeObject() { return record.getSize() > MirrorOptions.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE; }
+
+    /**
+     * Records a successful copy in the destination index, if there is one.
+     */
+    protected void indexCopy(String etag, Date lastModified) {
+        final DestinationIndex index = context.getIndex();
+        if (index != null) index.put(keydest, record.getSize(), etag, lastModified);
+    }
 }
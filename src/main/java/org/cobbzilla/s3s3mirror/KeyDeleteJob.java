@@ -2,88 +2,89 @@ package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 
+import java.io.File;
+
 @Slf4j
 public class KeyDeleteJob extends KeyJob {
 
+    // worked out when the job runs, so a queued job holds no more than its record
     private String keysrc;
+    private final DeleteBatcher batcher;
 
-    public KeyDeleteJob (AmazonS3Client client, MirrorContext context, S3ObjectSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    /**
+     * When true, the caller has already determined that this key does not exist in the source bucket,
+     * so we skip the metadata request on the source.
+     */
+    @Getter @Setter private boolean sourceChecked = false;
 
-        final MirrorOptions options = context.getOptions();
-        keysrc = summary.getKey(); // NOTE: summary.getKey is the key in the destination bucket
-        if (options.hasPrefix()) {
-            keysrc = keysrc.substring(options.getDestPrefixLength());
-            keysrc = options.getPrefix() + keysrc;
-        }
+    public KeyDeleteJob (AmazonS3Client client, MirrorContext context, KeyRecord record, DeleteBatcher batcher) {
+        super(client, context, record);
+        this.batcher = batcher;
     }
 
     @Override public Logger getLog() { return log; }
 
+    @Override public LaneScheduler.Lane getLane() { return LaneScheduler.Lane.DELETE; }
+
     @Override
     public void run() {
         final MirrorOptions options = context.getOptions();
-        final MirrorStats stats = context.getStats();
         final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
-        final String key = summary.getKey();
+        final String key = record.getKey(); // NOTE: this is the key in the destination bucket
+        keysrc = options.hasPrefix() ? options.getPrefix() + key.substring(options.getDestPrefixLength()) : key;
         try {
             if (!shouldDelete()) return;
 
-            final DeleteObjectRequest request = new DeleteObjectRequest(options.getDestinationBucket(), key);
-
             if (options.isDryRun()) {
                 log.info("Would have deleted "+key+" from destination because "+keysrc+" does not exist in source");
+            } else if (options.hasDestinationDirectory()) {
+                deleteFile(new File(options.getDestinationDirectory(), key));
             } else {
-                boolean deletedOK = false;
-                for (int tries=0; tries<maxRetries; tries++) {
-                    if (verbose) log.info("deleting (try #"+tries+"): "+key);
-                    try {
-                        stats.s3deleteCount.incrementAndGet();
-                        client.deleteObject(request);
-                        deletedOK = true;
-                        if (verbose) log.info("successfully deleted (on try #"+tries+"): "+key);
-                        break;
-
-                    } catch (AmazonS3Exception s3e) {
-                        log.error("s3 exception deleting (try #"+tries+") "+key+": "+s3e);
-
-                    } catch (Exception e) {
-                        log.error("unexpected exception deleting (try #"+tries+") "+key+": "+e);
-                    }
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        log.error("interrupted while waiting to retry key: "+key);
-                        break;
-                    }
-                }
-                if (deletedOK) {
-                    context.getStats().objectsDeleted.incrementAndGet();
-                } else {
-                    context.getStats().deleteErrors.incrementAndGet();
-                }
+                if (verbose) log.info("queueing for batch delete: "+key);
+                batcher.add(key);
             }
 
         } catch (Exception e) {
             log.error("error deleting key: "+key+": "+e);
+            failed();
 
         } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
-            }
             if (verbose) log.info("done with "+key);
         }
     }
 
+    private void deleteFile(File file) {
+        if (file.delete()) {
+            context.getStats().objectsDeleted.incrementAndGet();
+            if (context.getOptions().isVerbose()) log.info("deleted: "+file);
+        } else if (file.exists()) {
+            context.getStats().deleteErrors.incrementAndGet();
+            failed();
+            log.error("error deleting "+file);
+        }
+    }
+
     private boolean shouldDelete() {
 
         final MirrorOptions options = context.getOptions();
         final boolean verbose = options.isVerbose();
 
+        if (sourceChecked) return true;
+
+        // a download still being written by the copy
+        if (options.hasDestinationDirectory() && DownloadKeyCopyJob.isTempFile(record.getKey())) return false;
+
+        if (options.hasSourceDirectory()) {
+            if (new File(options.getSourceDirectory(), keysrc).isFile()) return false;
+            if (verbose) log.info("File not found in source directory (will delete from destination): "+ keysrc);
+            return true;
+        }
+
         // Does it exist in the source bucket
         try {
             ObjectMetadata metadata = getObjectMetadata(options.getSourceBucket(), keysrc, options);
@@ -95,10 +96,12 @@ public class KeyDeleteJob extends KeyJob {
                 return true;
             } else {
                 log.warn("Error getting metadata for " + options.getSourceBucket() + "/" + keysrc + " (not deleting): " + e);
+                failed();
                 return false;
             }
         } catch (Exception e) {
             log.warn("Error getting metadata for " + options.getSourceBucket() + "/" + keysrc + " (not deleting): " + e);
+            failed();
             return false;
         }
     }
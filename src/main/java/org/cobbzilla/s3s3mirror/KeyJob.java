@@ -8,92 +8,77 @@ public abstract class KeyJob implements Runnable {
 
     protected final AmazonS3Client client;
     protected final MirrorContext context;
-    protected final S3ObjectSummary summary;
-    protected final Object notifyLock;
+    protected final KeyRecord record;
 
-    public KeyJob(AmazonS3Client client, MirrorContext context, S3ObjectSummary summary, Object notifyLock) {
+    // set when the job could not do its work, so the key is not recorded as done (see --checkpoint)
+    private volatile boolean failed = false;
+
+    public KeyJob(AmazonS3Client client, MirrorContext context, KeyRecord record) {
         this.client = client;
         this.context = context;
-        this.summary = summary;
-        this.notifyLock = notifyLock;
+        this.record = record;
     }
 
     public abstract Logger getLog();
 
-    @Override public String toString() { return summary.getKey(); }
-
-    protected ObjectMetadata getObjectMetadata(String bucket, String key, MirrorOptions options) throws Exception {
-        Exception ex = null;
-        for (int tries=0; tries<options.getMaxRetries(); tries++) {
-            try {
-                context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectMetadata(bucket, key);
-
-            } catch (AmazonS3Exception e) {
-                if (e.getStatusCode() == 404) throw e;
-
-            } catch (Exception e) {
-                ex = e;
-                if (options.isVerbose()) {
-                    if (tries >= options.getMaxRetries()) {
-                        getLog().error("getObjectMetadata(" + key + ") failed (try #" + tries + "), giving up");
-                        break;
-                    } else {
-                        getLog().warn("getObjectMetadata("+key+") failed (try #"+tries+"), retrying...");
-                    }
-                }
-            }
-        }
-        throw ex;
+    public String getKey() { return record.getKey(); }
+
+    public boolean isFailed() { return failed; }
+    protected void failed() { failed = true; }
+
+    @Override public String toString() { return record.getKey(); }
+
+    /**
+     * @return the lane to queue the job in (with --lanes)
+     */
+    public LaneScheduler.Lane getLane() { return LaneScheduler.Lane.SMALL; }
+
+    protected ObjectMetadata getObjectMetadata(final String bucket, final String key, MirrorOptions options) throws Exception {
+        return getObjectMetadata(client, bucket, key);
     }
 
-    protected AccessControlList getAccessControlList(MirrorOptions options, String key) throws Exception {
-        Exception ex = null;
-
-        for (int tries=0; tries<=options.getMaxRetries(); tries++) {
-            try {
-                context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectAcl(options.getSourceBucket(), key);
-
-            } catch (Exception e) {
-                ex = e;
-
-                if (tries >= options.getMaxRetries()) {
-                    // Annoyingly there can be two reasons for this to fail. It will fail if the IAM account
-                    // permissions are wrong, but it will also fail if we are copying an item that we don't
-                    // own ourselves. This may seem unusual, but it occurs when copying AWS Detailed Billing
-                    // objects since although they live in your bucket, the object owner is AWS.
-                    getLog().warn("Unable to obtain object ACL, copying item without ACL data.");
-                    return new AccessControlList();
-		}
-
-                if (options.isVerbose()) {
-                   if (tries >= options.getMaxRetries()) {
-                        getLog().warn("getObjectAcl(" + key + ") failed (try #" + tries + "), giving up.");
-			break;
-                    } else {
-                        getLog().warn("getObjectAcl("+key+") failed (try #"+tries+"), retrying...");
+    protected ObjectMetadata getObjectMetadata(final AmazonS3Client client, final String bucket, final String key) throws Exception {
+        return context.getRetrier().call("getObjectMetadata("+key+")", new Retrier.Call<ObjectMetadata>() {
+            @Override public ObjectMetadata call() throws Exception {
+                return hedged(S3Operation.HEAD, new Retrier.Call<ObjectMetadata>() {
+                    @Override public ObjectMetadata call() {
+                        context.getStats().s3getCount.incrementAndGet();
+                        return client.getObjectMetadata(bucket, key);
                     }
-                }
+                });
             }
-        }
-        throw ex;
+        });
     }
 
-    AccessControlList buildCrossAccountAcl(AccessControlList original) {
-        AccessControlList result = new AccessControlList();
-        for (Grant grant : original.getGrantsAsList()) {
-            // Covers all 3 types: Everyone, Authenticate User, Log Delivery
-            if (grant.getGrantee() instanceof GroupGrantee) {
-                result.grantPermission(grant.getGrantee(), grant.getPermission());
-            }
-        }
-
-        // Equal to the canned way: request.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
-        result.grantPermission(new CanonicalGrantee(context.getOwner().getId()), Permission.FullControl);
-        result.setOwner(context.getOwner());
+    /**
+     * Makes the call, hedged (see Hedger) if --hedge was given.
+     */
+    protected <T> T hedged(S3Operation operation, Retrier.Call<T> call) throws Exception {
+        final Hedger hedger = context.getHedger();
+        return hedger == null ? call.call() : hedger.call(operation, call);
+    }
 
-        return result;
+    protected AccessControlList getAccessControlList(final MirrorOptions options, final String key) {
+        try {
+            return context.getRetrier().call("getObjectAcl("+key+")", new Retrier.Call<AccessControlList>() {
+                @Override public AccessControlList call() throws Exception {
+                    return hedged(S3Operation.ACL, new Retrier.Call<AccessControlList>() {
+                        @Override public AccessControlList call() {
+                            context.getStats().s3getCount.incrementAndGet();
+                            return client.getObjectAcl(options.getSourceBucket(), key);
+                        }
+                    });
+                }
+            });
+
+        } catch (Exception e) {
+            // Annoyingly there can be two reasons for this to fail. It will fail if the IAM account
+            // permissions are wrong, but it will also fail if we are copying an item that we don't
+            // own ourselves. This may seem unusual, but it occurs when copying AWS Detailed Billing
+            // objects since although they live in your bucket, the object owner is AWS.
+            getLog().warn("Unable to obtain object ACL, copying item without ACL data: "+e);
+            return new AccessControlList();
+        }
     }
 
 }
@@ -1,46 +1,79 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class KeyLister implements Runnable {
 
-    private AmazonS3Client client;
-    private MirrorContext context;
-    private int maxQueueCapacity;
+    // the most keys S3 will return in a single listing
+    public static final int LIST_PAGE_SIZE = 1000;
 
-    private final List<S3ObjectSummary> summaries;
-    private final AtomicBoolean done = new AtomicBoolean(false);
+    // marks the end of the listing in the batch queue, compared by identity; never filled
+    private static final KeyBatch END_OF_LISTING = new KeyBatch(1);
+    // what getNextBatch returns once the listing is over; never filled
+    private static final KeyBatch NO_KEYS = new KeyBatch(1);
+
+    protected final AmazonS3Client client;
+    protected final MirrorContext context;
+
+    // each batch is a page of keys as returned by S3, packed into a KeyBatch
+    private final BlockingQueue<KeyBatch> batches;
+    // batches that have been read and can be filled again
+    private final ConcurrentLinkedQueue<KeyBatch> spareBatches = new ConcurrentLinkedQueue<KeyBatch>();
+    private final int fetchSize;
+    protected final AtomicBoolean done = new AtomicBoolean(false);
+    protected final AtomicBoolean failed = new AtomicBoolean(false);
     private ObjectListing listing;
 
     public boolean isDone () { return done.get(); }
 
+    /**
+     * @return true if the listing ended because of an error, rather than because there were no more keys
+     */
+    public boolean isFailed () { return failed.get(); }
+
     public KeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix) {
+        this(client, context, maxQueueCapacity, bucket, prefix, context.getOptions().getMaxThreads());
+    }
+
+    public KeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix, int fetchSize) {
+        this(client, context, maxQueueCapacity, bucket, prefix, fetchSize, null);
+    }
+
+    /**
+     * @param startAfter list only the keys after this one, or null to list from the beginning
+     */
+    public KeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix, int fetchSize, String startAfter) {
+        this(client, context, maxQueueCapacity, fetchSize);
+
+        final ListObjectsRequest request = new ListObjectsRequest(bucket, prefix, startAfter, null, fetchSize);
+        listing = s3listObjects(request);
+        // the queue is empty, so this never blocks
+        batches.offer(pack(listing.getObjectSummaries()));
+        context.getStats().objectsRead.addAndGet(listing.getObjectSummaries().size());
+        if (context.getOptions().isVerbose()) log.info("added initial set of "+listing.getObjectSummaries().size()+" keys");
+    }
+
+    /**
+     * For subclasses that do their own listing: sets up the batch queue but does not list anything.
+     * @param maxQueueCapacity how many keys can be waiting to be picked up before listing blocks
+     * @param fetchSize how many keys are expected in each batch
+     */
+    protected KeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, int fetchSize) {
         this.client = client;
         this.context = context;
-        this.maxQueueCapacity = maxQueueCapacity;
-
-        final MirrorOptions options = context.getOptions();
-        int fetchSize = options.getMaxThreads();
-        this.summaries = new ArrayList<S3ObjectSummary>(10*fetchSize);
-
-        final ListObjectsRequest request = new ListObjectsRequest(bucket, prefix, null, null, fetchSize);
-        listing = s3getFirstBatch(client, request);
-        synchronized (summaries) {
-            final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
-            summaries.addAll(objectSummaries);
-            context.getStats().objectsRead.addAndGet(objectSummaries.size());
-            if (options.isVerbose()) log.info("added initial set of "+objectSummaries.size()+" keys");
-        }
+        this.fetchSize = fetchSize;
+        this.batches = new ArrayBlockingQueue<KeyBatch>(Math.max(1, maxQueueCapacity / fetchSize));
     }
 
     @Override
@@ -50,103 +83,126 @@ public class KeyLister implements Runnable {
         int counter = 0;
         log.info("starting...");
         try {
-            while (true) {
-                while (getSize() < maxQueueCapacity) {
-                    if (listing.isTruncated()) {
-                        listing = s3getNextBatch();
-                        if (++counter % 100 == 0) context.getStats().logStats();
-                        synchronized (summaries) {
-                            final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
-                            summaries.addAll(objectSummaries);
-                            context.getStats().objectsRead.addAndGet(objectSummaries.size());
-                            if (verbose) log.info("queued next set of "+objectSummaries.size()+" keys (total now="+getSize()+")");
-                        }
-
-                    } else {
-                        log.info("No more keys found in source bucket, exiting");
-                        return;
-                    }
-                }
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    log.error("interrupted!");
-                    return;
-                }
+            while (listing.isTruncated()) {
+                listing = s3getNextBatch();
+                if (++counter % 100 == 0) context.getStats().logStats();
+                addSummaries(listing.getObjectSummaries());
+                if (verbose) log.info("queued next set of "+listing.getObjectSummaries().size()+" keys (batches queued="+getQueuedBatches()+")");
             }
+            log.info("No more keys found in source bucket, exiting");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+            failed.set(true);
+
         } catch (Exception e) {
             log.error("Error in run loop, KeyLister thread now exiting: "+e);
+            failed.set(true);
 
         } finally {
             if (verbose) log.info("KeyLister run loop finished");
-            done.set(true);
+            endListing();
         }
     }
 
-    private ObjectListing s3getFirstBatch(AmazonS3Client client, ListObjectsRequest request) {
-
-        final MirrorOptions options = context.getOptions();
-        final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
-
-        Exception lastException = null;
-        for (int tries=0; tries<maxRetries; tries++) {
-            try {
-                context.getStats().s3getCount.incrementAndGet();
-                ObjectListing listing = client.listObjects(request);
-                if (verbose) log.info("successfully got first batch of objects (on try #"+tries+")");
-                return listing;
-
-            } catch (Exception e) {
-                lastException = e;
-                log.warn("s3getFirstBatch: error listing (try #"+tries+"): "+e);
-                if (Sleep.sleep(50)) {
-                    log.info("s3getFirstBatch: interrupted while waiting for next try");
-                    break;
+    protected ObjectListing s3listObjects(final ListObjectsRequest request) {
+        try {
+            final ObjectListing page = context.getRetrier().call("s3listObjects after "+request.getMarker(), new Retrier.Call<ObjectListing>() {
+                @Override public ObjectListing call() {
+                    context.getStats().s3getCount.incrementAndGet();
+                    return client.listObjects(request);
                 }
-            }
+            });
+            if (context.getOptions().isVerbose()) log.info("successfully listed objects after "+request.getMarker());
+            return page;
+
+        } catch (Exception e) {
+            throw new IllegalStateException("s3listObjects: error listing: "+e, e);
         }
-        throw new IllegalStateException("s3getFirstBatch: error listing: "+lastException, lastException);
     }
 
     private ObjectListing s3getNextBatch() {
-        final MirrorOptions options = context.getOptions();
-        final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
+        final ObjectListing previous = listing;
+        try {
+            final ObjectListing next = context.getRetrier().call("s3getNextBatch after "+previous.getNextMarker(), new Retrier.Call<ObjectListing>() {
+                @Override public ObjectListing call() {
+                    context.getStats().s3getCount.incrementAndGet();
+                    return client.listNextBatchOfObjects(previous);
+                }
+            });
+            if (context.getOptions().isVerbose()) log.info("successfully got next batch of objects");
+            return next;
+
+        } catch (Exception e) {
+            throw new IllegalStateException("Too many errors trying to list objects: "+e, e);
+        }
+    }
 
-        for (int tries=0; tries<maxRetries; tries++) {
-            try {
-                context.getStats().s3getCount.incrementAndGet();
-                ObjectListing next = client.listNextBatchOfObjects(listing);
-                if (verbose) log.info("successfully got next batch of objects (on try #"+tries+")");
-                return next;
+    /**
+     * Queues a batch of keys, waiting while the queue is full.
+     */
+    protected void addSummaries(List<S3ObjectSummary> objectSummaries) throws InterruptedException {
+        if (objectSummaries.isEmpty()) return;
+        addBatch(pack(objectSummaries));
+    }
 
-            } catch (AmazonS3Exception s3e) {
-                log.error("s3 exception listing objects (try #"+tries+"): "+s3e);
+    /**
+     * Queues a batch filled by a subclass (see newBatch), waiting while the queue is full.
+     */
+    protected void addBatch(KeyBatch batch) throws InterruptedException {
+        if (batch.isEmpty()) return;
+        final int size = batch.size();
+        batches.put(batch);
+        context.getStats().objectsRead.addAndGet(size);
+    }
 
-            } catch (Exception e) {
-                log.error("unexpected exception listing objects (try #"+tries+"): "+e);
-            }
-            if (Sleep.sleep(50)) {
-                log.info("s3getNextBatch: interrupted while waiting for next try");
-                break;
-            }
-        }
-        throw new IllegalStateException("Too many errors trying to list objects (maxRetries="+maxRetries+")");
+    /**
+     * @return an empty batch to fill, a recycled one if there is one
+     */
+    protected KeyBatch newBatch() {
+        final KeyBatch batch = spareBatches.poll();
+        return batch != null ? batch : new KeyBatch(fetchSize);
     }
 
-    private int getSize() {
-        synchronized (summaries) {
-            return summaries.size();
+    private KeyBatch pack(List<S3ObjectSummary> objectSummaries) {
+        final KeyBatch batch = newBatch();
+        for (S3ObjectSummary summary : objectSummaries) batch.add(summary);
+        return batch;
+    }
+
+    protected void endListing() {
+        done.set(true);
+        try {
+            batches.put(END_OF_LISTING);
+        } catch (InterruptedException e) {
+            // nobody is going to take what is queued, make sure the end is visible
+            batches.clear();
+            batches.offer(END_OF_LISTING);
         }
     }
 
-    public List<S3ObjectSummary> getNextBatch() {
-        List<S3ObjectSummary> copy;
-        synchronized (summaries) {
-            copy = new ArrayList<S3ObjectSummary>(summaries);
-            summaries.clear();
+    protected int getQueuedBatches() { return batches.size(); }
+
+    /**
+     * Waits for the next batch of keys.
+     * @return the next batch, or an empty one once the listing is over (check isFailed to see whether it completed)
+     */
+    public KeyBatch getNextBatch() throws InterruptedException {
+        final KeyBatch batch = batches.take();
+        if (batch == END_OF_LISTING) {
+            // leave the marker in place for anyone else asking
+            batches.offer(END_OF_LISTING);
+            return NO_KEYS;
         }
-        return copy;
+        return batch;
+    }
+
+    /**
+     * Hands a batch from getNextBatch back to be filled again. Only call this once nothing reads the batch any more.
+     */
+    public void recycle(KeyBatch batch) {
+        if (batch == END_OF_LISTING || batch == NO_KEYS) return;
+        batch.clear();
+        spareBatches.offer(batch);
     }
-}
\ No newline at end of file
+}
@@ -1,12 +1,14 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -22,39 +24,62 @@ public abstract class KeyMaster implements Runnable {
     private AtomicBoolean done = new AtomicBoolean(false);
     public boolean isDone () { return done.get(); }
 
-    private BlockingQueue<Runnable> workQueue;
-    private ThreadPoolExecutor executorService;
-    protected final Object notifyLock = new Object();
+    private final JobDispatcher dispatcher;
+    private final JobDispatcher.JobGroup jobs = new JobDispatcher.JobGroup();
 
     private Thread thread;
+    private final List<Thread> listerThreads = new CopyOnWriteArrayList<Thread>();
 
-    public KeyMaster(AmazonS3Client client, MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
+    // null unless --checkpoint was given
+    private final CheckpointJournal.Stream progress;
+
+    // null unless this master only mirrors a range leased from a coordinator (--worker)
+    @Setter private LeasedRange range;
+
+    // set once every key has been listed, so the run did not stop part way
+    private volatile boolean listingComplete = false;
+    public boolean isListingComplete() { return listingComplete; }
+    protected void markListingComplete() { listingComplete = true; }
+
+    public KeyMaster(AmazonS3Client client, MirrorContext context, JobDispatcher dispatcher) {
         this.client = client;
         this.context = context;
-        this.workQueue = workQueue;
-        this.executorService = executorService;
+        this.dispatcher = dispatcher;
+        this.progress = context.getJournal() == null ? null : context.getJournal().getStream(getClass().getSimpleName());
     }
 
     protected abstract String getPrefix(MirrorOptions options);
     protected abstract String getBucket(MirrorOptions options);
 
-    protected abstract KeyJob getTask(S3ObjectSummary summary);
+    protected abstract KeyJob getTask(KeyRecord record);
+
+    /**
+     * @return the client that lists this master's bucket
+     */
+    protected AmazonS3Client getListingClient() { return client; }
 
     public void start () {
-        this.thread = new Thread(this);
+        this.thread = new Thread(this, getClass().getSimpleName());
         this.thread.start();
     }
 
+    /**
+     * Waits for this master to list all of its keys and for all of its jobs to finish.
+     */
+    public void join () throws InterruptedException { this.thread.join(); }
+
     public void stop () {
         final String name = getClass().getSimpleName();
-        final long start = System.currentTimeMillis();
         log.info("stopping "+ name +"...");
         try {
+            for (Thread lister : listerThreads) lister.interrupt();
             if (isDone()) return;
             this.thread.interrupt();
-            while (!isDone() && System.currentTimeMillis() - start < STOP_TIMEOUT) {
-                if (Sleep.sleep(50)) return;
-            }
+            this.thread.join(STOP_TIMEOUT);
+
+        } catch (InterruptedException e) {
+            log.warn("interrupted while stopping "+name);
+
         } finally {
             if (!isDone()) {
                 try {
@@ -70,62 +95,204 @@ public abstract class KeyMaster implements Runnable {
 
     public void run() {
 
-        final MirrorOptions options = context.getOptions();
+        try {
+            submitJobs(context.getOptions());
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
+        } catch (Exception e) {
+            log.error("Unexpected exception in MirrorMaster: "+e, e);
+
+        } finally {
+            try {
+                jobs.awaitCompletion();
+                jobsFinished();
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for "+jobs.getOutstanding()+" jobs to finish");
+            } catch (Exception e) {
+                log.error("Unexpected exception finishing "+getClass().getSimpleName()+": "+e, e);
+            }
+            done.set(true);
+        }
+    }
+
+    /**
+     * Called once all submitted jobs have run.
+     */
+    protected void jobsFinished() {}
+
+    /**
+     * Lists keys from the bucket/prefix of this master and submits a job for each one.
+     * Subclasses can override this to drive job creation from something other than a single listing.
+     */
+    protected void submitJobs(MirrorOptions options) throws Exception {
+
         final boolean verbose = options.isVerbose();
 
-        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+        int counter = progress != null && progress.getResumeMarker() != null ? retryFailed(options) : 0;
+        int skipped = 0;
+        final KeyLister lister = progress != null && progress.getResumeMarker() != null
+                ? startOrderedLister(getBucket(options), getPrefix(options), options.getMaxThreads(), progress.getResumeMarker())
+                : startLister(getBucket(options), getPrefix(options), options.getMaxThreads());
 
-        int counter = 0;
-        try {
-            final KeyLister lister = new KeyLister(client, context, maxQueueCapacity, getBucket(options), getPrefix(options));
-            executorService.submit(lister);
-
-            List<S3ObjectSummary> summaries = lister.getNextBatch();
-            if (verbose) log.info(summaries.size()+" keys found in first batch from source bucket -- processing...");
-
-            while (true) {
-                for (S3ObjectSummary summary : summaries) {
-                    while (workQueue.size() >= maxQueueCapacity) {
-                        try {
-                            synchronized (notifyLock) {
-                                notifyLock.wait(50);
-                            }
-                            Thread.sleep(50);
-
-                        } catch (InterruptedException e) {
-                            log.error("interrupted!");
-                            return;
-                        }
-                    }
-                    executorService.submit(getTask(summary));
-                    counter++;
+        KeyBatch batch;
+        while (!(batch = lister.getNextBatch()).isEmpty()) {
+            final int size = batch.size();
+            for (int i=0; i<size; i++) {
+                if (progress != null && progress.isDone(batch.getKey(i))) {
+                    progress.skipped(batch.getKey(i));
+                    skipped++;
+                    continue;
                 }
+                submit(getTask(batch.get(i)));
+                counter++;
+            }
+            if (progress != null) progress.setListingMarker(batch.getKey(size-1));
+            lister.recycle(batch);
+            if (verbose) log.info(size+" more keys found in source bucket -- continuing (queue size="+dispatcher.getQueueSize()+", total processed="+counter+")...");
+        }
+        if (skipped > 0) log.info("skipped "+skipped+" keys that were done before resuming");
+        if (lister.isFailed()) {
+            log.error("Listing failed after "+counter+" keys, not all keys were processed");
+        } else {
+            markListingComplete();
+            if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
+        }
+    }
+
+    /**
+     * Starts listing keys, sharding the listing across --list-threads threads if more than one was requested.
+     * Keys from a sharded listing do not arrive in key order. With a leased range, only the range is listed.
+     */
+    protected KeyLister startLister(String bucket, String prefix, int fetchSize) {
+        final MirrorOptions options = context.getOptions();
+        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+        if (range != null) {
+            return startLister(new RangeKeyLister(getListingClient(), context, maxQueueCapacity, bucket, prefix, options.getPrefix(), range));
+        }
+        if (options.getListThreads() <= 1) return startOrderedLister(bucket, prefix, fetchSize);
+
+        return startLister(new ShardedKeyLister(getListingClient(), context, maxQueueCapacity, bucket, prefix, options.getListThreads()));
+    }
 
-                summaries = lister.getNextBatch();
-                if (summaries.size() > 0) {
-                    if (verbose) log.info(summaries.size()+" more keys found in source bucket -- continuing (queue size="+workQueue.size()+", total processed="+counter+")...");
+    protected KeyLister startOrderedLister(String bucket, String prefix, int fetchSize) {
+        return startOrderedLister(bucket, prefix, fetchSize, null);
+    }
 
-                } else if (lister.isDone()) {
-                    if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
-                    return;
+    protected KeyLister startOrderedLister(String bucket, String prefix, int fetchSize, String startAfter) {
+        return startOrderedLister(getListingClient(), bucket, prefix, fetchSize, startAfter);
+    }
 
-                } else {
-                    if (verbose) log.info("Lister has no keys queued, but is not done, waiting and retrying");
-                    if (Sleep.sleep(50)) return;
-                }
+    /**
+     * With --shard, only the keys of this process's shard are listed (still in key order).
+     */
+    protected KeyLister startOrderedLister(AmazonS3Client listingClient, String bucket, String prefix, int fetchSize, String startAfter) {
+        final MirrorOptions options = context.getOptions();
+        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+        if (options.hasShard()) {
+            return startLister(new HashShardKeyLister(listingClient, context, maxQueueCapacity, bucket, prefix, options.getShardIndex(), options.getShardCount()));
+        }
+        return startLister(new KeyLister(listingClient, context, maxQueueCapacity, bucket, prefix, fetchSize, startAfter));
+    }
+
+    protected KeyLister startLister(KeyLister lister) {
+        // listers get their own threads, so they never hold up (or wait behind) the workers
+        final Thread listerThread = new Thread(lister, getClass().getSimpleName()+"-lister");
+        listerThread.setDaemon(true);
+        listerThreads.add(listerThread);
+        listerThread.start();
+        return lister;
+    }
+
+    /**
+     * Submits a job to the workers, waiting for room in the pipeline if necessary.
+     */
+    protected void submit(final KeyJob job) throws InterruptedException {
+        submit(job, progress == null ? null : progress.started(job.getKey()));
+    }
+
+    private void submit(final KeyJob job, final CheckpointJournal.Entry entry) throws InterruptedException {
+        if (job instanceof JobDispatcher.AsyncJob) {
+            dispatcher.submit((JobDispatcher.AsyncJob) job, jobs, new Runnable() {
+                @Override public void run() { if (entry != null) record(job, entry); }
+            });
+            return;
+        }
+        if (entry == null) {
+            dispatcher.submit(job, job.getLane(), jobs);
+            return;
+        }
+        dispatcher.submit(new Runnable() {
+            @Override public void run() {
+                job.run();
+                record(job, entry);
             }
+            @Override public String toString() { return job.toString(); }
+        }, job.getLane(), jobs);
+    }
 
-        } catch (Exception e) {
-            log.error("Unexpected exception in MirrorMaster: "+e, e);
+    // a key that failed is recorded as failed, so the watermark moves past it and a resumed run retries it
+    private void record(KeyJob job, final CheckpointJournal.Entry entry) {
+        if (job.isFailed()) {
+            progress.failed(entry);
+            return;
+        }
+        whenDone(job, new Runnable() {
+            @Override public void run() { progress.finished(entry); }
+        }, new Runnable() {
+            @Override public void run() { progress.failed(entry); }
+        });
+    }
 
-        } finally {
-            while (workQueue.size() > 0 || executorService.getActiveCount() > 0) {
-                // wait for the queue to be empty
-                if (Sleep.sleep(100)) break;
+    /**
+     * With --checkpoint --resume, submits again the jobs for the keys that failed in the run being resumed and that
+     * listing will not reach again. A key that is no longer there has nothing left to do.
+     * @return how many jobs were submitted
+     */
+    private int retryFailed(MirrorOptions options) throws InterruptedException {
+        final List<String> keys = progress.getRetryKeys();
+        if (keys.isEmpty()) return 0;
+        log.info("retrying "+keys.size()+" keys that failed before resuming");
+        int count = 0;
+        for (String key : keys) {
+            final KeyRecord record;
+            try {
+                record = lookup(getBucket(options), key);
+            } catch (Exception e) {
+                log.error("error looking up "+key+" to retry it, leaving it failed: "+e);
+                progress.failed(progress.retrying(key));
+                continue;
             }
-            // this will wait for currently executing tasks to finish
-            executorService.shutdown();
-            done.set(true);
+            if (record == null) {
+                progress.finished(progress.retrying(key));
+                continue;
+            }
+            submit(getTask(record), progress.retrying(key));
+            count++;
         }
+        return count;
     }
+
+    private KeyRecord lookup(String bucket, final String key) throws Exception {
+        final ListObjectsRequest request = new ListObjectsRequest(bucket, key, null, null, 1);
+        final AmazonS3Client listingClient = getListingClient();
+        final ObjectListing listing = context.getRetrier().call("looking up "+key, new Retrier.Call<ObjectListing>() {
+            @Override public ObjectListing call() {
+                context.getStats().s3getCount.incrementAndGet();
+                return listingClient.listObjects(request);
+            }
+        });
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            if (summary.getKey().equals(key)) return KeyRecord.of(summary);
+        }
+        return null;
+    }
+
+    /**
+     * Called when a job has run without failing, with what to do once its work is really done or has failed after
+     * all (for the checkpoint journal). Subclasses whose jobs leave work behind, like a delete waiting in a batch, can
+     * delay it until that work is done.
+     */
+    protected void whenDone(KeyJob job, Runnable markDone, Runnable markFailed) { markDone.run(); }
 }
@@ -0,0 +1,96 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of keys, as used by the ShardedKeyLister. The start is exclusive (it is used as the listing marker)
+ * and the end is inclusive. A null start means the beginning of the key space, a null end means no end.
+ */
+@AllArgsConstructor @ToString
+public class KeyRange {
+
+    // when a range has no end, split as if it ended here (keys are mostly ASCII)
+    private static final int SOFT_MAX_CODE_POINT = 0x7f;
+
+    @Getter private final String startAfter;
+    @Getter private final String endAt;
+
+    /**
+     * Splits the key space into ranges at (roughly evenly spaced) boundaries, such as the common prefixes found by a
+     * delimiter listing.
+     * @param boundaries keys in listing order
+     * @param count how many ranges to aim for
+     * @return ranges that cover the whole key space, the last with no end
+     */
+    public static List<KeyRange> fromBoundaries(List<String> boundaries, int count) {
+        final List<KeyRange> ranges = new ArrayList<KeyRange>();
+        final int step = Math.max(1, boundaries.size() / Math.max(1, count));
+        String start = null;
+        for (int i=step; i<boundaries.size(); i+=step) {
+            final String boundary = boundaries.get(i);
+            ranges.add(new KeyRange(start, boundary));
+            start = boundary;
+        }
+        ranges.add(new KeyRange(start, null));
+        return ranges;
+    }
+
+    /**
+     * Finds a key roughly halfway between two keys that share a prefix.
+     * @param prefix the prefix shared by both keys, which the split point will also have
+     * @param lo the lower key, not null
+     * @param hi the upper key, or null if there is no upper bound
+     * @return a key strictly between lo and hi, or null if there is no room between them
+     */
+    public static String midpoint(String prefix, String lo, String hi) {
+        if (prefix == null || !lo.startsWith(prefix) || (hi != null && !hi.startsWith(prefix))) prefix = "";
+        final String mid = midpoint(lo.substring(prefix.length()), hi == null ? null : hi.substring(prefix.length()));
+        return mid == null ? null : prefix + mid;
+    }
+
+    private static String midpoint(String lo, String hi) {
+        if (hi != null && KeyComparator.INSTANCE.compare(lo, hi) >= 0) return null;
+
+        final int[] a = lo.codePoints().toArray();
+        final int[] b = hi == null ? null : hi.codePoints().toArray();
+        boolean bounded = b != null;
+
+        final StringBuilder mid = new StringBuilder();
+        for (int i=0; ; i++) {
+            // 0 stands for "lo has ended": anything we append from here on is greater than lo
+            final int ca = i < a.length ? a[i] : 0;
+            final int cb;
+            if (bounded) {
+                cb = b[i];
+            } else {
+                cb = ca < SOFT_MAX_CODE_POINT - 1 ? SOFT_MAX_CODE_POINT : Character.MAX_CODE_POINT + 1;
+            }
+
+            if (cb - ca > 1) {
+                int c = ca + (cb - ca) / 2;
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // surrogates are not code points, step around them
+                    if (Character.MIN_SURROGATE - 1 > ca) {
+                        c = Character.MIN_SURROGATE - 1;
+                    } else if (Character.MAX_SURROGATE + 1 < cb) {
+                        c = Character.MAX_SURROGATE + 1;
+                    } else {
+                        c = -1;
+                    }
+                }
+                if (c > 0) return mid.appendCodePoint(c).toString();
+            }
+            if (i >= a.length) return null; // lo has ended and hi has no room below it
+
+            mid.appendCodePoint(ca);
+            // once we are below hi at this position, any continuation stays below hi
+            if (cb != ca) bounded = false;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import lombok.Getter;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+
+/**
+ * What the mirror keeps about a listed object while it waits to be processed, in as little heap as possible: the
+ * key as UTF-8 bytes, the size and last-modified time as longs, the ETag as 16 binary bytes and the storage class
+ * as an enum. An S3ObjectSummary of the same object, with its Strings, Date and Owner, takes several times as much.
+ *
+ * An ETag that is not an MD5 (or an MD5 with a part count, "md5-N", as multipart uploads get) is kept as text.
+ */
+public final class KeyRecord {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // etagParts values that mean the ETag is not binary
+    static final short NO_ETAG = -1;
+    static final short TEXT_ETAG = -2;
+
+    private static final StorageClass[] STORAGE_CLASSES = StorageClass.values();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] key;
+    @Getter private final long size;
+    // millis since the epoch, 0 if not known
+    @Getter private final long lastModified;
+    private final long etagHigh;
+    private final long etagLow;
+    // 0 for a plain MD5, the part count for a multipart ETag, or NO_ETAG / TEXT_ETAG
+    private final short etagParts;
+    private final String etagText;
+    // null if S3 did not say, or named a class the SDK does not know
+    @Getter private final StorageClass storageClass;
+
+    KeyRecord(byte[] key, long size, long lastModified, long etagHigh, long etagLow, short etagParts, String etagText, StorageClass storageClass) {
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.etagHigh = etagHigh;
+        this.etagLow = etagLow;
+        this.etagParts = etagParts;
+        this.etagText = etagText;
+        this.storageClass = storageClass;
+    }
+
+    KeyRecord(byte[] key, long size, long lastModified, String etag, StorageClass storageClass) {
+        this(key, size, lastModified, etagHigh(etag), etagLow(etag), etagParts(etag), etagParts(etag) == TEXT_ETAG ? etag : null, storageClass);
+    }
+
+    public KeyRecord(String key, long size, Date lastModified, String etag) {
+        this(key.getBytes(UTF8), size, lastModified == null ? 0 : lastModified.getTime(), etag, null);
+    }
+
+    public static KeyRecord of(S3ObjectSummary summary) {
+        return new KeyRecord(summary.getKey().getBytes(UTF8), summary.getSize(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime(),
+                summary.getETag(), storageClass(summary.getStorageClass()));
+    }
+
+    /**
+     * @return the key, decoded anew on every call
+     */
+    public String getKey() { return new String(key, UTF8); }
+
+    byte[] getKeyBytes() { return key; }
+
+    public String getETag() {
+        if (etagParts == NO_ETAG) return null;
+        if (etagParts == TEXT_ETAG) return etagText;
+        final char[] hex = new char[32];
+        for (int i=0; i<16; i++) {
+            hex[i] = HEX[(int) (etagHigh >>> (60 - 4 * i)) & 0xf];
+            hex[16 + i] = HEX[(int) (etagLow >>> (60 - 4 * i)) & 0xf];
+        }
+        return etagParts == 0 ? new String(hex) : new String(hex) + "-" + etagParts;
+    }
+
+    /**
+     * @return true if the ETag is that of a multipart upload ("md5-N"), which depends on how the object was split
+     */
+    public boolean isMultipartETag() { return etagParts > 0; }
+
+    public boolean sameETag(KeyRecord other) {
+        if (etagParts != other.etagParts) return false;
+        if (etagParts == TEXT_ETAG) return etagText.equals(other.etagText);
+        return etagHigh == other.etagHigh && etagLow == other.etagLow;
+    }
+
+    /**
+     * Compares with an ETag from S3 (as returned by the SDK, without quotes) without decoding our own.
+     */
+    public boolean sameETag(String etag) {
+        final short parts = etagParts(etag);
+        if (parts != etagParts) return false;
+        if (parts == TEXT_ETAG) return etagText.equals(etag);
+        return parts == NO_ETAG || (etagHigh == etagHigh(etag) && etagLow == etagLow(etag));
+    }
+
+    /**
+     * Compares keys the way KeyComparator does, by their UTF-8 bytes, optionally ignoring leading bytes of each
+     * (such as a prefix the two keys are listed under).
+     */
+    public int compareKey(int skip, KeyRecord other, int otherSkip) {
+        final int len = Math.min(key.length - skip, other.key.length - otherSkip);
+        for (int i=0; i<len; i++) {
+            final int a = key[skip + i] & 0xff;
+            final int b = other.key[otherSkip + i] & 0xff;
+            if (a != b) return a - b;
+        }
+        return (key.length - skip) - (other.key.length - otherSkip);
+    }
+
+    public boolean keyStartsWith(byte[] prefix) {
+        if (prefix.length > key.length) return false;
+        for (int i=0; i<prefix.length; i++) {
+            if (key[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    @Override public String toString() { return getKey(); }
+
+    /**
+     * @return the number of parts in a binary ETag (0 for a plain MD5), NO_ETAG or TEXT_ETAG
+     */
+    static short etagParts(String etag) {
+        if (etag == null) return NO_ETAG;
+        final int len = etag.length();
+        if (len < 32 || !isHex(etag, 0, 32)) return TEXT_ETAG;
+        if (len == 32) return 0;
+        if (etag.charAt(32) != '-' || len == 33 || len > 38) return TEXT_ETAG;
+        int parts = 0;
+        for (int i=33; i<len; i++) {
+            final char c = etag.charAt(i);
+            if (c < '0' || c > '9') return TEXT_ETAG;
+            parts = parts * 10 + (c - '0');
+        }
+        return parts < 1 || parts > Short.MAX_VALUE ? TEXT_ETAG : (short) parts;
+    }
+
+    static long etagHigh(String etag) { return etagParts(etag) < 0 ? 0 : parseHex(etag, 0); }
+
+    static long etagLow(String etag) { return etagParts(etag) < 0 ? 0 : parseHex(etag, 16); }
+
+    /**
+     * @return the storage class named in a listing, or null if there is none or the SDK does not know it
+     */
+    static StorageClass storageClass(String name) {
+        if (name == null) return null;
+        for (StorageClass storageClass : STORAGE_CLASSES) {
+            if (storageClass.toString().equals(name)) return storageClass;
+        }
+        return null;
+    }
+
+    private static boolean isHex(String s, int from, int to) {
+        for (int i=from; i<to; i++) {
+            if (hexDigit(s.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    private static long parseHex(String s, int from) {
+        long value = 0;
+        for (int i=from; i<from+16; i++) value = (value << 4) | hexDigit(s.charAt(i));
+        return value;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,199 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues jobs in separate lanes (--lanes), so that a burst of large copies or a flood of deletes cannot take every
+ * worker and hold up small copies.
+ *
+ * Each lane has a weight and a cap. Workers are given home lanes in proportion to the weights, and take jobs from
+ * their home lane first. A worker whose home lane has nothing for it steals from the lane that is furthest below its
+ * share (running jobs per unit of weight), so capacity an idle lane is not using is lent to the others, and goes back
+ * as soon as the borrowed worker finishes its job. No lane ever runs more than its cap of jobs at once.
+ *
+ * Each lane also has its own bounded queue (its cap, plus its share of maxQueuedJobs), so a producer filling one
+ * lane is held back without blocking producers of the others.
+ */
+public class LaneScheduler {
+
+    public enum Lane { SMALL, LARGE, DELETE }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final int[] weights = new int[LANES.length];
+    private final int[] caps = new int[LANES.length];
+    private final int[] homes;
+    private final Semaphore[] room = new Semaphore[LANES.length];
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Runnable>[] queues = new ArrayDeque[LANES.length];
+    private final int[] running = new int[LANES.length];
+    private boolean shutdown = false;
+
+    private final AtomicLong stolen = new AtomicLong(0);
+
+    /**
+     * @param spec comma-separated lane=weight[/cap], for example "small=6,large=3/4,delete=1/2". Lanes not in the
+     *             spec have a weight of 1 and no cap
+     * @param threads how many workers take jobs from the lanes
+     * @param maxQueuedJobs how many jobs can wait across all lanes (shared out by weight)
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public LaneScheduler(String spec, int threads, int maxQueuedJobs) {
+        for (int i=0; i<LANES.length; i++) {
+            weights[i] = 1;
+            caps[i] = threads;
+            queues[i] = new ArrayDeque<Runnable>();
+        }
+        parse(spec, threads);
+
+        int totalWeight = 0;
+        for (int weight : weights) totalWeight += weight;
+        for (int i=0; i<LANES.length; i++) {
+            room[i] = new Semaphore(caps[i] + Math.max(1, (int) ((long) maxQueuedJobs * weights[i] / totalWeight)));
+        }
+
+        // weighted round robin: each worker goes to the lane with the fewest home workers for its weight
+        homes = new int[threads];
+        final int[] assigned = new int[LANES.length];
+        for (int w=0; w<threads; w++) {
+            int best = 0;
+            for (int i=1; i<LANES.length; i++) {
+                if ((long) assigned[i] * weights[best] < (long) assigned[best] * weights[i]) best = i;
+            }
+            homes[w] = best;
+            assigned[best]++;
+        }
+    }
+
+    private void parse(String spec, int threads) {
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) continue;
+            final int eq = entry.indexOf('=');
+            if (eq == -1) throw new IllegalArgumentException("invalid lane (expected lane=weight[/cap]): "+entry);
+            final Lane lane;
+            try {
+                lane = Lane.valueOf(entry.substring(0, eq).trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid lane name (expected small, large or delete): "+entry);
+            }
+            final String value = entry.substring(eq+1).trim();
+            final int slash = value.indexOf('/');
+            try {
+                weights[lane.ordinal()] = Integer.parseInt(slash == -1 ? value : value.substring(0, slash).trim());
+                if (slash != -1) caps[lane.ordinal()] = Math.min(threads, Integer.parseInt(value.substring(slash+1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid lane weight or cap (expected lane=weight[/cap]): "+entry);
+            }
+            if (weights[lane.ordinal()] < 1 || caps[lane.ordinal()] < 1) throw new IllegalArgumentException("lane weight and cap must be at least 1: "+entry);
+        }
+    }
+
+    /**
+     * @return the lane that a worker takes jobs from first
+     */
+    public Lane getHome(int worker) { return LANES[homes[worker % homes.length]]; }
+
+    public int getCap(Lane lane) { return caps[lane.ordinal()]; }
+
+    /**
+     * Queues a job, waiting while its lane is full.
+     */
+    public void put(Lane lane, Runnable job) throws InterruptedException {
+        room[lane.ordinal()].acquire();
+        synchronized (this) {
+            if (shutdown) {
+                room[lane.ordinal()].release();
+                throw new IllegalStateException("scheduler is shut down, not queueing "+job);
+            }
+            queues[lane.ordinal()].add(job);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for a job for the given worker: from its home lane if it can, otherwise from the lane furthest below its
+     * share. Call finished with the job's lane once it has run.
+     * @return the job and its lane, or null once the scheduler is shut down and every lane is empty
+     */
+    public synchronized Job take(int worker) throws InterruptedException {
+        final int home = homes[worker % homes.length];
+        while (true) {
+            int lane = -1;
+            if (canRun(home)) {
+                lane = home;
+            } else {
+                for (int i=0; i<LANES.length; i++) {
+                    if (canRun(i) && (lane == -1 || (long) running[i] * weights[lane] < (long) running[lane] * weights[i])) lane = i;
+                }
+                if (lane != -1) stolen.incrementAndGet();
+            }
+            if (lane != -1) {
+                running[lane]++;
+                return new Job(LANES[lane], queues[lane].poll());
+            }
+            if (shutdown && getQueued() == 0) return null;
+            wait();
+        }
+    }
+
+    private boolean canRun(int lane) { return !queues[lane].isEmpty() && running[lane] < caps[lane]; }
+
+    public void finished(Lane lane) {
+        synchronized (this) {
+            running[lane.ordinal()]--;
+            notifyAll();
+        }
+        room[lane.ordinal()].release();
+    }
+
+    /**
+     * Lets the workers finish what is queued, then return null from take.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (ArrayDeque<Runnable> queue : queues) queued += queue.size();
+        return queued;
+    }
+
+    public synchronized int getQueued(Lane lane) { return queues[lane.ordinal()].size(); }
+
+    public synchronized int getRunning() {
+        int total = 0;
+        for (int r : running) total += r;
+        return total;
+    }
+
+    public synchronized int getRunning(Lane lane) { return running[lane.ordinal()]; }
+
+    /**
+     * @return how many jobs were run by a worker from another lane
+     */
+    public long getStolen() { return stolen.get(); }
+
+    @Override public String toString() {
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<LANES.length; i++) {
+            int home = 0;
+            for (int h : homes) if (h == i) home++;
+            if (b.length() > 0) b.append(", ");
+            b.append(LANES[i].name().toLowerCase()).append(": weight ").append(weights[i]).append(", cap ").append(caps[i])
+                    .append(", ").append(home).append(" home workers");
+        }
+        return b.toString();
+    }
+
+    public static class Job {
+        public final Lane lane;
+        public final Runnable job;
+        Job(Lane lane, Runnable job) { this.lane = lane; this.job = job; }
+    }
+}
@@ -0,0 +1,119 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies (in microseconds) in log-linear buckets, like an HDR histogram: every power of two is split
+ * into SUB_BUCKETS equal buckets, so any value is known to within about 6%, from a microsecond up to days, in a
+ * fixed array of counters. Recording is a few atomic increments and allocates nothing.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // latencies of 2^MAX_MAGNITUDE microseconds (about 12 days) or more are counted as just under that
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sumMicros = new AtomicLong(0);
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    public void record(long nanos) {
+        final long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // another thread raised the max, try again
+        }
+    }
+
+    /**
+     * Adds the latencies counted by another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i=0; i<BUCKETS; i++) {
+            final long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+        count.addAndGet(other.getCount());
+        sumMicros.addAndGet(other.getSumMicros());
+        long max;
+        while (other.getMaxMicros() > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, other.getMaxMicros())) {
+            // another thread raised the max, try again
+        }
+    }
+
+    /**
+     * @return the histogram as text that fromText can read: "count sum max" followed by "bucket:count" for each
+     * bucket that is not empty
+     */
+    public String toText() {
+        final StringBuilder b = new StringBuilder().append(count.get()).append(' ').append(sumMicros.get()).append(' ').append(maxMicros.get());
+        for (int i=0; i<BUCKETS; i++) {
+            final long n = counts.get(i);
+            if (n != 0) b.append(' ').append(i).append(':').append(n);
+        }
+        return b.toString();
+    }
+
+    public static LatencyHistogram fromText(String text) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final String[] parts = text.trim().split("\\s+");
+        if (parts.length < 3) throw new IllegalArgumentException("Invalid histogram: "+text);
+        histogram.count.set(Long.parseLong(parts[0]));
+        histogram.sumMicros.set(Long.parseLong(parts[1]));
+        histogram.maxMicros.set(Long.parseLong(parts[2]));
+        for (int i=3; i<parts.length; i++) {
+            final int colon = parts[i].indexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Invalid histogram bucket: "+parts[i]);
+            histogram.counts.set(Integer.parseInt(parts[i].substring(0, colon)), Long.parseLong(parts[i].substring(colon + 1)));
+        }
+        return histogram;
+    }
+
+    public long getCount() { return count.get(); }
+
+    public long getSumMicros() { return sumMicros.get(); }
+
+    public long getMaxMicros() { return maxMicros.get(); }
+
+    /**
+     * @return the latency (in microseconds) that the given fraction of recorded latencies are at or below,
+     * rounded up to the end of its bucket
+     */
+    public long getValueAtQuantile(double quantile) {
+        final long total = count.get();
+        if (total == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(upperBound(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (index % SUB_BUCKETS) * width + width - 1;
+    }
+}
@@ -0,0 +1,50 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the latency of every attempt of every S3 request in MirrorStats, and counts the attempts in flight.
+ *
+ * Installed as a request handler on the S3 client. The SDK calls handlers on the calling thread, so the start of
+ * the attempt is kept per thread, in a holder created once per thread; after that nothing is allocated per request.
+ */
+public class LatencyRecorder extends RequestHandler2 {
+
+    private final MirrorStats stats;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private final ThreadLocal<long[]> attemptStart = new ThreadLocal<long[]>() {
+        @Override protected long[] initialValue() { return new long[1]; }
+    };
+
+    public LatencyRecorder(MirrorStats stats) { this.stats = stats; }
+
+    public int getInFlight() { return inFlight.get(); }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        inFlight.incrementAndGet();
+        attemptStart.get()[0] = System.nanoTime();
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        final long latency = System.nanoTime() - attemptStart.get()[0];
+        inFlight.decrementAndGet();
+        final AmazonWebServiceRequest request = context.getRequest().getOriginalRequest();
+        final S3Operation operation = S3Operation.forRequest(request);
+        if (operation == null) return;
+        stats.getLatency(operation).record(latency);
+        if (operation == S3Operation.COPY) {
+            final ObjectMetadata metadata = ((CopyObjectRequest) request).getNewObjectMetadata();
+            stats.getCopyLatency(metadata == null ? 0 : metadata.getContentLength()).record(latency);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3mirror.LeaseCoordinator.*;
+
+/**
+ * Talks to the LeaseCoordinator for a worker (--worker): leases ranges of keys, renews the lease on the range being
+ * mirrored, gives away part of it when the coordinator has other workers waiting, and reports it finished.
+ */
+@Slf4j
+public class LeaseClient {
+
+    // a request that cannot reach the coordinator is tried this many times, a second apart
+    public static final int MAX_TRIES = 5;
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final int SOCKET_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private final String host;
+    private final int port;
+    private final String worker = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * @param address the coordinator's host:port
+     */
+    public LeaseClient(String address) {
+        final int colon = address.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Invalid coordinator address ("+address+"), please use host:port");
+        this.host = address.substring(0, colon);
+        try {
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid coordinator address ("+address+"), port could not be parsed as a number");
+        }
+    }
+
+    private interface Exchange<T> {
+        T exchange(DataOutputStream out, DataInputStream in) throws IOException;
+    }
+
+    private <T> T request(String description, Exchange<T> exchange) throws IOException, InterruptedException {
+        for (int tries = 1; ; tries++) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT);
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                return exchange.exchange(out, in);
+
+            } catch (IOException e) {
+                if (tries >= MAX_TRIES) throw e;
+                log.warn(description+": error reaching coordinator at "+host+":"+port+" (try "+tries+"/"+MAX_TRIES+"): "+e);
+                Thread.sleep(RETRY_MILLIS);
+
+            } finally {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Waits for a range to mirror.
+     * @return the range leased, or null once every range has been mirrored
+     */
+    public LeasedRange lease() throws IOException, InterruptedException {
+        while (true) {
+            final Object reply = request("lease", new Exchange<Object>() {
+                @Override public Object exchange(DataOutputStream out, DataInputStream in) throws IOException {
+                    out.writeByte(LEASE);
+                    out.writeUTF(worker);
+                    out.flush();
+                    final byte reply = in.readByte();
+                    switch (reply) {
+                        case GRANTED:
+                            final long id = in.readLong();
+                            final long leaseMillis = in.readLong();
+                            final String startAfter = in.readUTF();
+                            final String endAt = in.readUTF();
+                            return new LeasedRange(id, startAfter.equals(NONE) ? null : startAfter, endAt.equals(NONE) ? null : endAt, leaseMillis);
+                        case WAIT: return in.readLong();
+                        case DONE: return null;
+                        default: throw new IOException("unexpected reply to lease: "+reply);
+                    }
+                }
+            });
+            if (reply == null || reply instanceof LeasedRange) return (LeasedRange) reply;
+            Thread.sleep((Long) reply);
+        }
+    }
+
+    /**
+     * Renews the lease on a range. If the coordinator no longer has it, the range is marked lost.
+     * @return true if the coordinator would like part of the range for another worker
+     */
+    public boolean renew(final LeasedRange range) throws IOException, InterruptedException {
+        return request("renew "+range, new Exchange<Boolean>() {
+            @Override public Boolean exchange(DataOutputStream out, DataInputStream in) throws IOException {
+                out.writeByte(RENEW);
+                out.writeLong(range.getId());
+                out.flush();
+                if (!ok(range, in.readByte())) return false;
+                return in.readBoolean();
+            }
+        });
+    }
+
+    /**
+     * Ends the range at the given key, and gives the coordinator the part after it. The range is ended first, so
+     * its listers stop at the key before another worker can lease what is after it. If the coordinator does not
+     * confirm the split, the range is marked lost: it may or may not have taken the keys after the key, so the range
+     * is neither mirrored any further nor finished, and is leased again once the lease expires.
+     * @return true if the range was split
+     */
+    public boolean split(final LeasedRange range, final String at) throws IOException, InterruptedException {
+        if (!range.trySplit(at)) return false;
+        boolean split = false;
+        try {
+            split = request("split "+range, new Exchange<Boolean>() {
+                @Override public Boolean exchange(DataOutputStream out, DataInputStream in) throws IOException {
+                    out.writeByte(SPLIT);
+                    out.writeLong(range.getId());
+                    out.writeUTF(at);
+                    out.flush();
+                    return ok(range, in.readByte());
+                }
+            });
+            return split;
+        } finally {
+            if (!split && !range.isLost()) {
+                log.warn("split of "+range+" was not confirmed by the coordinator, leaving it to be leased again");
+                range.setLost();
+            }
+        }
+    }
+
+    /**
+     * Reports that every key in the range has been mirrored.
+     */
+    public void finish(LeasedRange range) throws IOException, InterruptedException { end(FINISH, range); }
+
+    /**
+     * Hands the range back to be leased to someone else, without waiting for the lease to expire.
+     */
+    public void release(LeasedRange range) throws IOException, InterruptedException { end(RELEASE, range); }
+
+    private void end(final byte op, final LeasedRange range) throws IOException, InterruptedException {
+        request((op == FINISH ? "finish " : "release ")+range, new Exchange<Boolean>() {
+            @Override public Boolean exchange(DataOutputStream out, DataInputStream in) throws IOException {
+                out.writeByte(op);
+                out.writeLong(range.getId());
+                out.flush();
+                return ok(range, in.readByte());
+            }
+        });
+    }
+
+    private boolean ok(LeasedRange range, byte reply) throws IOException {
+        if (reply == OK) return true;
+        if (reply != LOST) throw new IOException("unexpected reply from coordinator: "+reply);
+        if (!range.isLost()) log.warn(range+" expired and was leased to another worker");
+        range.setLost();
+        return false;
+    }
+
+    /**
+     * Starts renewing the lease on a range, a third of the way through each lease period, until the returned thread
+     * is interrupted or the lease is lost. When other workers are waiting, the part of the range that has not been
+     * listed yet is split off for them.
+     * @param prefix the prefix shared by every key in the range (--prefix)
+     */
+    public Thread keepRenewing(final LeasedRange range, final String prefix) {
+        final Thread renewer = new Thread(new Runnable() {
+            @Override public void run() {
+                while (!range.isLost()) {
+                    try {
+                        Thread.sleep(range.getLeaseMillis() / 3);
+                        if (!renew(range)) continue;
+                        final String at = range.getSplitPoint(prefix);
+                        if (at != null && split(range, at)) log.info("gave the keys after "+at+" back to the coordinator, now mirroring "+range);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        log.error("error renewing "+range+", it may be leased to another worker: "+e);
+                    }
+                }
+            }
+        }, "LeaseClient-renew");
+        renewer.setDaemon(true);
+        renewer.start();
+        return renewer;
+    }
+}
@@ -0,0 +1,278 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out ranges of the source's keys to workers on other machines (--coordinator), so that a mirror can go faster
+ * than one machine's network. Workers (see LeaseClient) lease a range, mirror it with the usual copy and delete
+ * pipeline, and renew the lease while they do. A range whose lease is not renewed in time, because its worker died
+ * or lost touch, is leased again to the next worker that asks.
+ *
+ * The key space starts out split at the common prefixes of the source, and is split further as the run goes on:
+ * when a worker asks for a range and none is left, the next worker to renew its lease gives away the part of its
+ * range that it has not listed yet.
+ *
+ * The protocol is one request per connection, each written with DataOutputStream: an op byte and its arguments,
+ * answered with a reply byte and its values. A null key is sent as an empty string (keys are never empty).
+ */
+@Slf4j
+public class LeaseCoordinator {
+
+    public static final long DEFAULT_LEASE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // how many ranges to start with, if the source has enough common prefixes to make them from
+    public static final int INITIAL_RANGES = 64;
+
+    // requests: LEASE(worker), RENEW(id), SPLIT(id, key), FINISH(id), RELEASE(id)
+    static final byte LEASE = 'L';
+    static final byte RENEW = 'R';
+    static final byte SPLIT = 'S';
+    static final byte FINISH = 'F';
+    static final byte RELEASE = 'X';
+
+    // replies: GRANTED(id, lease millis, start after, end at), WAIT(millis), DONE, OK (to RENEW: whether to split), LOST
+    static final byte GRANTED = 'G';
+    static final byte WAIT = 'W';
+    static final byte DONE = 'D';
+    static final byte OK = 'K';
+    static final byte LOST = 'N';
+
+    static final String NONE = "";
+
+    private static final int SOCKET_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private final ServerSocket server;
+    private final long leaseMillis;
+    private final ExecutorService handlers;
+    private Thread acceptor;
+
+    private final LinkedList<KeyRange> free = new LinkedList<KeyRange>();
+    private final Map<Long, Lease> leases = new LinkedHashMap<Long, Lease>();
+    private long nextId = 1;
+    private long finished = 0;
+    // set when a worker was told to wait, until some holder splits its range
+    private boolean hungry = false;
+
+    private static class Lease {
+        final long id;
+        final String worker;
+        final String startAfter;
+        String endAt;
+        long expiresAt;
+
+        Lease(long id, String worker, KeyRange range, long expiresAt) {
+            this.id = id;
+            this.worker = worker;
+            this.startAfter = range.getStartAfter();
+            this.endAt = range.getEndAt();
+            this.expiresAt = expiresAt;
+        }
+
+        KeyRange getRange() { return new KeyRange(startAfter, endAt); }
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @param ranges ranges covering the whole key space
+     * @param leaseMillis how long a lease lasts without being renewed
+     */
+    public LeaseCoordinator(int port, List<KeyRange> ranges, long leaseMillis) throws IOException {
+        this.server = new ServerSocket(port);
+        this.leaseMillis = leaseMillis;
+        this.free.addAll(ranges);
+        this.handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "LeaseCoordinator-request");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Splits the source's key space at its common prefixes, as the ShardedKeyLister does.
+     */
+    public static List<KeyRange> getInitialRanges(final AmazonS3Client client, final MirrorContext context) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final ListObjectsRequest request = new ListObjectsRequest(options.getSourceBucket(), options.getPrefix(), null,
+                ShardedKeyLister.DELIMITER, KeyLister.LIST_PAGE_SIZE);
+        final ObjectListing listing = context.getRetrier().call("s3listObjects(" + options.getPrefix() + ")", new Retrier.Call<ObjectListing>() {
+            @Override public ObjectListing call() {
+                context.getStats().s3getCount.incrementAndGet();
+                return client.listObjects(request);
+            }
+        });
+        return KeyRange.fromBoundaries(listing.getCommonPrefixes(), INITIAL_RANGES);
+    }
+
+    public int getPort() { return server.getLocalPort(); }
+
+    public void start() {
+        acceptor = new Thread(new Runnable() {
+            @Override public void run() { acceptLoop(); }
+        }, "LeaseCoordinator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("coordinating "+free.size()+" ranges on port "+getPort());
+    }
+
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.warn("error closing coordinator socket: "+e);
+        }
+        handlers.shutdownNow();
+    }
+
+    /**
+     * @return true once every range has been mirrored
+     */
+    public synchronized boolean isDone() { return free.isEmpty() && leases.isEmpty(); }
+
+    /**
+     * Waits until every range has been mirrored.
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (!isDone()) {
+            wait(leaseMillis);
+            expireLeases();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                handlers.submit(new Runnable() {
+                    @Override public void run() { handle(socket); }
+                });
+            } catch (SocketException e) {
+                // closed by stop()
+                if (!server.isClosed()) log.error("error accepting connection: "+e);
+            } catch (Exception e) {
+                log.error("error accepting connection: "+e);
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final byte op = in.readByte();
+            switch (op) {
+                case LEASE:   lease(in.readUTF(), out); break;
+                case RENEW:   renew(in.readLong(), out); break;
+                case SPLIT:   split(in.readLong(), in.readUTF(), out); break;
+                case FINISH:  finish(in.readLong(), out); break;
+                case RELEASE: release(in.readLong(), out); break;
+                default: throw new IOException("unknown request: "+op);
+            }
+            out.flush();
+        } catch (Exception e) {
+            log.warn("error handling request from "+socket.getRemoteSocketAddress()+": "+e);
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private synchronized void lease(String worker, DataOutputStream out) throws IOException {
+        expireLeases();
+        if (free.isEmpty()) {
+            if (leases.isEmpty()) {
+                out.writeByte(DONE);
+            } else {
+                hungry = true;
+                out.writeByte(WAIT);
+                out.writeLong(Math.min(TimeUnit.SECONDS.toMillis(1), leaseMillis / 3));
+            }
+            return;
+        }
+        final Lease lease = new Lease(nextId++, worker, free.removeFirst(), System.currentTimeMillis() + leaseMillis);
+        leases.put(lease.id, lease);
+        out.writeByte(GRANTED);
+        out.writeLong(lease.id);
+        out.writeLong(leaseMillis);
+        out.writeUTF(lease.startAfter == null ? NONE : lease.startAfter);
+        out.writeUTF(lease.endAt == null ? NONE : lease.endAt);
+        log.info("lease "+lease.id+" to "+worker+": "+lease.getRange()+" ("+free.size()+" ranges left)");
+    }
+
+    private synchronized void renew(long id, DataOutputStream out) throws IOException {
+        final Lease lease = leases.get(id);
+        if (lease == null) {
+            out.writeByte(LOST);
+            return;
+        }
+        lease.expiresAt = System.currentTimeMillis() + leaseMillis;
+        out.writeByte(OK);
+        out.writeBoolean(hungry && free.isEmpty());
+    }
+
+    private synchronized void split(long id, String at, DataOutputStream out) throws IOException {
+        final Lease lease = leases.get(id);
+        if (lease == null) {
+            out.writeByte(LOST);
+            return;
+        }
+        if ((lease.startAfter != null && KeyComparator.INSTANCE.compare(at, lease.startAfter) <= 0)
+                || (lease.endAt != null && KeyComparator.INSTANCE.compare(at, lease.endAt) >= 0)) {
+            throw new IOException("cannot split lease "+id+" at "+at+": not inside "+lease.getRange());
+        }
+        final KeyRange upper = new KeyRange(at, lease.endAt);
+        lease.endAt = at;
+        free.add(upper);
+        hungry = false;
+        out.writeByte(OK);
+        log.info("split lease "+id+" of "+lease.worker+" at "+at+", "+upper+" is free");
+    }
+
+    private synchronized void finish(long id, DataOutputStream out) throws IOException {
+        final Lease lease = leases.remove(id);
+        if (lease == null) {
+            out.writeByte(LOST);
+            return;
+        }
+        finished++;
+        out.writeByte(OK);
+        log.info("lease "+id+" finished by "+lease.worker+" ("+finished+" ranges done, "+leases.size()+" leased, "+free.size()+" left)");
+        notifyAll();
+    }
+
+    private synchronized void release(long id, DataOutputStream out) throws IOException {
+        final Lease lease = leases.remove(id);
+        if (lease == null) {
+            out.writeByte(LOST);
+            return;
+        }
+        free.addFirst(lease.getRange());
+        out.writeByte(OK);
+        log.warn("lease "+id+" released by "+lease.worker+", "+lease.getRange()+" will be leased again");
+    }
+
+    private synchronized void expireLeases() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Lease> iter = leases.values().iterator(); iter.hasNext(); ) {
+            final Lease lease = iter.next();
+            if (lease.expiresAt > now) continue;
+            iter.remove();
+            free.addFirst(lease.getRange());
+            log.warn("lease "+lease.id+" of "+lease.worker+" expired, "+lease.getRange()+" will be leased again");
+        }
+    }
+}
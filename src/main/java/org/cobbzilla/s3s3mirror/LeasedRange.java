@@ -0,0 +1,82 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * A range of keys that a worker has leased from the LeaseCoordinator (see --worker). Like a KeyRange, the start is
+ * exclusive and the end inclusive, but the end can move down while the range is being mirrored: when another worker
+ * is idle, the holder gives away the part of its range that it has not listed yet.
+ *
+ * Keys are in the source's key space (they start with --prefix); the lister of the destination maps its keys into
+ * this space before checking them against the range.
+ */
+public class LeasedRange {
+
+    @Getter private final long id;
+    @Getter private final String startAfter;
+    @Getter private final long leaseMillis;
+
+    private String endAt;
+    // the last key listed from this range (by the copy or the delete lister, whichever is further)
+    private String listedTo;
+
+    // set when the coordinator no longer knows the lease, because it expired and was leased to someone else
+    private volatile boolean lost = false;
+
+    public LeasedRange(long id, String startAfter, String endAt, long leaseMillis) {
+        this.id = id;
+        this.startAfter = startAfter;
+        this.endAt = endAt;
+        this.leaseMillis = leaseMillis;
+    }
+
+    public synchronized String getEndAt() { return endAt; }
+
+    public boolean isLost() { return lost; }
+    public void setLost() { lost = true; }
+
+    /**
+     * Records a page of listed keys.
+     * @param keys keys in listing order, in the range's key space
+     * @return how many of the keys are in the range; the listing is over if that is fewer than all of them
+     */
+    public synchronized int listed(List<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (endAt != null && KeyComparator.INSTANCE.compare(key, endAt) > 0) break;
+            if (listedTo == null || KeyComparator.INSTANCE.compare(key, listedTo) > 0) listedTo = key;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param prefix the prefix shared by every key in the range (--prefix)
+     * @return a key roughly halfway between what has been listed so far and the end of the range, or null if the
+     * range is (almost) done
+     */
+    public synchronized String getSplitPoint(String prefix) {
+        if (prefix == null) prefix = "";
+        final String lo = listedTo != null ? listedTo : startAfter != null ? startAfter : prefix;
+        return KeyRange.midpoint(prefix, lo, endAt);
+    }
+
+    /**
+     * Ends the range at the given key, unless it has already been listed past it. This is done before the coordinator
+     * is asked to take what is after the key, so no key the coordinator may lease to another worker is listed here.
+     * @return true if the range now ends at the key
+     */
+    public synchronized boolean trySplit(String at) {
+        if (listedTo != null && KeyComparator.INSTANCE.compare(listedTo, at) > 0) return false;
+        if (endAt != null && KeyComparator.INSTANCE.compare(at, endAt) >= 0) return false;
+        endAt = at;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "lease "+id+" ("+(startAfter == null ? "start" : startAfter)+" to "+(endAt == null ? "end" : endAt)+"]";
+    }
+}
@@ -0,0 +1,144 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.SizeOnlyComparisonStrategy;
+
+import java.nio.charset.Charset;
+
+/**
+ * Lists the source and the destination together and walks the two sorted listings in step, comparing each source
+ * key with the destination's listing entry instead of requesting the destination's metadata.
+ * Only keys that are new or changed get a KeyCopyJob. If --delete-removed is set, keys found only in the
+ * destination get a KeyDeleteJob, so no separate DeleteMaster is needed.
+ */
+@Slf4j
+public class ListingDiffMaster extends CopyMaster {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ComparisonStrategy multipartComparisonStrategy = new SizeOnlyComparisonStrategy();
+    private final DeleteBatcher batcher;
+
+    public ListingDiffMaster(AmazonS3Client client, MirrorContext context, JobDispatcher dispatcher) {
+        super(client, context, dispatcher);
+        batcher = new DeleteBatcher(context.getDestinationClient(client), context);
+    }
+
+    @Override
+    protected void submitJobs(MirrorOptions options) throws Exception {
+
+        final boolean verbose = options.isVerbose();
+        final boolean deleteRemoved = options.isDeleteRemoved();
+
+        final String destPrefix = options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
+        // keys are compared as UTF-8 bytes, so the prefixes are skipped in bytes too
+        final int sourcePrefixLength = options.hasPrefix() ? options.getPrefix().getBytes(UTF8).length : 0;
+        final int destPrefixLength = destPrefix == null ? 0 : destPrefix.getBytes(UTF8).length;
+
+        // the merge needs both listings in key order, so these are never sharded
+        final ListingCursor source = new ListingCursor(startOrderedLister(options.getSourceBucket(), options.getPrefix(), KeyLister.LIST_PAGE_SIZE));
+        final ListingCursor dest = new ListingCursor(startOrderedLister(context.getDestinationClient(client), options.getDestinationBucket(), destPrefix, KeyLister.LIST_PAGE_SIZE, null));
+
+        long copies = 0;
+        long deletes = 0;
+        long unchanged = 0;
+
+        KeyRecord src = source.peek();
+        KeyRecord dst = dest.peek();
+        while (src != null || dst != null) {
+            final int cmp;
+            if (src == null) {
+                cmp = 1;
+            } else if (dst == null) {
+                cmp = -1;
+            } else {
+                cmp = src.compareKey(sourcePrefixLength, dst, destPrefixLength);
+            }
+
+            if (cmp < 0) {
+                // only in source
+                submitCopy(src);
+                copies++;
+                src = source.next();
+
+            } else if (cmp > 0) {
+                // only in destination
+                if (deleteRemoved) {
+                    final KeyDeleteJob job = new KeyDeleteJob(client, context, dst, batcher);
+                    job.setSourceChecked(true);
+                    submit(job);
+                    deletes++;
+                }
+                dst = dest.next();
+
+            } else {
+                if (getStrategy(src).sourceDifferent(src, dst)) {
+                    submitCopy(src);
+                    copies++;
+                } else {
+                    if (verbose) log.info("Destination file is same as source, not copying: "+src.getKey());
+                    if (context.getIndex() != null) context.getIndex().put(dst);
+                    unchanged++;
+                }
+                src = source.next();
+                dst = dest.next();
+            }
+        }
+        markListingComplete();
+        log.info("listing diff complete: "+copies+" keys to copy, "+deletes+" keys to delete, "+unchanged+" keys unchanged");
+    }
+
+    @Override
+    protected void jobsFinished() {
+        super.jobsFinished();
+        batcher.flush();
+    }
+
+    private ComparisonStrategy getStrategy(KeyRecord record) {
+        return keepsETag(record) ? comparisonStrategy : multipartComparisonStrategy;
+    }
+
+    private void submitCopy(KeyRecord record) throws InterruptedException {
+        final KeyCopyJob job = getTask(record);
+        job.setDestinationChecked(true);
+        submit(job);
+    }
+
+    /**
+     * Walks the batches returned by a KeyLister one key at a time, handing each batch back once it has been walked.
+     * A listing that ends in an error is reported as an exception rather than as the end of the keys, otherwise
+     * the rest of the other listing would look like keys to copy or delete.
+     */
+    private static class ListingCursor {
+
+        private final KeyLister lister;
+        private KeyBatch batch = null;
+        private int pos = 0;
+        private KeyRecord current = null;
+
+        ListingCursor(KeyLister lister) { this.lister = lister; }
+
+        public KeyRecord peek() throws InterruptedException {
+            if (current != null) return current;
+            if (batch == null || pos >= batch.size()) {
+                if (batch != null) lister.recycle(batch);
+                batch = lister.getNextBatch();
+                pos = 0;
+                if (batch.isEmpty()) {
+                    if (lister.isFailed()) throw new IllegalStateException("listing failed, stopping listing diff");
+                    return null;
+                }
+            }
+            current = batch.get(pos);
+            return current;
+        }
+
+        public KeyRecord next() throws InterruptedException {
+            pos++;
+            current = null;
+            return peek();
+        }
+    }
+}
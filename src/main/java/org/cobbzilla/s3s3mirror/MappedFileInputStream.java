@@ -0,0 +1,87 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+
+/**
+ * Reads a range of a file through memory-mapped windows, so a part of a large file is uploaded straight from the page
+ * cache without being read into a buffer of our own first. Supports mark and reset, so the SDK can retry from it.
+ *
+ * Windows are mapped as they are reached and left to the garbage collector to unmap; the channel can be shared by
+ * the streams of all of a file's parts.
+ */
+public class MappedFileInputStream extends InputStream {
+
+    // a mapping cannot be more than 2GB, and parts can be up to 5GB
+    public static final long WINDOW_SIZE = 64 * MB;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+
+    private long pos = 0;
+    private long mark = 0;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public MappedFileInputStream(FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * Feeds a range of the file to the digest straight from mapped windows.
+     */
+    public static void digest(FileChannel channel, long start, long length, MessageDigest digest) throws IOException {
+        for (long pos = 0; pos < length; pos += WINDOW_SIZE) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, start + pos, Math.min(WINDOW_SIZE, length - pos)));
+        }
+    }
+
+    @Override public int read() throws IOException {
+        if (pos >= length) return -1;
+        final int b = window().get((int) (pos - windowStart)) & 0xff;
+        pos++;
+        return b;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos >= length) return -1;
+        final MappedByteBuffer w = window();
+        final int offset = (int) (pos - windowStart);
+        final int n = Math.min(len, w.capacity() - offset);
+        w.position(offset);
+        w.get(b, off, n);
+        pos += n;
+        return n;
+    }
+
+    private MappedByteBuffer window() throws IOException {
+        if (window == null || pos < windowStart || pos >= windowStart + window.capacity()) {
+            windowStart = pos - pos % WINDOW_SIZE;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start + windowStart, Math.min(WINDOW_SIZE, length - windowStart));
+        }
+        return window;
+    }
+
+    @Override public long skip(long n) {
+        final long skipped = Math.max(0, Math.min(n, length - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override public int available() { return (int) Math.min(Integer.MAX_VALUE, length - pos); }
+
+    @Override public boolean markSupported() { return true; }
+
+    @Override public void mark(int readLimit) { mark = pos; }
+
+    @Override public void reset() { pos = mark; }
+}
@@ -0,0 +1,137 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ETags that local source files get when the mirror uploads them, so that a file whose size and modification
+ * time have not changed since it was last hashed does not have to be read again to compare it with the destination.
+ * An ETag also depends on the part size the file is uploaded in, so that is kept too.
+ *
+ * The cache is loaded into memory when it is opened and written out again by save(). Files are keyed by their
+ * absolute path.
+ *
+ * File layout: MAGIC, the entry count (int), then for each entry: path (UTF-8, with a short length), size,
+ * modification millis and part size (longs), and ETag (UTF-8, with a short length).
+ */
+@Slf4j
+public class Md5Cache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = "S3S3MD51".getBytes(UTF8);
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final long partSize;
+        final String etag;
+
+        Entry(long size, long lastModified, long partSize, String etag) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.partSize = partSize;
+            this.etag = etag;
+        }
+
+        boolean matches(long size, long lastModified, long partSize) {
+            return this.size == size && this.lastModified == lastModified && this.partSize == partSize;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger changes = new AtomicInteger(0);
+
+    @Getter private final AtomicLong hits = new AtomicLong(0);
+    @Getter private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Loads the cache from the given file, or starts an empty one if the file does not exist yet.
+     */
+    public Md5Cache(File file) throws IOException {
+        this.file = file;
+        if (!file.exists() || file.length() == 0) return;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not an MD5 cache file: "+file);
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String path = readString(in);
+                entries.put(path, new Entry(in.readLong(), in.readLong(), in.readLong(), readString(in)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public int size() { return entries.size(); }
+
+    public int getChangeCount() { return changes.get(); }
+
+    /**
+     * @return the ETag the file had when it last had this size and modification time, or null if it is not known
+     */
+    public String get(File source, long size, long lastModified, long partSize) {
+        final Entry entry = entries.get(source.getAbsolutePath());
+        if (entry == null || !entry.matches(size, lastModified, partSize)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.etag;
+    }
+
+    public void put(File source, long size, long lastModified, long partSize, String etag) {
+        entries.put(source.getAbsolutePath(), new Entry(size, lastModified, partSize, etag));
+        changes.incrementAndGet();
+    }
+
+    public void save() throws IOException {
+        final File temp = new File(file.getAbsolutePath()+".tmp");
+        int count = 0;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.write(MAGIC);
+            // copied first, so the count written matches the entries written
+            final Map<String, Entry> snapshot = new ConcurrentHashMap<String, Entry>(entries);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                writeString(out, e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.writeLong(e.getValue().partSize);
+                writeString(out, e.getValue().etag);
+                count++;
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("saved MD5 cache with "+count+" entries ("+changes.get()+" changed) to "+file);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(UTF8);
+        if (bytes.length > 0xffff) throw new IOException("path too long for the MD5 cache: "+s);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,133 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves MirrorStats over HTTP in the OpenMetrics text format (which Prometheus scrapes), so a run can be watched
+ * while it is in progress: counters, gauges such as queue depth and requests in flight, and latency summaries for
+ * each kind of S3 request.
+ */
+@Slf4j
+public class MetricsServer {
+
+    public static final String PATH = "/metrics";
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    public static final String PREFIX = "s3s3mirror_";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final HttpServer server;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public MetricsServer(int port, final MirrorStats stats) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    final byte[] body = render(stats).getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    public void start() {
+        server.start();
+        log.info("serving metrics at http://localhost:"+getPort()+PATH);
+    }
+
+    public void stop() { server.stop(0); }
+
+    public static String render(MirrorStats stats) {
+        final StringBuilder b = new StringBuilder();
+        counter(b, "objects_read", "Objects listed in the source", stats.objectsRead);
+        counter(b, "objects_copied", "Objects copied", stats.objectsCopied);
+        counter(b, "copy_errors", "Objects that could not be copied", stats.copyErrors);
+        counter(b, "objects_deleted", "Objects deleted from the destination", stats.objectsDeleted);
+        counter(b, "delete_errors", "Objects that could not be deleted", stats.deleteErrors);
+        counter(b, "bytes_copied", "Bytes copied", stats.bytesCopied);
+        counter(b, "s3_get_requests", "S3 GET, HEAD and LIST requests", stats.s3getCount);
+        counter(b, "s3_copy_requests", "S3 copy and copy-part requests", stats.s3copyCount);
+        counter(b, "s3_delete_requests", "S3 batch delete requests", stats.s3deleteCount);
+        counter(b, "delete_batches", "Batches of keys deleted", stats.deleteBatches);
+        counter(b, "s3_throttled_requests", "Request attempts throttled by S3", stats.s3throttleCount);
+        counter(b, "s3_retries", "S3 requests retried", stats.s3retryCount);
+        counter(b, "s3_throttled_retries", "S3 requests retried after throttling", stats.s3throttledRetryCount);
+        counter(b, "s3_retries_exhausted", "S3 requests that failed after the maximum number of tries", stats.s3retriesExhausted);
+        counter(b, "s3_retry_budget_exhausted", "S3 requests not retried because the retry budget was used up", stats.s3retryBudgetExhausted);
+        counter(b, "s3_fatal_errors", "S3 requests that failed with an error not worth retrying", stats.s3fatalErrors);
+        counter(b, "rate_limit_waits", "S3 requests held back by a rate limit", stats.rateLimitWaits);
+        counter(b, "s3_hedged_requests", "Metadata requests sent again because the first was slow", stats.s3hedgedRequests);
+        counter(b, "s3_hedge_wins", "Hedged requests whose second request answered first", stats.s3hedgeWins);
+        counter(b, "s3_stalled_requests", "Copy attempts aborted at their deadline and sent again", stats.s3stalledRequests);
+        counter(b, "heads_skipped", "Destination lookups skipped because the existence filter has never seen the key", stats.headsSkipped);
+
+        for (Map.Entry<String, MirrorStats.Gauge> gauge : stats.getGauges().entrySet()) {
+            final String name = PREFIX + gauge.getKey();
+            b.append("# TYPE ").append(name).append(" gauge\n");
+            b.append(name).append(" ").append(gauge.getValue().getValue()).append("\n");
+        }
+
+        final String latency = PREFIX + "request_latency_seconds";
+        summaryHeader(b, latency, "Latency of S3 request attempts by operation");
+        for (S3Operation operation : S3Operation.values()) {
+            summary(b, latency, "operation=\""+operation.getLabel()+"\"", stats.getLatency(operation));
+        }
+        final String copyLatency = PREFIX + "copy_latency_seconds";
+        summaryHeader(b, copyLatency, "Latency of S3 copy attempts by object size");
+        for (int i=0; i<=MirrorStats.COPY_SIZE_CLASSES.length; i++) {
+            final String size = i < MirrorStats.COPY_SIZE_CLASSES.length
+                    ? "<="+(MirrorStats.COPY_SIZE_CLASSES[i] / MirrorConstants.MB)+"MB"
+                    : ">"+(MirrorStats.COPY_SIZE_CLASSES[i-1] / MirrorConstants.MB)+"MB";
+            summary(b, copyLatency, "size=\""+size+"\"", stats.getCopyLatencyBySizeClass(i));
+        }
+        b.append("# EOF\n");
+        return b.toString();
+    }
+
+    private static void counter(StringBuilder b, String name, String help, AtomicLong value) {
+        name = PREFIX + name;
+        b.append("# TYPE ").append(name).append(" counter\n");
+        b.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        b.append(name).append("_total ").append(value.get()).append("\n");
+    }
+
+    private static void summaryHeader(StringBuilder b, String name, String help) {
+        b.append("# TYPE ").append(name).append(" summary\n");
+        b.append("# UNIT ").append(name).append(" seconds\n");
+        b.append("# HELP ").append(name).append(" ").append(help).append("\n");
+    }
+
+    private static void summary(StringBuilder b, String name, String labels, LatencyHistogram histogram) {
+        final long count = histogram.getCount();
+        for (double quantile : QUANTILES) {
+            b.append(name).append("{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(count == 0 ? "NaN" : String.valueOf(histogram.getValueAtQuantile(quantile) / 1e6)).append("\n");
+        }
+        b.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumMicros() / 1e6).append("\n");
+        b.append(name).append("_count{").append(labels).append("} ").append(count).append("\n");
+    }
+}
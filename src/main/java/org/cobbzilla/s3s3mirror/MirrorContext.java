@@ -1,15 +1,55 @@
 package org.cobbzilla.s3s3mirror;
 
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.Owner;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
-@AllArgsConstructor
 public class MirrorContext {
 
     @Getter @Setter private MirrorOptions options;
     @Getter @Setter private Owner owner;
     @Getter private final MirrorStats stats = new MirrorStats();
+    @Getter private final Retrier retrier;
+
+    // null unless --index was given
+    @Getter @Setter private DestinationIndex index;
+
+    // null unless --md5-cache was given
+    @Getter @Setter private Md5Cache md5Cache;
+
+    // null unless --existence-filter was given (and the destination could be listed)
+    @Getter @Setter private ExistenceFilter existenceFilter;
+
+    // null unless --hedge was given
+    @Getter @Setter private Hedger hedger;
+
+    // null unless --checkpoint was given
+    @Getter @Setter private CheckpointJournal journal;
+
+    // request handlers of the S3 clients, set up by MirrorMain before it creates them
+    @Getter @Setter private LatencyRecorder latencyRecorder;
+    // null unless --rate-limit was given
+    @Getter @Setter private RateLimits rateLimits;
+    // null unless --adaptive was given
+    @Getter @Setter private ConcurrencyController concurrencyController;
+
+    // null unless the destination has a client of its own (--dest-endpoint or --dest-profile)
+    @Setter private AmazonS3Client destinationClient;
+
+    public boolean hasDestinationClient() { return destinationClient != null; }
+
+    /**
+     * @return the client to reach the destination with, which is the source's client unless the destination has its own
+     */
+    public AmazonS3Client getDestinationClient(AmazonS3Client sourceClient) {
+        return destinationClient != null ? destinationClient : sourceClient;
+    }
+
+    public MirrorContext(MirrorOptions options, Owner owner) {
+        this.options = options;
+        this.owner = owner;
+        this.retrier = new Retrier(options.getMaxRetries(), options.getRetryBudget(), stats);
+    }
 
 }
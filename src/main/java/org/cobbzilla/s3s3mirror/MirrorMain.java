@@ -2,7 +2,15 @@ package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.auth.BasicSessionCredentials;
 import com.amazonaws.services.s3.model.AccessControlList;
@@ -16,6 +24,8 @@ import org.kohsuke.args4j.CmdLineParser;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Provides the "main" method. Responsible for parsing options and setting up the MirrorMaster to manage the copy.
@@ -39,6 +49,9 @@ public class MirrorMain {
     @Getter private MirrorContext context;
     @Getter private MirrorMaster master;
 
+    // shared by the source and destination clients
+    private List<RequestHandler2> requestHandlers = null;
+
     public MirrorMain(String[] args) { this.args = args; }
 
     public static void main (String[] args) {
@@ -61,8 +74,11 @@ public class MirrorMain {
                 System.exit(1);
             }
 
+            context = new MirrorContext(options, null);
             client = getAmazonS3Client();
-            context = new MirrorContext(options, getTargetBucketOwner(client));
+            final AmazonS3Client destinationClient = options.hasDestClient() ? getDestinationS3Client() : null;
+            context.setOwner(getTargetBucketOwner(destinationClient != null ? destinationClient : client));
+            context.setDestinationClient(destinationClient);
             master = new MirrorMaster(client, context);
 
             Runtime.getRuntime().addShutdownHook(context.getStats().getShutdownHook());
@@ -70,27 +86,89 @@ public class MirrorMain {
         }
     }
 
-    protected AmazonS3Client getAmazonS3Client() {
+    private ClientConfiguration getClientConfiguration() {
+        // the Retrier is the only thing that retries, so every retry is classified, backed off and budgeted the same way
         ClientConfiguration clientConfiguration = new ClientConfiguration().withProtocol((options.isSsl() ? Protocol.HTTPS : Protocol.HTTP))
-                .withMaxConnections(options.getMaxConnections());
+                .withMaxConnections(options.getMaxConnections())
+                .withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
         if (options.getHasProxy()) {
             clientConfiguration = clientConfiguration
                     .withProxyHost(options.getProxyHost())
                     .withProxyPort(options.getProxyPort());
         }
-        AmazonS3Client client = null;
+        return clientConfiguration;
+    }
+
+    /**
+     * Creates the handlers that every request from the source and destination clients goes through, and keeps them in
+     * the context. They run in order: timing, rate limits (before the concurrency controller, so requests wait for
+     * their rate limit without holding a permit), adaptive concurrency and copy deadlines.
+     */
+    private List<RequestHandler2> getRequestHandlers() {
+        if (requestHandlers != null) return requestHandlers;
+        final MirrorStats stats = context.getStats();
+        requestHandlers = new ArrayList<RequestHandler2>();
+
+        context.setLatencyRecorder(new LatencyRecorder(stats));
+        requestHandlers.add(context.getLatencyRecorder());
+        if (options.hasRateLimit()) {
+            context.setRateLimits(new RateLimits(options.getRateLimit(), options.getSourceBucket(), options.getPrefix(),
+                    options.getDestinationBucket(), options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix(), stats));
+            requestHandlers.add(context.getRateLimits());
+        }
+        if (options.isAdaptive()) {
+            context.setConcurrencyController(new ConcurrencyController(options.getMaxThreads(), stats));
+            requestHandlers.add(context.getConcurrencyController());
+        }
+        if (options.hasCopyDeadline()) requestHandlers.add(new CopyWatchdog(options.getCopyDeadline() * 1000L, stats));
+        return requestHandlers;
+    }
+
+    /**
+     * @param endpoint the endpoint to use, or null for S3 itself
+     */
+    private AmazonS3Client buildClient(AWSCredentialsProvider credentials, String endpoint) {
+        final List<RequestHandler2> handlers = getRequestHandlers();
+        final AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withCredentials(credentials)
+                .withClientConfiguration(getClientConfiguration())
+                .withRequestHandlers(handlers.toArray(new RequestHandler2[handlers.size()]));
+        if (endpoint != null) {
+            // the signing region is worked out from the endpoint
+            builder.setEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, null));
+        } else {
+            // like a client without a region: the global endpoint, with requests for other regions sent on to them
+            builder.withRegion(Regions.US_EAST_1).withForceGlobalBucketAccessEnabled(true);
+        }
+        return (AmazonS3Client) builder.build();
+    }
+
+    protected AmazonS3Client getAmazonS3Client() {
+        return getAmazonS3Client(options.hasEndpoint() ? options.getEndpoint() : null);
+    }
+
+    private AmazonS3Client getAmazonS3Client(String endpoint) {
         if(System.getenv("AWS_SECURITY_TOKEN") != null) {
             BasicSessionCredentials basicSessionCredentials = new BasicSessionCredentials(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"), System.getenv("AWS_SECURITY_TOKEN"));
-            client = new AmazonS3Client(basicSessionCredentials, clientConfiguration);
+            return buildClient(new AWSStaticCredentialsProvider(basicSessionCredentials), endpoint);
         } else if (options.hasAwsKeys()) {
-            client = new AmazonS3Client(options, clientConfiguration);
+            return buildClient(new AWSStaticCredentialsProvider(options), endpoint);
         } else if (options.isUseIamRole()) {
-            client = new AmazonS3Client(new InstanceProfileCredentialsProvider(), clientConfiguration);
+            return buildClient(InstanceProfileCredentialsProvider.getInstance(), endpoint);
         } else {
             throw new IllegalStateException("No authenication method available, please specify IAM Role usage or AWS key and secret");
-        }        
-        if (options.hasEndpoint()) client.setEndpoint(options.getEndpoint());
-        return client;
+        }
+    }
+
+    /**
+     * @return a client for the destination, with its own credentials and/or endpoint
+     */
+    protected AmazonS3Client getDestinationS3Client() {
+        if (options.hasDestKeys()) {
+            final BasicAWSCredentials credentials = new BasicAWSCredentials(options.getDestAccessKeyId(), options.getDestSecretKey());
+            return buildClient(new AWSStaticCredentialsProvider(credentials), options.hasDestEndpoint() ? options.getDestEndpoint() : null);
+        }
+        return options.hasDestEndpoint() ? getAmazonS3Client(options.getDestEndpoint()) : getAmazonS3Client();
     }
 
     protected void parseArguments() throws Exception {
@@ -114,9 +192,48 @@ public class MirrorMain {
                 throw new IllegalStateException("Could not find IAM Instance Profile credentials from the AWS metadata service.");
             }
         }
+        if (options.getDestProfile() != null && !options.hasDestKeys()) loadDestinationKeys();
         options.initDerivedFields();
     }
 
+    private void loadDestinationKeys() {
+        final String awsDir = System.getProperty("user.home") + File.separator + ".aws" + File.separator;
+        String[] keys = readAwsKeys(awsDir + "credentials", "[" + options.getDestProfile() + "]");
+        if (keys == null) keys = readAwsKeys(awsDir + "config", "[profile " + options.getDestProfile() + "]");
+        if (keys == null) throw new IllegalStateException("Could not find credentials for profile "+options.getDestProfile()+" ("+MirrorOptions.LONGOPT_DEST_PROFILE+")");
+        options.setDestAccessKeyId(keys[0]);
+        options.setDestSecretKey(keys[1]);
+    }
+
+    /**
+     * @return the access key and secret key in the given section of an AWS credentials or config file, or null if
+     * the file or the section does not have both
+     */
+    private String[] readAwsKeys(String file, String section) {
+        final String[] keys = new String[2];
+        try {
+            @Cleanup BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            boolean skipSection = true;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("[")) {
+                    skipSection = !line.equals(section);
+                    continue;
+                }
+                if (skipSection) continue;
+                if (line.startsWith("aws_access_key_id")) {
+                    keys[0] = line.substring(line.indexOf("=") + 1).trim();
+                } else if (line.startsWith("aws_secret_access_key")) {
+                    keys[1] = line.substring(line.indexOf("=") + 1).trim();
+                }
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        return keys[0] != null && keys[1] != null ? keys : null;
+    }
+
     private void loadAwsKeysFromS3Config() {
         try {
             // try to load from ~/.s3cfg
@@ -200,8 +317,20 @@ public class MirrorMain {
         }
     }
 
-    private Owner getTargetBucketOwner(AmazonS3Client client) {
-        AccessControlList targetBucketAcl = client.getBucketAcl(options.getDestinationBucket());
+    private Owner getTargetBucketOwner(final AmazonS3Client client) {
+        if (options.hasDestinationDirectory()) return null;
+        final AccessControlList targetBucketAcl;
+        try {
+            targetBucketAcl = context.getRetrier().call("getBucketAcl("+options.getDestinationBucket()+")", new Retrier.Call<AccessControlList>() {
+                @Override public AccessControlList call() {
+                    return client.getBucketAcl(options.getDestinationBucket());
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("error reading ACL of "+options.getDestinationBucket()+": "+e, e);
+        }
         return targetBucketAcl.getOwner();
     }
 
@@ -3,10 +3,13 @@ package org.cobbzilla.s3s3mirror;
 import com.amazonaws.services.s3.AmazonS3Client;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.concurrent.*;
+import java.io.File;
+import java.io.IOException;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
 
 /**
- * Manages the Starts a KeyLister and sends batches of keys to the ExecutorService for handling by KeyJobs
+ * Starts the KeyMasters, which list keys and hand KeyJobs to a shared JobDispatcher, and waits for them to finish
  */
 @Slf4j
 public class MirrorMaster {
@@ -27,41 +30,197 @@ public class MirrorMaster {
 
         final MirrorOptions options = context.getOptions();
 
-        if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
+        if (options.isCoordinator()) {
+            coordinate();
+            return;
+        }
 
-        final int maxQueueCapacity = getMaxQueueCapacity(options);
-        final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(maxQueueCapacity);
-        final RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
-            @Override
-            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-                log.error("Error submitting job: "+r+", possible queue overflow");
+        if (options.hasDestinationDirectory()) {
+            final File dir = options.getDestinationDirectory();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                log.error("Cannot create destination directory "+dir+", not mirroring");
+                return;
             }
-        };
+        }
 
-        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, workQueue, rejectedExecutionHandler);
+        if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
 
-        final KeyMaster copyMaster = new CopyMaster(client, context, workQueue, executorService);
-        KeyMaster deleteMaster = null;
+        if (options.hasIndex()) {
+            try {
+                context.setIndex(new DestinationIndex(options.getIndex()));
+            } catch (IOException e) {
+                log.error("Error opening index "+options.getIndex()+", not mirroring: "+e);
+                return;
+            }
+            log.info("using index "+options.getIndex()+" ("+context.getIndex().getFileEntries()+" entries)");
 
-        try {
-            copyMaster.start();
+            if (options.isVerifyIndex()) {
+                try {
+                    if (!new IndexVerifier(context.getDestinationClient(client), context, context.getIndex()).verify()) {
+                        log.error("index verification failed, not mirroring");
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    log.error("interrupted while verifying index");
+                    return;
+                }
+            }
+        }
 
-            if (context.getOptions().isDeleteRemoved()) {
-                deleteMaster = new DeleteMaster(client, context, workQueue, executorService);
-                deleteMaster.start();
+        if (options.hasExistenceFilter()) {
+            try {
+                context.setExistenceFilter(ExistenceFilter.fromListing(context.getDestinationClient(client), context));
+            } catch (InterruptedException e) {
+                log.error("interrupted while building existence filter");
+                return;
+            } catch (Exception e) {
+                log.error("Error building existence filter: "+e, e);
+            }
+            if (context.getExistenceFilter() == null) log.warn("could not list the destination, checking every key without an existence filter");
+        }
+
+        if (options.hasMd5Cache()) {
+            try {
+                context.setMd5Cache(new Md5Cache(options.getMd5Cache()));
+            } catch (IOException e) {
+                log.error("Error opening MD5 cache "+options.getMd5Cache()+", not mirroring: "+e);
+                return;
             }
+            log.info("using MD5 cache "+options.getMd5Cache()+" ("+context.getMd5Cache().size()+" entries)");
+        }
 
-            while (true) {
-                if (copyMaster.isDone() && (deleteMaster == null || deleteMaster.isDone())) {
-                    log.info("mirror: completed");
-                    break;
+        if (options.hasCheckpoint()) {
+            if (options.isDryRun()) {
+                log.warn("dry run, not recording progress in "+options.getCheckpoint());
+            } else {
+                try {
+                    context.setJournal(new CheckpointJournal(options.getCheckpoint(), options.isResume()));
+                } catch (IOException e) {
+                    log.error("Error opening checkpoint journal "+options.getCheckpoint()+", not mirroring: "+e);
+                    return;
                 }
-                if (Sleep.sleep(100)) return;
+                context.getJournal().start();
+                Runtime.getRuntime().addShutdownHook(context.getJournal().getShutdownHook());
             }
+        }
+
+        final LaneScheduler lanes = options.hasLanes() ? new LaneScheduler(options.getLanes(), options.getMaxThreads(), getMaxQueueCapacity(options)) : null;
+        final JobDispatcher dispatcher = new JobDispatcher(options.getMaxThreads(), getMaxQueueCapacity(options), options.isVirtualThreads(),
+                options.isAsync() ? options.getMaxKeysInFlight() : options.getMaxThreads(), lanes);
+        if (dispatcher.isVirtual()) {
+            log.info("running up to "+options.getMaxThreads()+" jobs at once on virtual threads");
+            if (options.getMaxConnections() < options.getMaxThreads()) {
+                log.warn("only "+options.getMaxConnections()+" connections for "+options.getMaxThreads()+" concurrent jobs, consider raising "+MirrorOptions.LONGOPT_MAX_CONNECTIONS);
+            }
+        }
+
+        final MirrorStats stats = context.getStats();
+        stats.addGauge("jobs_queued", new MirrorStats.Gauge() {
+            @Override public long getValue() { return dispatcher.getQueueSize(); }
+        });
+        stats.addGauge("jobs_running", new MirrorStats.Gauge() {
+            @Override public long getValue() { return dispatcher.getActiveCount(); }
+        });
+        if (lanes != null) {
+            log.info("lanes: "+lanes);
+            for (final LaneScheduler.Lane lane : LaneScheduler.Lane.values()) {
+                final String name = lane.name().toLowerCase();
+                stats.addGauge("lane_"+name+"_queued", new MirrorStats.Gauge() {
+                    @Override public long getValue() { return lanes.getQueued(lane); }
+                });
+                stats.addGauge("lane_"+name+"_running", new MirrorStats.Gauge() {
+                    @Override public long getValue() { return lanes.getRunning(lane); }
+                });
+            }
+        }
+        if (options.isAsync()) {
+            log.info("copying up to "+options.getMaxKeysInFlight()+" keys at once asynchronously");
+            stats.addGauge("async_keys_in_flight", new MirrorStats.Gauge() {
+                @Override public long getValue() { return dispatcher.getInFlightCount(); }
+            });
+        }
+        final LatencyRecorder latencyRecorder = context.getLatencyRecorder();
+        if (latencyRecorder != null) {
+            stats.addGauge("s3_requests_in_flight", new MirrorStats.Gauge() {
+                @Override public long getValue() { return latencyRecorder.getInFlight(); }
+            });
+        }
+
+        if (context.getRateLimits() != null) log.info("rate limits: "+context.getRateLimits());
+
+        final ConcurrencyController controller = context.getConcurrencyController();
+        if (controller != null) {
+            log.info("adapting concurrency to S3, starting at "+controller.getLimit()+" requests (max "+options.getMaxThreads()+")");
+            stats.addGauge("concurrency_limit", new MirrorStats.Gauge() {
+                @Override public long getValue() { return controller.getLimit(); }
+            });
+        }
+        if (options.isHedge()) context.setHedger(new Hedger(stats, options.isVirtualThreads()));
+
+        MetricsServer metricsServer = null;
+        if (options.hasMetricsPort()) {
+            try {
+                metricsServer = new MetricsServer(options.getMetricsPort(), stats);
+                metricsServer.start();
+            } catch (IOException e) {
+                log.error("Error starting metrics server on port "+options.getMetricsPort()+", continuing without it: "+e);
+            }
+        }
+
+        boolean completed = false;
+        try {
+            completed = options.isWorker() ? mirrorLeasedRanges(dispatcher) : mirrorRange(dispatcher, null);
+            if (completed) {
+                log.info("mirror: completed");
+            } else {
+                log.warn("mirror: stopped before completing");
+            }
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
 
         } catch (Exception e) {
             log.error("Unexpected exception in mirror: "+e, e);
 
+        } finally {
+            dispatcher.shutdown();
+            if (lanes != null) log.info("jobs run by workers from another lane: "+lanes.getStolen());
+            if (controller != null) log.info("concurrency limit at end of run: "+controller.getLimit());
+            if (context.getHedger() != null) context.getHedger().shutdown();
+            if (metricsServer != null) metricsServer.stop();
+            saveIndex();
+            saveMd5Cache();
+            finishJournal(completed);
+            saveStats();
+        }
+    }
+
+    /**
+     * Mirrors the source, or one range of it, with a copy master and (with --delete-removed) a delete master.
+     * @param range the range to mirror, or null for everything
+     * @return true if every key was listed
+     */
+    private boolean mirrorRange(JobDispatcher dispatcher, LeasedRange range) throws InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final KeyMaster copyMaster = options.isListingDiff()
+                ? new ListingDiffMaster(client, context, dispatcher)
+                : new CopyMaster(client, context, dispatcher);
+        copyMaster.setRange(range);
+        KeyMaster deleteMaster = null;
+        try {
+            copyMaster.start();
+
+            // in listing-diff mode, the ListingDiffMaster finds keys to delete while it compares the listings
+            if (options.isDeleteRemoved() && !options.isListingDiff()) {
+                deleteMaster = new DeleteMaster(client, context, dispatcher);
+                deleteMaster.setRange(range);
+                deleteMaster.start();
+            }
+
+            copyMaster.join();
+            if (deleteMaster != null) deleteMaster.join();
+            return copyMaster.isListingComplete() && (deleteMaster == null || deleteMaster.isListingComplete());
+
         } finally {
             try { copyMaster.stop();   } catch (Exception e) { log.error("Error stopping copyMaster: "+e, e); }
             if (deleteMaster != null) {
@@ -70,8 +229,125 @@ public class MirrorMaster {
         }
     }
 
+    /**
+     * Mirrors the ranges leased from the coordinator (--worker), one after another, until there are none left.
+     * @return true if every range leased was mirrored (or was lost to another worker)
+     */
+    private boolean mirrorLeasedRanges(JobDispatcher dispatcher) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final LeaseClient coordinator = new LeaseClient(options.getWorker());
+        LeasedRange range;
+        while ((range = coordinator.lease()) != null) {
+            log.info("mirroring "+range);
+            final Thread renewer = coordinator.keepRenewing(range, options.getPrefix());
+            final boolean completed;
+            try {
+                completed = mirrorRange(dispatcher, range);
+            } finally {
+                // wait for a split in progress, which marks the range lost if the coordinator did not confirm it
+                renewer.interrupt();
+                renewer.join();
+            }
+            if (range.isLost()) continue;
+            if (!completed) {
+                // let another worker have a go, rather than waiting for the lease to expire
+                coordinator.release(range);
+                return false;
+            }
+            coordinator.finish(range);
+        }
+        log.info("no more ranges to mirror");
+        return true;
+    }
+
+    /**
+     * Leases ranges of the source to workers (--coordinator) until all of them have been mirrored.
+     */
+    private void coordinate() {
+        final MirrorOptions options = context.getOptions();
+        final LeaseCoordinator coordinator;
+        try {
+            coordinator = new LeaseCoordinator(options.getCoordinatorPort(), LeaseCoordinator.getInitialRanges(client, context),
+                    LeaseCoordinator.DEFAULT_LEASE_MILLIS);
+        } catch (Exception e) {
+            log.error("Error starting coordinator on port "+options.getCoordinatorPort()+": "+e, e);
+            return;
+        }
+        coordinator.start();
+        try {
+            coordinator.awaitCompletion();
+            log.info("every range has been mirrored");
+            // workers waiting for a range ask again within a lease period, keep answering until they have heard
+            Thread.sleep(LeaseCoordinator.DEFAULT_LEASE_MILLIS);
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+        } finally {
+            coordinator.stop();
+        }
+    }
+
+    private void finishJournal(boolean completed) {
+        final CheckpointJournal journal = context.getJournal();
+        if (journal == null) return;
+        final MirrorStats stats = context.getStats();
+        final long failed = stats.copyErrors.get() + stats.deleteErrors.get();
+        if (completed && failed == 0) {
+            journal.complete();
+        } else if (completed) {
+            journal.close();
+            log.warn(failed+" keys failed, run again with "+MirrorOptions.LONGOPT_RESUME+" to retry them from "+context.getOptions().getCheckpoint());
+        } else {
+            journal.close();
+            log.warn("mirror did not complete, run again with "+MirrorOptions.LONGOPT_RESUME+" to continue from "+context.getOptions().getCheckpoint());
+        }
+    }
+
+    private void saveStats() {
+        final MirrorOptions options = context.getOptions();
+        if (!options.hasStatsFile()) return;
+        try {
+            context.getStats().save(options.getStatsFile());
+            log.info("wrote stats to "+options.getStatsFile());
+        } catch (IOException e) {
+            log.error("Error writing stats to "+options.getStatsFile()+": "+e, e);
+        }
+    }
+
+    private void saveIndex() {
+        final DestinationIndex index = context.getIndex();
+        if (index == null) return;
+        log.info("destination index: "+index.getHits()+" hits, "+index.getMisses()+" misses, "+index.getChangeCount()+" changes");
+        if (context.getOptions().isDryRun()) return;
+        try {
+            index.save();
+        } catch (IOException e) {
+            log.error("Error saving index "+context.getOptions().getIndex()+": "+e, e);
+        }
+    }
+
+    private void saveMd5Cache() {
+        final Md5Cache cache = context.getMd5Cache();
+        if (cache == null) return;
+        log.info("MD5 cache: "+cache.getHits()+" hits, "+cache.getMisses()+" misses, "+cache.getChangeCount()+" changes");
+        if (cache.getChangeCount() == 0) return;
+        try {
+            cache.save();
+        } catch (IOException e) {
+            log.error("Error saving MD5 cache "+context.getOptions().getMd5Cache()+": "+e, e);
+        }
+    }
+
+    // rough heap cost of a key waiting in a listing batch or in the work queue: its share of a KeyBatch, or a KeyRecord
+    // and its job
+    public static final long BYTES_PER_QUEUED_KEY = 256;
+
+    /**
+     * @return how many keys may wait in the work queue (and, separately, in each lister's batches), so that the
+     * two together stay within the --queue-memory budget
+     */
     public static int getMaxQueueCapacity(MirrorOptions options) {
-        return 10 * options.getMaxThreads();
+        final long keys = options.getQueueMemory() * MB / 2 / BYTES_PER_QUEUED_KEY;
+        return (int) Math.max(options.getMaxThreads(), Math.min(Integer.MAX_VALUE, keys));
     }
 
 }
@@ -4,10 +4,12 @@ import com.amazonaws.auth.AWSCredentials;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicyFactory;
 import org.joda.time.DateTime;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import java.io.File;
 import java.util.Date;
 
 import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
@@ -15,6 +17,7 @@ import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
 public class MirrorOptions implements AWSCredentials {
 
     public static final String S3_PROTOCOL_PREFIX = "s3://";
+    public static final String FILE_PROTOCOL_PREFIX = "file://";
 
     public static final String AWS_ACCESS_KEY = "AWS_ACCESS_KEY_ID";
     public static final String AWS_SECRET_KEY = "AWS_SECRET_ACCESS_KEY";
@@ -93,6 +96,52 @@ public class MirrorOptions implements AWSCredentials {
 
     public boolean hasEndpoint () { return endpoint != null && endpoint.trim().length() > 0; }
 
+    public static final String USAGE_DEST_ENDPOINT = "Endpoint of the destination, if it is not the same as the source's. " +
+            "Objects are then copied by streaming them (see --stream)";
+    public static final String OPT_DEST_ENDPOINT = "-x";
+    public static final String LONGOPT_DEST_ENDPOINT = "--dest-endpoint";
+    @Option(name=OPT_DEST_ENDPOINT, aliases=LONGOPT_DEST_ENDPOINT, usage=USAGE_DEST_ENDPOINT)
+    @Getter @Setter private String destEndpoint = null;
+
+    public boolean hasDestEndpoint () { return destEndpoint != null && destEndpoint.trim().length() > 0; }
+
+    public static final String AWS_DEST_ACCESS_KEY = "AWS_DEST_ACCESS_KEY_ID";
+    public static final String AWS_DEST_SECRET_KEY = "AWS_DEST_SECRET_ACCESS_KEY";
+    @Getter @Setter private String destAccessKeyId = System.getenv().get(AWS_DEST_ACCESS_KEY);
+    @Getter @Setter private String destSecretKey = System.getenv().get(AWS_DEST_SECRET_KEY);
+
+    public boolean hasDestKeys() { return destAccessKeyId != null && destSecretKey != null; }
+
+    public static final String USAGE_DEST_PROFILE = "Use the credentials of this profile (from ~/.aws/credentials or " +
+            "~/.aws/config) for the destination, or set "+AWS_DEST_ACCESS_KEY+" and "+AWS_DEST_SECRET_KEY+". " +
+            "Objects are then copied by streaming them (see --stream)";
+    public static final String OPT_DEST_PROFILE = "-O";
+    public static final String LONGOPT_DEST_PROFILE = "--dest-profile";
+    @Option(name=OPT_DEST_PROFILE, aliases=LONGOPT_DEST_PROFILE, usage=USAGE_DEST_PROFILE)
+    @Getter @Setter private String destProfile = null;
+
+    /**
+     * @return true if the destination is reached with a client of its own, rather than the source's
+     */
+    public boolean hasDestClient() { return hasDestEndpoint() || hasDestKeys(); }
+
+    public static final String USAGE_STREAM = "Copy objects by reading them from the source and uploading them to the " +
+            "destination, instead of having S3 copy them. Needed when S3 cannot copy between the two, and always used " +
+            "with "+LONGOPT_DEST_ENDPOINT+" or "+LONGOPT_DEST_PROFILE;
+    public static final String OPT_STREAM = "-W";
+    public static final String LONGOPT_STREAM = "--stream";
+    @Option(name=OPT_STREAM, aliases=LONGOPT_STREAM, usage=USAGE_STREAM)
+    @Setter private boolean stream = false;
+
+    public boolean isStream() { return stream || hasDestClient(); }
+
+    public static final String USAGE_STREAM_MEMORY = "Memory (in MB) for the bytes of objects being streamed, which limits " +
+            "the bytes in flight however many objects and parts are being copied (default 256)";
+    public static final String OPT_STREAM_MEMORY = "-B";
+    public static final String LONGOPT_STREAM_MEMORY = "--stream-memory";
+    @Option(name=OPT_STREAM_MEMORY, aliases=LONGOPT_STREAM_MEMORY, usage=USAGE_STREAM_MEMORY)
+    @Getter @Setter private long streamMemory = 256;
+
     public static final String USAGE_MAX_CONNECTIONS = "Maximum number of connections to S3 (default 100)";
     public static final String OPT_MAX_CONNECTIONS = "-m";
     public static final String LONGOPT_MAX_CONNECTIONS = "--max-connections";
@@ -105,11 +154,96 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_MAX_THREADS, aliases=LONGOPT_MAX_THREADS, usage=USAGE_MAX_THREADS)
     @Getter @Setter private int maxThreads = 100;
 
+    public static final String USAGE_VIRTUAL_THREADS = "Run jobs and part copies on virtual threads (Java 21+). " +
+            LONGOPT_MAX_THREADS+" then only limits how many run at once, so it can be set much higher";
+    public static final String OPT_VIRTUAL_THREADS = "-V";
+    public static final String LONGOPT_VIRTUAL_THREADS = "--virtual-threads";
+    @Option(name=OPT_VIRTUAL_THREADS, aliases=LONGOPT_VIRTUAL_THREADS, usage=USAGE_VIRTUAL_THREADS)
+    @Getter @Setter private boolean virtualThreads = false;
+
+    public static final String USAGE_MAX_KEYS_IN_FLIGHT = "With --async, the most keys being copied at once (default 10000)";
+    public static final String OPT_MAX_KEYS_IN_FLIGHT = "-K";
+    public static final String LONGOPT_MAX_KEYS_IN_FLIGHT = "--max-keys-in-flight";
+    @Option(name=OPT_MAX_KEYS_IN_FLIGHT, aliases=LONGOPT_MAX_KEYS_IN_FLIGHT, usage=USAGE_MAX_KEYS_IN_FLIGHT)
+    @Getter @Setter private int maxKeysInFlight = 10000;
+
+    public static final String USAGE_ASYNC = "Copy each key as a chain of asynchronous S3 requests, instead of on a worker " +
+            "thread that waits for each request in turn. Keys in flight are limited by "+LONGOPT_MAX_KEYS_IN_FLIGHT+", not "+
+            LONGOPT_MAX_THREADS+". Applies to server-side copies of objects up to 5GB";
+    public static final String OPT_ASYNC = "-y";
+    public static final String LONGOPT_ASYNC = "--async";
+    @Option(name=OPT_ASYNC, aliases=LONGOPT_ASYNC, usage=USAGE_ASYNC)
+    @Getter @Setter private boolean async = false;
+
+    public static final String USAGE_ADAPTIVE = "Adjust the number of S3 requests in flight to what S3 allows: raise it " +
+            "while requests succeed, cut it when S3 throttles us. "+LONGOPT_MAX_THREADS+" becomes the ceiling";
+    public static final String OPT_ADAPTIVE = "-A";
+    public static final String LONGOPT_ADAPTIVE = "--adaptive";
+    @Option(name=OPT_ADAPTIVE, aliases=LONGOPT_ADAPTIVE, usage=USAGE_ADAPTIVE)
+    @Getter @Setter private boolean adaptive = false;
+
+    public static final String USAGE_RATE_LIMIT = "Limit requests and bytes per second, as a comma-separated list of " +
+            "[source.|dest.]name=rate where name is list, head, copy, delete or bytes, e.g. \"dest.copy=200,bytes=100M\". " +
+            "A limit without source. or dest. applies to both the source and the destination";
+    public static final String OPT_RATE_LIMIT = "-Q";
+    public static final String LONGOPT_RATE_LIMIT = "--rate-limit";
+    @Option(name=OPT_RATE_LIMIT, aliases=LONGOPT_RATE_LIMIT, usage=USAGE_RATE_LIMIT)
+    @Getter @Setter private String rateLimit;
+
+    public boolean hasRateLimit() { return rateLimit != null && rateLimit.trim().length() > 0; }
+
+    public static final String USAGE_METRICS_PORT = "Serve metrics (counters, queue depths and request latencies) in " +
+            "OpenMetrics/Prometheus format at http://localhost:PORT"+MetricsServer.PATH+" while running";
+    public static final String OPT_METRICS_PORT = "-M";
+    public static final String LONGOPT_METRICS_PORT = "--metrics-port";
+    @Option(name=OPT_METRICS_PORT, aliases=LONGOPT_METRICS_PORT, usage=USAGE_METRICS_PORT)
+    @Getter @Setter private int metricsPort = 0;
+
+    public boolean hasMetricsPort() { return metricsPort > 0; }
+
+    public static final String USAGE_QUEUE_MEMORY = "Approximate memory (in MB) to use for keys waiting to be processed, " +
+            "which sets how far listing can get ahead of copying (default 64)";
+    public static final String OPT_QUEUE_MEMORY = "-q";
+    public static final String LONGOPT_QUEUE_MEMORY = "--queue-memory";
+    @Option(name=OPT_QUEUE_MEMORY, aliases=LONGOPT_QUEUE_MEMORY, usage=USAGE_QUEUE_MEMORY)
+    @Getter @Setter private long queueMemory = 64;
+
+    public static final String USAGE_LIST_THREADS = "Number of threads used to list keys (default 1). With more than one, " +
+            "the key space is split into ranges that are listed concurrently";
+    public static final String OPT_LIST_THREADS = "-T";
+    public static final String LONGOPT_LIST_THREADS = "--list-threads";
+    @Option(name=OPT_LIST_THREADS, aliases=LONGOPT_LIST_THREADS, usage=USAGE_LIST_THREADS)
+    @Getter @Setter private int listThreads = 1;
+
     public static final String USAGE_MAX_RETRIES = "Maximum number of retries for S3 requests (default 5)";
     public static final String OPT_MAX_RETRIES = "-r";
     public static final String LONGOPT_MAX_RETRIES = "--max-retries";
     @Option(name=OPT_MAX_RETRIES, aliases=LONGOPT_MAX_RETRIES, usage=USAGE_MAX_RETRIES)
     @Getter @Setter private int maxRetries = 5;
+
+    public static final String USAGE_RETRY_BUDGET = "Retries allowed in a burst across all S3 requests (default 100). " +
+            "Each retry uses one, each successful request earns back a tenth of one; when none are left, failed requests " +
+            "are not retried";
+    public static final String OPT_RETRY_BUDGET = "-b";
+    public static final String LONGOPT_RETRY_BUDGET = "--retry-budget";
+    @Option(name=OPT_RETRY_BUDGET, aliases=LONGOPT_RETRY_BUDGET, usage=USAGE_RETRY_BUDGET)
+    @Getter @Setter private int retryBudget = 100;
+
+    public static final String USAGE_HEDGE = "Send a metadata request (HEAD or ACL) again if it has not been answered " +
+            "within the p95 latency of its kind, and use whichever answer comes first";
+    public static final String OPT_HEDGE = "-G";
+    public static final String LONGOPT_HEDGE = "--hedge";
+    @Option(name=OPT_HEDGE, aliases=LONGOPT_HEDGE, usage=USAGE_HEDGE)
+    @Getter @Setter private boolean hedge = false;
+
+    public static final String USAGE_COPY_DEADLINE = "Abort and resend any copy or copy-part attempt still running after " +
+            "this many seconds (raised for sizes whose copies are usually slower)";
+    public static final String OPT_COPY_DEADLINE = "-F";
+    public static final String LONGOPT_COPY_DEADLINE = "--copy-deadline";
+    @Option(name=OPT_COPY_DEADLINE, aliases=LONGOPT_COPY_DEADLINE, usage=USAGE_COPY_DEADLINE)
+    @Getter @Setter private int copyDeadline = 0;
+
+    public boolean hasCopyDeadline() { return copyDeadline > 0; }
     
     public static final String USAGE_SIZE_ONLY = "Only use object size when checking for equality and ignore etags";
     public static final String OPT_SIZE_ONLY = "-S";
@@ -197,24 +331,114 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_DELETE_REMOVED, aliases=LONGOPT_DELETE_REMOVED, usage=USAGE_DELETE_REMOVED)
     @Getter @Setter private boolean deleteRemoved = false;
 
-    @Argument(index=0, required=true, usage="source bucket[/source/prefix]") @Getter @Setter private String source;
-    @Argument(index=1, required=true, usage="destination bucket[/dest/prefix]") @Getter @Setter private String destination;
+    public static final String USAGE_LISTING_DIFF = "List the source and destination together and compare their listings, " +
+            "instead of requesting metadata for every key in the destination. Much faster when most objects are unchanged";
+    public static final String OPT_LISTING_DIFF = "-D";
+    public static final String LONGOPT_LISTING_DIFF = "--listing-diff";
+    @Option(name=OPT_LISTING_DIFF, aliases=LONGOPT_LISTING_DIFF, usage=USAGE_LISTING_DIFF)
+    @Getter @Setter private boolean listingDiff = false;
+
+    public static final String USAGE_COORDINATOR = "Do not mirror anything, but split the source's keys into ranges and " +
+            "lease them to workers (see --worker) that connect to this port. Exits once every range has been mirrored";
+    public static final String OPT_COORDINATOR = "-N";
+    public static final String LONGOPT_COORDINATOR = "--coordinator";
+    @Option(name=OPT_COORDINATOR, aliases=LONGOPT_COORDINATOR, usage=USAGE_COORDINATOR)
+    @Getter @Setter private int coordinatorPort = 0;
+
+    public boolean isCoordinator() { return coordinatorPort > 0; }
+
+    public static final String USAGE_WORKER = "Mirror only the ranges of keys leased from the coordinator at this host:port " +
+            "(see "+LONGOPT_COORDINATOR+"), until every range has been mirrored";
+    public static final String OPT_WORKER = "-w";
+    public static final String LONGOPT_WORKER = "--worker";
+    @Option(name=OPT_WORKER, aliases=LONGOPT_WORKER, usage=USAGE_WORKER)
+    @Getter @Setter private String worker;
+
+    public boolean isWorker() { return worker != null; }
+
+    public static final String USAGE_SHARD = "Mirror only shard i of N (for example 2/4): run N processes, each with its own " +
+            "shard from 1 to N, and between them they mirror everything. Top-level folders under the prefix (or keys, " +
+            "if there are none) are split among the shards by a hash of their name";
+    public static final String OPT_SHARD = "-g";
+    public static final String LONGOPT_SHARD = "--shard";
+    @Option(name=OPT_SHARD, aliases=LONGOPT_SHARD, usage=USAGE_SHARD)
+    @Getter @Setter private String shard;
+
+    public boolean hasShard() { return shard != null; }
+
+    // from --shard: the shard to mirror, from 0, and how many there are
+    @Getter private int shardIndex = 0;
+    @Getter private int shardCount = 1;
+
+    public static final String USAGE_STATS_FILE = "When the run ends, write its stats to this file. The files written by " +
+            "the shards of a run can be combined into one report with: java -cp s3s3mirror-VERSION.jar org.cobbzilla.s3s3mirror.StatsMerge FILE...";
+    public static final String OPT_STATS_FILE = "-f";
+    public static final String LONGOPT_STATS_FILE = "--stats-file";
+    @Option(name=OPT_STATS_FILE, aliases=LONGOPT_STATS_FILE, usage=USAGE_STATS_FILE)
+    @Getter @Setter private File statsFile;
+
+    public boolean hasStatsFile() { return statsFile != null; }
+
+    public static final String USAGE_EXISTENCE_FILTER = "Before mirroring, list the destination and build a Bloom filter of " +
+            "its keys, with this false positive rate (for example 0.01). Keys the filter has never seen are copied without " +
+            "first asking the destination about them. Saves a request per key when the destination is empty or sparse";
+    public static final String OPT_EXISTENCE_FILTER = "-Z";
+    public static final String LONGOPT_EXISTENCE_FILTER = "--existence-filter";
+    @Option(name=OPT_EXISTENCE_FILTER, aliases=LONGOPT_EXISTENCE_FILTER, usage=USAGE_EXISTENCE_FILTER)
+    @Getter @Setter private double existenceFilter = 0;
+
+    public boolean hasExistenceFilter() { return existenceFilter != 0; }
+
+    public static final String USAGE_LANES = "Queue small copies, large copies (over 128MB, or sent in parts) and deletes in " +
+            "separate lanes, as a comma-separated list of lane=weight[/cap], e.g. \"small=6,large=3/4,delete=1/2\". Workers " +
+            "are shared out by weight, no lane runs more than its cap of jobs at once, and workers with nothing to do in " +
+            "their own lane help the others. Lanes not listed have a weight of 1 and no cap";
+    public static final String OPT_LANES = "-U";
+    public static final String LONGOPT_LANES = "--lanes";
+    @Option(name=OPT_LANES, aliases=LONGOPT_LANES, usage=USAGE_LANES)
+    @Getter @Setter private String lanes;
+
+    public boolean hasLanes() { return lanes != null && lanes.trim().length() > 0; }
+
+    @Argument(index=0, required=true, usage="source bucket[/source/prefix], or file:///source/directory") @Getter @Setter private String source;
+    @Argument(index=1, required=true, usage="destination bucket[/dest/prefix], or file:///destination/directory") @Getter @Setter private String destination;
 
     @Getter private String sourceBucket;
     @Getter private String destinationBucket;
 
+    // null unless the source is a local directory (file://)
+    @Getter private File sourceDirectory;
+    public boolean hasSourceDirectory() { return sourceDirectory != null; }
+
+    // null unless the destination is a local directory (file://)
+    @Getter private File destinationDirectory;
+    public boolean hasDestinationDirectory() { return destinationDirectory != null; }
+
     /**
      * Current max file size allowed in amazon is 5 GB. We can try and provide this as an option too.
      */
     public static final long MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE = 5 * GB;
-    private static final long DEFAULT_PART_SIZE = 4 * GB;
+
+    public static final String USAGE_MAX_PARTS_IN_FLIGHT = "Maximum number of parts of multipart copies that can be copied at the same time, " +
+            "across all objects (default 100)";
+    public static final String OPT_MAX_PARTS_IN_FLIGHT = "-k";
+    public static final String LONGOPT_MAX_PARTS_IN_FLIGHT = "--max-parts-in-flight";
+    @Option(name=OPT_MAX_PARTS_IN_FLIGHT, aliases=LONGOPT_MAX_PARTS_IN_FLIGHT, usage=USAGE_MAX_PARTS_IN_FLIGHT)
+    @Getter @Setter private int maxPartsInFlight = 100;
+
+    public static final long MIN_PART_SIZE = 5 * MB;
+    public static final long MAX_PART_SIZE = 5 * GB;
+    public static final int MAX_PARTS = 10000;
     private static final String MULTI_PART_UPLOAD_SIZE_USAGE = "The upload size (in bytes) of each part uploaded as part of a multipart request " +
             "for files that are greater than the max allowed file size of " + MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE + " bytes ("+(MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE/GB)+"GB). " +
-            "Defaults to " + DEFAULT_PART_SIZE + " bytes ("+(DEFAULT_PART_SIZE/GB)+"GB).";
+            "By default the part size is chosen from the object size, so that its parts can all be copied at once (see "+LONGOPT_MAX_PARTS_IN_FLIGHT+"). " +
+            "When streaming (see "+LONGOPT_STREAM+") or uploading local files, objects up to this size are uploaded whole, and larger ones " +
+            "are read and uploaded in parts of this size; the default is then "+(UploadKeyCopyJob.DEFAULT_PART_SIZE/MB)+"MB. " +
+            "The part size is always raised if needed to stay within the limit of " + MAX_PARTS + " parts.";
     private static final String OPT_MULTI_PART_UPLOAD_SIZE = "-u";
     private static final String LONGOPT_MULTI_PART_UPLOAD_SIZE = "--upload-part-size";
     @Option(name=OPT_MULTI_PART_UPLOAD_SIZE, aliases=LONGOPT_MULTI_PART_UPLOAD_SIZE, usage=MULTI_PART_UPLOAD_SIZE_USAGE)
-    @Getter @Setter private long uploadPartSize = DEFAULT_PART_SIZE;
+    @Getter @Setter private long uploadPartSize = 0;
 
     private static final String CROSS_ACCOUNT_USAGE ="Copy across AWS accounts. Only Resource-based policies are supported (as " +
             "specified by AWS documentation) for cross account copying. " +
@@ -225,8 +449,112 @@ public class MirrorOptions implements AWSCredentials {
     @Option(name=OPT_CROSS_ACCOUNT_COPY, aliases=LONGOPT_CROSS_ACCOUNT_COPY, usage=CROSS_ACCOUNT_USAGE)
     @Getter @Setter private boolean crossAccountCopy = false;
 
+    public static final String USAGE_INDEX = "File holding an index of the destination (created if it does not exist). " +
+            "Keys found in the index are compared against it instead of asking S3 for their metadata, and the index is " +
+            "updated with everything copied, deleted or checked";
+    public static final String OPT_INDEX = "-I";
+    public static final String LONGOPT_INDEX = "--index";
+    @Option(name=OPT_INDEX, aliases=LONGOPT_INDEX, usage=USAGE_INDEX)
+    @Getter @Setter private File index;
+
+    public boolean hasIndex() { return index != null; }
+
+    public static final String USAGE_VERIFY_INDEX = "Before mirroring, list the destination and correct the "+LONGOPT_INDEX+" file " +
+            "wherever it disagrees with what is actually there";
+    public static final String OPT_VERIFY_INDEX = "-Y";
+    public static final String LONGOPT_VERIFY_INDEX = "--verify-index";
+    @Option(name=OPT_VERIFY_INDEX, aliases=LONGOPT_VERIFY_INDEX, usage=USAGE_VERIFY_INDEX)
+    @Getter @Setter private boolean verifyIndex = false;
+
+    public static final String USAGE_CHECKPOINT = "Record progress in this file as the mirror runs, so that a run " +
+            "that dies (or has keys that fail) can be continued with --resume. The file is deleted when the run completes " +
+            "with no failed keys";
+    public static final String OPT_CHECKPOINT = "-J";
+    public static final String LONGOPT_CHECKPOINT = "--checkpoint";
+    @Option(name=OPT_CHECKPOINT, aliases=LONGOPT_CHECKPOINT, usage=USAGE_CHECKPOINT)
+    @Getter @Setter private File checkpoint;
+
+    public boolean hasCheckpoint() { return checkpoint != null; }
+
+    public static final String USAGE_RESUME = "Continue the run recorded in the "+LONGOPT_CHECKPOINT+" file: keys that " +
+            "failed are tried again, listing starts after the last key before which everything was done or failed, and " +
+            "keys already done after that are skipped";
+    public static final String OPT_RESUME = "-R";
+    public static final String LONGOPT_RESUME = "--resume";
+    @Option(name=OPT_RESUME, aliases=LONGOPT_RESUME, usage=USAGE_RESUME)
+    @Getter @Setter private boolean resume = false;
+
+    public static final String USAGE_ACL = "ACL to give copied objects: \""+AclPolicyFactory.ACL_COPY+"\" (default) copies " +
+            "each object's ACL from the source, \""+AclPolicyFactory.ACL_NONE+"\" sends no ACL so the destination bucket's " +
+            "default applies (use this if the bucket's Object Ownership is \"bucket owner enforced\"), or a canned ACL " +
+            "such as \"private\" or \"bucket-owner-full-control\". Anything but \""+AclPolicyFactory.ACL_COPY+"\" saves a " +
+            "request per object";
+    public static final String OPT_ACL = "-a";
+    public static final String LONGOPT_ACL = "--acl";
+    @Option(name=OPT_ACL, aliases=LONGOPT_ACL, usage=USAGE_ACL)
+    @Getter @Setter private String acl = AclPolicyFactory.ACL_COPY;
+
+    public static final String USAGE_MD5_CACHE = "When the source is a local directory, keep the MD5s (ETags) of its files " +
+            "in this file, so that files whose size and modification time have not changed are not read again to compare " +
+            "them with the destination";
+    public static final String OPT_MD5_CACHE = "-H";
+    public static final String LONGOPT_MD5_CACHE = "--md5-cache";
+    @Option(name=OPT_MD5_CACHE, aliases=LONGOPT_MD5_CACHE, usage=USAGE_MD5_CACHE)
+    @Getter @Setter private File md5Cache;
+
+    public boolean hasMd5Cache() { return md5Cache != null; }
+
+    private void initShard() {
+        final int slash = shard.indexOf('/');
+        try {
+            if (slash <= 0) throw new NumberFormatException();
+            shardIndex = Integer.parseInt(shard.substring(0, slash).trim()) - 1;
+            shardCount = Integer.parseInt(shard.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid "+LONGOPT_SHARD+" ("+shard+"), please use i/N, for example 2/4");
+        }
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Invalid "+LONGOPT_SHARD+" ("+shard+"), the shard must be from 1 to "+shardCount);
+        }
+        // each shard is listed in key order by one thread, and the coordinator splits keys its own way
+        if (hasCheckpoint() || listThreads > 1 || isCoordinator() || isWorker()) {
+            throw new IllegalArgumentException(LONGOPT_SHARD+" cannot be used with "+LONGOPT_CHECKPOINT+", "+LONGOPT_COORDINATOR+", "+
+                    LONGOPT_WORKER+" or more than one of "+LONGOPT_LIST_THREADS);
+        }
+    }
+
     public void initDerivedFields() {
 
+        if (resume && !hasCheckpoint()) throw new IllegalArgumentException(LONGOPT_RESUME+" requires "+LONGOPT_CHECKPOINT);
+        // progress is tracked in listing order, which needs a single ordered listing per master
+        if (hasCheckpoint() && (listingDiff || listThreads > 1)) {
+            throw new IllegalArgumentException(LONGOPT_CHECKPOINT+" cannot be used with "+LONGOPT_LISTING_DIFF+" or with more than one of "+LONGOPT_LIST_THREADS);
+        }
+        if (verifyIndex && !hasIndex()) throw new IllegalArgumentException(LONGOPT_VERIFY_INDEX+" requires "+LONGOPT_INDEX);
+        if (!AclPolicyFactory.isValid(acl)) throw new IllegalArgumentException("Invalid "+LONGOPT_ACL+": "+acl);
+        if (hasRateLimit()) RateLimits.parse(rateLimit);
+        if (isCoordinator() && isWorker()) throw new IllegalArgumentException("Cannot be both a coordinator and a worker");
+        if (coordinatorPort < 0 || coordinatorPort > 65535) throw new IllegalArgumentException("Invalid "+LONGOPT_COORDINATOR+" port: "+coordinatorPort);
+        if (isWorker()) new LeaseClient(worker); // checks the address
+        // ranges are listed in key order, one at a time, and progress is tracked by the coordinator
+        if ((isCoordinator() || isWorker()) && (hasCheckpoint() || listingDiff || listThreads > 1)) {
+            throw new IllegalArgumentException(LONGOPT_COORDINATOR+" and "+LONGOPT_WORKER+" cannot be used with "+LONGOPT_CHECKPOINT+", "+
+                    LONGOPT_LISTING_DIFF+" or more than one of "+LONGOPT_LIST_THREADS);
+        }
+        if (hasShard()) initShard();
+        if (hasLanes()) new LaneScheduler(lanes, maxThreads, 1); // checks the spec
+        if (hasExistenceFilter()) {
+            if (existenceFilter <= 0 || existenceFilter >= 1) {
+                throw new IllegalArgumentException(LONGOPT_EXISTENCE_FILTER+" must be a false positive rate between 0 and 1, for example 0.01");
+            }
+            // the listings are compared directly, nothing is asked about key by key
+            if (listingDiff) throw new IllegalArgumentException(LONGOPT_EXISTENCE_FILTER+" cannot be used with "+LONGOPT_LISTING_DIFF);
+        }
+        if (async && maxKeysInFlight < 1) throw new IllegalArgumentException(LONGOPT_MAX_KEYS_IN_FLIGHT+" must be at least 1");
+        if (isStream() && streamMemory * MB < MIN_PART_SIZE) {
+            throw new IllegalArgumentException(LONGOPT_STREAM_MEMORY+" must be at least "+(MIN_PART_SIZE / MB)+" (MB)");
+        }
+
         if (hasCtime()) {
             this.maxAge = initMaxAge();
             this.maxAgeDate = new Date(maxAge).toString();
@@ -235,24 +563,57 @@ public class MirrorOptions implements AWSCredentials {
         String scrubbed;
         int slashPos;
 
-        scrubbed = scrubS3ProtocolPrefix(source);
-        slashPos = scrubbed.indexOf('/');
-        if (slashPos == -1) {
-            sourceBucket = scrubbed;
-        } else {
-            sourceBucket = scrubbed.substring(0, slashPos);
-            if (hasPrefix()) throw new IllegalArgumentException("Cannot use a "+OPT_PREFIX+"/"+LONGOPT_PREFIX+" argument and source path that includes a prefix at the same time");
-            prefix = scrubbed.substring(slashPos+1);
+        if (source.trim().startsWith(FILE_PROTOCOL_PREFIX)) {
+            sourceDirectory = new File(source.trim().substring(FILE_PROTOCOL_PREFIX.length()));
+            if (!sourceDirectory.isDirectory()) throw new IllegalArgumentException("Source directory does not exist: "+sourceDirectory);
+            // files are walked in no particular order, so there is no listing to compare or resume
+            if (listingDiff || hasCheckpoint() || isCoordinator() || isWorker() || hasShard()) {
+                throw new IllegalArgumentException("A local source cannot be used with "+LONGOPT_LISTING_DIFF+", "+LONGOPT_CHECKPOINT+", "+
+                        LONGOPT_COORDINATOR+", "+LONGOPT_WORKER+" or "+LONGOPT_SHARD);
+            }
+        } else if (hasMd5Cache()) {
+            throw new IllegalArgumentException(LONGOPT_MD5_CACHE+" requires a local source directory");
+        }
+
+        if (destination.trim().startsWith(FILE_PROTOCOL_PREFIX)) {
+            if (hasSourceDirectory()) throw new IllegalArgumentException("The source and destination cannot both be local directories");
+            destinationDirectory = new File(destination.trim().substring(FILE_PROTOCOL_PREFIX.length()));
+            // a missing directory is created when the run starts, not while parsing options
+            if (destinationDirectory.exists() && !destinationDirectory.isDirectory()) {
+                throw new IllegalArgumentException("Destination is not a directory: "+destinationDirectory);
+            }
+            // there is no bucket to list, keep an index of or connect to, and local files are walked in no particular order
+            if (listingDiff || hasIndex() || hasDestClient() || (hasCheckpoint() && deleteRemoved) || isCoordinator() || isWorker() || hasShard()
+                    || hasExistenceFilter()) {
+                throw new IllegalArgumentException("A local destination cannot be used with "+LONGOPT_LISTING_DIFF+", "+LONGOPT_INDEX+", "+
+                        LONGOPT_DEST_ENDPOINT+", "+LONGOPT_DEST_PROFILE+", "+LONGOPT_COORDINATOR+", "+LONGOPT_WORKER+", "+LONGOPT_SHARD+", "+
+                        LONGOPT_EXISTENCE_FILTER+" or "+
+                        LONGOPT_CHECKPOINT+" with "+LONGOPT_DELETE_REMOVED);
+            }
+        }
+
+        if (!hasSourceDirectory()) {
+            scrubbed = scrubS3ProtocolPrefix(source);
+            slashPos = scrubbed.indexOf('/');
+            if (slashPos == -1) {
+                sourceBucket = scrubbed;
+            } else {
+                sourceBucket = scrubbed.substring(0, slashPos);
+                if (hasPrefix()) throw new IllegalArgumentException("Cannot use a "+OPT_PREFIX+"/"+LONGOPT_PREFIX+" argument and source path that includes a prefix at the same time");
+                prefix = scrubbed.substring(slashPos+1);
+            }
         }
 
-        scrubbed = scrubS3ProtocolPrefix(destination);
-        slashPos = scrubbed.indexOf('/');
-        if (slashPos == -1) {
-            destinationBucket = scrubbed;
-        } else {
-            destinationBucket = scrubbed.substring(0, slashPos);
-            if (hasDestPrefix()) throw new IllegalArgumentException("Cannot use a "+OPT_DEST_PREFIX+"/"+LONGOPT_DEST_PREFIX+" argument and destination path that includes a dest-prefix at the same time");
-            destPrefix = scrubbed.substring(slashPos+1);
+        if (!hasDestinationDirectory()) {
+            scrubbed = scrubS3ProtocolPrefix(destination);
+            slashPos = scrubbed.indexOf('/');
+            if (slashPos == -1) {
+                destinationBucket = scrubbed;
+            } else {
+                destinationBucket = scrubbed.substring(0, slashPos);
+                if (hasDestPrefix()) throw new IllegalArgumentException("Cannot use a "+OPT_DEST_PREFIX+"/"+LONGOPT_DEST_PREFIX+" argument and destination path that includes a dest-prefix at the same time");
+                destPrefix = scrubbed.substring(slashPos+1);
+            }
         }
     }
 
@@ -3,6 +3,10 @@ package org.cobbzilla.s3s3mirror;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -21,6 +25,8 @@ public class MirrorStats {
     }
 
     private long start = System.currentTimeMillis();
+    // set on stats loaded from a file, whose run is over
+    private long end = 0;
 
     public final AtomicLong objectsRead = new AtomicLong(0);
     public final AtomicLong objectsCopied = new AtomicLong(0);
@@ -30,15 +36,167 @@ public class MirrorStats {
 
     public final AtomicLong s3copyCount = new AtomicLong(0);
     public final AtomicLong s3deleteCount = new AtomicLong(0);
+    public final AtomicLong deleteBatches = new AtomicLong(0);
+    public final AtomicLong deleteBatchKeys = new AtomicLong(0);
     public final AtomicLong s3getCount = new AtomicLong(0);
+    public final AtomicLong s3throttleCount = new AtomicLong(0);
+    public final AtomicLong s3retryCount = new AtomicLong(0);
+    public final AtomicLong s3throttledRetryCount = new AtomicLong(0);
+    public final AtomicLong s3retriesExhausted = new AtomicLong(0);
+    public final AtomicLong s3retryBudgetExhausted = new AtomicLong(0);
+    public final AtomicLong s3fatalErrors = new AtomicLong(0);
+    public final AtomicLong rateLimitWaits = new AtomicLong(0);
+    public final AtomicLong rateLimitWaitMillis = new AtomicLong(0);
+    public final AtomicLong s3hedgedRequests = new AtomicLong(0);
+    public final AtomicLong s3hedgeWins = new AtomicLong(0);
+    public final AtomicLong s3stalledRequests = new AtomicLong(0);
+    public final AtomicLong headsSkipped = new AtomicLong(0);
     public final AtomicLong bytesCopied = new AtomicLong(0);
 
+    // latency of each kind of request, and of copies by object size (up to each of COPY_SIZE_CLASSES, then larger)
+    private final LatencyHistogram[] latencies = new LatencyHistogram[S3Operation.values().length];
+    private final LatencyHistogram[] copyLatenciesBySize = new LatencyHistogram[COPY_SIZE_CLASSES.length + 1];
+    {
+        for (int i=0; i<latencies.length; i++) latencies[i] = new LatencyHistogram();
+        for (int i=0; i<copyLatenciesBySize.length; i++) copyLatenciesBySize[i] = new LatencyHistogram();
+    }
+
+    public static final long[] COPY_SIZE_CLASSES = {MB, 16*MB, 128*MB, GB};
+
+    public LatencyHistogram getLatency(S3Operation operation) { return latencies[operation.ordinal()]; }
+
+    /**
+     * @return the histogram for copies of objects of this size
+     */
+    public LatencyHistogram getCopyLatency(long size) {
+        int i = 0;
+        while (i < COPY_SIZE_CLASSES.length && size > COPY_SIZE_CLASSES[i]) i++;
+        return copyLatenciesBySize[i];
+    }
+
+    public LatencyHistogram getCopyLatencyBySizeClass(int sizeClass) { return copyLatenciesBySize[sizeClass]; }
+
+    /**
+     * A value sampled when stats are reported, such as how many jobs are queued.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final Map<String, Gauge> gauges = Collections.synchronizedMap(new LinkedHashMap<String, Gauge>());
+
+    public void addGauge(String name, Gauge gauge) { gauges.put(name, gauge); }
+
+    public void removeGauge(String name) { gauges.remove(name); }
+
+    public Map<String, Gauge> getGauges() {
+        synchronized (gauges) {
+            return new LinkedHashMap<String, Gauge>(gauges);
+        }
+    }
+
+    private static final String START = "start";
+    private static final String END = "end";
+    private static final String LATENCY = "latency.";
+    private static final String COPY_LATENCY = "copyLatencyBySize.";
+
+    private static List<Field> getCounters() {
+        final List<Field> counters = new ArrayList<Field>();
+        for (Field field : MirrorStats.class.getFields()) {
+            if (field.getType() == AtomicLong.class && !Modifier.isStatic(field.getModifiers())) counters.add(field);
+        }
+        return counters;
+    }
+
+    private static AtomicLong getCounter(MirrorStats stats, Field field) {
+        try {
+            return (AtomicLong) field.get(stats);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("cannot read counter "+field.getName()+": "+e, e);
+        }
+    }
+
+    /**
+     * Writes the counters and latency histograms to a properties file, so that the stats of the shards of a run
+     * (--shard) can be combined by StatsMerge.
+     */
+    public void save(File file) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(START, String.valueOf(start));
+        props.setProperty(END, String.valueOf(end == 0 ? System.currentTimeMillis() : end));
+        for (Field field : getCounters()) props.setProperty(field.getName(), String.valueOf(getCounter(this, field).get()));
+        for (S3Operation operation : S3Operation.values()) {
+            props.setProperty(LATENCY + operation.name(), getLatency(operation).toText());
+        }
+        for (int i=0; i<copyLatenciesBySize.length; i++) props.setProperty(COPY_LATENCY + i, copyLatenciesBySize[i].toText());
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, "s3s3mirror stats");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads stats written by save. Anything missing from the file (such as a counter added since) is zero.
+     */
+    public static MirrorStats load(File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        final MirrorStats stats = new MirrorStats();
+        try {
+            stats.start = Long.parseLong(props.getProperty(START, "0"));
+            stats.end = Long.parseLong(props.getProperty(END, "0"));
+            for (Field field : getCounters()) {
+                final String value = props.getProperty(field.getName());
+                if (value != null) getCounter(stats, field).set(Long.parseLong(value));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid stats file "+file+": "+e, e);
+        }
+        for (S3Operation operation : S3Operation.values()) {
+            final String text = props.getProperty(LATENCY + operation.name());
+            if (text != null) stats.latencies[operation.ordinal()] = parseHistogram(file, text);
+        }
+        for (int i=0; i<stats.copyLatenciesBySize.length; i++) {
+            final String text = props.getProperty(COPY_LATENCY + i);
+            if (text != null) stats.copyLatenciesBySize[i] = parseHistogram(file, text);
+        }
+        return stats;
+    }
+
+    private static LatencyHistogram parseHistogram(File file, String text) throws IOException {
+        try {
+            return LatencyHistogram.fromText(text);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid stats file "+file+": "+e, e);
+        }
+    }
+
+    /**
+     * Adds the counters and latencies of another run (a shard run alongside this one) to these stats. The duration
+     * becomes that from the earlier start to the later end.
+     */
+    public void add(MirrorStats other) {
+        for (Field field : getCounters()) getCounter(this, field).addAndGet(getCounter(other, field).get());
+        for (int i=0; i<latencies.length; i++) latencies[i].add(other.latencies[i]);
+        for (int i=0; i<copyLatenciesBySize.length; i++) copyLatenciesBySize[i].add(other.copyLatenciesBySize[i]);
+        final long otherEnd = other.end == 0 ? System.currentTimeMillis() : other.end;
+        start = Math.min(start, other.start);
+        end = Math.max(end == 0 ? System.currentTimeMillis() : end, otherEnd);
+    }
+
     public static final long HOUR = TimeUnit.HOURS.toMillis(1);
     public static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
     public static final long SECOND = TimeUnit.SECONDS.toMillis(1);
 
     public String toString () {
-        final long durationMillis = System.currentTimeMillis() - start;
+        final long durationMillis = (end == 0 ? System.currentTimeMillis() : end) - start;
         final double durationMinutes = durationMillis / 60000.0d;
         final String duration = String.format("%d:%02d:%02d", durationMillis / HOUR, (durationMillis % HOUR) / MINUTE, (durationMillis % MINUTE) / SECOND);
         final double readRate = objectsRead.get() / durationMinutes;
@@ -56,7 +214,40 @@ public class MirrorStats {
                 + "bytes copied: "+formatBytes(bytesCopied.get())+"\n"
                 + "GET operations: "+s3getCount+"\n"
                 + "COPY operations: "+ s3copyCount+"\n"
-                + "DELETE operations: "+ s3deleteCount+"\n";
+                + "DELETE operations: "+ s3deleteCount+"\n"
+                + "DELETE batches: "+ deleteBatches+" (avg keys per batch: "+getAverageDeleteBatchSize()+")\n"
+                + "throttled requests: "+ s3throttleCount+"\n"
+                + "retries: "+ s3retryCount+" (after throttling: "+s3throttledRetryCount+")\n"
+                + "gave up after max retries: "+ s3retriesExhausted+"\n"
+                + "not retried (retry budget used up): "+ s3retryBudgetExhausted+"\n"
+                + "non-retryable errors: "+ s3fatalErrors+"\n"
+                + "requests held by rate limits: "+ rateLimitWaits+" (total wait: "+rateLimitWaitMillis+"ms)\n"
+                + "hedged requests: "+ s3hedgedRequests+" (hedge answered first: "+s3hedgeWins+")\n"
+                + "stalled copies sent again: "+ s3stalledRequests+"\n"
+                + "destination lookups skipped (not in existence filter): "+ headsSkipped+"\n"
+                + getLatencySummary();
+    }
+
+    private String getLatencySummary() {
+        final StringBuilder b = new StringBuilder();
+        for (S3Operation operation : S3Operation.values()) {
+            final LatencyHistogram latency = getLatency(operation);
+            if (latency.getCount() == 0) continue;
+            b.append(operation.getLabel()).append(" latency: p50=").append(formatMicros(latency.getValueAtQuantile(0.5)))
+                    .append(" p99=").append(formatMicros(latency.getValueAtQuantile(0.99)))
+                    .append(" max=").append(formatMicros(latency.getMaxMicros()))
+                    .append(" (").append(latency.getCount()).append(" requests)\n");
+        }
+        return b.toString();
+    }
+
+    private String formatMicros(long micros) {
+        return micros < 10000 ? (micros / 1000.0d) + "ms" : (micros / 1000) + "ms";
+    }
+
+    private long getAverageDeleteBatchSize() {
+        final long batches = deleteBatches.get();
+        return batches == 0 ? 0 : deleteBatchKeys.get() / batches;
     }
 
     private String formatBytes(long bytesCopied) {
@@ -3,93 +3,169 @@ package org.cobbzilla.s3s3mirror;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
 
 @Slf4j
 public class MultipartKeyCopyJob extends KeyCopyJob {
 
-    public MultipartKeyCopyJob(AmazonS3Client client, MirrorContext context, S3ObjectSummary summary, Object notifyLock, ComparisonStrategy comparisonStrategy) {
-        super(client, context, summary, notifyLock, comparisonStrategy);
+    private final PartCopyScheduler partScheduler;
+
+    public MultipartKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy, AclPolicy aclPolicy, PartCopyScheduler partScheduler) {
+        super(client, context, record, comparisonStrategy, aclPolicy);
+        this.partScheduler = partScheduler;
+    }
+
+    /**
+     * Picks a part size that lets all parts of the object be copied at once (up to the given parallelism),
+     * within S3's limits on part size and part count.
+     * @param objectSize size of the object being copied
+     * @param configuredPartSize part size requested with --upload-part-size, or 0 to choose one from the object size
+     * @param parallelism how many parts we would like to be able to copy at the same time
+     */
+    public static long getPartSize(long objectSize, long configuredPartSize, int parallelism) {
+        long partSize = configuredPartSize > 0 ? configuredPartSize : ceilDiv(objectSize, Math.max(1, parallelism));
+        partSize = Math.max(partSize, ceilDiv(objectSize, MAX_PARTS));
+        partSize = Math.max(partSize, MIN_PART_SIZE);
+        return Math.min(partSize, MAX_PART_SIZE);
     }
 
+    private static long ceilDiv(long x, long y) { return (x + y - 1) / y; }
+
     @Override
     boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
-        long objectSize = summary.getSize();
-        MirrorOptions options = context.getOptions();
-        String sourceBucketName = options.getSourceBucket();
-        int maxPartRetries = options.getMaxRetries();
-        String targetBucketName = options.getDestinationBucket();
-        List<CopyPartResult> copyResponses = new ArrayList<CopyPartResult>();
+        final long objectSize = record.getSize();
+        final MirrorOptions options = context.getOptions();
+        final String targetBucketName = options.getDestinationBucket();
         if (options.isVerbose()) {
-            log.info("Initiating multipart upload request for " + summary.getKey());
+            log.info("Initiating multipart upload request for " + record.getKey());
         }
-        InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
                 .withObjectMetadata(sourceMetadata);
 
-        if (options.isCrossAccountCopy()) {
-            initiateRequest.withAccessControlList(buildCrossAccountAcl(objectAcl));
-        } else {
+        if (objectAcl != null) {
             initiateRequest.withAccessControlList(objectAcl);
+        } else if (aclPolicy.getCannedAcl() != null) {
+            initiateRequest.withCannedACL(aclPolicy.getCannedAcl());
         }
 
-        InitiateMultipartUploadResult initResult = client.initiateMultipartUpload(initiateRequest);
+        final Retrier retrier = context.getRetrier();
+        final String uploadId;
+        try {
+            uploadId = retrier.call("initiating multipart upload of " + keydest, new Retrier.Call<String>() {
+                @Override public String call() {
+                    return client.initiateMultipartUpload(initiateRequest).getUploadId();
+                }
+            });
+        } catch (Exception e) {
+            log.error("error initiating multipart upload of " + keydest + ": " + e);
+            return false;
+        }
 
-        long partSize = options.getUploadPartSize();
-        long bytePosition = 0;
+        final long partSize = getPartSize(objectSize, options.getUploadPartSize(), partScheduler.getMaxPartsInFlight());
+        if (options.isVerbose()) log.info("copying " + record.getKey() + " in parts of " + partSize + " bytes");
 
+        final List<Future<CopyPartResult>> parts = new ArrayList<Future<CopyPartResult>>();
+        long bytePosition = 0;
         for (int i = 1; bytePosition < objectSize; i++) {
-            long lastByte = bytePosition + partSize - 1 >= objectSize ? objectSize - 1 : bytePosition + partSize - 1;
-            String infoMessage = "copying : " + bytePosition + " to " + lastByte;
-            if (options.isVerbose()) {
-                log.info(infoMessage);
+            final long lastByte = bytePosition + partSize - 1 >= objectSize ? objectSize - 1 : bytePosition + partSize - 1;
+            parts.add(partScheduler.submit(new PartCopy(uploadId, i, bytePosition, lastByte)));
+            bytePosition += partSize;
+        }
+
+        final List<PartETag> eTags = new ArrayList<PartETag>(parts.size());
+        try {
+            for (Future<CopyPartResult> part : parts) {
+                final CopyPartResult result = part.get();
+                eTags.add(new PartETag(result.getPartNumber(), result.getETag()));
             }
-            CopyPartRequest copyRequest = new CopyPartRequest()
-                    .withDestinationBucketName(targetBucketName)
-                    .withDestinationKey(keydest)
-                    .withSourceBucketName(sourceBucketName)
-                    .withSourceKey(summary.getKey())
-                    .withUploadId(initResult.getUploadId())
-                    .withFirstByte(bytePosition)
-                    .withLastByte(lastByte)
-                    .withPartNumber(i);
+        } catch (Exception e) {
+            for (Future<CopyPartResult> part : parts) part.cancel(true);
+            final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            log.error("Exception while doing multipart copy", cause);
+            abort(uploadId);
+            return false;
+        }
 
-            for (int tries = 1; tries <= maxPartRetries; tries++) {
-                try {
-                    if (options.isVerbose()) log.info("try :" + tries);
-                    context.getStats().s3copyCount.incrementAndGet();
-                    CopyPartResult copyPartResult = client.copyPart(copyRequest);
-                    copyResponses.add(copyPartResult);
-                    if (options.isVerbose()) log.info("completed " + infoMessage);
-                    break;
-                } catch (Exception e) {
-                    if (tries == maxPartRetries) {
-                        client.abortMultipartUpload(new AbortMultipartUploadRequest(
-                                targetBucketName, keydest, initResult.getUploadId()));
-                        log.error("Exception while doing multipart copy", e);
-                        return false;
-                    }
+        final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(targetBucketName, keydest, uploadId, eTags);
+        final CompleteMultipartUploadResult completeResult;
+        try {
+            completeResult = retrier.call("completing multipart upload of " + keydest, new Retrier.Call<CompleteMultipartUploadResult>() {
+                @Override public CompleteMultipartUploadResult call() {
+                    return client.completeMultipartUpload(completeRequest);
                 }
-            }
-            bytePosition += partSize;
+            });
+        } catch (Exception e) {
+            log.error("error completing multipart upload of " + keydest + ": " + e);
+            abort(uploadId);
+            return false;
         }
-        CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(targetBucketName, keydest,
-                initResult.getUploadId(), getETags(copyResponses));
-        client.completeMultipartUpload(completeRequest);
         if(options.isVerbose()) {
-            log.info("completed multipart request for : " + summary.getKey());
+            log.info("completed multipart request for : " + record.getKey());
         }
         context.getStats().bytesCopied.addAndGet(objectSize);
+        // the result has no last-modified date, but multipart copies are only compared by size
+        indexCopy(completeResult.getETag(), new Date());
         return true;
     }
 
-    private List<PartETag> getETags(List<CopyPartResult> copyResponses) {
-        List<PartETag> eTags = new ArrayList<PartETag>();
-        for (CopyPartResult response : copyResponses) {
-            eTags.add(new PartETag(response.getPartNumber(), response.getETag()));
+    private void abort(String uploadId) {
+        final AbortMultipartUploadRequest abortRequest = new AbortMultipartUploadRequest(context.getOptions().getDestinationBucket(), keydest, uploadId);
+        try {
+            context.getRetrier().call("aborting multipart upload of " + keydest, new Retrier.Call<Void>() {
+                @Override public Void call() {
+                    client.abortMultipartUpload(abortRequest);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            log.error("error aborting multipart upload " + uploadId + " of " + keydest + " (its parts are still stored): " + e);
+        }
+    }
+
+    /**
+     * Copies a single part, with retries. Runs on the PartCopyScheduler.
+     */
+    private class PartCopy implements Callable<CopyPartResult> {
+
+        private final CopyPartRequest copyRequest;
+        private final String infoMessage;
+
+        PartCopy(String uploadId, int partNumber, long firstByte, long lastByte) {
+            final MirrorOptions options = context.getOptions();
+            this.infoMessage = "copying part " + partNumber + " of " + record.getKey() + ": " + firstByte + " to " + lastByte;
+            this.copyRequest = new CopyPartRequest()
+                    .withDestinationBucketName(options.getDestinationBucket())
+                    .withDestinationKey(keydest)
+                    .withSourceBucketName(options.getSourceBucket())
+                    .withSourceKey(record.getKey())
+                    .withUploadId(uploadId)
+                    .withFirstByte(firstByte)
+                    .withLastByte(lastByte)
+                    .withPartNumber(partNumber);
+        }
+
+        @Override
+        public CopyPartResult call() throws Exception {
+            final MirrorOptions options = context.getOptions();
+            if (options.isVerbose()) log.info(infoMessage);
+            final CopyPartResult copyPartResult = context.getRetrier().call(infoMessage, new Retrier.Call<CopyPartResult>() {
+                @Override public CopyPartResult call() {
+                    context.getStats().s3copyCount.incrementAndGet();
+                    return client.copyPart(copyRequest);
+                }
+            });
+            if (options.isVerbose()) log.info("completed " + infoMessage);
+            return copyPartResult;
         }
-        return eTags;
     }
 }
@@ -0,0 +1,56 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the part copies of all multipart copies on a shared pool, so a single large object can use many connections
+ * at once. The pool size is the global cap on part copies in flight.
+ *
+ * Part copies get their own threads: the job that submits them waits for them to finish, so running them on the
+ * main worker pool could leave every worker waiting on parts that have no thread to run on.
+ *
+ * With virtual threads, each part gets its own virtual thread and a semaphore caps the parts in flight instead.
+ */
+@Slf4j
+public class PartCopyScheduler {
+
+    @Getter private final int maxPartsInFlight;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    public PartCopyScheduler(int maxPartsInFlight) { this(maxPartsInFlight, false); }
+
+    public PartCopyScheduler(int maxPartsInFlight, boolean virtualThreads) {
+        this.maxPartsInFlight = maxPartsInFlight;
+        final ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor("PartCopy") : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.inFlight = new Semaphore(maxPartsInFlight);
+        } else {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxPartsInFlight, maxPartsInFlight, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.inFlight = null;
+        }
+    }
+
+    public <T> Future<T> submit(final Callable<T> partCopy) {
+        if (inFlight == null) return executor.submit(partCopy);
+        return executor.submit(new Callable<T>() {
+            @Override public T call() throws Exception {
+                inFlight.acquire();
+                try {
+                    return partCopy.call();
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    public void shutdown() { executor.shutdown(); }
+
+}
@@ -0,0 +1,86 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the keys of a LeasedRange, in key order, stopping at the end of the range (which may move down while the
+ * listing runs) or when the lease is lost.
+ *
+ * The range is in the source's key space. To list it in the destination, whose keys have --dest-prefix in place of
+ * --prefix, the prefix is swapped on the way in and out.
+ */
+@Slf4j
+public class RangeKeyLister extends KeyLister {
+
+    private final String bucket;
+    private final String prefix;
+    private final String rangePrefix;
+    private final LeasedRange range;
+
+    /**
+     * @param prefix the prefix to list in the bucket
+     * @param rangePrefix the prefix of the keys in the range, in place of which the keys listed have the prefix
+     */
+    public RangeKeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket,
+                          String prefix, String rangePrefix, LeasedRange range) {
+        super(client, context, maxQueueCapacity, LIST_PAGE_SIZE);
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+        this.rangePrefix = rangePrefix == null ? "" : rangePrefix;
+        this.range = range;
+    }
+
+    private String toRange(String key) {
+        return key.startsWith(prefix) ? rangePrefix + key.substring(prefix.length()) : key;
+    }
+
+    private String fromRange(String key) {
+        if (key == null) return null;
+        return key.startsWith(rangePrefix) ? prefix + key.substring(rangePrefix.length()) : key;
+    }
+
+    @Override
+    public void run() {
+        final boolean verbose = context.getOptions().isVerbose();
+        log.info("listing "+range+" of "+bucket);
+        try {
+            String marker = fromRange(range.getStartAfter());
+            while (!range.isLost()) {
+                final ObjectListing listing = s3listObjects(new ListObjectsRequest(bucket, prefix, marker, null, LIST_PAGE_SIZE));
+                final List<S3ObjectSummary> page = listing.getObjectSummaries();
+
+                final List<String> keys = new ArrayList<String>(page.size());
+                for (S3ObjectSummary summary : page) keys.add(toRange(summary.getKey()));
+                final int inRange = range.listed(keys);
+                addSummaries(inRange == page.size() ? page : new ArrayList<S3ObjectSummary>(page.subList(0, inRange)));
+                if (verbose) log.info("queued "+inRange+" keys of "+range+" after "+marker+" (batches queued="+getQueuedBatches()+")");
+
+                if (inRange < page.size() || !listing.isTruncated() || page.isEmpty()) break;
+                marker = page.get(page.size()-1).getKey();
+            }
+            if (range.isLost()) {
+                log.warn("stopped listing "+range+", the lease was lost");
+                failed.set(true);
+            }
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+            failed.set(true);
+
+        } catch (Exception e) {
+            log.error("Error listing "+range+", RangeKeyLister now exiting: "+e);
+            failed.set(true);
+
+        } finally {
+            if (verbose) log.info("RangeKeyLister run loop finished");
+            endListing();
+        }
+    }
+}
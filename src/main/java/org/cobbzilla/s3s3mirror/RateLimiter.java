@@ -0,0 +1,59 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket: tokens come in at a fixed rate and the bucket holds up to one second's worth, so short bursts go
+ * through at once and the long-term rate never goes above the limit.
+ *
+ * The whole state is one timestamp, the time by which every token handed out so far has been earned. Taking tokens
+ * moves it forward with a compare-and-set (no lock, so it does not get in the way at thousands of requests per
+ * second), and the caller then sleeps until the time its tokens are earned, if that is in the future.
+ */
+public class RateLimiter {
+
+    public static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Getter private final double perSecond;
+    private final double nanosPerToken;
+    private final AtomicLong earnedUntil;
+
+    public RateLimiter(double perSecond) {
+        if (perSecond <= 0) throw new IllegalArgumentException("rate must be positive: "+perSecond);
+        this.perSecond = perSecond;
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        // start with a full bucket
+        this.earnedUntil = new AtomicLong(System.nanoTime() - BURST_NANOS);
+    }
+
+    /**
+     * Takes tokens, waiting until they have been earned.
+     * @return how long we waited, in nanoseconds
+     */
+    public long acquire(long tokens) throws InterruptedException {
+        final long wait = reserve(tokens, System.nanoTime());
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return wait;
+    }
+
+    /**
+     * Takes tokens without waiting for them.
+     * @return how long the caller must wait (from now) before going ahead
+     */
+    long reserve(long tokens, long now) {
+        final long cost = (long) Math.ceil(tokens * nanosPerToken);
+        final long full = now - BURST_NANOS;
+        while (true) {
+            final long earned = earnedUntil.get();
+            // a bucket that has been full for a while holds no more than BURST_NANOS of tokens
+            final long start = earned - full > 0 ? earned : full;
+            final long next = start + cost;
+            if (earnedUntil.compareAndSet(earned, next)) return Math.max(0, next - now);
+        }
+    }
+
+    @Override public String toString() { return perSecond+"/s"; }
+}
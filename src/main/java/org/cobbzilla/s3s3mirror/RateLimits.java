@@ -0,0 +1,230 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
+
+/**
+ * Limits the rate of S3 requests, per kind of request and per side of the mirror (source or destination), and the
+ * rate at which bytes are copied.
+ *
+ * Installed as a request handler on the S3 clients, so it sits in front of every request: the calling thread waits in
+ * beforeExecution until the side the request is for has tokens for it. Copies read the source and write the
+ * destination, so they count against the COPY and BYTES limits of both. Reads of objects and their ACLs are always of
+ * the source, and writes and deletes always of the destination. Lists and HEADs can be of either: they belong to
+ * the side whose bucket they are for, and when both sides are the same bucket, to the side with the longest prefix
+ * that the listed prefix or the key starts with (the source, if the prefixes are the same too).
+ *
+ * Limits are given as a comma-separated list of [source.|dest.]name=rate, where name is one of list, head (metadata
+ * and ACL reads), copy (including multipart requests, and the reads and uploads of streaming copies), delete or bytes;
+ * a limit without source. or dest. applies to both.
+ * Rates are per second and may end in K, M or G, e.g. "dest.copy=200,delete=50,bytes=100M".
+ */
+@Slf4j
+public class RateLimits extends RequestHandler2 {
+
+    public enum Limit { LIST, HEAD, COPY, DELETE, BYTES }
+
+    public static final String SOURCE = "source";
+    public static final String DEST = "dest";
+
+    private final Map<String, EnumMap<Limit, RateLimiter>> limiters = new HashMap<String, EnumMap<Limit, RateLimiter>>();
+    private final String sourceBucket;
+    private final String sourcePrefix;
+    private final String destinationBucket;
+    private final String destinationPrefix;
+    private final MirrorStats stats;
+    private final String description;
+
+    /**
+     * @param sourcePrefix the prefix being mirrored, or null for the whole bucket
+     * @param destinationPrefix the prefix it is mirrored to, or null for the whole bucket
+     */
+    public RateLimits(String spec, String sourceBucket, String sourcePrefix, String destinationBucket,
+                      String destinationPrefix, MirrorStats stats) {
+        this.sourceBucket = sourceBucket;
+        this.sourcePrefix = sourcePrefix == null ? "" : sourcePrefix;
+        this.destinationBucket = destinationBucket;
+        this.destinationPrefix = destinationPrefix == null ? "" : destinationPrefix;
+        this.stats = stats;
+        final StringBuilder b = new StringBuilder();
+        for (Map.Entry<String, EnumMap<Limit, Double>> role : parse(spec).entrySet()) {
+            final EnumMap<Limit, RateLimiter> roleLimiters = new EnumMap<Limit, RateLimiter>(Limit.class);
+            limiters.put(role.getKey(), roleLimiters);
+            final String bucket = role.getKey().equals(SOURCE) ? sourceBucket : destinationBucket;
+            for (Map.Entry<Limit, Double> limit : role.getValue().entrySet()) {
+                roleLimiters.put(limit.getKey(), new RateLimiter(limit.getValue()));
+                if (b.length() > 0) b.append(", ");
+                b.append(role.getKey()).append(" (").append(bucket).append(") ").append(limit.getKey().name().toLowerCase())
+                        .append("=").append(limit.getValue()).append("/s");
+            }
+        }
+        this.description = b.toString();
+    }
+
+    /**
+     * @return the limits in the spec, by bucket role (SOURCE or DEST)
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public static Map<String, EnumMap<Limit, Double>> parse(String spec) {
+        final Map<String, EnumMap<Limit, Double>> roles = new LinkedHashMap<String, EnumMap<Limit, Double>>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) continue;
+            final int eq = entry.indexOf('=');
+            if (eq == -1) throw new IllegalArgumentException("invalid rate limit (expected name=rate): "+entry);
+
+            String name = entry.substring(0, eq).trim().toLowerCase();
+            String[] bucketRoles = {SOURCE, DEST};
+            final int dot = name.indexOf('.');
+            if (dot != -1) {
+                final String role = name.substring(0, dot);
+                if (!role.equals(SOURCE) && !role.equals(DEST)) throw new IllegalArgumentException("invalid rate limit bucket (expected "+SOURCE+" or "+DEST+"): "+entry);
+                bucketRoles = new String[] {role};
+                name = name.substring(dot+1);
+            }
+            final Limit limit;
+            try {
+                limit = Limit.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid rate limit name "+name+" (expected list, head, copy, delete or bytes): "+entry);
+            }
+            final double rate = parseRate(entry.substring(eq+1).trim());
+            if (rate <= 0) throw new IllegalArgumentException("rate limit must be positive: "+entry);
+
+            for (String role : bucketRoles) {
+                EnumMap<Limit, Double> limits = roles.get(role);
+                if (limits == null) {
+                    limits = new EnumMap<Limit, Double>(Limit.class);
+                    roles.put(role, limits);
+                }
+                limits.put(limit, rate);
+            }
+        }
+        if (roles.isEmpty()) throw new IllegalArgumentException("no rate limits in: "+spec);
+        return roles;
+    }
+
+    private static double parseRate(String rate) {
+        long multiplier = 1;
+        final char unit = rate.length() == 0 ? ' ' : Character.toUpperCase(rate.charAt(rate.length()-1));
+        switch (unit) {
+            case 'K': multiplier = KB; break;
+            case 'M': multiplier = MB; break;
+            case 'G': multiplier = GB; break;
+        }
+        if (multiplier != 1) rate = rate.substring(0, rate.length()-1);
+        try {
+            return Double.parseDouble(rate) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid rate: "+rate);
+        }
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        if (request instanceof ListObjectsRequest) {
+            final ListObjectsRequest list = (ListObjectsRequest) request;
+            take(roleOf(list.getBucketName(), list.getPrefix()), Limit.LIST, 1);
+
+        } else if (request instanceof ListObjectsV2Request) {
+            final ListObjectsV2Request list = (ListObjectsV2Request) request;
+            take(roleOf(list.getBucketName(), list.getPrefix()), Limit.LIST, 1);
+
+        } else if (request instanceof GetObjectMetadataRequest) {
+            final GetObjectMetadataRequest head = (GetObjectMetadataRequest) request;
+            take(roleOf(head.getBucketName(), head.getKey()), Limit.HEAD, 1);
+
+        } else if (request instanceof GetObjectAclRequest) {
+            take(SOURCE, Limit.HEAD, 1);
+
+        } else if (request instanceof CopyObjectRequest) {
+            final ObjectMetadata metadata = ((CopyObjectRequest) request).getNewObjectMetadata();
+            takeCopy(metadata == null ? 0 : metadata.getContentLength());
+
+        } else if (request instanceof CopyPartRequest) {
+            final CopyPartRequest copy = (CopyPartRequest) request;
+            takeCopy(copy.getFirstByte() == null || copy.getLastByte() == null ? 0 : copy.getLastByte() - copy.getFirstByte() + 1);
+
+        } else if (request instanceof GetObjectRequest) {
+            // streaming copies count their reads and uploads as copies, each against its own side
+            final long[] range = ((GetObjectRequest) request).getRange();
+            take(SOURCE, Limit.COPY, 1);
+            if (range != null && range.length == 2) take(SOURCE, Limit.BYTES, range[1] - range[0] + 1);
+
+        } else if (request instanceof PutObjectRequest) {
+            final PutObjectRequest put = (PutObjectRequest) request;
+            take(DEST, Limit.COPY, 1);
+            if (put.getMetadata() != null && put.getMetadata().getContentLength() > 0) take(DEST, Limit.BYTES, put.getMetadata().getContentLength());
+
+        } else if (request instanceof UploadPartRequest) {
+            final UploadPartRequest upload = (UploadPartRequest) request;
+            take(DEST, Limit.COPY, 1);
+            if (upload.getPartSize() > 0) take(DEST, Limit.BYTES, upload.getPartSize());
+
+        } else if (request instanceof InitiateMultipartUploadRequest
+                || request instanceof CompleteMultipartUploadRequest
+                || request instanceof AbortMultipartUploadRequest) {
+            take(DEST, Limit.COPY, 1);
+
+        } else if (request instanceof DeleteObjectsRequest || request instanceof DeleteObjectRequest) {
+            take(DEST, Limit.DELETE, 1);
+        }
+        return request;
+    }
+
+    /**
+     * @param keyOrPrefix the key read, or the prefix listed (may be null)
+     * @return the side of the mirror a list or HEAD request is for, or null if it is for neither
+     */
+    String roleOf(String bucket, String keyOrPrefix) {
+        final boolean source = bucket.equals(sourceBucket);
+        final boolean dest = bucket.equals(destinationBucket);
+        if (source && dest) {
+            // the same bucket: go by the prefixes, preferring the longer when one contains the other
+            final String key = keyOrPrefix == null ? "" : keyOrPrefix;
+            final boolean inSource = key.startsWith(sourcePrefix);
+            final boolean inDest = key.startsWith(destinationPrefix);
+            if (inDest && (!inSource || destinationPrefix.length() > sourcePrefix.length())) return DEST;
+            return SOURCE;
+        }
+        return source ? SOURCE : dest ? DEST : null;
+    }
+
+    private void takeCopy(long bytes) {
+        take(SOURCE, Limit.COPY, 1);
+        if (bytes > 0) take(SOURCE, Limit.BYTES, bytes);
+        take(DEST, Limit.COPY, 1);
+        if (bytes > 0) take(DEST, Limit.BYTES, bytes);
+    }
+
+    private void take(String role, Limit limit, long tokens) {
+        if (role == null) return;
+        final EnumMap<Limit, RateLimiter> roleLimiters = limiters.get(role);
+        if (roleLimiters == null) return;
+        final RateLimiter limiter = roleLimiters.get(limit);
+        if (limiter == null) return;
+        try {
+            final long waited = limiter.acquire(tokens);
+            if (waited > 0) {
+                stats.rateLimitWaits.incrementAndGet();
+                stats.rateLimitWaitMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(waited));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted waiting for rate limit");
+        }
+    }
+
+    @Override public String toString() { return description; }
+}
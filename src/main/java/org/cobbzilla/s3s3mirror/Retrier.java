@@ -0,0 +1,207 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs S3 requests with retries. Every S3 operation the mirror makes goes through the one Retrier in the
+ * MirrorContext, so they all classify errors, back off and count retries the same way.
+ *
+ * An error is either fatal (a 4xx answer like 403 or 404, which will not change if we ask again), throttled
+ * (503 SlowDown and friends) or retryable (a 5xx answer or a network error). Retries wait a random time up to an
+ * exponentially growing cap ("full jitter"), so that threads that failed together do not retry together; throttled
+ * requests start from a longer delay.
+ *
+ * Retries are also limited per run by a budget: each retry takes a token, and each successful request gives back
+ * BUDGET_REFILL of one. While S3 mostly works this never runs out, but during an outage, when nearly every request
+ * fails, it does, and from then on requests fail on their first error instead of every thread retrying
+ * --max-retries times.
+ */
+@Slf4j
+public class Retrier {
+
+    public enum ErrorClass { RETRYABLE, THROTTLED, FATAL }
+
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    public static final long BASE_DELAY = 50;
+    public static final long THROTTLE_BASE_DELAY = 500;
+    public static final long MAX_DELAY = 20000;
+
+    // tokens given back to the retry budget by each successful request
+    public static final double BUDGET_REFILL = 0.1;
+
+    @Getter private final int maxTries;
+    private final int budgetCapacity;
+    private final MirrorStats stats;
+
+    private double budget;
+
+    /**
+     * @param maxTries how many times to try a request before giving up
+     * @param budgetCapacity the most retries the budget allows in a burst
+     */
+    public Retrier(int maxTries, int budgetCapacity, MirrorStats stats) {
+        this.maxTries = Math.max(1, maxTries);
+        this.budgetCapacity = budgetCapacity;
+        this.stats = stats;
+        this.budget = budgetCapacity;
+    }
+
+    public synchronized double getBudget() { return budget; }
+
+    /**
+     * Runs the call, retrying it while it fails with a retryable error, up to maxTries times and while the retry
+     * budget lasts.
+     * @param description what the call does, for log messages
+     * @return what the call returned
+     * @throws Exception the error from the last try
+     */
+    public <T> T call(String description, Call<T> call) throws Exception {
+        for (int tries=1; ; tries++) {
+            try {
+                final T result = call.call();
+                succeeded();
+                return result;
+
+            } catch (Exception e) {
+                final long delay = getRetryDelay(description, tries, e);
+                if (delay < 0) throw e;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Like call, but each try runs on the executor and the wait before a retry is scheduled rather than slept, so no
+     * thread is held while a request waits to be tried again.
+     * @return a future completed with what the call returned, or with the error from the last try
+     */
+    public <T> CompletableFuture<T> callAsync(String description, Call<T> call, Executor executor, ScheduledExecutorService scheduler) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        tryAsync(description, call, executor, scheduler, result, 1);
+        return result;
+    }
+
+    private <T> void tryAsync(final String description, final Call<T> call, final Executor executor,
+                              final ScheduledExecutorService scheduler, final CompletableFuture<T> result, final int tries) {
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        final T value = call.call();
+                        succeeded();
+                        result.complete(value);
+
+                    } catch (Exception e) {
+                        final long delay = getRetryDelay(description, tries, e);
+                        if (delay < 0) {
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        try {
+                            scheduler.schedule(new Runnable() {
+                                @Override public void run() { tryAsync(description, call, executor, scheduler, result, tries + 1); }
+                            }, delay, TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException re) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Counts and logs a failed try.
+     * @return how long to wait before trying again, or -1 if the call should not be tried again
+     */
+    private long getRetryDelay(String description, int tries, Exception e) {
+        final ErrorClass errorClass = classify(e);
+        if (errorClass == ErrorClass.FATAL || Thread.currentThread().isInterrupted()) {
+            // a missing key is an answer, not an error
+            if (!isNotFound(e)) stats.s3fatalErrors.incrementAndGet();
+            return -1;
+        }
+        if (tries >= maxTries) {
+            stats.s3retriesExhausted.incrementAndGet();
+            log.warn(description+" failed (try #"+tries+"), giving up: "+e);
+            return -1;
+        }
+        if (!takeRetry()) {
+            stats.s3retryBudgetExhausted.incrementAndGet();
+            log.warn(description+" failed (try #"+tries+"), not retrying because the retry budget is used up: "+e);
+            return -1;
+        }
+        stats.s3retryCount.incrementAndGet();
+        if (errorClass == ErrorClass.THROTTLED) stats.s3throttledRetryCount.incrementAndGet();
+
+        final long delay = getDelay(errorClass, tries);
+        log.warn(description+" failed (try #"+tries+"), retrying in "+delay+"ms: "+e);
+        return delay;
+    }
+
+    private synchronized void succeeded() {
+        if (budget < budgetCapacity) budget = Math.min(budgetCapacity, budget + BUDGET_REFILL);
+    }
+
+    private synchronized boolean takeRetry() {
+        if (budget < 1) return false;
+        budget--;
+        return true;
+    }
+
+    /**
+     * @return how long to wait before the next try: a random time up to the base delay doubled for every try so far
+     */
+    public static long getDelay(ErrorClass errorClass, int tries) {
+        final long base = errorClass == ErrorClass.THROTTLED ? THROTTLE_BASE_DELAY : BASE_DELAY;
+        final long cap = Math.min(MAX_DELAY, base << Math.min(tries - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public static ErrorClass classify(Exception e) {
+        if (e instanceof InterruptedException || e instanceof AbortedException) return ErrorClass.FATAL;
+        if (ConcurrencyController.isThrottle(e)) return ErrorClass.THROTTLED;
+
+        if (e instanceof MultiObjectDeleteException) {
+            // some keys failed; worth retrying those unless all of them were refused
+            final List<MultiObjectDeleteException.DeleteError> errors = ((MultiObjectDeleteException) e).getErrors();
+            for (MultiObjectDeleteException.DeleteError error : errors) {
+                if (!"AccessDenied".equals(error.getCode())) return ErrorClass.RETRYABLE;
+            }
+            return errors.isEmpty() ? ErrorClass.RETRYABLE : ErrorClass.FATAL;
+        }
+        if (e instanceof AmazonServiceException) {
+            final AmazonServiceException ase = (AmazonServiceException) e;
+            if (ase.getStatusCode() >= 500 || RetryUtils.isRetryableServiceException(ase) || RetryUtils.isClockSkewError(ase)) {
+                return ErrorClass.RETRYABLE;
+            }
+            return ErrorClass.FATAL;
+        }
+        if (e instanceof SdkClientException || e instanceof IOException) return ErrorClass.RETRYABLE;
+        return ErrorClass.FATAL;
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof AmazonServiceException && ((AmazonServiceException) e).getStatusCode() == 404;
+    }
+}
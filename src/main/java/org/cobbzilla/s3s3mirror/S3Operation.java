@@ -0,0 +1,41 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.s3.model.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The kinds of S3 request whose latency we keep track of.
+ */
+@AllArgsConstructor
+public enum S3Operation {
+
+    LIST ("list"),
+    HEAD ("head"),
+    ACL ("acl"),
+    COPY ("copy"),
+    COPY_PART ("copyPart"),
+    DELETE ("delete"),
+    // streaming copies
+    GET ("get"),
+    PUT ("put");
+
+    // name used in metrics
+    @Getter private final String label;
+
+    /**
+     * @return the operation the request performs, or null if it is not one we track
+     */
+    public static S3Operation forRequest(AmazonWebServiceRequest request) {
+        if (request instanceof ListObjectsRequest || request instanceof ListObjectsV2Request) return LIST;
+        if (request instanceof GetObjectMetadataRequest) return HEAD;
+        if (request instanceof GetObjectAclRequest) return ACL;
+        if (request instanceof CopyObjectRequest) return COPY;
+        if (request instanceof CopyPartRequest) return COPY_PART;
+        if (request instanceof DeleteObjectsRequest || request instanceof DeleteObjectRequest) return DELETE;
+        if (request instanceof GetObjectRequest) return GET;
+        if (request instanceof PutObjectRequest || request instanceof UploadPartRequest) return PUT;
+        return null;
+    }
+}
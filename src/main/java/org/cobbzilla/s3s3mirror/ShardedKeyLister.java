@@ -0,0 +1,191 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists a prefix with several threads at once, each listing its own range of keys.
+ *
+ * The initial ranges come from a delimiter scan of the prefix, so that keys organized in "folders" start out
+ * spread across the threads. Whenever a thread finishes a page and some other thread is idle, it splits what is
+ * left of its range in half and hands the upper half to the idle thread, so large ranges keep getting re-split
+ * until every thread is busy.
+ *
+ * Keys are fed into the same buffer as a regular KeyLister, but they do not arrive in key order.
+ */
+@Slf4j
+public class ShardedKeyLister extends KeyLister {
+
+    public static final String DELIMITER = "/";
+
+    // how many initial ranges to create per list thread from the delimiter scan
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final String bucket;
+    private final String prefix;
+    private final int listThreads;
+
+    private final LinkedList<KeyRange> ranges = new LinkedList<KeyRange>();
+    private int busy = 0;
+
+    public ShardedKeyLister(AmazonS3Client client, MirrorContext context, int maxQueueCapacity, String bucket, String prefix, int listThreads) {
+        super(client, context, maxQueueCapacity, LIST_PAGE_SIZE);
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.listThreads = listThreads;
+    }
+
+    @Override
+    public void run() {
+        final boolean verbose = context.getOptions().isVerbose();
+        log.info("starting with "+listThreads+" list threads...");
+
+        final ExecutorService listers = Executors.newFixedThreadPool(listThreads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "ShardedKeyLister-range");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            for (KeyRange range : getInitialRanges()) pushRange(range);
+            if (verbose) log.info("listing "+ranges.size()+" initial ranges");
+
+            for (int i=0; i<listThreads; i++) {
+                listers.submit(new Runnable() {
+                    @Override public void run() { listRanges(); }
+                });
+            }
+            listers.shutdown();
+            while (!listers.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (failed.get()) listers.shutdownNow();
+            }
+            if (!failed.get()) log.info("No more keys found in source bucket, exiting");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+            failed.set(true);
+            listers.shutdownNow();
+
+        } catch (Exception e) {
+            log.error("Error in run loop, ShardedKeyLister now exiting: "+e);
+            failed.set(true);
+            listers.shutdownNow();
+
+        } finally {
+            if (verbose) log.info("ShardedKeyLister run loop finished");
+            endListing();
+        }
+    }
+
+    /**
+     * Lists the prefix with a delimiter and uses the common prefixes found as range boundaries.
+     */
+    private List<KeyRange> getInitialRanges() {
+        final ObjectListing listing = s3listObjects(new ListObjectsRequest(bucket, prefix, null, DELIMITER, LIST_PAGE_SIZE));
+        return KeyRange.fromBoundaries(listing.getCommonPrefixes(), listThreads * RANGES_PER_THREAD);
+    }
+
+    private void listRanges() {
+        try {
+            KeyRange range;
+            while ((range = takeRange()) != null) {
+                try {
+                    listRange(range);
+                } finally {
+                    finishRange();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("list thread interrupted");
+            failed.set(true);
+
+        } catch (Exception e) {
+            log.error("Error listing, list thread now exiting: "+e);
+            failed.set(true);
+            synchronized (ranges) { ranges.notifyAll(); }
+        }
+    }
+
+    private void listRange(KeyRange range) throws InterruptedException {
+        final boolean verbose = context.getOptions().isVerbose();
+        String marker = range.getStartAfter();
+        String endAt = range.getEndAt();
+
+        while (!failed.get()) {
+            final ObjectListing listing = s3listObjects(new ListObjectsRequest(bucket, prefix, marker, null, LIST_PAGE_SIZE));
+            final List<S3ObjectSummary> page = listing.getObjectSummaries();
+
+            List<S3ObjectSummary> inRange = page;
+            boolean pastEnd = false;
+            for (int i=0; i<page.size(); i++) {
+                if (endAt != null && KeyComparator.INSTANCE.compare(page.get(i).getKey(), endAt) > 0) {
+                    inRange = new ArrayList<S3ObjectSummary>(page.subList(0, i));
+                    pastEnd = true;
+                    break;
+                }
+            }
+            addSummaries(inRange);
+            if (verbose) log.info("queued "+inRange.size()+" keys after "+marker+" (batches queued="+getQueuedBatches()+")");
+
+            if (pastEnd || !listing.isTruncated() || inRange.isEmpty()) return;
+            marker = inRange.get(inRange.size()-1).getKey();
+
+            // if someone is waiting for work, give them the upper half of what is left
+            if (hasIdleThreads()) {
+                final String mid = KeyRange.midpoint(prefix, marker, endAt);
+                if (mid != null) {
+                    pushRange(new KeyRange(mid, endAt));
+                    if (verbose) log.info("split range at "+mid+" (was "+marker+" to "+endAt+")");
+                    endAt = mid;
+                }
+            }
+        }
+    }
+
+    private void pushRange(KeyRange range) {
+        synchronized (ranges) {
+            ranges.add(range);
+            ranges.notifyAll();
+        }
+    }
+
+    /**
+     * @return the next range to list, or null if all ranges are done (no ranges are queued and nothing is being
+     * listed that might be split to create more)
+     */
+    private KeyRange takeRange() throws InterruptedException {
+        synchronized (ranges) {
+            while (ranges.isEmpty()) {
+                if (busy == 0 || failed.get()) return null;
+                ranges.wait();
+            }
+            busy++;
+            return ranges.removeFirst();
+        }
+    }
+
+    private void finishRange() {
+        synchronized (ranges) {
+            busy--;
+            ranges.notifyAll();
+        }
+    }
+
+    private boolean hasIdleThreads() {
+        synchronized (ranges) {
+            return ranges.isEmpty() && busy < listThreads;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Combines the stats files written by the shards of a run (see --shard and --stats-file) into one report. Counters
+ * are added up, latency histograms are merged (so percentiles are those of every request, not an average of each
+ * shard's), and the duration is from the first shard's start to the last shard's end.
+ *
+ * Usage: java -cp s3s3mirror.jar org.cobbzilla.s3s3mirror.StatsMerge FILE...
+ */
+public class StatsMerge {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: java -cp s3s3mirror.jar "+StatsMerge.class.getName()+" FILE...");
+            System.exit(1);
+        }
+        final File[] files = new File[args.length];
+        for (int i=0; i<args.length; i++) files[i] = new File(args[i]);
+        try {
+            System.out.print(merge(files));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    public static MirrorStats merge(File... files) throws IOException {
+        final MirrorStats merged = MirrorStats.load(files[0]);
+        for (int i=1; i<files.length; i++) merged.add(MirrorStats.load(files[i]));
+        return merged;
+    }
+}
@@ -0,0 +1,134 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+import org.slf4j.Logger;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+
+/**
+ * Copies a key by reading it from the source and uploading it to the destination, for when S3 cannot copy it
+ * server-side: the two are different endpoints, need different credentials, or are S3-compatible stores that cannot
+ * reach each other.
+ *
+ * Objects up to the part size are read with one GET and written with one PUT. Larger objects are read with ranged
+ * GETs, one per part, and each part is uploaded as soon as it has been read; the parts run on the PartCopyScheduler.
+ * Every part (or whole small object) is read into a lease from the BufferPool before it is uploaded, so the bytes in
+ * flight are bounded by --stream-memory, not by the number of jobs or parts.
+ */
+@Slf4j
+public class StreamingKeyCopyJob extends UploadKeyCopyJob {
+
+    private final BufferPool buffers;
+
+    public StreamingKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy,
+                               AclPolicy aclPolicy, BufferPool buffers, PartCopyScheduler partScheduler) {
+        super(client, context, record, comparisonStrategy, aclPolicy, partScheduler);
+        this.buffers = buffers;
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    protected boolean isLargeObject() { return !keepsETag(record, context.getOptions().getUploadPartSize()); }
+
+    @Override
+    boolean keyCopied(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final MirrorOptions options = context.getOptions();
+        final String key = record.getKey();
+        final long size = sourceMetadata.getContentLength();
+        final long partSize = getPartSize(size, options.getUploadPartSize());
+        if (partSize > buffers.getBudget()) {
+            log.error("not copying " + key + ": its parts of " + partSize + " bytes do not fit in " + LONGOPT_STREAM_MEMORY + " (" + buffers.getBudget() + " bytes)");
+            return false;
+        }
+        if (options.isVerbose()) log.info("streaming: " + key + " to: " + keydest);
+        try {
+            final String etag = size <= partSize
+                    ? upload(sourceMetadata, objectAcl)
+                    : uploadInParts(sourceMetadata, objectAcl, partSize);
+            if (etag == null) return false;
+            context.getStats().bytesCopied.addAndGet(size);
+            // the upload's result has no last-modified date, but the object was written just now
+            indexCopy(etag, new Date());
+            if (options.isVerbose()) log.info("successfully streamed: " + key + " to: " + keydest);
+            return true;
+
+        } catch (Exception e) {
+            log.error("error streaming " + key + " to: " + keydest + ": " + e);
+            return false;
+        }
+    }
+
+    private String upload(final ObjectMetadata sourceMetadata, final AccessControlList objectAcl) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final long size = sourceMetadata.getContentLength();
+        final BufferPool.Lease lease = buffers.lease(size);
+        try {
+            if (size > 0) read(lease, 0, sourceMetadata.getETag());
+            return context.getRetrier().call("uploading " + record.getKey() + " to: " + keydest, new Retrier.Call<String>() {
+                @Override public String call() {
+                    // a new request for every try, so the upload starts again from the first byte
+                    final PutObjectRequest request = new PutObjectRequest(options.getDestinationBucket(), keydest,
+                            lease.newInputStream(), getUploadMetadata(sourceMetadata, size));
+                    prepare(request, objectAcl);
+                    request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, size + 1));
+                    context.getStats().s3copyCount.incrementAndGet();
+                    return destinationClient.putObject(request).getETag();
+                }
+            });
+        } finally {
+            lease.release();
+        }
+    }
+
+    @Override
+    protected PartETag uploadPart(String uploadId, int partNumber, long firstByte, long length, ObjectMetadata sourceMetadata) throws Exception {
+        final String infoMessage = "streaming part " + partNumber + " of " + record.getKey() + ": " + firstByte + " to " + (firstByte + length - 1);
+        final boolean verbose = context.getOptions().isVerbose();
+        final BufferPool.Lease lease = buffers.lease(length);
+        try {
+            if (verbose) log.info(infoMessage);
+            read(lease, firstByte, sourceMetadata.getETag());
+            final PartETag etag = sendPart(uploadId, partNumber, length, new PartSource() {
+                @Override public InputStream newInputStream() { return lease.newInputStream(); }
+            });
+            if (verbose) log.info("completed " + infoMessage);
+            return etag;
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Reads the lease's length in bytes of the source object into it, starting at the given byte.
+     * @param sourceETag the ETag the object had when the copy started, so that all of its parts come from the same version
+     */
+    private void read(final BufferPool.Lease lease, long firstByte, String sourceETag) throws Exception {
+        final String key = record.getKey();
+        final GetObjectRequest request = new GetObjectRequest(context.getOptions().getSourceBucket(), key)
+                .withRange(firstByte, firstByte + lease.getLength() - 1);
+        if (sourceETag != null) request.setMatchingETagConstraints(Collections.singletonList(sourceETag));
+        context.getRetrier().call("reading " + key + " from byte " + firstByte, new Retrier.Call<Void>() {
+            @Override public Void call() throws Exception {
+                context.getStats().s3getCount.incrementAndGet();
+                final S3Object object = client.getObject(request);
+                // the SDK returns null when the ETag constraint is not met
+                if (object == null) throw new IllegalStateException(key + " changed while it was being copied");
+                try {
+                    lease.readFrom(object.getObjectContent());
+                } finally {
+                    object.close();
+                }
+                return null;
+            }
+        });
+    }
+}
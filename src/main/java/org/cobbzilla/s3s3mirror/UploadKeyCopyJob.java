@@ -0,0 +1,198 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicy;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.ComparisonStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+
+/**
+ * A copy that uploads the object's bytes to the destination, rather than having S3 copy it server-side. Objects up to
+ * the part size go up in a single PUT; larger ones go up as a multipart upload, with the parts sent on the
+ * PartCopyScheduler. Subclasses say where the bytes of each part come from.
+ */
+public abstract class UploadKeyCopyJob extends KeyCopyJob {
+
+    public static final long DEFAULT_PART_SIZE = 16 * MB;
+
+    protected final AmazonS3Client destinationClient;
+    private final PartCopyScheduler partScheduler;
+
+    public UploadKeyCopyJob(AmazonS3Client client, MirrorContext context, KeyRecord record, ComparisonStrategy comparisonStrategy,
+                            AclPolicy aclPolicy, PartCopyScheduler partScheduler) {
+        super(client, context, record, comparisonStrategy, aclPolicy);
+        this.destinationClient = context.getDestinationClient(client);
+        this.partScheduler = partScheduler;
+    }
+
+    /**
+     * @param configuredPartSize part size requested with --upload-part-size, or 0 for the default
+     * @return the size of the parts the object is uploaded in, raised if needed to stay within S3's part count
+     */
+    public static long getPartSize(long objectSize, long configuredPartSize) {
+        long partSize = configuredPartSize > 0 ? configuredPartSize : DEFAULT_PART_SIZE;
+        partSize = Math.max(partSize, (objectSize + MAX_PARTS - 1) / MAX_PARTS);
+        partSize = Math.max(partSize, MIN_PART_SIZE);
+        return Math.min(partSize, MAX_PART_SIZE);
+    }
+
+    /**
+     * @return true if the uploaded copy of the key will have the same ETag as the source: it is uploaded with a single
+     * PUT, and the source's ETag is not that of a multipart upload
+     */
+    public static boolean keepsETag(KeyRecord record, long configuredPartSize) {
+        return !record.isMultipartETag() && record.getSize() <= getPartSize(record.getSize(), configuredPartSize);
+    }
+
+    /**
+     * Where the bytes of a part are read from. Each try at uploading the part reads a new stream.
+     */
+    protected interface PartSource {
+        InputStream newInputStream() throws IOException;
+    }
+
+    /**
+     * Reads (if need be) and uploads one part of a multipart upload. Runs on the PartCopyScheduler.
+     */
+    protected abstract PartETag uploadPart(String uploadId, int partNumber, long firstByte, long length, ObjectMetadata sourceMetadata) throws Exception;
+
+    /**
+     * @return the ETag of the completed upload, or null if it failed (and was aborted)
+     */
+    protected String uploadInParts(final ObjectMetadata sourceMetadata, AccessControlList objectAcl, long partSize) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final long objectSize = sourceMetadata.getContentLength();
+        final String targetBucketName = options.getDestinationBucket();
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
+                .withObjectMetadata(getUploadMetadata(sourceMetadata, -1))
+                .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+        if (objectAcl != null) {
+            initiateRequest.withAccessControlList(objectAcl);
+        } else if (aclPolicy.getCannedAcl() != null) {
+            initiateRequest.withCannedACL(aclPolicy.getCannedAcl());
+        }
+
+        final Retrier retrier = context.getRetrier();
+        final String uploadId = retrier.call("initiating multipart upload of " + keydest, new Retrier.Call<String>() {
+            @Override public String call() {
+                return destinationClient.initiateMultipartUpload(initiateRequest).getUploadId();
+            }
+        });
+        if (options.isVerbose()) getLog().info("uploading " + record.getKey() + " in parts of " + partSize + " bytes");
+
+        final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        long bytePosition = 0;
+        for (int i = 1; bytePosition < objectSize; i++) {
+            final int partNumber = i;
+            final long firstByte = bytePosition;
+            final long length = Math.min(partSize, objectSize - bytePosition);
+            parts.add(partScheduler.submit(new Callable<PartETag>() {
+                @Override public PartETag call() throws Exception {
+                    return uploadPart(uploadId, partNumber, firstByte, length, sourceMetadata);
+                }
+            }));
+            bytePosition += length;
+        }
+
+        final List<PartETag> eTags = new ArrayList<PartETag>(parts.size());
+        try {
+            for (Future<PartETag> part : parts) eTags.add(part.get());
+        } catch (Exception e) {
+            for (Future<PartETag> part : parts) part.cancel(true);
+            final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            getLog().error("error uploading parts of " + record.getKey() + ": " + cause);
+            abort(uploadId);
+            return null;
+        }
+
+        final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(targetBucketName, keydest, uploadId, eTags);
+        try {
+            return retrier.call("completing multipart upload of " + keydest, new Retrier.Call<String>() {
+                @Override public String call() {
+                    return destinationClient.completeMultipartUpload(completeRequest).getETag();
+                }
+            });
+        } catch (Exception e) {
+            getLog().error("error completing multipart upload of " + keydest + ": " + e);
+            abort(uploadId);
+            return null;
+        }
+    }
+
+    /**
+     * Uploads one part, with retries.
+     */
+    protected PartETag sendPart(final String uploadId, final int partNumber, final long length, final PartSource source) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        return context.getRetrier().call("uploading part " + partNumber + " of " + keydest, new Retrier.Call<PartETag>() {
+            @Override public PartETag call() throws IOException {
+                // a new request for every try, so the part is sent again from its first byte
+                final UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(options.getDestinationBucket())
+                        .withKey(keydest)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(source.newInputStream());
+                request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, length + 1));
+                context.getStats().s3copyCount.incrementAndGet();
+                return destinationClient.uploadPart(request).getPartETag();
+            }
+        });
+    }
+
+    private void abort(String uploadId) {
+        final AbortMultipartUploadRequest abortRequest = new AbortMultipartUploadRequest(context.getOptions().getDestinationBucket(), keydest, uploadId);
+        try {
+            context.getRetrier().call("aborting multipart upload of " + keydest, new Retrier.Call<Void>() {
+                @Override public Void call() {
+                    destinationClient.abortMultipartUpload(abortRequest);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            getLog().error("error aborting multipart upload " + uploadId + " of " + keydest + " (its parts are still stored): " + e);
+        }
+    }
+
+    /**
+     * @return the metadata to upload with: the source's content headers and user metadata, but none of the headers
+     * that describe the stored object (ETag, Last-Modified and the like)
+     * @param contentLength the length of a single PUT, or -1 for a multipart upload
+     */
+    protected ObjectMetadata getUploadMetadata(ObjectMetadata source, long contentLength) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (contentLength >= 0) metadata.setContentLength(contentLength);
+        if (source.getContentType() != null) metadata.setContentType(source.getContentType());
+        if (source.getContentEncoding() != null) metadata.setContentEncoding(source.getContentEncoding());
+        if (source.getContentDisposition() != null) metadata.setContentDisposition(source.getContentDisposition());
+        if (source.getContentLanguage() != null) metadata.setContentLanguage(source.getContentLanguage());
+        if (source.getCacheControl() != null) metadata.setCacheControl(source.getCacheControl());
+        if (source.getHttpExpiresDate() != null) metadata.setHttpExpiresDate(source.getHttpExpiresDate());
+        metadata.setUserMetadata(source.getUserMetadata());
+        if (context.getOptions().isEncrypt()) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        return metadata;
+    }
+
+    /**
+     * Sets the storage class and ACL of a single PUT, the same way uploadInParts sets them on a multipart upload.
+     */
+    protected void prepare(PutObjectRequest request, AccessControlList objectAcl) {
+        request.setStorageClass(StorageClass.valueOf(context.getOptions().getStorageClass()));
+        if (objectAcl != null) {
+            request.setAccessControlList(objectAcl);
+        } else if (aclPolicy.getCannedAcl() != null) {
+            request.setCannedAcl(aclPolicy.getCannedAcl());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that start a new virtual thread for every task. Virtual threads need Java 21, but we build for
+ * Java 8, so the JDK methods are looked up by reflection.
+ */
+@Slf4j
+public class VirtualThreads {
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... params) {
+        try {
+            return clazz.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isAvailable() { return OF_VIRTUAL != null; }
+
+    /**
+     * @param name prefix for the thread names
+     * @return an executor that runs each task on its own virtual thread, or null if this JVM has no virtual threads
+     */
+    public static ExecutorService newExecutor(String name) {
+        if (!isAvailable()) return null;
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name+"-", 0L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+
+        } catch (Exception e) {
+            log.warn("error creating virtual thread executor: "+e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+
+/**
+ * Decides which ACL a copied object gets in the destination bucket.
+ */
+public interface AclPolicy {
+
+    /**
+     * @return true if the ACL of each source object must be fetched and passed to getDestinationAcl
+     */
+    boolean needsSourceAcl();
+
+    /**
+     * @param sourceAcl the source object's ACL, or null if needsSourceAcl is false
+     * @return the ACL to set on the copy, or null to use getCannedAcl instead
+     */
+    AccessControlList getDestinationAcl(AccessControlList sourceAcl);
+
+    /**
+     * @return the canned ACL to set on the copy when getDestinationAcl returns null, or null to send no ACL at all
+     */
+    CannedAccessControlList getCannedAcl();
+}
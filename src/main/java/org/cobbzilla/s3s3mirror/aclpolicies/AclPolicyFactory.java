@@ -0,0 +1,45 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.MirrorOptions;
+
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class AclPolicyFactory {
+
+    public static final String ACL_COPY = "copy";
+    public static final String ACL_NONE = "none";
+
+    public static AclPolicy getPolicy(MirrorContext context) {
+        final MirrorOptions options = context.getOptions();
+        final String acl = options.getAcl();
+        if (acl == null || acl.equals(ACL_COPY)) {
+            // local files have no ACL to copy, or to copy one to
+            if (options.hasSourceDirectory() || options.hasDestinationDirectory()) return new SkipAclPolicy();
+            return new CopyAclPolicy(options.isCrossAccountCopy(), context.getOwner());
+        } else if (acl.equals(ACL_NONE)) {
+            return new SkipAclPolicy();
+        } else {
+            final CannedAccessControlList canned = getCannedAcl(acl);
+            if (canned == null) throw new IllegalArgumentException("Invalid ACL: "+acl);
+            return new CannedAclPolicy(canned);
+        }
+    }
+
+    public static boolean isValid(String acl) {
+        return acl == null || acl.equals(ACL_COPY) || acl.equals(ACL_NONE) || getCannedAcl(acl) != null;
+    }
+
+    /**
+     * @param name a canned ACL as named in the x-amz-acl header (for example "bucket-owner-full-control")
+     * @return the matching canned ACL, or null if there is none
+     */
+    public static CannedAccessControlList getCannedAcl(String name) {
+        for (CannedAccessControlList canned : CannedAccessControlList.values()) {
+            if (canned.toString().equals(name)) return canned;
+        }
+        return null;
+    }
+}
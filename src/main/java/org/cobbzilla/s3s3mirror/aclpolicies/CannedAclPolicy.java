@@ -0,0 +1,19 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Gives every copy the same canned ACL, without looking at the source object's ACL.
+ */
+@AllArgsConstructor
+public class CannedAclPolicy implements AclPolicy {
+
+    @Getter private final CannedAccessControlList cannedAcl;
+
+    @Override public boolean needsSourceAcl() { return false; }
+
+    @Override public AccessControlList getDestinationAcl(AccessControlList sourceAcl) { return null; }
+}
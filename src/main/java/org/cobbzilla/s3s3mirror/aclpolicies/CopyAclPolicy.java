@@ -0,0 +1,67 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Copies each object's ACL from the source (or, for cross-account copies, the public grants of it plus full control
+ * for the destination bucket owner).
+ *
+ * Most buckets only use a handful of distinct ACLs, so destination ACLs are cached by owner and grant set: objects
+ * with the same owner and grants share one AccessControlList instance, and the cross-account ACL (whose owner is
+ * always the destination owner) is built once per grant set.
+ */
+public class CopyAclPolicy implements AclPolicy {
+
+    // stop caching if a bucket turns out to have this many distinct ACLs, they are not worth keeping around
+    public static final int MAX_CACHED_ACLS = 1000;
+
+    private final boolean crossAccount;
+    private final Owner destinationOwner;
+    private final ConcurrentMap<List<Object>, AccessControlList> cache = new ConcurrentHashMap<List<Object>, AccessControlList>();
+
+    public CopyAclPolicy(boolean crossAccount, Owner destinationOwner) {
+        this.crossAccount = crossAccount;
+        this.destinationOwner = destinationOwner;
+    }
+
+    @Override public boolean needsSourceAcl() { return true; }
+
+    @Override public CannedAccessControlList getCannedAcl() { return null; }
+
+    @Override
+    public AccessControlList getDestinationAcl(AccessControlList sourceAcl) {
+        final List<Object> key = Arrays.<Object>asList(crossAccount ? null : sourceAcl.getOwner(),
+                new HashSet<Grant>(sourceAcl.getGrantsAsList()));
+        AccessControlList acl = cache.get(key);
+        if (acl != null) return acl;
+
+        acl = crossAccount ? buildCrossAccountAcl(sourceAcl) : sourceAcl;
+        if (cache.size() >= MAX_CACHED_ACLS) return acl;
+        final AccessControlList existing = cache.putIfAbsent(key, acl);
+        return existing != null ? existing : acl;
+    }
+
+    public int getCachedAclCount() { return cache.size(); }
+
+    AccessControlList buildCrossAccountAcl(AccessControlList original) {
+        AccessControlList result = new AccessControlList();
+        for (Grant grant : original.getGrantsAsList()) {
+            // Covers all 3 types: Everyone, Authenticate User, Log Delivery
+            if (grant.getGrantee() instanceof GroupGrantee) {
+                result.grantPermission(grant.getGrantee(), grant.getPermission());
+            }
+        }
+
+        // Equal to the canned way: request.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
+        result.grantPermission(new CanonicalGrantee(destinationOwner.getId()), Permission.FullControl);
+        result.setOwner(destinationOwner);
+
+        return result;
+    }
+}
@@ -0,0 +1,17 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+
+/**
+ * Sends no ACL, so copies get the destination bucket's default. This is the only thing that matters anyway when
+ * the bucket's Object Ownership is "bucket owner enforced", since ACLs are then ignored.
+ */
+public class SkipAclPolicy implements AclPolicy {
+
+    @Override public boolean needsSourceAcl() { return false; }
+
+    @Override public AccessControlList getDestinationAcl(AccessControlList sourceAcl) { return null; }
+
+    @Override public CannedAccessControlList getCannedAcl() { return null; }
+}
@@ -1,8 +1,13 @@
 package org.cobbzilla.s3s3mirror.comparisonstrategies;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.cobbzilla.s3s3mirror.KeyRecord;
 
 public interface ComparisonStrategy {
-    boolean sourceDifferent(S3ObjectSummary source, ObjectMetadata destination);
+    boolean sourceDifferent(KeyRecord source, ObjectMetadata destination);
+
+    /**
+     * Compare against the destination's listing entry, used when the destination bucket is listed instead of HEAD-ed
+     */
+    boolean sourceDifferent(KeyRecord source, KeyRecord destination);
 }
@@ -9,7 +9,8 @@ public class ComparisonStrategyFactory {
     public static ComparisonStrategy getStrategy(MirrorOptions mirrorOptions) {
         if (mirrorOptions.isSizeOnly()) {
             return new SizeOnlyComparisonStrategy();
-        } else if (mirrorOptions.isSizeAndLastModified()) {
+        } else if (mirrorOptions.isSizeAndLastModified() || mirrorOptions.hasDestinationDirectory()) {
+            // a local file has no ETag, but a restored file is given its object's last-modified time
             return new SizeAndLastModifiedComparisonStrategy();
         } else {
             return new EtagComparisonStrategy();
@@ -1,12 +1,17 @@
 package org.cobbzilla.s3s3mirror.comparisonstrategies;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.cobbzilla.s3s3mirror.KeyRecord;
 
 public class EtagComparisonStrategy extends SizeOnlyComparisonStrategy {
     @Override
-    public boolean sourceDifferent(S3ObjectSummary source, ObjectMetadata destination) {
+    public boolean sourceDifferent(KeyRecord source, ObjectMetadata destination) {
 
-        return super.sourceDifferent(source, destination) || !source.getETag().equals(destination.getETag());
+        return super.sourceDifferent(source, destination) || !source.sameETag(destination.getETag());
+    }
+
+    @Override
+    public boolean sourceDifferent(KeyRecord source, KeyRecord destination) {
+        return super.sourceDifferent(source, destination) || !source.sameETag(destination);
     }
 }
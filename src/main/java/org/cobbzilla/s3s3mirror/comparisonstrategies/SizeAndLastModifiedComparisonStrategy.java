@@ -1,11 +1,16 @@
 package org.cobbzilla.s3s3mirror.comparisonstrategies;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.cobbzilla.s3s3mirror.KeyRecord;
 
 public class SizeAndLastModifiedComparisonStrategy extends SizeOnlyComparisonStrategy {
     @Override
-    public boolean sourceDifferent(S3ObjectSummary source, ObjectMetadata destination) {
-        return super.sourceDifferent(source, destination) || source.getLastModified().after(destination.getLastModified());
+    public boolean sourceDifferent(KeyRecord source, ObjectMetadata destination) {
+        return super.sourceDifferent(source, destination) || source.getLastModified() > destination.getLastModified().getTime();
+    }
+
+    @Override
+    public boolean sourceDifferent(KeyRecord source, KeyRecord destination) {
+        return super.sourceDifferent(source, destination) || source.getLastModified() > destination.getLastModified();
     }
 }
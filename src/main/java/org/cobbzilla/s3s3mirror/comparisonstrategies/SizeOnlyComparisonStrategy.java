@@ -1,11 +1,16 @@
 package org.cobbzilla.s3s3mirror.comparisonstrategies;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.cobbzilla.s3s3mirror.KeyRecord;
 
 public class SizeOnlyComparisonStrategy implements ComparisonStrategy {
     @Override
-    public boolean sourceDifferent(S3ObjectSummary source, ObjectMetadata destination) {
+    public boolean sourceDifferent(KeyRecord source, ObjectMetadata destination) {
         return source.getSize() != destination.getContentLength();
     }
+
+    @Override
+    public boolean sourceDifferent(KeyRecord source, KeyRecord destination) {
+        return source.getSize() != destination.getSize();
+    }
 }
@@ -0,0 +1,64 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class AsyncKeyCopyJobTest {
+
+    private static final String SOURCE = "async-source";
+    private static final String DEST = "async-dest";
+    private static final int KEYS = 300;
+
+    private FakeS3Server s3;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(SOURCE);
+        s3.createBucket(DEST);
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    @Test
+    public void testAsyncMirror() throws Exception {
+        for (int i=0; i<KEYS; i++) s3.putObject(SOURCE, "key"+i, ("data"+i).getBytes());
+        s3.putObject(DEST, "key7", "stale".getBytes());
+
+        // two worker threads, but many more keys in flight
+        s3.setLatencyMillis(5);
+        s3.getFaults(FakeS3Server.Operation.HEAD).setErrorRate(0.1);
+        s3.getFaults(FakeS3Server.Operation.COPY).setErrorRate(0.1);
+        MirrorMain main = s3.newMirror(OPT_ASYNC, OPT_MAX_KEYS_IN_FLIGHT, "100", OPT_MAX_THREADS, "2", SOURCE, DEST);
+        main.run();
+        s3.clearFaults();
+
+        MirrorStats stats = main.getContext().getStats();
+        assertEquals(KEYS, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(KEYS, s3.getKeys(DEST).size());
+        assertEquals("data7", new String(s3.getObject(DEST, "key7")));
+        assertEquals("data123", new String(s3.getObject(DEST, "key123")));
+
+        // up to date: only the destination is asked about each key
+        final long copies = s3.getRequestCount(FakeS3Server.Operation.COPY);
+        main = s3.newMirror(OPT_ASYNC, OPT_MAX_KEYS_IN_FLIGHT, "100", SOURCE, DEST);
+        main.run();
+        assertEquals(0, main.getContext().getStats().objectsCopied.get());
+        assertEquals(copies, s3.getRequestCount(FakeS3Server.Operation.COPY));
+    }
+
+    @Test
+    public void testDryRun() throws Exception {
+        s3.putObject(SOURCE, "a", "a".getBytes());
+        final MirrorMain main = s3.newMirror(OPT_ASYNC, OPT_DRY_RUN, SOURCE, DEST);
+        main.run();
+        assertEquals(0, main.getContext().getStats().objectsCopied.get());
+        assertTrue(s3.getKeys(DEST).isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class CheckpointJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("s3s3mirror-checkpoint-", ".journal");
+    }
+
+    @After
+    public void tearDown() { file.delete(); }
+
+    @Test
+    public void testResumeAfterCrash() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(file, false);
+        CheckpointJournal.Stream stream = journal.getStream("CopyMaster");
+        final CheckpointJournal.Entry a = stream.started("a");
+        final CheckpointJournal.Entry b = stream.started("b");
+        final CheckpointJournal.Entry c = stream.started("c");
+        final CheckpointJournal.Entry d = stream.started("d");
+        stream.setListingMarker("d");
+
+        // finished out of order: the watermark only moves past keys with nothing unfinished before them
+        stream.finished(b);
+        assertNull(stream.getWatermark());
+        stream.finished(a);
+        assertEquals("b", stream.getWatermark());
+        stream.finished(d);
+        assertEquals("b", stream.getWatermark());
+        journal.flush();
+
+        // die without closing, in the middle of writing a record
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {'D', 0, 10, 'C'});
+        out.close();
+
+        journal = new CheckpointJournal(file, true);
+        stream = journal.getStream("CopyMaster");
+        assertEquals("b", stream.getResumeMarker());
+        assertFalse(stream.isDone("c"));
+        assertTrue(stream.isDone("d"));
+
+        // after resuming, "c" is listed and run again, "d" is skipped
+        final CheckpointJournal.Entry c2 = stream.started("c");
+        stream.skipped("d");
+        stream.finished(c2);
+        assertEquals("d", stream.getWatermark());
+        journal.writeCheckpoint();
+
+        journal = new CheckpointJournal(file, true);
+        assertEquals("d", journal.getStream("CopyMaster").getResumeMarker());
+        assertFalse(journal.getStream("CopyMaster").isDone("d"));
+        assertNull(journal.getStream("DeleteMaster").getResumeMarker());
+
+        journal.complete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testNewRunIgnoresOldJournal() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(file, false);
+        final CheckpointJournal.Stream stream = journal.getStream("CopyMaster");
+        stream.finished(stream.started("a"));
+        journal.close();
+
+        journal = new CheckpointJournal(file, false);
+        assertNull(journal.getStream("CopyMaster").getResumeMarker());
+        journal.close();
+    }
+
+    @Test
+    public void testWatermarkMovesPastFailedKeys() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(file, false);
+        CheckpointJournal.Stream stream = journal.getStream("CopyMaster");
+        final CheckpointJournal.Entry a = stream.started("a");
+        final CheckpointJournal.Entry b = stream.started("b");
+        final CheckpointJournal.Entry c = stream.started("c");
+        stream.failed(a);
+        stream.finished(b);
+        stream.failed(c);
+        assertEquals("c", stream.getWatermark());
+        journal.writeCheckpoint();
+
+        // a failed key survives a checkpoint, and is retried by the resumed run rather than holding it back
+        journal = new CheckpointJournal(file, true);
+        stream = journal.getStream("CopyMaster");
+        assertEquals("c", stream.getResumeMarker());
+        assertFalse(stream.isDone("b"));
+        assertEquals(Arrays.asList("a", "c"), stream.getRetryKeys());
+
+        stream.finished(stream.retrying("a"));
+        stream.failed(stream.retrying("c"));
+        assertEquals("c", stream.getWatermark());
+        journal.flush();
+
+        journal = new CheckpointJournal(file, true);
+        assertEquals(Arrays.asList("c"), journal.getStream("CopyMaster").getRetryKeys());
+        journal.close();
+    }
+
+    @Test
+    public void testFailedKeysAreRetriedOnResume() throws Exception {
+        final FakeS3Server s3 = new FakeS3Server().start();
+        try {
+            s3.createBucket("source");
+            s3.createBucket("dest");
+            for (int i=0; i<5; i++) s3.putObject("source", "key"+i, ("data"+i).getBytes());
+            s3.getFaults(FakeS3Server.Operation.COPY).setErrorRate(1.0);
+
+            MirrorMain main = s3.newMirror(OPT_CHECKPOINT, file.getAbsolutePath(), OPT_MAX_RETRIES, "1", "source", "dest");
+            main.run();
+            assertEquals(5, main.getContext().getStats().copyErrors.get());
+            // the run listed every key, but kept its journal because keys failed
+            assertTrue(file.exists());
+
+            s3.clearFaults();
+            main = s3.newMirror(OPT_CHECKPOINT, file.getAbsolutePath(), OPT_RESUME, "source", "dest");
+            main.run();
+            assertEquals(5, main.getContext().getStats().objectsCopied.get());
+            assertEquals(5, s3.getKeys("dest").size());
+            assertFalse(file.exists());
+
+        } finally {
+            s3.stop();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyControllerTest {
+
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Runs a round trip's worth of requests (one per permit) with every permit in use: each request that finishes
+     * is replaced by a new one, as when there is plenty of work waiting.
+     */
+    private static void fullRound(ConcurrencyController controller) throws InterruptedException {
+        final int n = controller.getLimit();
+        while (controller.getInFlight() < controller.getLimit()) controller.acquire();
+        for (int i=0; i<n; i++) {
+            controller.onSuccess(LATENCY);
+            controller.release();
+            while (controller.getInFlight() < controller.getLimit()) controller.acquire();
+        }
+        while (controller.getInFlight() > 0) controller.release();
+    }
+
+    @Test
+    public void testIncreaseAdditivelyDecreaseMultiplicatively() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1000, new MirrorStats());
+        assertEquals(ConcurrencyController.INITIAL_LIMIT, controller.getLimit());
+
+        // slow start: the limit doubles every round
+        fullRound(controller);
+        assertEquals(2 * ConcurrencyController.INITIAL_LIMIT, controller.getLimit());
+        fullRound(controller);
+        assertEquals(4 * ConcurrencyController.INITIAL_LIMIT, controller.getLimit());
+
+        controller.onThrottle();
+        final int cut = controller.getLimit();
+        assertEquals(2 * ConcurrencyController.INITIAL_LIMIT, cut);
+        // more throttles right away come from requests sent before the cut, they don't cut again
+        controller.onThrottle();
+        assertEquals(cut, controller.getLimit());
+
+        // after a throttle, the limit grows by a little less than one per round (1/limit per request)
+        for (int i=0; i<4; i++) fullRound(controller);
+        assertTrue("limit was "+controller.getLimit(), controller.getLimit() >= cut + 3 && controller.getLimit() <= cut + 4);
+    }
+
+    @Test
+    public void testLimitIsACeilingAndBlocksRequests() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(10, new MirrorStats());
+        for (int i=0; i<5; i++) fullRound(controller);
+        assertEquals(10, controller.getLimit());
+
+        for (int i=0; i<10; i++) controller.acquire();
+        final Thread blocked = new Thread() {
+            @Override public void run() {
+                try { controller.acquire(); } catch (InterruptedException e) { /* test is over */ }
+            }
+        };
+        blocked.start();
+        blocked.join(200);
+        assertTrue("request should wait for a permit", blocked.isAlive());
+        controller.release();
+        blocked.join(1000);
+        assertFalse(blocked.isAlive());
+    }
+
+    @Test
+    public void testNoGrowthWhenIdle() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1000, new MirrorStats());
+        // one request at a time never reaches the limit, so there is no reason to raise it
+        for (int i=0; i<100; i++) {
+            controller.acquire();
+            controller.onSuccess(LATENCY);
+            controller.release();
+        }
+        assertEquals(ConcurrencyController.INITIAL_LIMIT, controller.getLimit());
+    }
+
+    @Test
+    public void testThrottleDetection() {
+        final AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+        slowDown.setStatusCode(503);
+        slowDown.setErrorCode("SlowDown");
+        assertTrue(ConcurrencyController.isThrottle(slowDown));
+
+        final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        assertFalse(ConcurrencyController.isThrottle(notFound));
+    }
+}
@@ -0,0 +1,77 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class CopyWatchdogTest {
+
+    private static final String SOURCE = "watchdog-source";
+    private static final String DEST = "watchdog-dest";
+
+    private FakeS3Server s3;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(SOURCE);
+        s3.createBucket(DEST);
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    private static CopyObjectRequest copyOf(long size) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(size);
+        return new CopyObjectRequest("a", "b", "c", "d").withNewObjectMetadata(metadata);
+    }
+
+    @Test
+    public void testDeadlineGrowsWithUsualLatency() {
+        final MirrorStats stats = new MirrorStats();
+        final CopyWatchdog watchdog = new CopyWatchdog(1000, stats);
+        assertEquals(1000, watchdog.getDeadlineMillis(copyOf(GB)));
+
+        // big copies that usually take 10s get 40s; small ones keep the configured deadline
+        for (int i=0; i<CopyWatchdog.MIN_SAMPLES; i++) stats.getCopyLatency(GB).record(TimeUnit.SECONDS.toNanos(10));
+        final long deadline = watchdog.getDeadlineMillis(copyOf(GB));
+        assertTrue(deadline >= 40000 && deadline < 44000);
+        assertEquals(1000, watchdog.getDeadlineMillis(copyOf(1)));
+    }
+
+    @Test
+    public void testStalledCopyIsSentAgain() throws Exception {
+        s3.putObject(SOURCE, "key", "data".getBytes());
+        s3.getFaults(FakeS3Server.Operation.COPY).setLatencyMillis(10000);
+
+        // the first copy hangs; by the time it is sent again the connection is healthy
+        final Thread heal = new Thread() {
+            @Override public void run() {
+                try { Thread.sleep(1500); } catch (InterruptedException e) { return; }
+                s3.clearFaults();
+            }
+        };
+        final MirrorMain main = s3.newMirror(OPT_COPY_DEADLINE, "1", SOURCE, DEST);
+        final long start = System.currentTimeMillis();
+        heal.start();
+        main.run();
+        heal.join();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(1, stats.objectsCopied.get());
+        assertTrue(stats.s3stalledRequests.get() >= 1);
+        // sent again by the Retrier, not by the SDK
+        assertTrue(stats.s3retryCount.get() >= 1);
+        assertTrue(System.currentTimeMillis() - start < 8000);
+        assertEquals("data", new String(s3.getObject(DEST, "key")));
+    }
+}
@@ -0,0 +1,75 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class DeleteBatcherTest {
+
+    private MirrorContext newContext() {
+        final MirrorOptions options = new MirrorOptions();
+        options.setSource("from-bucket");
+        options.setDestination("to-bucket");
+        options.initDerivedFields();
+        return new MirrorContext(options, null);
+    }
+
+    @Test
+    public void testFullBatchesAreSentAndRemainderFlushed() {
+        final AmazonS3Client client = mock(AmazonS3Client.class);
+        doReturn(new DeleteObjectsResult(Collections.<DeleteObjectsResult.DeletedObject>emptyList())).when(client).deleteObjects(any(DeleteObjectsRequest.class));
+        final MirrorContext context = newContext();
+        final DeleteBatcher batcher = new DeleteBatcher(client, context);
+
+        final int numKeys = DeleteBatcher.MAX_BATCH_SIZE + 10;
+        for (int i=0; i<numKeys; i++) batcher.add("key"+i);
+        verify(client, times(1)).deleteObjects(any(DeleteObjectsRequest.class));
+
+        batcher.flush();
+        verify(client, times(2)).deleteObjects(any(DeleteObjectsRequest.class));
+        assertEquals(numKeys, context.getStats().objectsDeleted.get());
+        assertEquals(2, context.getStats().deleteBatches.get());
+    }
+
+    @Test
+    public void testOnlyFailedKeysAreRetried() {
+        final AmazonS3Client client = mock(AmazonS3Client.class);
+        final MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey("key1");
+        error.setCode("InternalError");
+        final List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<MultiObjectDeleteException.DeleteError>();
+        errors.add(error);
+        doThrow(new MultiObjectDeleteException(errors, Collections.<DeleteObjectsResult.DeletedObject>emptyList()))
+                .doReturn(new DeleteObjectsResult(Collections.<DeleteObjectsResult.DeletedObject>emptyList()))
+                .when(client).deleteObjects(any(DeleteObjectsRequest.class));
+
+        final MirrorContext context = newContext();
+        final DeleteBatcher batcher = new DeleteBatcher(client, context);
+        batcher.add("key0");
+        batcher.add("key1");
+        batcher.add("key2");
+        batcher.flush();
+
+        final ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(client, times(2)).deleteObjects(captor.capture());
+        final List<DeleteObjectsRequest.KeyVersion> retried = captor.getAllValues().get(1).getKeys();
+        assertEquals(1, retried.size());
+        assertEquals("key1", retried.get(0).getKey());
+
+        assertEquals(3, context.getStats().objectsDeleted.get());
+        assertEquals(0, context.getStats().deleteErrors.get());
+        assertEquals(2, context.getStats().s3deleteCount.get());
+        assertEquals(1, context.getStats().deleteBatches.get());
+    }
+}
@@ -0,0 +1,164 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class DestinationIndexTest {
+
+    private static final Date LAST_MODIFIED = new Date(1600000000000L);
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("s3s3mirror-index-", ".idx");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() { file.delete(); }
+
+    private static S3ObjectSummary summary(String key, long size, String etag) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(etag);
+        summary.setLastModified(LAST_MODIFIED);
+        return summary;
+    }
+
+    private static KeyRecord record(String key, long size, String etag) {
+        return new KeyRecord(key, size, LAST_MODIFIED, etag);
+    }
+
+    private static List<String> keys(DestinationIndex index, String prefix) {
+        final List<String> keys = new ArrayList<String>();
+        for (Iterator<KeyRecord> iter = index.fileEntries(prefix); iter.hasNext(); ) keys.add(iter.next().getKey());
+        return keys;
+    }
+
+    @Test
+    public void testChangesAreMergedOnSave() throws Exception {
+        DestinationIndex index = new DestinationIndex(file);
+        assertNull(index.get("a"));
+        index.put("b/2", 2, "etag2", LAST_MODIFIED);
+        index.put("a/1", 1, "etag1", LAST_MODIFIED);
+        // a key with a surrogate pair sorts after U+FFFD, as S3 lists it
+        index.put("c/\uD83D\uDE00", 3, "etag3", LAST_MODIFIED);
+        index.put("c/\uFFFD", 4, "etag4", LAST_MODIFIED);
+        index.save();
+
+        index = new DestinationIndex(file);
+        assertEquals(4, index.getFileEntries());
+        final KeyRecord entry = index.get("b/2");
+        assertEquals(2, entry.getSize());
+        assertEquals("etag2", entry.getETag());
+        assertEquals(LAST_MODIFIED.getTime(), entry.getLastModified());
+        assertNull(index.get("b"));
+        assertNull(index.get("zzz"));
+
+        index.remove("a/1");
+        index.put("b/2", 20, "etag20", LAST_MODIFIED);
+        index.put("b/3", 3, "etag3", LAST_MODIFIED);
+        assertNull(index.get("a/1"));
+        index.save();
+
+        index = new DestinationIndex(file);
+        assertNull(index.get("a/1"));
+        assertEquals(20, index.get("b/2").getSize());
+        assertEquals(3, index.get("b/3").getSize());
+        assertEquals(4, index.get("c/\uFFFD").getSize());
+        assertEquals(3, index.get("c/\uD83D\uDE00").getSize());
+
+        final List<String> expected = new ArrayList<String>();
+        expected.add("b/2");
+        expected.add("b/3");
+        assertEquals(expected, keys(index, "b/"));
+        assertEquals(4, keys(index, null).size());
+        assertEquals("c/\uD83D\uDE00", keys(index, "c/").get(1));
+    }
+
+    @Test
+    public void testSpilledChangesAndSmallWindows() throws Exception {
+        // spill every 3 changes, and map the files 64 bytes at a time, so records and offsets straddle windows
+        DestinationIndex index = new DestinationIndex(file, 64, 3);
+        for (int i=0; i<10; i++) index.put("key"+i, i, "etag"+i, LAST_MODIFIED);
+        index.save();
+
+        index = new DestinationIndex(file, 64, 3);
+        assertEquals(10, index.getFileEntries());
+        index.put("key3", 30, "etag30", LAST_MODIFIED);
+        index.remove("key5");
+        index.put("key10", 10, "etag10", LAST_MODIFIED);
+        // spilled: the newest change to a key wins, wherever it is
+        index.remove("key3");
+        index.put("key0", 100, "etag100", LAST_MODIFIED);
+        index.put("key3", 300, "etag300", LAST_MODIFIED);
+        index.put("key6", 60, "etag60", LAST_MODIFIED);
+        assertEquals(300, index.get("key3").getSize());
+        assertNull(index.get("key5"));
+        assertEquals(10, index.get("key10").getSize());
+        assertEquals(9, index.get("key9").getSize());
+        index.save();
+
+        index = new DestinationIndex(file, 64, 3);
+        assertEquals(10, index.getFileEntries());
+        assertEquals(100, index.get("key0").getSize());
+        assertEquals(300, index.get("key3").getSize());
+        assertEquals("etag300", index.get("key3").getETag());
+        assertNull(index.get("key5"));
+        assertEquals(60, index.get("key6").getSize());
+        final List<String> keys = keys(index, "key1");
+        assertEquals(2, keys.size());
+        assertEquals("key10", keys.get(1));
+        // no runs are left behind
+        assertEquals(1, file.getParentFile().listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) { return name.startsWith(file.getName()); }
+        }).length);
+    }
+
+    @Test
+    public void testVerifyCorrectsIndex() throws Exception {
+        DestinationIndex index = new DestinationIndex(file);
+        index.put(record("gone", 1, "e1"));
+        index.put(record("same", 2, "e2"));
+        index.put(record("stale", 3, "e3"));
+        index.save();
+        index = new DestinationIndex(file);
+
+        final ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("new", 4, "e4"));
+        listing.getObjectSummaries().add(summary("same", 2, "e2"));
+        listing.getObjectSummaries().add(summary("stale", 30, "e30"));
+        final AmazonS3Client client = mock(AmazonS3Client.class);
+        doReturn(listing).when(client).listObjects(any(ListObjectsRequest.class));
+
+        final MirrorOptions options = new MirrorOptions();
+        options.setSource("from-bucket");
+        options.setDestination("to-bucket");
+        options.initDerivedFields();
+        assertTrue(new IndexVerifier(client, new MirrorContext(options, null), index).verify());
+
+        assertNull(index.get("gone"));
+        assertEquals(4, index.get("new").getSize());
+        assertEquals(30, index.get("stale").getSize());
+        // 3 corrections: nothing is recorded for the entry that was already right
+        assertEquals(3, index.getChangeCount());
+    }
+}
@@ -0,0 +1,131 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class DownloadKeyCopyJobTest {
+
+    private static final String SOURCE = "restore-source";
+    private static final String PART_SIZE = String.valueOf(5 * MB);
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    private FakeS3Server s3;
+    private File dest;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(SOURCE);
+        dest = temp.newFolder("dest");
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    @Test
+    public void testRestore() throws Exception {
+        s3.putObject(SOURCE, "a.txt", "a".getBytes());
+        s3.putObject(SOURCE, "dir/b.txt", "bb".getBytes());
+        s3.putObject(SOURCE, "dir/sub/c.txt", "ccc".getBytes());
+        s3.putObject(SOURCE, "empty", new byte[0]);
+        s3.putObject(SOURCE, "folder/", new byte[0]);
+        final byte[] big = new byte[12 * (int) MB];
+        for (int i=0; i<big.length; i++) big[i] = (byte) (i * 31);
+        s3.putObject(SOURCE, "big.bin", big);
+        FileUtils.writeByteArrayToFile(new File(dest, "stale.txt"), "x".getBytes());
+        FileUtils.writeByteArrayToFile(new File(dest, "dir/old.txt"), "y".getBytes());
+
+        // failed reads are retried, and a retried part is written again at its offset
+        s3.getFaults(FakeS3Server.Operation.GET).setErrorRate(0.2);
+        MirrorMain main = s3.newMirror(OPT_DELETE_REMOVED, "-u", PART_SIZE, SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        main.run();
+        s3.clearFaults();
+
+        MirrorStats stats = main.getContext().getStats();
+        assertEquals(6, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(2, stats.objectsDeleted.get());
+        assertEquals("a", FileUtils.readFileToString(new File(dest, "a.txt"), StandardCharsets.UTF_8));
+        assertEquals("ccc", FileUtils.readFileToString(new File(dest, "dir/sub/c.txt"), StandardCharsets.UTF_8));
+        assertEquals(0, new File(dest, "empty").length());
+        assertTrue(new File(dest, "folder").isDirectory());
+        assertArrayEquals(big, FileUtils.readFileToByteArray(new File(dest, "big.bin")));
+        assertFalse(new File(dest, "stale.txt").exists());
+        assertFalse(new File(dest, "dir/old.txt").exists());
+        for (File file : (Collection<File>) FileUtils.listFiles(dest, null, true)) {
+            assertFalse(file.toString(), DownloadKeyCopyJob.isTempFile(file.getName()));
+        }
+
+        // everything is up to date
+        main = s3.newMirror(OPT_DELETE_REMOVED, "-u", PART_SIZE, SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        main.run();
+        stats = main.getContext().getStats();
+        assertEquals(0, stats.objectsCopied.get());
+        assertEquals(0, stats.objectsDeleted.get());
+
+        // a file cut short (by something other than the mirror) is downloaded again
+        FileUtils.writeByteArrayToFile(new File(dest, "big.bin"), new byte[10]);
+        final long getsBefore = s3.getRequestCount(FakeS3Server.Operation.GET);
+        main = s3.newMirror("-u", PART_SIZE, SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        main.run();
+        assertEquals(1, main.getContext().getStats().objectsCopied.get());
+        assertEquals(3, s3.getRequestCount(FakeS3Server.Operation.GET) - getsBefore);
+        assertArrayEquals(big, FileUtils.readFileToByteArray(new File(dest, "big.bin")));
+    }
+
+    @Test
+    public void testFailedPartLeavesNothingBehind() throws Exception {
+        s3.putObject(SOURCE, "big.bin", new byte[4 * 5 * (int) MB]);
+        // slow parts, so the others are still running when the first one fails
+        s3.getFaults(FakeS3Server.Operation.GET).setErrorRate(1.0);
+        s3.getFaults(FakeS3Server.Operation.GET).setLatencyMillis(200);
+
+        final MirrorMain main = s3.newMirror(OPT_MAX_RETRIES, "1", "-u", PART_SIZE, SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        main.run();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(0, stats.objectsCopied.get());
+        assertEquals(1, stats.copyErrors.get());
+        // every part had stopped before the temporary file was deleted, so none of them wrote it again
+        Thread.sleep(500);
+        assertEquals(0, FileUtils.listFiles(dest, null, true).size());
+    }
+
+    @Test
+    public void testPrefixes() throws Exception {
+        s3.putObject(SOURCE, "keep/a", "a".getBytes());
+        s3.putObject(SOURCE, "keep/b/c", "c".getBytes());
+        s3.putObject(SOURCE, "other/d", "d".getBytes());
+
+        final MirrorMain main = s3.newMirror(OPT_PREFIX, "keep/", OPT_DEST_PREFIX, "restored/", SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        main.run();
+        assertEquals(2, main.getContext().getStats().objectsCopied.get());
+        assertEquals("c", FileUtils.readFileToString(new File(dest, "restored/b/c"), StandardCharsets.UTF_8));
+        assertFalse(new File(dest, "other").exists());
+        assertFalse(new File(dest, "keep").exists());
+    }
+
+    @Test
+    public void testDestinationCreatedWhenRunStarts() throws Exception {
+        s3.putObject(SOURCE, "a", "a".getBytes());
+        dest = new File(dest, "not/there/yet");
+
+        final MirrorMain main = s3.newMirror(SOURCE, FILE_PROTOCOL_PREFIX + dest.getAbsolutePath());
+        assertFalse(dest.exists());
+        main.run();
+        assertEquals("a", FileUtils.readFileToString(new File(dest, "a"), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,67 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class ExistenceFilterTest {
+
+    private static final int KEYS = 100000;
+
+    @Test
+    public void testNoFalseNegativesAndFalsePositiveRate() throws Exception {
+        final double rate = 0.01;
+        final ExistenceFilter.Builder builder = new ExistenceFilter.Builder(rate);
+        final ExistenceFilter filter;
+        try {
+            for (int i=0; i<KEYS; i++) builder.add("dir"+(i % 100)+"/key"+i);
+            filter = builder.build();
+        } finally {
+            builder.close();
+        }
+        assertEquals(KEYS, filter.getKeys());
+        // about 9.6 bits per key at 1%
+        assertTrue(filter.getSizeBytes() < KEYS * 10 / 8 + 8);
+
+        for (int i=0; i<KEYS; i++) assertTrue(filter.mightContain("dir"+(i % 100)+"/key"+i));
+        int falsePositives = 0;
+        for (int i=0; i<KEYS; i++) {
+            if (filter.mightContain("dir"+(i % 100)+"/other"+i)) falsePositives++;
+        }
+        assertTrue("false positives: "+falsePositives, falsePositives < KEYS * rate * 1.5);
+    }
+
+    @Test
+    public void testKeysNotInDestinationAreCopiedWithoutLookup() throws Exception {
+        final FakeS3Server s3 = new FakeS3Server().start();
+        try {
+            s3.createBucket("source");
+            s3.createBucket("dest");
+            for (int i=0; i<50; i++) s3.putObject("source", "src/key"+i, ("data"+i).getBytes());
+            s3.putObject("dest", "dst/key7", "data7".getBytes());
+
+            final MirrorMain main = s3.newMirror(OPT_EXISTENCE_FILTER, "0.01", "source/src/", "dest/dst/");
+            main.run();
+
+            final MirrorStats stats = main.getContext().getStats();
+            assertEquals(49, stats.headsSkipped.get());
+            assertEquals(49, stats.objectsCopied.get());
+            assertEquals(50, s3.getKeys("dest").size());
+            assertEquals("data42", new String(s3.getObject("dest", "dst/key42")));
+            assertNotNull(main.getContext().getExistenceFilter());
+            assertTrue(main.getContext().getExistenceFilter().mightContain("dst/key7"));
+        } finally {
+            s3.stop();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRateMustBeBelowOne() {
+        final MirrorOptions options = new MirrorOptions();
+        options.setSource("source");
+        options.setDestination("dest");
+        options.setExistenceFilter(1.5);
+        options.initDerivedFields();
+    }
+}
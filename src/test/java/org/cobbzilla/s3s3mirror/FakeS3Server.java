@@ -0,0 +1,775 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An S3 stand-in that speaks enough of the REST API (path-style) for the mirror and the SDK: listing (v1 and v2),
+ * HEAD, GET, PUT, copy, multipart uploads and part copies, ACLs, and single and multi-object deletes. Everything
+ * is kept in memory.
+ *
+ * Each operation can be made slow, throttled (503 SlowDown) or failing (500 InternalError) some fraction of the
+ * time, so scaling and retry behavior can be tried without real buckets. Point a client at it with --endpoint
+ * and getEndpoint(); the credentials are not checked.
+ */
+@Slf4j
+public class FakeS3Server {
+
+    public enum Operation {
+        LIST, HEAD, GET, PUT, COPY, INITIATE_MULTIPART, UPLOAD_PART, COPY_PART, COMPLETE_MULTIPART,
+        ABORT_MULTIPART, GET_ACL, PUT_ACL, DELETE, DELETE_OBJECTS, BUCKET
+    }
+
+    /**
+     * What goes wrong with one operation: every request waits latencyMillis, then is throttled with probability
+     * throttleRate, or else fails with probability errorRate.
+     */
+    public static class Faults {
+        @Getter @Setter private volatile long latencyMillis;
+        @Getter @Setter private volatile double throttleRate;
+        @Getter @Setter private volatile double errorRate;
+    }
+
+    public static final String OWNER_ID = "fake-s3-owner";
+    public static final String OWNER_NAME = "fake-s3";
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String S3_NS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final String META_PREFIX = "x-amz-meta-";
+    private static final int MAX_KEYS = 1000;
+
+    // httpcore (which the SDK depends on) rather than com.sun.net.httpserver: that one changes the case of header
+    // names, and the SDK sends response headers like Content-Length back when they come in an unexpected case
+    private final HttpServer server;
+
+    private final Map<String, ConcurrentSkipListMap<String, FakeObject>> buckets = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, FakeObject>>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+    private final Faults[] faults = new Faults[Operation.values().length];
+    private final AtomicLongArray requests = new AtomicLongArray(Operation.values().length);
+    private final AtomicLongArray throttled = new AtomicLongArray(Operation.values().length);
+    private final AtomicLongArray errors = new AtomicLongArray(Operation.values().length);
+    private final AtomicLong requestIds = new AtomicLong(0);
+
+    public FakeS3Server() throws IOException { this(0); }
+
+    /**
+     * @param port the port to listen on (on the loopback address), or 0 for any free port
+     */
+    public FakeS3Server(int port) throws IOException {
+        for (int i=0; i<faults.length; i++) faults[i] = new Faults();
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getByName("127.0.0.1"))
+                .setListenerPort(port)
+                .setServerInfo("FakeS3")
+                .registerHandler("*", new HttpRequestHandler() {
+                    @Override public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                        final Exchange exchange = new Exchange(request, response);
+                        try {
+                            FakeS3Server.this.handle(exchange);
+                        } catch (Exception e) {
+                            log.error("fake s3: error handling "+request.getRequestLine()+": "+e, e);
+                            error(exchange, 500, "InternalError", e.toString());
+                        }
+                    }
+                })
+                .create();
+    }
+
+    public FakeS3Server start() throws IOException { server.start(); return this; }
+
+    public void stop() { server.shutdown(1, TimeUnit.SECONDS); }
+
+    public int getPort() { return server.getLocalPort(); }
+
+    // an IP address (rather than localhost) makes the SDK use path-style requests
+    public String getEndpoint() { return "http://127.0.0.1:"+getPort(); }
+
+    /**
+     * @param args mirror arguments, without --endpoint
+     * @return a MirrorMain pointed at this server, with fake credentials, initialized and ready to run
+     */
+    public MirrorMain newMirror(String... args) {
+        final String[] allArgs = new String[args.length + 2];
+        allArgs[0] = MirrorOptions.OPT_ENDPOINT;
+        allArgs[1] = getEndpoint();
+        System.arraycopy(args, 0, allArgs, 2, args.length);
+        final MirrorMain main = new MirrorMain(allArgs);
+        main.getOptions().setAWSAccessKeyId("fake");
+        main.getOptions().setAWSSecretKey("fake");
+        main.init();
+        return main;
+    }
+
+    public Faults getFaults(Operation operation) { return faults[operation.ordinal()]; }
+
+    /** Sets the same latency for every operation. */
+    public void setLatencyMillis(long millis) { for (Faults f : faults) f.setLatencyMillis(millis); }
+
+    /** Sets the same throttle rate for every operation. */
+    public void setThrottleRate(double rate) { for (Faults f : faults) f.setThrottleRate(rate); }
+
+    /** Sets the same error rate for every operation. */
+    public void setErrorRate(double rate) { for (Faults f : faults) f.setErrorRate(rate); }
+
+    public void clearFaults() { for (int i=0; i<faults.length; i++) faults[i] = new Faults(); }
+
+    public long getRequestCount(Operation operation) { return requests.get(operation.ordinal()); }
+
+    public long getThrottledCount(Operation operation) { return throttled.get(operation.ordinal()); }
+
+    public long getErrorCount(Operation operation) { return errors.get(operation.ordinal()); }
+
+    public void createBucket(String bucket) {
+        if (!buckets.containsKey(bucket)) buckets.put(bucket, new ConcurrentSkipListMap<String, FakeObject>());
+    }
+
+    public void putObject(String bucket, String key, byte[] data) {
+        bucket(bucket).put(key, new FakeObject(data, md5Hex(data), null, new HashMap<String, String>()));
+    }
+
+    /** @return the object's contents, or null if there is no such object */
+    public byte[] getObject(String bucket, String key) {
+        final FakeObject object = bucket(bucket).get(key);
+        return object == null ? null : object.data;
+    }
+
+    public Set<String> getKeys(String bucket) { return new TreeSet<String>(bucket(bucket).keySet()); }
+
+    /** @return the number of multipart uploads initiated and not yet completed or aborted */
+    public int getUploadsInProgress() { return uploads.size(); }
+
+    private ConcurrentSkipListMap<String, FakeObject> bucket(String bucket) {
+        final ConcurrentSkipListMap<String, FakeObject> objects = buckets.get(bucket);
+        if (objects == null) throw new IllegalArgumentException("no such bucket: "+bucket);
+        return objects;
+    }
+
+    private static class FakeObject {
+        final byte[] data;
+        final String etag;
+        final String contentType;
+        final Map<String, String> metadata;
+        final Date lastModified = new Date();
+        volatile String acl;
+
+        FakeObject(byte[] data, String etag, String contentType, Map<String, String> metadata) {
+            this.data = data;
+            this.etag = etag;
+            this.contentType = contentType == null ? "application/octet-stream" : contentType;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Upload {
+        final String bucket;
+        final String key;
+        final String contentType;
+        final Map<String, String> metadata;
+        final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        Upload(String bucket, String key, String contentType, Map<String, String> metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.contentType = contentType;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Exchange {
+        final HttpRequest request;
+        final HttpResponse response;
+        final String method;
+
+        Exchange(HttpRequest request, HttpResponse response) {
+            this.request = request;
+            this.response = response;
+            this.method = request.getRequestLine().getMethod();
+        }
+
+        String header(String name) {
+            final Header header = request.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        byte[] readBody() throws IOException {
+            if (!(request instanceof HttpEntityEnclosingRequest)) return new byte[0];
+            final byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+            return body == null ? new byte[0] : body;
+        }
+    }
+
+    private void handle(Exchange exchange) throws Exception {
+        final String method = exchange.method;
+        final String uri = exchange.request.getRequestLine().getUri();
+        final int q = uri.indexOf('?');
+        final String path = q == -1 ? uri : uri.substring(0, q);
+        final int slash = path.indexOf('/', 1);
+        final String bucket = decode(slash == -1 ? path.substring(1) : path.substring(1, slash));
+        final String key = slash == -1 ? "" : decode(path.substring(slash + 1));
+        final Map<String, String> query = parseQuery(q == -1 ? null : uri.substring(q + 1));
+
+        // read the whole body first, so failing a request never leaves a half-read connection behind
+        final byte[] body = exchange.readBody();
+
+        final Operation operation = operationFor(method, key, query, exchange.header("x-amz-copy-source") != null);
+        if (operation == null || bucket.length() == 0) {
+            error(exchange, 501, "NotImplemented", "Not supported by the fake: "+method+" "+uri);
+            return;
+        }
+        if (!injectFaults(exchange, operation)) return;
+
+        if (operation == Operation.BUCKET) {
+            if (method.equals("PUT")) createBucket(bucket);
+            if (!buckets.containsKey(bucket)) {
+                error(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+            } else {
+                empty(exchange, 200);
+            }
+            return;
+        }
+        final ConcurrentSkipListMap<String, FakeObject> objects = buckets.get(bucket);
+        if (objects == null) {
+            error(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+            return;
+        }
+
+        switch (operation) {
+            case LIST: list(exchange, bucket, objects, query); break;
+            case HEAD: case GET: get(exchange, objects.get(key), operation == Operation.HEAD); break;
+            case PUT: put(exchange, objects, key, body); break;
+            case COPY: copy(exchange, objects, key); break;
+            case INITIATE_MULTIPART: initiate(exchange, bucket, key); break;
+            case UPLOAD_PART: case COPY_PART: uploadPart(exchange, query, body, operation == Operation.COPY_PART); break;
+            case COMPLETE_MULTIPART: complete(exchange, objects, query, body); break;
+            case ABORT_MULTIPART:
+                if (uploads.remove(query.get("uploadId")) == null) {
+                    error(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+                } else {
+                    empty(exchange, 204);
+                }
+                break;
+            case GET_ACL: getAcl(exchange, objects, key); break;
+            case PUT_ACL: putAcl(exchange, objects.get(key), body); break;
+            case DELETE:
+                objects.remove(key);
+                empty(exchange, 204);
+                break;
+            case DELETE_OBJECTS: deleteObjects(exchange, objects, body); break;
+            default: error(exchange, 501, "NotImplemented", operation.name());
+        }
+    }
+
+    static Operation operationFor(String method, String key, Map<String, String> query, boolean copySource) {
+        if (key.length() == 0) {
+            if (method.equals("GET")) return query.containsKey("acl") ? Operation.GET_ACL : Operation.LIST;
+            if (method.equals("POST") && query.containsKey("delete")) return Operation.DELETE_OBJECTS;
+            if (method.equals("PUT") || method.equals("HEAD")) return Operation.BUCKET;
+            return null;
+        }
+        if (method.equals("HEAD")) return Operation.HEAD;
+        if (method.equals("GET")) return query.containsKey("acl") ? Operation.GET_ACL : Operation.GET;
+        if (method.equals("PUT")) {
+            if (query.containsKey("acl")) return Operation.PUT_ACL;
+            if (query.containsKey("uploadId")) return copySource ? Operation.COPY_PART : Operation.UPLOAD_PART;
+            return copySource ? Operation.COPY : Operation.PUT;
+        }
+        if (method.equals("POST")) {
+            if (query.containsKey("uploads")) return Operation.INITIATE_MULTIPART;
+            if (query.containsKey("uploadId")) return Operation.COMPLETE_MULTIPART;
+            return null;
+        }
+        if (method.equals("DELETE")) return query.containsKey("uploadId") ? Operation.ABORT_MULTIPART : Operation.DELETE;
+        return null;
+    }
+
+    /**
+     * @return false if the request was answered with an injected failure
+     */
+    private boolean injectFaults(Exchange exchange, Operation operation) {
+        requests.incrementAndGet(operation.ordinal());
+        final Faults f = getFaults(operation);
+        if (f.getLatencyMillis() > 0) {
+            try {
+                Thread.sleep(f.getLatencyMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < f.getThrottleRate()) {
+            throttled.incrementAndGet(operation.ordinal());
+            error(exchange, 503, "SlowDown", "Please reduce your request rate.");
+            return false;
+        }
+        if (roll < f.getThrottleRate() + f.getErrorRate()) {
+            errors.incrementAndGet(operation.ordinal());
+            error(exchange, 500, "InternalError", "We encountered an internal error. Please try again.");
+            return false;
+        }
+        return true;
+    }
+
+    private void list(Exchange exchange, String bucket, ConcurrentSkipListMap<String, FakeObject> objects,
+                      Map<String, String> query) throws IOException {
+        final boolean v2 = "2".equals(query.get("list-type"));
+        final boolean urlEncoded = "url".equals(query.get("encoding-type"));
+        final String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        final String delimiter = query.get("delimiter");
+        final int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : MAX_KEYS;
+
+        String after = null;
+        if (v2) {
+            if (query.containsKey("continuation-token")) {
+                after = new String(Base64.decodeBase64(query.get("continuation-token")), "UTF-8");
+            } else {
+                after = query.get("start-after");
+            }
+        } else {
+            after = query.get("marker");
+        }
+        final NavigableMap<String, FakeObject> candidates = after == null || after.compareTo(prefix) < 0
+                ? objects.tailMap(prefix, true)
+                : objects.tailMap(after, false);
+
+        final StringBuilder contents = new StringBuilder();
+        final Set<String> commonPrefixes = new LinkedHashSet<String>();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, FakeObject> entry : candidates.entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix)) break;
+            if (delimiter != null && delimiter.length() > 0) {
+                final int pos = key.indexOf(delimiter, prefix.length());
+                if (pos != -1) {
+                    final String commonPrefix = key.substring(0, pos + delimiter.length());
+                    if (commonPrefixes.contains(commonPrefix)) { last = key; continue; }
+                    if (count == maxKeys) { truncated = true; break; }
+                    commonPrefixes.add(commonPrefix);
+                    count++;
+                    last = key;
+                    continue;
+                }
+            }
+            if (count == maxKeys) { truncated = true; break; }
+            final FakeObject object = entry.getValue();
+            contents.append("<Contents>")
+                    .append("<Key>").append(escape(encode(key, urlEncoded))).append("</Key>")
+                    .append("<LastModified>").append(isoDate(object.lastModified)).append("</LastModified>")
+                    .append("<ETag>&quot;").append(object.etag).append("&quot;</ETag>")
+                    .append("<Size>").append(object.data.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass>");
+            if (!v2) contents.append(owner("Owner"));
+            contents.append("</Contents>");
+            count++;
+            last = key;
+        }
+
+        final StringBuilder b = new StringBuilder(XML_HEADER);
+        b.append("<ListBucketResult xmlns=\"").append(S3_NS).append("\">");
+        element(b, "Name", bucket);
+        element(b, "Prefix", encode(prefix, urlEncoded));
+        if (v2) {
+            if (query.containsKey("continuation-token")) element(b, "ContinuationToken", query.get("continuation-token"));
+            if (query.containsKey("start-after")) element(b, "StartAfter", encode(query.get("start-after"), urlEncoded));
+            element(b, "KeyCount", String.valueOf(count));
+            if (truncated) element(b, "NextContinuationToken", Base64.encodeBase64String(last.getBytes("UTF-8")));
+        } else {
+            element(b, "Marker", after == null ? "" : encode(after, urlEncoded));
+            if (truncated) element(b, "NextMarker", encode(last, urlEncoded));
+        }
+        element(b, "MaxKeys", String.valueOf(maxKeys));
+        if (delimiter != null) element(b, "Delimiter", encode(delimiter, urlEncoded));
+        if (urlEncoded) element(b, "EncodingType", "url");
+        element(b, "IsTruncated", String.valueOf(truncated));
+        b.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            b.append("<CommonPrefixes>");
+            element(b, "Prefix", encode(commonPrefix, urlEncoded));
+            b.append("</CommonPrefixes>");
+        }
+        b.append("</ListBucketResult>");
+        xml(exchange, 200, b.toString());
+    }
+
+    private void get(Exchange exchange, FakeObject object, boolean head) {
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        final HttpResponse response = exchange.response;
+        response.setHeader("ETag", "\""+object.etag+"\"");
+        response.setHeader("Last-Modified", httpDate(object.lastModified));
+        response.setHeader("Content-Type", object.contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> meta : object.metadata.entrySet()) {
+            response.setHeader(META_PREFIX + meta.getKey(), meta.getValue());
+        }
+
+        int start = 0;
+        int end = object.data.length;
+        int status = 200;
+        final String range = exchange.header("Range");
+        if (range != null && range.startsWith("bytes=") && object.data.length > 0) {
+            final long[] r = parseRange(range, object.data.length);
+            start = (int) r[0];
+            end = (int) r[1] + 1;
+            status = 206;
+            response.setHeader("Content-Range", "bytes "+start+"-"+(end - 1)+"/"+object.data.length);
+        }
+
+        response.setStatusCode(status);
+        if (head) {
+            // nothing is sent for a HEAD, the entity only supplies the Content-Length
+            final BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContentLength(end - start);
+            response.setEntity(entity);
+        } else {
+            response.setEntity(new ByteArrayEntity(object.data, start, end - start));
+        }
+    }
+
+    private void put(Exchange exchange, Map<String, FakeObject> objects, String key, byte[] body) {
+        final byte[] data = isChunked(exchange) ? decodeChunks(body) : body;
+        final FakeObject object = new FakeObject(data, md5Hex(data), exchange.header("Content-Type"), userMetadata(exchange.request));
+        objects.put(key, object);
+        exchange.response.setHeader("ETag", "\""+object.etag+"\"");
+        empty(exchange, 200);
+    }
+
+    private void copy(Exchange exchange, Map<String, FakeObject> objects, String key) {
+        final FakeObject source = copySource(exchange);
+        if (source == null) return;
+        final FakeObject object = "REPLACE".equals(exchange.header("x-amz-metadata-directive"))
+                ? new FakeObject(source.data, source.etag, exchange.header("Content-Type"), userMetadata(exchange.request))
+                : new FakeObject(source.data, source.etag, source.contentType, source.metadata);
+        objects.put(key, object);
+        xml(exchange, 200, XML_HEADER+"<CopyObjectResult xmlns=\""+S3_NS+"\">"
+                + "<LastModified>"+isoDate(object.lastModified)+"</LastModified>"
+                + "<ETag>&quot;"+object.etag+"&quot;</ETag></CopyObjectResult>");
+    }
+
+    private void initiate(Exchange exchange, String bucket, String key) {
+        final String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new Upload(bucket, key, exchange.header("Content-Type"), userMetadata(exchange.request)));
+        final StringBuilder b = new StringBuilder(XML_HEADER);
+        b.append("<InitiateMultipartUploadResult xmlns=\"").append(S3_NS).append("\">");
+        element(b, "Bucket", bucket);
+        element(b, "Key", key);
+        element(b, "UploadId", uploadId);
+        b.append("</InitiateMultipartUploadResult>");
+        xml(exchange, 200, b.toString());
+    }
+
+    private void uploadPart(Exchange exchange, Map<String, String> query, byte[] body, boolean copy) {
+        final Upload upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+            return;
+        }
+        final int partNumber = Integer.parseInt(query.get("partNumber"));
+        final byte[] data;
+        if (copy) {
+            final FakeObject source = copySource(exchange);
+            if (source == null) return;
+            final String range = exchange.header("x-amz-copy-source-range");
+            if (range == null) {
+                data = source.data;
+            } else {
+                final long[] r = parseRange(range, source.data.length);
+                data = Arrays.copyOfRange(source.data, (int) r[0], (int) r[1] + 1);
+            }
+        } else {
+            data = isChunked(exchange) ? decodeChunks(body) : body;
+        }
+        upload.parts.put(partNumber, data);
+        final String etag = md5Hex(data);
+        if (copy) {
+            xml(exchange, 200, XML_HEADER+"<CopyPartResult xmlns=\""+S3_NS+"\">"
+                    + "<LastModified>"+isoDate(new Date())+"</LastModified>"
+                    + "<ETag>&quot;"+etag+"&quot;</ETag></CopyPartResult>");
+        } else {
+            exchange.response.setHeader("ETag", "\""+etag+"\"");
+            empty(exchange, 200);
+        }
+    }
+
+    private void complete(Exchange exchange, Map<String, FakeObject> objects, Map<String, String> query, byte[] body) throws Exception {
+        final String uploadId = query.get("uploadId");
+        final Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+            return;
+        }
+        final NodeList partNumbers = parseXml(body).getElementsByTagName("PartNumber");
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        for (int i=0; i<partNumbers.getLength(); i++) {
+            final byte[] part = upload.parts.get(Integer.parseInt(partNumbers.item(i).getTextContent().trim()));
+            if (part == null) {
+                error(exchange, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+                return;
+            }
+            data.write(part);
+            digests.write(md5(part));
+        }
+        uploads.remove(uploadId);
+        final String etag = Hex.encodeHexString(md5(digests.toByteArray())) + "-" + partNumbers.getLength();
+        objects.put(upload.key, new FakeObject(data.toByteArray(), etag, upload.contentType, upload.metadata));
+
+        final StringBuilder b = new StringBuilder(XML_HEADER);
+        b.append("<CompleteMultipartUploadResult xmlns=\"").append(S3_NS).append("\">");
+        element(b, "Location", getEndpoint()+"/"+upload.bucket+"/"+upload.key);
+        element(b, "Bucket", upload.bucket);
+        element(b, "Key", upload.key);
+        b.append("<ETag>&quot;").append(etag).append("&quot;</ETag>");
+        b.append("</CompleteMultipartUploadResult>");
+        xml(exchange, 200, b.toString());
+    }
+
+    private void getAcl(Exchange exchange, Map<String, FakeObject> objects, String key) {
+        if (key.length() == 0) {
+            xml(exchange, 200, defaultAcl());
+            return;
+        }
+        final FakeObject object = objects.get(key);
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        xml(exchange, 200, object.acl == null ? defaultAcl() : object.acl);
+    }
+
+    private void putAcl(Exchange exchange, FakeObject object, byte[] body) throws IOException {
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        // canned ACLs and grant headers are accepted but not remembered
+        if (body.length > 0) object.acl = new String(body, "UTF-8");
+        empty(exchange, 200);
+    }
+
+    private void deleteObjects(Exchange exchange, Map<String, FakeObject> objects, byte[] body) throws Exception {
+        final Document request = parseXml(body);
+        final NodeList quiet = request.getElementsByTagName("Quiet");
+        final boolean isQuiet = quiet.getLength() > 0 && Boolean.parseBoolean(quiet.item(0).getTextContent().trim());
+        final NodeList toDelete = request.getElementsByTagName("Object");
+        final StringBuilder b = new StringBuilder(XML_HEADER);
+        b.append("<DeleteResult xmlns=\"").append(S3_NS).append("\">");
+        for (int i=0; i<toDelete.getLength(); i++) {
+            final String key = ((Element) toDelete.item(i)).getElementsByTagName("Key").item(0).getTextContent();
+            objects.remove(key);
+            if (!isQuiet) {
+                b.append("<Deleted>");
+                element(b, "Key", key);
+                b.append("</Deleted>");
+            }
+        }
+        b.append("</DeleteResult>");
+        xml(exchange, 200, b.toString());
+    }
+
+    /**
+     * @return the object named by x-amz-copy-source, or null if there is none (and a 404 has been sent)
+     */
+    private FakeObject copySource(Exchange exchange) {
+        String source = exchange.header("x-amz-copy-source");
+        if (source.contains("?")) source = source.substring(0, source.indexOf('?'));
+        if (source.startsWith("/")) source = source.substring(1);
+        final int slash = source.indexOf('/');
+        final Map<String, FakeObject> objects = slash == -1 ? null : buckets.get(decode(source.substring(0, slash)));
+        final FakeObject object = objects == null ? null : objects.get(decode(source.substring(slash + 1)));
+        if (object == null) error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+        return object;
+    }
+
+    private static Map<String, String> userMetadata(HttpRequest request) {
+        final Map<String, String> metadata = new HashMap<String, String>();
+        for (Header header : request.getAllHeaders()) {
+            final String name = header.getName().toLowerCase(Locale.US);
+            if (name.startsWith(META_PREFIX)) metadata.put(name.substring(META_PREFIX.length()), header.getValue());
+        }
+        return metadata;
+    }
+
+    private String defaultAcl() {
+        return XML_HEADER+"<AccessControlPolicy xmlns=\""+S3_NS+"\">"+owner("Owner")
+                + "<AccessControlList><Grant>"
+                + "<Grantee xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"CanonicalUser\">"
+                + "<ID>"+OWNER_ID+"</ID><DisplayName>"+OWNER_NAME+"</DisplayName></Grantee>"
+                + "<Permission>FULL_CONTROL</Permission></Grant></AccessControlList></AccessControlPolicy>";
+    }
+
+    private static String owner(String element) {
+        return "<"+element+"><ID>"+OWNER_ID+"</ID><DisplayName>"+OWNER_NAME+"</DisplayName></"+element+">";
+    }
+
+    private void error(Exchange exchange, int status, String code, String message) {
+        final String requestId = String.valueOf(requestIds.incrementAndGet());
+        exchange.response.setStatusCode(status);
+        exchange.response.setHeader("x-amz-request-id", requestId);
+        if (exchange.method.equals("HEAD")) return;
+        final StringBuilder b = new StringBuilder(XML_HEADER).append("<Error>");
+        element(b, "Code", code);
+        element(b, "Message", message);
+        element(b, "RequestId", requestId);
+        b.append("</Error>");
+        xml(exchange, status, b.toString());
+    }
+
+    private void xml(Exchange exchange, int status, String xml) {
+        exchange.response.setStatusCode(status);
+        exchange.response.setHeader("Content-Type", "application/xml");
+        exchange.response.setHeader("x-amz-request-id", String.valueOf(requestIds.incrementAndGet()));
+        try {
+            exchange.response.setEntity(new ByteArrayEntity(xml.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void empty(Exchange exchange, int status) {
+        exchange.response.setStatusCode(status);
+        exchange.response.setHeader("x-amz-request-id", String.valueOf(requestIds.incrementAndGet()));
+    }
+
+    private static boolean isChunked(Exchange exchange) {
+        final String sha = exchange.header("x-amz-content-sha256");
+        final String encoding = exchange.header("Content-Encoding");
+        return (sha != null && sha.startsWith("STREAMING-")) || (encoding != null && encoding.contains("aws-chunked"));
+    }
+
+    /**
+     * Strips the signed-chunk framing the SDK uses for uploads: each chunk is "size-in-hex;chunk-signature=...\r\n"
+     * followed by the data and "\r\n", ending with a chunk of size zero.
+     */
+    static byte[] decodeChunks(byte[] body) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int pos = 0;
+        while (pos < body.length) {
+            int eol = pos;
+            while (eol + 1 < body.length && !(body[eol] == '\r' && body[eol + 1] == '\n')) eol++;
+            String header = new String(body, pos, eol - pos);
+            if (header.contains(";")) header = header.substring(0, header.indexOf(';'));
+            final int size = Integer.parseInt(header.trim(), 16);
+            if (size == 0) break;
+            out.write(body, eol + 2, size);
+            pos = eol + 2 + size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the first and last byte (inclusive) of a "bytes=first-last" range
+     */
+    static long[] parseRange(String range, long length) {
+        final String spec = range.substring(range.indexOf('=') + 1).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == 0) return new long[] {Math.max(0, length - Long.parseLong(spec.substring(1))), length - 1};
+        final long first = Long.parseLong(spec.substring(0, dash));
+        final long last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+        return new long[] {first, last};
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) return query;
+        for (String param : rawQuery.split("&")) {
+            if (param.length() == 0) continue;
+            final int eq = param.indexOf('=');
+            if (eq == -1) {
+                query.put(decode(param), "");
+            } else {
+                query.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static Document parseXml(byte[] xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(String s, boolean urlEncoded) {
+        if (!urlEncoded) return s;
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void element(StringBuilder b, String name, String value) {
+        b.append("<").append(name).append(">").append(escape(value)).append("</").append(name).append(">");
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String isoDate(Date date) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String httpDate(Date date) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] data) { return Hex.encodeHexString(md5(data)); }
+}
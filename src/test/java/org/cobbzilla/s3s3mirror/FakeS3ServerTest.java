@@ -0,0 +1,198 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.io.IOUtils;
+import org.cobbzilla.s3s3mirror.aclpolicies.AclPolicyFactory;
+import org.cobbzilla.s3s3mirror.comparisonstrategies.SizeOnlyComparisonStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class FakeS3ServerTest {
+
+    private static final String SOURCE = "fake-source";
+    private static final String DEST = "fake-dest";
+
+    private FakeS3Server s3;
+    private AmazonS3Client client;
+
+    @Before
+    public void startServer() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(SOURCE);
+        s3.createBucket(DEST);
+        client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("fake", "fake")))
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(s3.getEndpoint(), null))
+                .build();
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    @Test
+    public void testPutGetHeadAndList() throws Exception {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(5);
+        metadata.addUserMetadata("color", "blue");
+        client.putObject(SOURCE, "dir/a key+with&odd chars", new ByteArrayInputStream("hello".getBytes()), metadata);
+        for (int i=0; i<5; i++) client.putObject(SOURCE, "dir/sub/"+i, "data"+i);
+        client.putObject(SOURCE, "other", "x");
+
+        assertEquals("hello", IOUtils.toString(client.getObject(SOURCE, "dir/a key+with&odd chars").getObjectContent(), "UTF-8"));
+        final ObjectMetadata head = client.getObjectMetadata(SOURCE, "dir/a key+with&odd chars");
+        assertEquals(5, head.getContentLength());
+        assertEquals("blue", head.getUserMetaDataOf("color"));
+
+        // v1, in pages of two, following the markers
+        final List<String> keys = new ArrayList<String>();
+        ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(SOURCE).withPrefix("dir/").withMaxKeys(2));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) keys.add(summary.getKey());
+            if (!listing.isTruncated()) break;
+            listing = client.listNextBatchOfObjects(listing);
+        }
+        assertEquals(6, keys.size());
+        assertEquals("dir/a key+with&odd chars", keys.get(0));
+
+        // v2 with a delimiter
+        final ListObjectsV2Result result = client.listObjectsV2(new ListObjectsV2Request().withBucketName(SOURCE).withPrefix("dir/").withDelimiter("/"));
+        assertEquals(1, result.getObjectSummaries().size());
+        assertEquals("[dir/sub/]", result.getCommonPrefixes().toString());
+
+        // v2 paging with continuation tokens
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(SOURCE).withMaxKeys(3);
+        int count = 0;
+        ListObjectsV2Result page;
+        do {
+            page = client.listObjectsV2(request);
+            count += page.getKeyCount();
+            request.setContinuationToken(page.getNextContinuationToken());
+        } while (page.isTruncated());
+        assertEquals(7, count);
+    }
+
+    @Test
+    public void testCopyAclAndDelete() throws Exception {
+        client.putObject(SOURCE, "k1", "one");
+        client.putObject(SOURCE, "k2", "two");
+        client.copyObject(SOURCE, "k1", DEST, "k1");
+        assertEquals("one", new String(s3.getObject(DEST, "k1")));
+
+        final AccessControlList acl = client.getObjectAcl(DEST, "k1");
+        assertEquals(FakeS3Server.OWNER_ID, acl.getOwner().getId());
+        assertEquals(FakeS3Server.OWNER_ID, client.getBucketAcl(DEST).getOwner().getId());
+
+        final DeleteObjectsResult deleted = client.deleteObjects(new DeleteObjectsRequest(SOURCE).withKeys("k1", "k2", "missing"));
+        assertEquals(3, deleted.getDeletedObjects().size());
+        assertTrue(s3.getKeys(SOURCE).isEmpty());
+
+        try {
+            client.getObjectMetadata(SOURCE, "k1");
+            fail("expected a 404");
+        } catch (AmazonS3Exception e) {
+            assertEquals(404, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testInjectedFaults() throws Exception {
+        s3.getFaults(FakeS3Server.Operation.HEAD).setThrottleRate(1.0);
+        client.putObject(SOURCE, "k", "v");
+        try {
+            client.getObjectMetadata(SOURCE, "k");
+            fail("expected a 503");
+        } catch (AmazonS3Exception e) {
+            assertEquals(503, e.getStatusCode());
+            assertTrue(ConcurrencyController.isThrottle(e));
+        }
+        assertEquals(1, s3.getThrottledCount(FakeS3Server.Operation.HEAD));
+
+        s3.clearFaults();
+        s3.getFaults(FakeS3Server.Operation.GET).setErrorRate(1.0);
+        try {
+            client.getObject(SOURCE, "k");
+            fail("expected a 500");
+        } catch (AmazonS3Exception e) {
+            assertEquals(500, e.getStatusCode());
+            assertEquals("InternalError", e.getErrorCode());
+        }
+        assertEquals(1, s3.getErrorCount(FakeS3Server.Operation.GET));
+
+        s3.clearFaults();
+        s3.getFaults(FakeS3Server.Operation.HEAD).setLatencyMillis(200);
+        final long start = System.currentTimeMillis();
+        client.getObjectMetadata(SOURCE, "k");
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void testMirrorWithDeleteRemoved() throws Exception {
+        for (int i=0; i<50; i++) s3.putObject(SOURCE, "key"+i, ("data"+i).getBytes());
+        s3.putObject(DEST, "stale", "x".getBytes());
+
+        final MirrorMain main = s3.newMirror(OPT_DELETE_REMOVED, SOURCE, DEST);
+        main.run();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(50, stats.objectsCopied.get());
+        assertEquals(1, stats.objectsDeleted.get());
+        assertEquals(s3.getKeys(SOURCE), s3.getKeys(DEST));
+        assertEquals("data7", new String(s3.getObject(DEST, "key7")));
+    }
+
+    @Test
+    public void testMirrorRetriesThroughThrottling() throws Exception {
+        for (int i=0; i<40; i++) s3.putObject(SOURCE, "key"+i, ("data"+i).getBytes());
+        s3.getFaults(FakeS3Server.Operation.COPY).setThrottleRate(0.2);
+        s3.getFaults(FakeS3Server.Operation.HEAD).setErrorRate(0.1);
+
+        final MirrorMain main = s3.newMirror(OPT_MAX_RETRIES, "20", SOURCE, DEST);
+        main.run();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(40, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(s3.getKeys(SOURCE), s3.getKeys(DEST));
+        assertTrue(s3.getThrottledCount(FakeS3Server.Operation.COPY) > 0);
+    }
+
+    @Test
+    public void testMultipartCopy() throws Exception {
+        final byte[] data = new byte[12 * (int) MB];
+        for (int i=0; i<data.length; i++) data[i] = (byte) (i * 31);
+        s3.putObject(SOURCE, "big", data);
+        s3.getFaults(FakeS3Server.Operation.COPY_PART).setThrottleRate(0.3);
+
+        final MirrorMain main = s3.newMirror(OPT_MAX_RETRIES, "20", SOURCE, DEST);
+        final KeyRecord record = KeyRecord.of(client.listObjects(SOURCE).getObjectSummaries().get(0));
+        final MirrorContext context = main.getContext();
+        final PartCopyScheduler scheduler = new PartCopyScheduler(4);
+        try {
+            new MultipartKeyCopyJob(main.getClient(), context, record, new SizeOnlyComparisonStrategy(),
+                    AclPolicyFactory.getPolicy(context), scheduler).run();
+        } finally {
+            scheduler.shutdown();
+        }
+
+        assertEquals(1, context.getStats().objectsCopied.get());
+        assertArrayEquals(data, s3.getObject(DEST, "big"));
+        assertEquals(3, s3.getRequestCount(FakeS3Server.Operation.COPY_PART) - s3.getThrottledCount(FakeS3Server.Operation.COPY_PART));
+        assertEquals(0, s3.getUploadsInProgress());
+    }
+}
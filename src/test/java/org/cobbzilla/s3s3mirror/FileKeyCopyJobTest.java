@@ -0,0 +1,106 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class FileKeyCopyJobTest {
+
+    private static final String DEST = "file-dest";
+    private static final String PART_SIZE = String.valueOf(5 * MB);
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    private FakeS3Server s3;
+    private File source;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(DEST);
+        source = temp.newFolder("source");
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    private File write(String path, byte[] data) throws Exception {
+        final File file = new File(source, path);
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+
+    @Test
+    public void testMirrorDirectory() throws Exception {
+        for (int i=0; i<10; i++) write("dir/sub"+(i % 3)+"/file "+i+".txt", ("data"+i).getBytes());
+        write("empty", new byte[0]);
+        final byte[] big = new byte[12 * (int) MB];
+        for (int i=0; i<big.length; i++) big[i] = (byte) (i * 31);
+        final File bigFile = write("big.bin", big);
+        s3.putObject(DEST, "stale", "x".getBytes());
+        final File cache = new File(temp.getRoot(), "md5.cache");
+
+        MirrorMain main = s3.newMirror(OPT_LIST_THREADS, "3", OPT_DELETE_REMOVED, OPT_MD5_CACHE, cache.getAbsolutePath(), "-u", PART_SIZE, FILE_PROTOCOL_PREFIX + source.getAbsolutePath(), DEST);
+        main.run();
+
+        MirrorStats stats = main.getContext().getStats();
+        assertEquals(12, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(1, stats.objectsDeleted.get());
+        final TreeSet<String> expected = new TreeSet<String>();
+        for (int i=0; i<10; i++) expected.add("dir/sub"+(i % 3)+"/file "+i+".txt");
+        expected.add("empty");
+        expected.add("big.bin");
+        assertEquals(expected, s3.getKeys(DEST));
+        assertEquals("data4", new String(s3.getObject(DEST, "dir/sub1/file 4.txt")));
+        assertArrayEquals(big, s3.getObject(DEST, "big.bin"));
+        assertEquals(3, s3.getRequestCount(FakeS3Server.Operation.UPLOAD_PART));
+        assertTrue(cache.exists());
+
+        // the locally worked out ETag is the one S3 gave the upload
+        assertEquals(main.getClient().getObjectMetadata(DEST, "big.bin").getETag(), FileKeyCopyJob.computeETag(bigFile, big.length, 5 * MB));
+
+        // nothing changed, and the cached ETags mean nothing is read to find that out
+        main = s3.newMirror(OPT_MD5_CACHE, cache.getAbsolutePath(), "-u", PART_SIZE, FILE_PROTOCOL_PREFIX + source.getAbsolutePath(), DEST);
+        main.run();
+        assertEquals(0, main.getContext().getStats().objectsCopied.get());
+        assertEquals(0, main.getContext().getMd5Cache().getMisses().get());
+
+        // same size, new contents: found by its ETag
+        final File changed = write("dir/sub0/file 3.txt", "DATA3".getBytes());
+        assertTrue(changed.setLastModified(changed.lastModified() + 5000));
+        main = s3.newMirror(OPT_MD5_CACHE, cache.getAbsolutePath(), "-u", PART_SIZE, FILE_PROTOCOL_PREFIX + source.getAbsolutePath(), DEST);
+        main.run();
+        assertEquals(1, main.getContext().getStats().objectsCopied.get());
+        assertEquals("DATA3", new String(s3.getObject(DEST, "dir/sub0/file 3.txt")));
+    }
+
+    @Test
+    public void testPrefixAndSizeOnly() throws Exception {
+        write("keep/a", "a".getBytes());
+        write("keep/b/c", "c".getBytes());
+        write("keeper", "no".getBytes());
+        write("other/d", "d".getBytes());
+
+        MirrorMain main = s3.newMirror(OPT_PREFIX, "keep/", OPT_SIZE_ONLY, FILE_PROTOCOL_PREFIX + source.getAbsolutePath(), DEST);
+        main.run();
+        assertEquals(new TreeSet<String>(Arrays.asList("keep/a", "keep/b/c")), s3.getKeys(DEST));
+
+        write("keep/a", "b".getBytes());
+        main = s3.newMirror(OPT_PREFIX, "keep/", OPT_SIZE_ONLY, FILE_PROTOCOL_PREFIX + source.getAbsolutePath(), DEST);
+        main.run();
+        assertEquals(0, main.getContext().getStats().objectsCopied.get());
+        assertEquals("a", new String(s3.getObject(DEST, "keep/a")));
+    }
+}
@@ -0,0 +1,115 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class HashShardTest {
+
+    private static final int SHARDS = 3;
+    private static final int FOLDERS = 12;
+    private static final int KEYS_PER_FOLDER = 20;
+    private static final int LOOSE_KEYS = 6;
+    private static final int TOTAL = FOLDERS * KEYS_PER_FOLDER + LOOSE_KEYS;
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    private FakeS3Server s3;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket("source");
+        s3.createBucket("dest");
+        for (int d=0; d<FOLDERS; d++) {
+            for (int k=0; k<KEYS_PER_FOLDER; k++) s3.putObject("source", "src/dir"+d+"/key"+k, ("data"+d+"/"+k).getBytes());
+        }
+        for (int k=0; k<LOOSE_KEYS; k++) s3.putObject("source", "src/loose"+k, ("loose"+k).getBytes());
+        s3.putObject("dest", "dst/dir0/stale", "stale".getBytes());
+        s3.putObject("dest", "dst/stale", "stale".getBytes());
+        s3.putObject("dest", "other/untouched", "x".getBytes());
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    private MirrorMain runShard(int shard, File statsFile, String... extraArgs) {
+        final List<String> args = new ArrayList<String>(Arrays.asList(
+                OPT_SHARD, shard+"/"+SHARDS, OPT_STATS_FILE, statsFile.getAbsolutePath(), OPT_DELETE_REMOVED));
+        args.addAll(Arrays.asList(extraArgs));
+        args.add("source/src/");
+        args.add("dest/dst/");
+        final MirrorMain main = s3.newMirror(args.toArray(new String[args.size()]));
+        main.run();
+        return main;
+    }
+
+    private void assertShardsMirrorEverythingOnce(String... extraArgs) throws Exception {
+        final File[] statsFiles = new File[SHARDS];
+        long copied = 0;
+        long deleted = 0;
+        for (int shard=1; shard<=SHARDS; shard++) {
+            statsFiles[shard-1] = new File(temp.getRoot(), "shard"+shard+".stats");
+            final MirrorStats stats = runShard(shard, statsFiles[shard-1], extraArgs).getContext().getStats();
+            // each shard only lists its own part of the source
+            assertTrue(stats.objectsCopied.get() < TOTAL);
+            assertEquals(0, stats.copyErrors.get());
+            copied += stats.objectsCopied.get();
+            deleted += stats.objectsDeleted.get();
+        }
+        assertEquals(TOTAL, copied);
+        assertEquals(2, deleted);
+        assertEquals(TOTAL + 1, s3.getKeys("dest").size());
+        assertEquals("data7/13", new String(s3.getObject("dest", "dst/dir7/key13")));
+        assertEquals("loose3", new String(s3.getObject("dest", "dst/loose3")));
+        assertEquals("x", new String(s3.getObject("dest", "other/untouched")));
+
+        final MirrorStats merged = StatsMerge.merge(statsFiles);
+        assertEquals(TOTAL, merged.objectsCopied.get());
+        assertEquals(2, merged.objectsDeleted.get());
+        assertEquals(TOTAL, merged.getLatency(S3Operation.COPY).getCount());
+        assertTrue(merged.toString().contains("copied: "+TOTAL+"\n"));
+    }
+
+    @Test
+    public void testShardsMirrorEverythingOnce() throws Exception {
+        assertShardsMirrorEverythingOnce();
+    }
+
+    @Test
+    public void testShardsWithListingDiff() throws Exception {
+        assertShardsMirrorEverythingOnce(OPT_LISTING_DIFF);
+    }
+
+    @Test
+    public void testFoldersAreListedOnlyByTheirShard() throws Exception {
+        runShard(1, new File(temp.getRoot(), "shard1.stats"));
+        int folders = 0;
+        for (int d=0; d<FOLDERS; d++) {
+            if (HashShardKeyLister.shardOf("dir"+d+"/", SHARDS) == 0) folders++;
+        }
+        // a delimiter listing each of the source and the destination, and one listing per folder of the shard in each
+        // (dst/dir0/ is the only folder in the destination)
+        final int destFolders = HashShardKeyLister.shardOf("dir0/", SHARDS) == 0 ? 1 : 0;
+        assertEquals(2 + folders + destFolders, s3.getRequestCount(FakeS3Server.Operation.LIST));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testShardOutOfRange() {
+        final MirrorOptions options = new MirrorOptions();
+        options.setSource("source");
+        options.setDestination("dest");
+        options.setShard("4/3");
+        options.initDerivedFields();
+    }
+}
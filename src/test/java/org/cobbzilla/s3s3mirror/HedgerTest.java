@@ -0,0 +1,90 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgerTest {
+
+    private MirrorStats stats;
+    private Hedger hedger;
+
+    @Before
+    public void setUp() {
+        stats = new MirrorStats();
+        hedger = new Hedger(stats, false);
+    }
+
+    @After
+    public void tearDown() { hedger.shutdown(); }
+
+    private void recordHeads(int count, long millis) {
+        for (int i=0; i<count; i++) stats.getLatency(S3Operation.HEAD).record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * A call whose first try hangs for the given time, and whose later tries answer at once.
+     */
+    private static Retrier.Call<String> slowFirst(final AtomicInteger tries, final long millis) {
+        return new Retrier.Call<String>() {
+            @Override public String call() throws Exception {
+                if (tries.incrementAndGet() == 1) {
+                    Thread.sleep(millis);
+                    return "slow";
+                }
+                return "fast";
+            }
+        };
+    }
+
+    @Test
+    public void testNotHedgedUntilThereAreSamples() throws Exception {
+        recordHeads(Hedger.MIN_SAMPLES - 1, 1);
+        assertEquals(0, hedger.getHedgeDelayMicros(S3Operation.HEAD));
+        final AtomicInteger tries = new AtomicInteger(0);
+        assertEquals("slow", hedger.call(S3Operation.HEAD, slowFirst(tries, 50)));
+        assertEquals(1, tries.get());
+        assertEquals(0, stats.s3hedgedRequests.get());
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        // long enough that the first try has always started before the hedge is sent
+        recordHeads(100, 50);
+        final long delay = hedger.getHedgeDelayMicros(S3Operation.HEAD);
+        assertTrue(delay >= 50000 && delay < 54000);
+
+        // warm up the hedge allowance with quick calls
+        for (int i=0; i<20; i++) hedger.call(S3Operation.HEAD, slowFirst(new AtomicInteger(1), 0));
+
+        final AtomicInteger tries = new AtomicInteger(0);
+        final long start = System.currentTimeMillis();
+        assertEquals("fast", hedger.call(S3Operation.HEAD, slowFirst(tries, 10000)));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(2, tries.get());
+        assertEquals(1, stats.s3hedgedRequests.get());
+        assertEquals(1, stats.s3hedgeWins.get());
+    }
+
+    @Test
+    public void testNotFoundIsAnAnswer() throws Exception {
+        recordHeads(100, 50);
+        final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        try {
+            hedger.call(S3Operation.HEAD, new Retrier.Call<String>() {
+                @Override public String call() throws Exception { throw notFound; }
+            });
+            fail("expected a 404");
+        } catch (AmazonS3Exception e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertEquals(0, stats.s3hedgedRequests.get());
+    }
+}
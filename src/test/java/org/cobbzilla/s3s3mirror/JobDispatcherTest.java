@@ -0,0 +1,96 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobDispatcherTest {
+
+    @Test
+    public void testNoJobsLostWhenProducerOutrunsWorkers() throws Exception {
+        final JobDispatcher dispatcher = new JobDispatcher(4, 8);
+        final JobDispatcher.JobGroup group = new JobDispatcher.JobGroup();
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger maxQueued = new AtomicInteger(0);
+
+        final int numJobs = 1000;
+        for (int i=0; i<numJobs; i++) {
+            dispatcher.submit(new Runnable() {
+                @Override public void run() {
+                    final int queued = dispatcher.getQueueSize();
+                    if (queued > maxQueued.get()) maxQueued.set(queued);
+                    completed.incrementAndGet();
+                }
+            }, group);
+        }
+        group.awaitCompletion();
+        dispatcher.shutdown();
+
+        assertEquals(numJobs, completed.get());
+        // jobs that are queued plus jobs that are running never exceed threads + maxQueuedJobs
+        assertTrue(maxQueued.get() <= 4 + 8);
+        assertEquals(0, group.getOutstanding());
+    }
+
+    @Test
+    public void testSubmitBlocksWhenFull() throws Exception {
+        final JobDispatcher dispatcher = new JobDispatcher(1, 1);
+        final JobDispatcher.JobGroup group = new JobDispatcher.JobGroup();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocked = new Runnable() {
+            @Override public void run() {
+                try { release.await(); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+            }
+        };
+        // one running, one queued: the pipeline is full
+        dispatcher.submit(blocked, group);
+        dispatcher.submit(blocked, group);
+
+        final Thread producer = new Thread() {
+            @Override public void run() {
+                try { dispatcher.submit(blocked, group); } catch (InterruptedException e) { /* expected if test fails */ }
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue("submit should block while the pipeline is full", producer.isAlive());
+
+        release.countDown();
+        producer.join();
+        group.awaitCompletion();
+        dispatcher.shutdown();
+        assertEquals(0, group.getOutstanding());
+    }
+
+    @Test
+    public void testVirtualThreadsLimitConcurrency() throws Exception {
+        // falls back to a thread pool on JVMs without virtual threads, and the limit must hold either way
+        final JobDispatcher dispatcher = new JobDispatcher(3, 50, true);
+        final JobDispatcher.JobGroup group = new JobDispatcher.JobGroup();
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+
+        for (int i=0; i<200; i++) {
+            dispatcher.submit(new Runnable() {
+                @Override public void run() {
+                    final int now = running.incrementAndGet();
+                    synchronized (maxRunning) { if (now > maxRunning.get()) maxRunning.set(now); }
+                    try { Thread.sleep(1); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+                    running.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            }, group);
+        }
+        group.awaitCompletion();
+        dispatcher.shutdown();
+
+        assertEquals(200, completed.get());
+        assertTrue("ran "+maxRunning.get()+" jobs at once", maxRunning.get() <= 3);
+        assertEquals(VirtualThreads.isAvailable(), dispatcher.isVirtual());
+    }
+}
@@ -0,0 +1,43 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyRangeTest {
+
+    private static void assertBetween(String lo, String mid, String hi) {
+        assertNotNull(mid);
+        assertTrue(mid+" should be after "+lo, KeyComparator.INSTANCE.compare(lo, mid) < 0);
+        if (hi != null) assertTrue(mid+" should be before "+hi, KeyComparator.INSTANCE.compare(mid, hi) < 0);
+    }
+
+    @Test
+    public void testMidpointBounded() {
+        assertBetween("foo/a", KeyRange.midpoint("foo/", "foo/a", "foo/z"), "foo/z");
+        assertBetween("foo/a", KeyRange.midpoint("foo/", "foo/a", "foo/b"), "foo/b");
+        assertBetween("foo/ab", KeyRange.midpoint("foo/", "foo/ab", "foo/abc"), "foo/abc");
+    }
+
+    @Test
+    public void testMidpointUnbounded() {
+        final String mid = KeyRange.midpoint("foo/", "foo/2024-01-01/x", null);
+        assertBetween("foo/2024-01-01/x", mid, null);
+        assertTrue(mid.startsWith("foo/"));
+        assertBetween("~~~", KeyRange.midpoint(null, "~~~", null), null);
+    }
+
+    @Test
+    public void testNoRoomForMidpoint() {
+        assertNull(KeyRange.midpoint("", "a", "a"));
+        assertNull(KeyRange.midpoint("", "b", "a"));
+        assertNull(KeyRange.midpoint("", "a", "a\u0001"));
+    }
+
+    @Test
+    public void testKeyComparatorUsesCodePointOrder() {
+        // U+1F600 is after U+FFFD in UTF-8 byte order, but before it in UTF-16 char order
+        assertTrue(KeyComparator.INSTANCE.compare("\uD83D\uDE00", "\uFFFD") > 0);
+        assertTrue(KeyComparator.INSTANCE.compare("a", "ab") < 0);
+    }
+}
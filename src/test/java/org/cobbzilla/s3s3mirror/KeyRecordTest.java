@@ -0,0 +1,107 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class KeyRecordTest {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private static S3ObjectSummary summary(String key, long size, String etag, String storageClass) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(etag);
+        summary.setLastModified(new Date(1600000000000L + size));
+        summary.setStorageClass(storageClass);
+        return summary;
+    }
+
+    @Test
+    public void testETagRoundTrip() {
+        for (String etag : new String[] {MD5, MD5+"-12", "not-an-md5", MD5+"-", MD5+"-0", MD5+"x", null}) {
+            assertEquals(etag, new KeyRecord("k", 1, null, etag).getETag());
+        }
+        // binary ETags come back lower case, but still match the original
+        final KeyRecord upper = new KeyRecord("k", 1, null, MD5.toUpperCase());
+        assertEquals(MD5, upper.getETag());
+        assertTrue(upper.sameETag(MD5.toUpperCase()));
+    }
+
+    @Test
+    public void testSameETag() {
+        final KeyRecord plain = new KeyRecord("a", 1, null, MD5);
+        final KeyRecord multipart = new KeyRecord("b", 1, null, MD5+"-3");
+        final KeyRecord text = new KeyRecord("c", 1, null, "ETAG_A");
+        final KeyRecord none = new KeyRecord("d", 1, null, null);
+
+        assertTrue(plain.sameETag(new KeyRecord("x", 2, null, MD5)));
+        assertFalse(plain.sameETag(multipart));
+        assertFalse(multipart.sameETag(new KeyRecord("x", 1, null, MD5+"-4")));
+        assertFalse(plain.sameETag("f"+MD5.substring(1)));
+        assertTrue(multipart.sameETag(MD5+"-3"));
+        assertTrue(text.sameETag("ETAG_A"));
+        assertFalse(text.sameETag("ETAG_B"));
+        assertFalse(text.sameETag(plain));
+        assertTrue(none.sameETag((String) null));
+        assertFalse(none.sameETag(MD5));
+    }
+
+    @Test
+    public void testCompareKeyMatchesKeyComparator() {
+        final String[] keys = {"a", "a/b", "ab", "\uFFFD", "\uD83D\uDE00", "\u00E9t\u00E9", ""};
+        for (String a : keys) {
+            for (String b : keys) {
+                final int expected = Integer.signum(KeyComparator.INSTANCE.compare(a, b));
+                final int actual = Integer.signum(new KeyRecord(a, 0, null, null).compareKey(0, new KeyRecord(b, 0, null, null), 0));
+                assertEquals(a+" vs "+b, expected, actual);
+            }
+        }
+        // skipping prefixes of different lengths, in bytes
+        final KeyRecord src = new KeyRecord("\u00E9/x", 0, null, null);
+        final KeyRecord dst = new KeyRecord("dest/x", 0, null, null);
+        assertEquals(0, src.compareKey(3, dst, 5));
+        assertTrue(dst.keyStartsWith("dest/".getBytes(KeyRecord.UTF8)));
+        assertFalse(dst.keyStartsWith("dest/xy".getBytes(KeyRecord.UTF8)));
+    }
+
+    @Test
+    public void testBatchIsReused() {
+        final KeyBatch batch = new KeyBatch(2);
+        batch.add(summary("first/\u00E9", 1, MD5, "STANDARD_IA"));
+        batch.add(summary("second", 2, "odd etag", null));
+        batch.add(summary("third", 3, MD5+"-2", "NO_SUCH_CLASS"));
+
+        assertEquals(3, batch.size());
+        assertEquals("second", batch.getKey(1));
+        final KeyRecord first = batch.get(0);
+        assertEquals("first/\u00E9", first.getKey());
+        assertEquals(1, first.getSize());
+        assertEquals(1600000000001L, first.getLastModified());
+        assertEquals(MD5, first.getETag());
+        assertEquals(StorageClass.StandardInfrequentAccess, first.getStorageClass());
+        assertEquals("odd etag", batch.get(1).getETag());
+        assertEquals(MD5+"-2", batch.get(2).getETag());
+        assertNull(batch.get(2).getStorageClass());
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        batch.add(summary("again", 4, MD5, null));
+        assertEquals(1, batch.size());
+        assertEquals("again", batch.get(0).getKey());
+        assertEquals(MD5, batch.get(0).getETag());
+        // records copied out before the batch was cleared are unchanged
+        assertEquals("first/\u00E9", first.getKey());
+        try {
+            batch.get(1);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cobbzilla.s3s3mirror.LaneScheduler.Lane.*;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class LaneSchedulerTest {
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            // another job raised the max, try again
+        }
+    }
+
+    @Test
+    public void testWorkersAreSharedOutByWeight() {
+        final LaneScheduler lanes = new LaneScheduler("small=6,large=3/2,delete=1", 10, 100);
+        final int[] homes = new int[LaneScheduler.Lane.values().length];
+        for (int w=0; w<10; w++) homes[lanes.getHome(w).ordinal()]++;
+        assertEquals(6, homes[SMALL.ordinal()]);
+        assertEquals(3, homes[LARGE.ordinal()]);
+        assertEquals(1, homes[DELETE.ordinal()]);
+        assertEquals(2, lanes.getCap(LARGE));
+        assertEquals(10, lanes.getCap(SMALL));
+    }
+
+    @Test
+    public void testInvalidSpecs() {
+        for (String spec : new String[] {"small", "medium=1", "small=0", "large=2/0", "delete=x"}) {
+            try {
+                new LaneScheduler(spec, 4, 10);
+                fail("accepted "+spec);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteFloodDoesNotBlockSmallCopies() throws Exception {
+        final JobDispatcher dispatcher = new JobDispatcher(4, 50, false, 4, new LaneScheduler("small=3,delete=1/1", 4, 50));
+        final JobDispatcher.JobGroup deletes = new JobDispatcher.JobGroup();
+        final JobDispatcher.JobGroup copies = new JobDispatcher.JobGroup();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger deletesRunning = new AtomicInteger(0);
+        final AtomicInteger maxDeletesRunning = new AtomicInteger(0);
+
+        // the delete lane fills up, and its producer blocks, without holding up the copy producer
+        final Thread deleter = new Thread() {
+            @Override public void run() {
+                try {
+                    for (int i=0; i<100; i++) {
+                        dispatcher.submit(new Runnable() {
+                            @Override public void run() {
+                                updateMax(maxDeletesRunning, deletesRunning.incrementAndGet());
+                                try { release.await(); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+                                deletesRunning.decrementAndGet();
+                            }
+                        }, DELETE, deletes);
+                    }
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        };
+        deleter.start();
+
+        final AtomicInteger copied = new AtomicInteger(0);
+        for (int i=0; i<500; i++) {
+            dispatcher.submit(new Runnable() {
+                @Override public void run() { copied.incrementAndGet(); }
+            }, SMALL, copies);
+        }
+        copies.awaitCompletion();
+        assertEquals(500, copied.get());
+        assertEquals(1, maxDeletesRunning.get());
+        assertTrue(deletes.getOutstanding() > 0);
+
+        release.countDown();
+        deleter.join(10000);
+        deletes.awaitCompletion();
+        dispatcher.shutdown();
+        assertEquals(1, maxDeletesRunning.get());
+    }
+
+    @Test
+    public void testIdleLanesLendTheirWorkers() throws Exception {
+        final LaneScheduler lanes = new LaneScheduler("small=1,large=2,delete=1", 4, 50);
+        final JobDispatcher dispatcher = new JobDispatcher(4, 50, false, 4, lanes);
+        final JobDispatcher.JobGroup group = new JobDispatcher.JobGroup();
+        final CountDownLatch allRunning = new CountDownLatch(4);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+
+        // only small copies: the large and delete lanes' workers help out, so all four run at once
+        for (int i=0; i<4; i++) {
+            dispatcher.submit(new Runnable() {
+                @Override public void run() {
+                    updateMax(maxRunning, running.incrementAndGet());
+                    allRunning.countDown();
+                    try { allRunning.await(5, TimeUnit.SECONDS); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+                    running.decrementAndGet();
+                }
+            }, SMALL, group);
+        }
+        group.awaitCompletion();
+        dispatcher.shutdown();
+        assertEquals(4, maxRunning.get());
+        assertTrue(lanes.getStolen() >= 3);
+    }
+
+    @Test
+    public void testMirrorWithLanes() throws Exception {
+        final FakeS3Server s3 = new FakeS3Server().start();
+        try {
+            s3.createBucket("source");
+            s3.createBucket("dest");
+            for (int i=0; i<100; i++) s3.putObject("source", "key"+i, ("data"+i).getBytes());
+            for (int i=0; i<30; i++) s3.putObject("dest", "stale"+i, "stale".getBytes());
+
+            final MirrorMain main = s3.newMirror(OPT_MAX_THREADS, "8", OPT_LANES, "small=5,large=2/2,delete=1/1", OPT_DELETE_REMOVED,
+                    "source", "dest");
+            main.run();
+
+            assertEquals(100, main.getContext().getStats().objectsCopied.get());
+            assertEquals(30, main.getContext().getStats().objectsDeleted.get());
+            assertEquals(100, s3.getKeys("dest").size());
+            assertEquals("data57", new String(s3.getObject("dest", "key57")));
+        } finally {
+            s3.stop();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long expectedLow = 0;
+        for (int i=0; i<LatencyHistogram.index(1L << 39) + 16; i++) {
+            final long high = LatencyHistogram.upperBound(i);
+            assertEquals(i, LatencyHistogram.index(expectedLow));
+            assertEquals(i, LatencyHistogram.index(high));
+            // each bucket is within about 6% of its values
+            assertTrue(high - expectedLow <= Math.max(1, expectedLow / 16));
+            expectedLow = high + 1;
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms=1; ms<=1000; ms++) histogram.record(TimeUnit.MILLISECONDS.toNanos(ms));
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500500000L, histogram.getSumMicros());
+
+        assertEquals(500000, histogram.getValueAtQuantile(0.5), 500000 / 16);
+        assertEquals(990000, histogram.getValueAtQuantile(0.99), 990000 / 16);
+        assertEquals(1000000, histogram.getValueAtQuantile(1.0));
+        assertEquals(0, new LatencyHistogram().getValueAtQuantile(0.5));
+    }
+
+    @Test
+    public void testOutOfRangeValuesAreClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtQuantile(0.5));
+        assertEquals((1L << 40) - 1, histogram.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    public void testMergeAndTextRoundTrip() {
+        final LatencyHistogram low = new LatencyHistogram();
+        final LatencyHistogram high = new LatencyHistogram();
+        for (int ms=1; ms<=500; ms++) low.record(TimeUnit.MILLISECONDS.toNanos(ms));
+        for (int ms=501; ms<=1000; ms++) high.record(TimeUnit.MILLISECONDS.toNanos(ms));
+
+        final LatencyHistogram merged = LatencyHistogram.fromText(low.toText());
+        merged.add(LatencyHistogram.fromText(high.toText()));
+        assertEquals(1000, merged.getCount());
+        assertEquals(1000000, merged.getMaxMicros());
+        assertEquals(500500000L, merged.getSumMicros());
+        assertEquals(500000, merged.getValueAtQuantile(0.5), 500000 / 16);
+        assertEquals(990000, merged.getValueAtQuantile(0.99), 990000 / 16);
+        assertEquals("0 0 0", new LatencyHistogram().toText());
+    }
+}
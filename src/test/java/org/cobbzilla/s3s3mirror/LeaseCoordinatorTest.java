@@ -0,0 +1,144 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class LeaseCoordinatorTest {
+
+    private LeaseCoordinator coordinator;
+
+    @After
+    public void stopCoordinator() { if (coordinator != null) coordinator.stop(); }
+
+    private LeaseClient startCoordinator(List<KeyRange> ranges, long leaseMillis) throws Exception {
+        coordinator = new LeaseCoordinator(0, ranges, leaseMillis);
+        coordinator.start();
+        return new LeaseClient("127.0.0.1:"+coordinator.getPort());
+    }
+
+    @Test
+    public void testExpiredLeaseIsLeasedAgain() throws Exception {
+        final LeaseClient client = startCoordinator(Arrays.asList(new KeyRange(null, "m"), new KeyRange("m", null)), 300);
+
+        final LeasedRange first = client.lease();
+        final LeasedRange second = client.lease();
+        assertNull(first.getStartAfter());
+        assertEquals("m", first.getEndAt());
+        assertEquals("m", second.getStartAfter());
+        client.finish(first);
+
+        // the second worker dies: its range goes to the next worker that asks
+        Thread.sleep(400);
+        final LeasedRange again = client.lease();
+        assertEquals("m", again.getStartAfter());
+        assertNull(again.getEndAt());
+        assertFalse(client.renew(second));
+        assertTrue(second.isLost());
+
+        assertFalse(coordinator.isDone());
+        client.finish(again);
+        assertTrue(coordinator.isDone());
+        assertNull(client.lease());
+    }
+
+    @Test
+    public void testRangeIsSplitForIdleWorker() throws Exception {
+        final LeaseClient client = startCoordinator(Arrays.asList(new KeyRange(null, null)), 3000);
+        final LeasedRange busy = client.lease();
+        busy.listed(Arrays.asList("a", "b", "c"));
+
+        // another worker asks for a range and is told to wait, until the busy one gives away what it has not listed
+        final AtomicReference<LeasedRange> idle = new AtomicReference<LeasedRange>();
+        final Thread waiting = new Thread() {
+            @Override public void run() {
+                try { idle.set(client.lease()); } catch (Exception e) { fail(e.toString()); }
+            }
+        };
+        waiting.start();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!client.renew(busy)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        final String at = busy.getSplitPoint("");
+        assertTrue(KeyComparator.INSTANCE.compare(at, "c") > 0);
+        // a range is not split behind what has already been listed
+        assertFalse(client.split(busy, "b"));
+        assertNull(busy.getEndAt());
+        assertTrue(client.split(busy, at));
+        assertEquals(at, busy.getEndAt());
+        assertEquals(2, busy.listed(Arrays.asList("d", at, at+"x")));
+
+        waiting.join(5000);
+        assertEquals(at, idle.get().getStartAfter());
+        assertNull(idle.get().getEndAt());
+        assertFalse(client.renew(busy));
+
+        client.finish(busy);
+        client.finish(idle.get());
+        assertTrue(coordinator.isDone());
+    }
+
+    @Test
+    public void testUnconfirmedSplitLosesRange() throws Exception {
+        final LeaseClient client = startCoordinator(Arrays.asList(new KeyRange(null, null)), 3000);
+        final LeasedRange unknown = new LeasedRange(12345, null, null, 3000);
+        unknown.listed(Arrays.asList("a"));
+
+        // the range already ends at the split point, so it must not be finished: it is left to be leased again
+        assertFalse(client.split(unknown, "m"));
+        assertTrue(unknown.isLost());
+        assertEquals(0, unknown.listed(Arrays.asList("n")));
+    }
+
+    @Test
+    public void testWorkersMirrorLeasedRanges() throws Exception {
+        final FakeS3Server s3 = new FakeS3Server().start();
+        try {
+            s3.createBucket("source");
+            s3.createBucket("dest");
+            for (int d=0; d<10; d++) {
+                for (int k=0; k<20; k++) s3.putObject("source", "src/dir"+d+"/key"+k, ("data"+d+"/"+k).getBytes());
+            }
+            s3.putObject("dest", "dst/stale", "stale".getBytes());
+            s3.putObject("dest", "other/untouched", "x".getBytes());
+
+            final LeaseClient client = startCoordinator(Arrays.asList(new KeyRange(null, "src/dir3/"), new KeyRange("src/dir3/", null)), 3000);
+            final MirrorMain[] workers = new MirrorMain[2];
+            final Thread[] threads = new Thread[workers.length];
+            for (int i=0; i<workers.length; i++) {
+                workers[i] = s3.newMirror(OPT_WORKER, "127.0.0.1:"+coordinator.getPort(), OPT_DELETE_REMOVED, "source/src/", "dest/dst/");
+                final MirrorMain worker = workers[i];
+                threads[i] = new Thread() {
+                    @Override public void run() { worker.run(); }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join(30000);
+
+            long copied = 0;
+            long deleted = 0;
+            for (MirrorMain worker : workers) {
+                copied += worker.getContext().getStats().objectsCopied.get();
+                deleted += worker.getContext().getStats().objectsDeleted.get();
+                assertEquals(0, worker.getContext().getStats().copyErrors.get());
+            }
+            assertEquals(200, copied);
+            assertEquals(1, deleted);
+            assertTrue(coordinator.isDone());
+            assertNull(client.lease());
+            assertEquals(201, s3.getKeys("dest").size());
+            assertEquals("data7/13", new String(s3.getObject("dest", "dst/dir7/key13")));
+            assertEquals("x", new String(s3.getObject("dest", "other/untouched")));
+        } finally {
+            s3.stop();
+        }
+    }
+}
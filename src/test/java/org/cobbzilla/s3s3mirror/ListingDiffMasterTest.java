@@ -0,0 +1,127 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class ListingDiffMasterTest {
+
+    private FakeS3Server s3;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket("source");
+        s3.createBucket("dest");
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    private void put(String bucket, String key, String data) { s3.putObject(bucket, key, data.getBytes()); }
+
+    private String get(String bucket, String key) {
+        final byte[] data = s3.getObject(bucket, key);
+        return data == null ? null : new String(data);
+    }
+
+    @Test
+    public void testNewChangedAndUnchangedKeys() throws Exception {
+        put("source", "src/new", "new");
+        put("source", "src/same", "same");
+        put("dest", "dst/same", "same");
+        // a different size
+        put("source", "src/grown", "grown");
+        put("dest", "dst/grown", "grow");
+        // the same size with a different etag
+        put("source", "src/edited", "after");
+        put("dest", "dst/edited", "befor");
+        // keys whose order changes when compared with and without their prefixes
+        put("source", "src/a", "a");
+        put("source", "src/a/b", "a/b");
+        put("dest", "dst/a/b", "a/b");
+        put("source", "src/a0", "a0");
+        put("dest", "dst/a0", "a0");
+
+        final MirrorMain main = s3.newMirror(OPT_LISTING_DIFF, "source/src/", "dest/dst/");
+        main.run();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(4, stats.objectsCopied.get());
+        assertEquals(0, stats.objectsDeleted.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(4, s3.getRequestCount(FakeS3Server.Operation.COPY));
+        // keys were compared from the listings: the only HEADs are of the sources being copied
+        assertEquals(4, s3.getRequestCount(FakeS3Server.Operation.HEAD));
+
+        assertEquals("new", get("dest", "dst/new"));
+        assertEquals("grown", get("dest", "dst/grown"));
+        assertEquals("after", get("dest", "dst/edited"));
+        assertEquals("a", get("dest", "dst/a"));
+        assertEquals("same", get("dest", "dst/same"));
+        assertEquals(new HashSet<String>(Arrays.asList("dst/new", "dst/same", "dst/grown", "dst/edited", "dst/a", "dst/a/b", "dst/a0")),
+                s3.getKeys("dest"));
+    }
+
+    @Test
+    public void testLastModified() throws Exception {
+        put("source", "src/older", "older");
+        put("dest", "dst/touched", "touched");
+        Thread.sleep(20);
+        put("dest", "dst/older", "older");
+        put("source", "src/touched", "touched");
+
+        final MirrorMain main = s3.newMirror(OPT_LISTING_DIFF, OPT_SIZE_LAST_MODIFIED, "source/src/", "dest/dst/");
+        main.run();
+
+        // only the source key newer than its copy is copied again
+        assertEquals(1, main.getContext().getStats().objectsCopied.get());
+        assertEquals(1, s3.getRequestCount(FakeS3Server.Operation.COPY));
+        assertEquals(1, s3.getRequestCount(FakeS3Server.Operation.HEAD));
+    }
+
+    @Test
+    public void testDeleteRemoved() throws Exception {
+        put("source", "src/kept", "kept");
+        put("dest", "dst/kept", "kept");
+        put("dest", "dst/gone", "gone");
+        put("dest", "dst/gone/deeper", "gone");
+        put("dest", "dst/zzz", "gone");
+        put("dest", "other/untouched", "untouched");
+
+        MirrorMain main = s3.newMirror(OPT_LISTING_DIFF, "source/src/", "dest/dst/");
+        main.run();
+        assertEquals(0, main.getContext().getStats().objectsDeleted.get());
+        assertEquals(5, s3.getKeys("dest").size());
+
+        main = s3.newMirror(OPT_LISTING_DIFF, OPT_DELETE_REMOVED, "source/src/", "dest/dst/");
+        main.run();
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(0, stats.objectsCopied.get());
+        assertEquals(3, stats.objectsDeleted.get());
+        assertEquals(0, stats.deleteErrors.get());
+        assertEquals(new HashSet<String>(Arrays.asList("dst/kept", "other/untouched")), s3.getKeys("dest"));
+    }
+
+    @Test
+    public void testSamePrefix() throws Exception {
+        put("source", "data/1", "one");
+        put("source", "data/2", "two");
+        put("dest", "data/2", "two");
+        put("dest", "data/3", "three");
+
+        final MirrorMain main = s3.newMirror(OPT_LISTING_DIFF, OPT_DELETE_REMOVED, OPT_PREFIX, "data/", "source", "dest");
+        main.run();
+
+        final MirrorStats stats = main.getContext().getStats();
+        assertEquals(1, stats.objectsCopied.get());
+        assertEquals(1, stats.objectsDeleted.get());
+        assertEquals(new HashSet<String>(Arrays.asList("data/1", "data/2")), s3.getKeys("dest"));
+    }
+}
@@ -0,0 +1,51 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsServerTest {
+
+    @Test
+    public void testServesOpenMetrics() throws Exception {
+        final MirrorStats stats = new MirrorStats();
+        stats.objectsCopied.set(42);
+        stats.getLatency(S3Operation.HEAD).record(TimeUnit.MILLISECONDS.toNanos(20));
+        stats.getCopyLatency(100 * MirrorConstants.MB).record(TimeUnit.SECONDS.toNanos(2));
+        stats.addGauge("jobs_queued", new MirrorStats.Gauge() {
+            @Override public long getValue() { return 7; }
+        });
+
+        final MetricsServer server = new MetricsServer(0, stats);
+        server.start();
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"+server.getPort()+MetricsServer.PATH).openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(MetricsServer.CONTENT_TYPE, connection.getContentType());
+
+            final InputStream in = connection.getInputStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) != -1; ) body.write(buf, 0, n);
+            in.close();
+            final String metrics = body.toString("UTF-8");
+
+            assertTrue(metrics.contains("# TYPE s3s3mirror_objects_copied counter\n"));
+            assertTrue(metrics.contains("\ns3s3mirror_objects_copied_total 42\n"));
+            assertTrue(metrics.contains("\ns3s3mirror_jobs_queued 7\n"));
+            assertTrue(metrics.contains("\ns3s3mirror_request_latency_seconds_count{operation=\"head\"} 1\n"));
+            assertTrue(metrics.contains("\ns3s3mirror_request_latency_seconds{operation=\"head\",quantile=\"0.99\"} 0.02"));
+            assertTrue(metrics.contains("\ns3s3mirror_request_latency_seconds{operation=\"list\",quantile=\"0.5\"} NaN\n"));
+            assertTrue(metrics.contains("\ns3s3mirror_copy_latency_seconds_count{size=\"<=128MB\"} 1\n"));
+            assertTrue(metrics.endsWith("# EOF\n"));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -6,6 +6,8 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -23,8 +25,13 @@ public class MirrorTest {
     public static final String SOURCE_ENV_VAR = "S3S3_TEST_SOURCE";
     public static final String DEST_ENV_VAR = "S3S3_TEST_DEST";
 
-    public static final String SOURCE = System.getenv(SOURCE_ENV_VAR);
-    public static final String DESTINATION = System.getenv(DEST_ENV_VAR);
+    // without real buckets to test against, the tests run against a FakeS3Server
+    private static final boolean USE_FAKE_S3 = System.getenv(SOURCE_ENV_VAR) == null || System.getenv(DEST_ENV_VAR) == null;
+
+    public static final String SOURCE = USE_FAKE_S3 ? "s3s3mirror-test-source" : System.getenv(SOURCE_ENV_VAR);
+    public static final String DESTINATION = USE_FAKE_S3 ? "s3s3mirror-test-dest" : System.getenv(DEST_ENV_VAR);
+
+    private static FakeS3Server fakeS3 = null;
 
     private List<S3Asset> stuffToCleanup = new ArrayList<S3Asset>();
 
@@ -39,34 +46,45 @@ public class MirrorTest {
         return RandomStringUtils.randomAlphanumeric(size) + "_" + System.currentTimeMillis();
     }
 
-    private boolean checkEnvs() {
-        if (SOURCE == null || DESTINATION == null) {
-            log.warn("No "+SOURCE_ENV_VAR+" and/or no "+DEST_ENV_VAR+" found in enviroment, skipping test");
-            return false;
-        }
-        return true;
+    @BeforeClass
+    public static void startFakeS3 () throws Exception {
+        if (!USE_FAKE_S3) return;
+        log.warn("No "+SOURCE_ENV_VAR+" and/or no "+DEST_ENV_VAR+" found in enviroment, testing against a fake S3");
+        fakeS3 = new FakeS3Server().start();
+        fakeS3.createBucket(SOURCE);
+        fakeS3.createBucket(DESTINATION);
+    }
+
+    @AfterClass
+    public static void stopFakeS3 () {
+        if (fakeS3 != null) fakeS3.stop();
+        fakeS3 = null;
+    }
+
+    private MirrorMain newMirrorMain(String[] args) {
+        if (fakeS3 != null) return fakeS3.newMirror(args);
+        final MirrorMain mirrorMain = new MirrorMain(args);
+        mirrorMain.init();
+        return mirrorMain;
     }
 
     @After
     public void cleanupS3Assets () {
         // Every individual test *must* initialize the "main" instance variable, otherwise NPE gets thrown here.
-        if (checkEnvs()) {
-            AmazonS3Client client = main.getClient();
-            for (S3Asset asset : stuffToCleanup) {
-                try {
-                    log.info("cleanupS3Assets: deleting "+asset);
-                    client.deleteObject(asset.bucket, asset.key);
-                } catch (Exception e) {
-                    log.error("Error cleaning up object: "+asset+": "+e.getMessage());
-                }
+        AmazonS3Client client = main.getClient();
+        for (S3Asset asset : stuffToCleanup) {
+            try {
+                log.info("cleanupS3Assets: deleting "+asset);
+                client.deleteObject(asset.bucket, asset.key);
+            } catch (Exception e) {
+                log.error("Error cleaning up object: "+asset+": "+e.getMessage());
             }
-            main = null;
         }
+        main = null;
     }
 
     @Test
     public void testSimpleCopy () throws Exception {
-        if (!checkEnvs()) return;
         final String key = "testSimpleCopy_"+random(10);
         final String[] args = {OPT_VERBOSE, OPT_PREFIX, key, SOURCE, DESTINATION};
 
@@ -75,7 +93,6 @@ public class MirrorTest {
 
     @Test
     public void testSimpleCopyWithInlinePrefix () throws Exception {
-        if (!checkEnvs()) return;
         final String key = "testSimpleCopyWithInlinePrefix_"+random(10);
         final String[] args = {OPT_VERBOSE, SOURCE + "/" + key, DESTINATION};
 
@@ -84,8 +101,7 @@ public class MirrorTest {
 
     private void testSimpleCopyInternal(String key, String[] args) throws Exception {
 
-        main = new MirrorMain(args);
-        main.init();
+        main = newMirrorMain(args);
 
         final TestFile testFile = createTestFile(key, Copy.SOURCE, Clean.SOURCE_AND_DEST);
 
@@ -100,7 +116,6 @@ public class MirrorTest {
 
     @Test
     public void testSimpleCopyWithDestPrefix () throws Exception {
-        if (!checkEnvs()) return;
         final String key = "testSimpleCopyWithDestPrefix_"+random(10);
         final String destKey = "dest_testSimpleCopyWithDestPrefix_"+random(10);
         final String[] args = {OPT_PREFIX, key, OPT_DEST_PREFIX, destKey, SOURCE, DESTINATION};
@@ -109,7 +124,6 @@ public class MirrorTest {
 
     @Test
     public void testSimpleCopyWithInlineDestPrefix () throws Exception {
-        if (!checkEnvs()) return;
         final String key = "testSimpleCopyWithInlineDestPrefix_"+random(10);
         final String destKey = "dest_testSimpleCopyWithInlineDestPrefix_"+random(10);
         final String[] args = {SOURCE+"/"+key, DESTINATION+"/"+destKey };
@@ -117,8 +131,7 @@ public class MirrorTest {
     }
 
     private void testSimpleCopyWithDestPrefixInternal(String key, String destKey, String[] args) throws Exception {
-        main = new MirrorMain(args);
-        main.init();
+        main = newMirrorMain(args);
 
         final TestFile testFile = createTestFile(key, Copy.SOURCE, Clean.SOURCE);
         stuffToCleanup.add(new S3Asset(DESTINATION, destKey));
@@ -134,13 +147,11 @@ public class MirrorTest {
 
     @Test
     public void testDeleteRemoved () throws Exception {
-        if (!checkEnvs()) return;
 
         final String key = "testDeleteRemoved_"+random(10);
 
-        main = new MirrorMain(new String[]{OPT_VERBOSE, OPT_PREFIX, key,
+        main = newMirrorMain(new String[]{OPT_VERBOSE, OPT_PREFIX, key,
                                            OPT_DELETE_REMOVED, SOURCE, DESTINATION});
-        main.init();
 
         // Write some files to dest
         final int numDestFiles = 3;
@@ -0,0 +1,34 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultipartKeyCopyJobTest {
+
+    private static long numParts(long objectSize, long partSize) { return (objectSize + partSize - 1) / partSize; }
+
+    @Test
+    public void testPartSizeSpreadsObjectAcrossParallelism() {
+        final long objectSize = 100 * GB;
+        final long partSize = MultipartKeyCopyJob.getPartSize(objectSize, 0, 100);
+        assertEquals(100, numParts(objectSize, partSize));
+    }
+
+    @Test
+    public void testPartSizeStaysWithinLimits() {
+        // a huge object cannot be split into fewer parts than the max part size allows
+        assertEquals(MAX_PART_SIZE, MultipartKeyCopyJob.getPartSize(2 * TB, 0, 10));
+
+        // a configured part size is raised to stay within the max number of parts
+        final long objectSize = 5 * TB;
+        final long partSize = MultipartKeyCopyJob.getPartSize(objectSize, 10 * MB, 100);
+        assertTrue(numParts(objectSize, partSize) <= MAX_PARTS);
+
+        // parts are never smaller than the minimum
+        assertEquals(MIN_PART_SIZE, MultipartKeyCopyJob.getPartSize(6 * GB, 0, 100000));
+    }
+}
@@ -0,0 +1,144 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3mirror.RateLimits.Limit;
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testBurstThenSteadyRate() {
+        final RateLimiter limiter = new RateLimiter(10);
+        final long now = System.nanoTime();
+
+        // a full bucket holds a second's worth of tokens
+        for (int i=0; i<10; i++) assertEquals(0, limiter.reserve(1, now));
+
+        // then each token takes 100ms to earn
+        assertEquals(100 * MS, limiter.reserve(1, now), MS);
+        assertEquals(200 * MS, limiter.reserve(1, now), MS);
+
+        // waiting pays the debt off, and an idle bucket refills no further than full
+        assertEquals(0, limiter.reserve(1, now + TimeUnit.SECONDS.toNanos(10)));
+        assertEquals(0, limiter.reserve(9, now + TimeUnit.SECONDS.toNanos(10)));
+        assertEquals(100 * MS, limiter.reserve(1, now + TimeUnit.SECONDS.toNanos(10)), MS);
+    }
+
+    @Test
+    public void testLargeRequestsWaitForTheirTokens() {
+        final RateLimiter limiter = new RateLimiter(MirrorConstants.MB);
+        final long now = System.nanoTime();
+        // 3MB at 1MB/s: one second from the full bucket, then two seconds of waiting
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.reserve(3 * MirrorConstants.MB, now), MS);
+    }
+
+    @Test
+    public void testConcurrentCallersShareTheRate() throws Exception {
+        final RateLimiter limiter = new RateLimiter(1000);
+        final int threads = 8;
+        final int perThread = 100;
+        final Thread[] workers = new Thread[threads];
+        final long start = System.nanoTime();
+        for (int t=0; t<threads; t++) {
+            workers[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i=0; i<perThread; i++) limiter.acquire(1);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+
+        // 800 tokens at 1000/s, the first 1000 of which are in the bucket already
+        final long elapsed = System.nanoTime() - start;
+        assertTrue("took "+elapsed+"ns", elapsed < TimeUnit.SECONDS.toNanos(1));
+
+        // the bucket is now drained, so the next second's worth has to be earned
+        assertTrue(limiter.reserve(1000, System.nanoTime()) > TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void testParse() {
+        final Map<String, EnumMap<Limit, Double>> limits = RateLimits.parse("dest.copy=200, list=10,bytes=1.5M,source.head=5k");
+        assertEquals(200.0, limits.get(RateLimits.DEST).get(Limit.COPY), 0);
+        assertNull(limits.get(RateLimits.SOURCE).get(Limit.COPY));
+        assertEquals(10.0, limits.get(RateLimits.SOURCE).get(Limit.LIST), 0);
+        assertEquals(10.0, limits.get(RateLimits.DEST).get(Limit.LIST), 0);
+        assertEquals(1.5 * MirrorConstants.MB, limits.get(RateLimits.DEST).get(Limit.BYTES), 0);
+        assertEquals(5.0 * MirrorConstants.KB, limits.get(RateLimits.SOURCE).get(Limit.HEAD), 0);
+
+        for (String invalid : new String[] {"copy", "other.copy=1", "put=1", "copy=fast", "copy=0", ""}) {
+            try {
+                RateLimits.parse(invalid);
+                fail("expected "+invalid+" to be invalid");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRequestsCountAgainstTheirBucket() {
+        final MirrorStats stats = new MirrorStats();
+        final RateLimits limits = new RateLimits("dest.head=1,source.bytes=1M", "from-bucket", null, "to-bucket", null, stats);
+
+        // heads of the source are not limited
+        for (int i=0; i<5; i++) limits.beforeExecution(new GetObjectMetadataRequest("from-bucket", "key"));
+        assertEquals(0, stats.rateLimitWaits.get());
+
+        // one destination head fits in the bucket, the next waits
+        limits.beforeExecution(new GetObjectMetadataRequest("to-bucket", "key"));
+        assertEquals(0, stats.rateLimitWaits.get());
+        limits.beforeExecution(new GetObjectMetadataRequest("to-bucket", "key"));
+        assertEquals(1, stats.rateLimitWaits.get());
+
+        // copied bytes count against the source bucket
+        final CopyPartRequest part = new CopyPartRequest()
+                .withSourceBucketName("from-bucket").withSourceKey("key")
+                .withDestinationBucketName("to-bucket").withDestinationKey("key")
+                .withFirstByte(0L).withLastByte(MirrorConstants.MB + MirrorConstants.MB / 10);
+        limits.beforeExecution(part);
+        assertEquals(2, stats.rateLimitWaits.get());
+        assertTrue(stats.rateLimitWaitMillis.get() >= 1000);
+    }
+
+    @Test
+    public void testSameBucketKeepsBothSidesLimits() {
+        final MirrorStats stats = new MirrorStats();
+        final RateLimits limits = new RateLimits("source.head=100,dest.head=1", "bucket", "data/", "bucket", "data-copy/", stats);
+
+        assertEquals(RateLimits.SOURCE, limits.roleOf("bucket", "data/key"));
+        assertEquals(RateLimits.DEST, limits.roleOf("bucket", "data-copy/key"));
+        assertNull(limits.roleOf("other-bucket", "data/key"));
+
+        // the source limit is not replaced by the destination's
+        for (int i=0; i<5; i++) limits.beforeExecution(new GetObjectMetadataRequest("bucket", "data/key"));
+        assertEquals(0, stats.rateLimitWaits.get());
+        limits.beforeExecution(new GetObjectMetadataRequest("bucket", "data-copy/key"));
+        limits.beforeExecution(new GetObjectMetadataRequest("bucket", "data-copy/key"));
+        assertEquals(1, stats.rateLimitWaits.get());
+    }
+
+    @Test
+    public void testSameBucketNestedPrefixes() {
+        // mirroring the whole bucket into a folder of itself: the folder is the destination
+        final RateLimits limits = new RateLimits("head=1", "bucket", null, "bucket", "backup/", new MirrorStats());
+        assertEquals(RateLimits.SOURCE, limits.roleOf("bucket", "key"));
+        assertEquals(RateLimits.SOURCE, limits.roleOf("bucket", null));
+        assertEquals(RateLimits.DEST, limits.roleOf("bucket", "backup/key"));
+        assertEquals(RateLimits.DEST, limits.roleOf("bucket", "backup/"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cobbzilla.s3s3mirror.Retrier.ErrorClass.*;
+import static org.junit.Assert.*;
+
+public class RetrierTest {
+
+    private static AmazonS3Exception s3Exception(int status, String code) {
+        final AmazonS3Exception e = new AmazonS3Exception(code);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    /**
+     * A call that fails with the given error the given number of times, then succeeds.
+     */
+    private static Retrier.Call<String> failing(final Exception error, final int failures, final AtomicInteger tries) {
+        return new Retrier.Call<String>() {
+            @Override public String call() throws Exception {
+                if (tries.incrementAndGet() <= failures) throw error;
+                return "ok";
+            }
+        };
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(FATAL, Retrier.classify(s3Exception(404, "NoSuchKey")));
+        assertEquals(FATAL, Retrier.classify(s3Exception(403, "AccessDenied")));
+        assertEquals(THROTTLED, Retrier.classify(s3Exception(503, "SlowDown")));
+        assertEquals(RETRYABLE, Retrier.classify(s3Exception(500, "InternalError")));
+        assertEquals(RETRYABLE, Retrier.classify(s3Exception(400, "RequestTimeout")));
+        assertEquals(RETRYABLE, Retrier.classify(new SdkClientException("connection reset")));
+        assertEquals(FATAL, Retrier.classify(new IllegalArgumentException("bad request")));
+    }
+
+    @Test
+    public void testRetriesUntilSuccess() throws Exception {
+        final MirrorStats stats = new MirrorStats();
+        final Retrier retrier = new Retrier(5, 100, stats);
+        final AtomicInteger tries = new AtomicInteger(0);
+        assertEquals("ok", retrier.call("test", failing(s3Exception(500, "InternalError"), 2, tries)));
+        assertEquals(3, tries.get());
+        assertEquals(2, stats.s3retryCount.get());
+        assertEquals(0, stats.s3fatalErrors.get());
+    }
+
+    @Test
+    public void testFatalErrorsAreNotRetried() {
+        final MirrorStats stats = new MirrorStats();
+        final Retrier retrier = new Retrier(5, 100, stats);
+        final AtomicInteger tries = new AtomicInteger(0);
+        try {
+            retrier.call("test", failing(s3Exception(403, "AccessDenied"), 5, tries));
+            fail("expected AccessDenied");
+        } catch (Exception e) {
+            assertEquals(403, ((AmazonS3Exception) e).getStatusCode());
+        }
+        assertEquals(1, tries.get());
+        assertEquals(0, stats.s3retryCount.get());
+        assertEquals(1, stats.s3fatalErrors.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxTries() {
+        final MirrorStats stats = new MirrorStats();
+        final Retrier retrier = new Retrier(3, 100, stats);
+        final AtomicInteger tries = new AtomicInteger(0);
+        try {
+            retrier.call("test", failing(new SdkClientException("connection reset"), 10, tries));
+            fail("expected an exception");
+        } catch (Exception e) {
+            assertTrue(e instanceof SdkClientException);
+        }
+        assertEquals(3, tries.get());
+        assertEquals(2, stats.s3retryCount.get());
+        assertEquals(1, stats.s3retriesExhausted.get());
+    }
+
+    @Test
+    public void testRetryBudget() throws Exception {
+        final MirrorStats stats = new MirrorStats();
+        final Retrier retrier = new Retrier(10, 2, stats);
+        final AtomicInteger tries = new AtomicInteger(0);
+        try {
+            retrier.call("test", failing(s3Exception(500, "InternalError"), 10, tries));
+            fail("expected an exception");
+        } catch (Exception e) {
+            // the budget allows two retries, then the call fails without using up its tries
+            assertEquals(3, tries.get());
+            assertEquals(1, stats.s3retryBudgetExhausted.get());
+        }
+
+        // successes earn the budget back, a tenth of a retry at a time
+        final Retrier.Call<String> ok = failing(null, 0, new AtomicInteger(0));
+        for (int i=0; i<10; i++) retrier.call("test", ok);
+        assertEquals(1.0, retrier.getBudget(), 0.001);
+    }
+
+    @Test
+    public void testCallAsync() throws Exception {
+        final MirrorStats stats = new MirrorStats();
+        final Retrier retrier = new Retrier(5, 100, stats);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final AtomicInteger tries = new AtomicInteger(0);
+            assertEquals("ok", retrier.callAsync("test", failing(s3Exception(500, "InternalError"), 2, tries), executor, scheduler).get());
+            assertEquals(3, tries.get());
+            assertEquals(2, stats.s3retryCount.get());
+
+            final AtomicInteger fatalTries = new AtomicInteger(0);
+            try {
+                retrier.callAsync("test", failing(s3Exception(403, "AccessDenied"), 5, fatalTries), executor, scheduler).get();
+                fail("expected AccessDenied");
+            } catch (ExecutionException e) {
+                assertEquals(403, ((AmazonS3Exception) e.getCause()).getStatusCode());
+            }
+            assertEquals(1, fatalTries.get());
+        } finally {
+            executor.shutdown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndCapped() {
+        long max = 0;
+        for (int i=0; i<1000; i++) {
+            final long first = Retrier.getDelay(RETRYABLE, 1);
+            assertTrue(first >= 0 && first <= Retrier.BASE_DELAY);
+            final long later = Retrier.getDelay(RETRYABLE, 4);
+            assertTrue(later <= 8 * Retrier.BASE_DELAY);
+            max = Math.max(max, later);
+            assertTrue(Retrier.getDelay(THROTTLED, 100) <= Retrier.MAX_DELAY);
+        }
+        // with full jitter the delays spread out over the whole range
+        assertTrue(max > 4 * Retrier.BASE_DELAY);
+    }
+}
@@ -0,0 +1,95 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class ShardedKeyListerTest {
+
+    private static final String BUCKET = "source";
+
+    private FakeS3Server s3;
+    private MirrorMain main;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server().start();
+        s3.createBucket(BUCKET);
+        s3.createBucket("dest");
+        main = s3.newMirror(BUCKET, "dest");
+
+        // keys before, between and after the folders that become the initial range boundaries
+        put("data/!first");
+        put("data/zzz");
+        for (int d=0; d<12; d++) {
+            final String folder = "data/dir"+(d < 10 ? "0" : "")+d+"/";
+            for (int k=0; k<30; k++) put(folder+k);
+            // on the boundaries: a key equal to the folder, and keys just before and just after it
+            put(folder);
+            put(folder.substring(0, folder.length()-1));
+            put(folder+"!");
+        }
+        put("data/dir05.after");
+        // one folder of several pages, which has to be re-split among the threads once the others are done
+        for (int k=0; k<4500; k++) put("data/dir11/big/"+k);
+        // outside the prefix
+        put("dat");
+        put("data0/x");
+    }
+
+    @After
+    public void stopServer() { s3.stop(); }
+
+    private void put(String key) { s3.putObject(BUCKET, key, key.getBytes()); }
+
+    private List<String> list(String prefix, int listThreads) throws Exception {
+        final ShardedKeyLister lister = new ShardedKeyLister(main.getClient(), main.getContext(), 100, BUCKET, prefix, listThreads);
+        final Thread thread = new Thread(lister);
+        thread.start();
+        final List<String> keys = new ArrayList<String>();
+        KeyBatch batch;
+        while (!(batch = lister.getNextBatch()).isEmpty()) {
+            for (int i=0; i<batch.size(); i++) keys.add(batch.get(i).getKey());
+            lister.recycle(batch);
+        }
+        thread.join();
+        assertFalse(lister.isFailed());
+        return keys;
+    }
+
+    private void assertListsEveryKeyOnce(int listThreads) throws Exception {
+        final TreeSet<String> expected = new TreeSet<String>();
+        for (String key : s3.getKeys(BUCKET)) if (key.startsWith("data/")) expected.add(key);
+
+        final List<String> keys = list("data/", listThreads);
+        final TreeSet<String> listed = new TreeSet<String>(keys);
+        assertEquals(expected, listed);
+        assertEquals("keys listed more than once", listed.size(), keys.size());
+    }
+
+    @Test
+    public void testTwoThreads() throws Exception { assertListsEveryKeyOnce(2); }
+
+    @Test
+    public void testManyThreads() throws Exception { assertListsEveryKeyOnce(8); }
+
+    @Test
+    public void testSlowListing() throws Exception {
+        // slow pages keep the big folder's range busy long enough for idle threads to ask for a share of it
+        s3.getFaults(FakeS3Server.Operation.LIST).setLatencyMillis(20);
+        assertListsEveryKeyOnce(4);
+    }
+
+    @Test
+    public void testWholeBucket() throws Exception {
+        final List<String> keys = list(null, 4);
+        assertEquals(s3.getKeys(BUCKET), new TreeSet<String>(keys));
+        assertEquals(s3.getKeys(BUCKET).size(), keys.size());
+    }
+}
@@ -0,0 +1,148 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorOptions.*;
+import static org.junit.Assert.*;
+
+public class StreamingKeyCopyJobTest {
+
+    private static final String SOURCE = "stream-source";
+    private static final String DEST = "stream-dest";
+
+    private FakeS3Server source;
+    private FakeS3Server dest;
+
+    @Before
+    public void startServers() throws Exception {
+        source = new FakeS3Server().start();
+        dest = new FakeS3Server().start();
+        source.createBucket(SOURCE);
+        dest.createBucket(DEST);
+    }
+
+    @After
+    public void stopServers() {
+        source.stop();
+        dest.stop();
+    }
+
+    @Test
+    public void testPartSize() {
+        assertEquals(UploadKeyCopyJob.DEFAULT_PART_SIZE, UploadKeyCopyJob.getPartSize(MB, 0));
+        assertEquals(MIN_PART_SIZE, UploadKeyCopyJob.getPartSize(MB, MB));
+        assertEquals(7 * MB, UploadKeyCopyJob.getPartSize(MB, 7 * MB));
+        // raised to stay within the part count
+        assertEquals(5 * MB + 1, UploadKeyCopyJob.getPartSize(MAX_PARTS * 5 * MB + 1, 5 * MB));
+        assertEquals(MAX_PART_SIZE, UploadKeyCopyJob.getPartSize(Long.MAX_VALUE / 2, 0));
+
+        assertTrue(UploadKeyCopyJob.keepsETag(new KeyRecord("k", 5 * MB, null, "0123456789abcdef0123456789abcdef"), 5 * MB));
+        assertFalse(UploadKeyCopyJob.keepsETag(new KeyRecord("k", 5 * MB + 1, null, "0123456789abcdef0123456789abcdef"), 5 * MB));
+        assertFalse(UploadKeyCopyJob.keepsETag(new KeyRecord("k", 10, null, "0123456789abcdef0123456789abcdef-2"), 5 * MB));
+    }
+
+    @Test
+    public void testMirrorBetweenEndpoints() throws Exception {
+        for (int i=0; i<20; i++) source.putObject(SOURCE, "small/"+i, ("data"+i).getBytes());
+        source.putObject(SOURCE, "empty", new byte[0]);
+        final byte[] big = new byte[12 * (int) MB];
+        for (int i=0; i<big.length; i++) big[i] = (byte) (i * 31);
+        source.putObject(SOURCE, "big", big);
+        source.getFaults(FakeS3Server.Operation.GET).setErrorRate(0.2);
+
+        MirrorMain main = source.newMirror(OPT_DEST_ENDPOINT, dest.getEndpoint(), OPT_MAX_RETRIES, "20", OPT_STREAM_MEMORY, "16", "-u", String.valueOf(5 * MB), SOURCE, DEST);
+        main.run();
+
+        MirrorStats stats = main.getContext().getStats();
+        assertEquals(22, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+        assertEquals(source.getKeys(SOURCE), dest.getKeys(DEST));
+        assertEquals("data7", new String(dest.getObject(DEST, "small/7")));
+        assertEquals(0, dest.getObject(DEST, "empty").length);
+        assertArrayEquals(big, dest.getObject(DEST, "big"));
+        assertEquals(3, dest.getRequestCount(FakeS3Server.Operation.UPLOAD_PART));
+        assertEquals(0, dest.getUploadsInProgress());
+        // nothing was copied server-side, on either endpoint
+        assertEquals(0, source.getRequestCount(FakeS3Server.Operation.COPY));
+        assertEquals(0, dest.getRequestCount(FakeS3Server.Operation.COPY));
+        assertEquals(0, source.getRequestCount(FakeS3Server.Operation.PUT));
+
+        // everything is up to date, including the object whose ETag changed by being uploaded in parts
+        source.clearFaults();
+        main = source.newMirror(OPT_DEST_ENDPOINT, dest.getEndpoint(), OPT_STREAM_MEMORY, "16", "-u", String.valueOf(5 * MB), SOURCE, DEST);
+        main.run();
+        stats = main.getContext().getStats();
+        assertEquals(0, stats.objectsCopied.get());
+        assertEquals(0, stats.copyErrors.get());
+    }
+
+    @Test
+    public void testBufferPoolBlocksAtBudget() throws Exception {
+        final BufferPool pool = new BufferPool(3 * BufferPool.SLAB_SIZE);
+        assertEquals(3L * BufferPool.SLAB_SIZE, pool.getBudget());
+        final BufferPool.Lease first = pool.lease(2 * BufferPool.SLAB_SIZE);
+        assertEquals(2L * BufferPool.SLAB_SIZE, pool.getBytesLeased());
+
+        final CountDownLatch leased = new CountDownLatch(1);
+        final Thread waiter = new Thread() {
+            @Override public void run() {
+                try {
+                    pool.lease(BufferPool.SLAB_SIZE + 1).release();
+                    leased.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(leased.await(200, TimeUnit.MILLISECONDS));
+        first.release();
+        assertTrue(leased.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getBytesLeased());
+
+        try {
+            pool.lease(pool.getBudget() + 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testLeaseReadsAndReplays() throws Exception {
+        final BufferPool pool = new BufferPool(4 * BufferPool.SLAB_SIZE);
+        final byte[] data = new byte[BufferPool.SLAB_SIZE * 2 + 17];
+        for (int i=0; i<data.length; i++) data[i] = (byte) (i * 7);
+
+        final BufferPool.Lease lease = pool.lease(data.length);
+        lease.readFrom(new ByteArrayInputStream(data));
+        final InputStream in = lease.newInputStream();
+        assertTrue(in.markSupported());
+        in.mark(data.length + 1);
+        assertEquals(100, in.skip(100));
+        in.reset();
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        assertEquals(-1, in.read());
+        in.reset();
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+
+        try {
+            lease.readFrom(new ByteArrayInputStream(new byte[10]));
+            fail("expected EOFException");
+        } catch (EOFException expected) {
+            // ok
+        } finally {
+            lease.release();
+        }
+    }
+}
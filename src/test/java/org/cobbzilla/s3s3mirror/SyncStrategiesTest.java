@@ -1,7 +1,6 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.EtagComparisonStrategy;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.SizeAndLastModifiedComparisonStrategy;
 import org.cobbzilla.s3s3mirror.comparisonstrategies.SizeOnlyComparisonStrategy;
@@ -31,7 +30,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testEtaStrategygEtagAndSizeMatch() {
-        S3ObjectSummary source = createTestS3ObjectSummary(ETAG_A, SIZE_A);
+        KeyRecord source = createTestKeyRecord(ETAG_A, SIZE_A);
         ObjectMetadata destination = createTestObjectMetadata(ETAG_A, SIZE_A);
 
         assertFalse(etagComparisonStrategy.sourceDifferent(source, destination));
@@ -39,7 +38,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testEtagStrategySizeMatchEtagDoesNot() {
-        S3ObjectSummary source = createTestS3ObjectSummary(ETAG_A, SIZE_A);
+        KeyRecord source = createTestKeyRecord(ETAG_A, SIZE_A);
         ObjectMetadata destination = createTestObjectMetadata(ETAG_B, SIZE_A);
 
         assertTrue(etagComparisonStrategy.sourceDifferent(source, destination));
@@ -47,7 +46,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testEtagStrategyEtagMatchSizeDoesNot() {
-        S3ObjectSummary source = createTestS3ObjectSummary(ETAG_A, SIZE_A);
+        KeyRecord source = createTestKeyRecord(ETAG_A, SIZE_A);
         ObjectMetadata destination = createTestObjectMetadata(ETAG_A, SIZE_B);
 
         assertTrue(etagComparisonStrategy.sourceDifferent(source, destination));
@@ -55,7 +54,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeStrategySizeMatches() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A);
+        KeyRecord source = createTestKeyRecord(SIZE_A);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_A);
 
         assertFalse(sizeOnlyComparisonStrategy.sourceDifferent(source, destination));
@@ -63,7 +62,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeStrategySizeDoesNotMatches() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A);
+        KeyRecord source = createTestKeyRecord(SIZE_A);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_B);
 
         assertTrue(sizeOnlyComparisonStrategy.sourceDifferent(source, destination));
@@ -71,7 +70,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeAndLastModifiedStrategySizeAndLastModifiedMatch() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A, TIME_EARLY);
+        KeyRecord source = createTestKeyRecord(SIZE_A, TIME_EARLY);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_A, TIME_EARLY);
 
         assertFalse(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, destination));
@@ -79,7 +78,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeAndLastModifiedStrategyLastModifiedMatchSizeDoesNot() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A, TIME_EARLY);
+        KeyRecord source = createTestKeyRecord(SIZE_A, TIME_EARLY);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_B, TIME_EARLY);
 
         assertTrue(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, destination));
@@ -87,7 +86,7 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeAndLastModifiedStrategySizeMatchDestinationAfterSource() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A, TIME_EARLY);
+        KeyRecord source = createTestKeyRecord(SIZE_A, TIME_EARLY);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_A, TIME_LATER);
 
         assertFalse(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, destination));
@@ -95,32 +94,52 @@ public class SyncStrategiesTest {
 
     @Test
     public void testSizeAndLastModifiedStrategySizeMatchSourceAfterDestination() {
-        S3ObjectSummary source = createTestS3ObjectSummary(SIZE_A, TIME_LATER);
+        KeyRecord source = createTestKeyRecord(SIZE_A, TIME_LATER);
         ObjectMetadata destination = createTestObjectMetadata(SIZE_A, TIME_EARLY);
 
         assertTrue(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, destination));
     }
 
-    private S3ObjectSummary createTestS3ObjectSummary(long size) {
-        return createTestS3ObjectSummary(randomString(), size);
+    @Test
+    public void testEtagStrategyAgainstListingEntry() {
+        KeyRecord source = createTestKeyRecord(ETAG_A, SIZE_A);
+
+        assertFalse(etagComparisonStrategy.sourceDifferent(source, createTestKeyRecord(ETAG_A, SIZE_A)));
+        assertTrue(etagComparisonStrategy.sourceDifferent(source, createTestKeyRecord(ETAG_B, SIZE_A)));
+        assertTrue(etagComparisonStrategy.sourceDifferent(source, createTestKeyRecord(ETAG_A, SIZE_B)));
+    }
+
+    @Test
+    public void testSizeStrategyAgainstListingEntry() {
+        KeyRecord source = createTestKeyRecord(SIZE_A);
+
+        assertFalse(sizeOnlyComparisonStrategy.sourceDifferent(source, createTestKeyRecord(SIZE_A)));
+        assertTrue(sizeOnlyComparisonStrategy.sourceDifferent(source, createTestKeyRecord(SIZE_B)));
     }
 
-    private S3ObjectSummary createTestS3ObjectSummary(String etag, long size) {
-        return createTestS3ObjectSummary(etag, size, LocalDateTime.now());
+    @Test
+    public void testSizeAndLastModifiedStrategyAgainstListingEntry() {
+        KeyRecord source = createTestKeyRecord(SIZE_A, TIME_LATER);
+
+        assertFalse(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, createTestKeyRecord(SIZE_A, TIME_LATER)));
+        assertTrue(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, createTestKeyRecord(SIZE_A, TIME_EARLY)));
+        assertTrue(sizeAndLastModifiedComparisonStrategy.sourceDifferent(source, createTestKeyRecord(SIZE_B, TIME_LATER)));
     }
 
-    private S3ObjectSummary createTestS3ObjectSummary(long size, LocalDateTime lastModifiedDate) {
-        return createTestS3ObjectSummary(randomString(), size, lastModifiedDate);
+    private KeyRecord createTestKeyRecord(long size) {
+        return createTestKeyRecord(randomString(), size);
     }
 
-    private S3ObjectSummary createTestS3ObjectSummary(String etag, long size, LocalDateTime lastModified) {
-        S3ObjectSummary summary = new S3ObjectSummary();
+    private KeyRecord createTestKeyRecord(String etag, long size) {
+        return createTestKeyRecord(etag, size, LocalDateTime.now());
+    }
 
-        summary.setETag(etag);
-        summary.setSize(size);
-        summary.setLastModified(Timestamp.valueOf(lastModified));
+    private KeyRecord createTestKeyRecord(long size, LocalDateTime lastModifiedDate) {
+        return createTestKeyRecord(randomString(), size, lastModifiedDate);
+    }
 
-        return summary;
+    private KeyRecord createTestKeyRecord(String etag, long size, LocalDateTime lastModified) {
+        return new KeyRecord("key", size, Timestamp.valueOf(lastModified), etag);
     }
 
     private ObjectMetadata createTestObjectMetadata(long size) {
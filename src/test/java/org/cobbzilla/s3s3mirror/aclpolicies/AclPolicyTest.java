@@ -0,0 +1,78 @@
+package org.cobbzilla.s3s3mirror.aclpolicies;
+
+import com.amazonaws.services.s3.model.*;
+import org.cobbzilla.s3s3mirror.MirrorContext;
+import org.cobbzilla.s3s3mirror.MirrorOptions;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AclPolicyTest {
+
+    private static final Owner DEST_OWNER = new Owner("dest-owner-id", "dest");
+
+    private static AccessControlList acl(String ownerId, boolean publicRead) {
+        final AccessControlList acl = new AccessControlList();
+        acl.setOwner(new Owner(ownerId, ownerId));
+        acl.grantPermission(new CanonicalGrantee(ownerId), Permission.FullControl);
+        if (publicRead) acl.grantPermission(GroupGrantee.AllUsers, Permission.Read);
+        return acl;
+    }
+
+    @Test
+    public void testAclsWithSameGrantsAreShared() {
+        final CopyAclPolicy policy = new CopyAclPolicy(false, DEST_OWNER);
+        final AccessControlList first = policy.getDestinationAcl(acl("a", true));
+        assertSame(first, policy.getDestinationAcl(acl("a", true)));
+        assertNotSame(first, policy.getDestinationAcl(acl("a", false)));
+        assertNotSame(first, policy.getDestinationAcl(acl("b", true)));
+        assertEquals(3, policy.getCachedAclCount());
+    }
+
+    @Test
+    public void testAclsWithSameGrantsAndOtherOwnersAreNotShared() {
+        final CopyAclPolicy policy = new CopyAclPolicy(false, DEST_OWNER);
+        final AccessControlList a = new AccessControlList();
+        a.setOwner(new Owner("a", "a"));
+        a.grantPermission(GroupGrantee.AllUsers, Permission.Read);
+        final AccessControlList b = new AccessControlList();
+        b.setOwner(new Owner("b", "b"));
+        b.grantPermission(GroupGrantee.AllUsers, Permission.Read);
+
+        assertEquals("a", policy.getDestinationAcl(a).getOwner().getId());
+        assertEquals("b", policy.getDestinationAcl(b).getOwner().getId());
+        assertEquals(2, policy.getCachedAclCount());
+    }
+
+    @Test
+    public void testCrossAccountAclIsBuiltOncePerGrantSet() {
+        final CopyAclPolicy policy = new CopyAclPolicy(true, DEST_OWNER);
+        final AccessControlList crossAccount = policy.getDestinationAcl(acl("a", true));
+        assertSame(crossAccount, policy.getDestinationAcl(acl("a", true)));
+
+        assertEquals(DEST_OWNER, crossAccount.getOwner());
+        assertTrue(crossAccount.getGrantsAsList().contains(new Grant(GroupGrantee.AllUsers, Permission.Read)));
+        assertTrue(crossAccount.getGrantsAsList().contains(new Grant(new CanonicalGrantee(DEST_OWNER.getId()), Permission.FullControl)));
+        assertFalse(crossAccount.getGrantsAsList().contains(new Grant(new CanonicalGrantee("a"), Permission.FullControl)));
+    }
+
+    @Test
+    public void testPolicyFromOptions() {
+        final MirrorOptions options = new MirrorOptions();
+        final MirrorContext context = new MirrorContext(options, DEST_OWNER);
+        assertTrue(AclPolicyFactory.getPolicy(context) instanceof CopyAclPolicy);
+
+        options.setAcl(AclPolicyFactory.ACL_NONE);
+        final AclPolicy skip = AclPolicyFactory.getPolicy(context);
+        assertFalse(skip.needsSourceAcl());
+        assertNull(skip.getDestinationAcl(null));
+        assertNull(skip.getCannedAcl());
+
+        options.setAcl("bucket-owner-full-control");
+        final AclPolicy canned = AclPolicyFactory.getPolicy(context);
+        assertFalse(canned.needsSourceAcl());
+        assertEquals(CannedAccessControlList.BucketOwnerFullControl, canned.getCannedAcl());
+
+        assertFalse(AclPolicyFactory.isValid("bogus"));
+    }
+}